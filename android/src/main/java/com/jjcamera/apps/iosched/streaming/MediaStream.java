@@ -27,6 +27,8 @@ import java.util.Random;
 
 import com.jjcamera.apps.iosched.streaming.audio.AudioStream;
 import com.jjcamera.apps.iosched.streaming.rtp.AbstractPacketizer;
+import com.jjcamera.apps.iosched.streaming.rtp.InterleavedWriter;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSubscriber;
 import com.jjcamera.apps.iosched.streaming.video.VideoStream;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -205,6 +207,30 @@ public abstract class MediaStream implements Stream {
 		return mPacketizer.getRtpSocket().getLocalPorts();
 	}
 
+	/** 
+	 * Adds a receiver of the stream, the encoder and the packetizer are shared by all the receivers.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public RtpSubscriber addSubscriber(InetAddress dest, int rtpPort, int rtcpPort) {
+		return mPacketizer.getRtpSocket().addSubscriber(dest, rtpPort, rtcpPort);
+	}
+
+	/** 
+	 * Adds a receiver of the stream whose packets are interleaved in its RTSP connection.
+	 * @param writer The writer of the RTSP connection of the receiver
+	 * @param channelIdentifier The interleaved channel used for RTP, the next one is used for RTCP
+	 */
+	public RtpSubscriber addSubscriber(InterleavedWriter writer, byte channelIdentifier) {
+		return mPacketizer.getRtpSocket().addSubscriber(writer, channelIdentifier);
+	}
+
+	/** Removes a receiver added with {@link #addSubscriber(InetAddress, int, int)}. */
+	public void removeSubscriber(RtpSubscriber subscriber) {
+		mPacketizer.getRtpSocket().removeSubscriber(subscriber);
+	}
+
 	/**
 	 * Sets the streaming method that will be used.
 	 * 
@@ -33,6 +33,8 @@ import com.jjcamera.apps.iosched.streaming.exceptions.InvalidSurfaceException;
 import com.jjcamera.apps.iosched.streaming.exceptions.StorageUnavailableException;
 import com.jjcamera.apps.iosched.streaming.gl.SurfaceView;
 import com.jjcamera.apps.iosched.streaming.mp4.MP4Muxer;
+import com.jjcamera.apps.iosched.streaming.rtp.InterleavedWriter;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSubscriber;
 import com.jjcamera.apps.iosched.streaming.rtsp.RtspClient;
 import com.jjcamera.apps.iosched.streaming.video.VideoQuality;
 import com.jjcamera.apps.iosched.streaming.video.VideoStream;
@@ -401,13 +403,10 @@ public class Session {
 			Stream stream = id==0 ? mAudioStream : mVideoStream;
 			if (stream!=null) {
 				try {
+					// A stream already running is shared, receivers are added with syncSubscribe()
 					if(!stream.isStreaming()){
 						stream.configure();
 					}
-					else if(mKeepStreaming && mDestination != null){
-						InetAddress destination =  InetAddress.getByName(mDestination);
-						stream.setDestinationAddress(destination);
-					}
 				} catch (CameraInUseException e) {
 					postError(ERROR_CAMERA_ALREADY_IN_USE , id, e);
 					throw e;
@@ -458,12 +457,85 @@ public class Session {
 			InvalidSurfaceException, 
 			UnknownHostException,
 			IOException {
+		syncStart(id, true);
+	}
+
+	/** 
+	 * Adds a receiver to a stream in a synchronous manner, the stream is started if needed. <br />
+	 * The stream is encoded and packetized once whatever the number of receivers,
+	 * each of them gets its own SSRC, sequence numbers and RTCP reports.
+	 * @param id The id of the stream
+	 * @param dest The destination address of the receiver
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 * @return The subscriber, to give to {@link #unsubscribe(int, RtpSubscriber)}
+	 **/
+	public RtpSubscriber syncSubscribe(int id, InetAddress dest, int rtpPort, int rtcpPort) 			
+			throws CameraInUseException, 
+			StorageUnavailableException,
+			ConfNotSupportedException, 
+			InvalidSurfaceException, 
+			UnknownHostException,
+			IOException {
+
+		Stream stream = getTrack(id);
+		if (stream == null) return null;
+		synchronized (stream) {
+			if (!stream.isStreaming()) {
+				// Start() needs ports even though no packet is sent to the destination of the stream
+				stream.setDestinationPorts(rtpPort, rtcpPort);
+				syncStart(id, false);
+			}
+			return stream.addSubscriber(dest, rtpPort, rtcpPort);
+		}
+	}
+
+	/** 
+	 * Adds a receiver to a stream in a synchronous manner, its packets are interleaved in its RTSP connection.
+	 * @param id The id of the stream
+	 * @param writer The writer of the RTSP connection of the receiver
+	 * @param channelIdentifier The interleaved channel used for RTP, the next one is used for RTCP
+	 * @return The subscriber, to give to {@link #unsubscribe(int, RtpSubscriber)}
+	 */
+	public RtpSubscriber syncSubscribe(int id, InterleavedWriter writer, byte channelIdentifier) 			
+			throws CameraInUseException, 
+			StorageUnavailableException,
+			ConfNotSupportedException, 
+			InvalidSurfaceException, 
+			UnknownHostException,
+			IOException {
+
+		Stream stream = getTrack(id);
+		if (stream == null) return null;
+		synchronized (stream) {
+			if (!stream.isStreaming()) {
+				syncStart(id, false);
+			}
+			return stream.addSubscriber(writer, channelIdentifier);
+		}
+	}
+
+	/** Removes a receiver added with {@link #syncSubscribe(int, InetAddress, int, int)}, the stream keeps running. */
+	public void unsubscribe(int id, RtpSubscriber subscriber) {
+		Stream stream = getTrack(id);
+		if (stream != null && subscriber != null) {
+			stream.removeSubscriber(subscriber);
+		}
+	}
+
+	private void syncStart(int id, boolean toDestination) 			
+			throws CameraInUseException, 
+			StorageUnavailableException,
+			ConfNotSupportedException, 
+			InvalidSurfaceException, 
+			UnknownHostException,
+			IOException {
 
 		Stream stream = id==0 ? mAudioStream : mVideoStream;
 		if (stream!=null && !stream.isStreaming()) {
 			try {
 				stream.setTimeToLive(mTimeToLive);
-				if(mDestination != null) {
+				if(toDestination && mDestination != null) {
 					InetAddress destination = InetAddress.getByName(mDestination);
 					stream.setDestinationAddress(destination);
 				}
@@ -24,6 +24,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 
+import com.jjcamera.apps.iosched.streaming.rtp.InterleavedWriter;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSubscriber;
+
 /**
  * An interface that represents a Stream. 
  */
@@ -121,4 +124,24 @@ public interface Stream {
 
 	public boolean isStreaming();
 
+	/**
+	 * Adds a receiver of the stream, it shares the packets produced for the other receivers.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public RtpSubscriber addSubscriber(InetAddress dest, int rtpPort, int rtcpPort);
+
+	/**
+	 * Adds a receiver of the stream whose packets are interleaved in its RTSP connection.
+	 * @param writer The writer of the RTSP connection of the receiver
+	 * @param channelIdentifier The interleaved channel used for RTP, the next one is used for RTCP
+	 */
+	public RtpSubscriber addSubscriber(InterleavedWriter writer, byte channelIdentifier);
+
+	/**
+	 * Removes a receiver added with {@link #addSubscriber(InetAddress, int, int)}.
+	 */
+	public void removeSubscriber(RtpSubscriber subscriber);
+
 }
@@ -28,6 +28,7 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 
 import com.jjcamera.apps.iosched.streaming.SessionBuilder;
+import com.jjcamera.apps.iosched.streaming.mp4.MP4Muxer;
 import com.jjcamera.apps.iosched.streaming.rtp.AACADTSPacketizer;
 import com.jjcamera.apps.iosched.streaming.rtp.AACLATMPacketizer;
 import com.jjcamera.apps.iosched.streaming.rtp.MediaCodecInputStream;
@@ -189,6 +190,7 @@ public class AACStream extends AudioStream {
 	protected void encodeWithMediaRecorder() throws IOException {
 		testADTS();
 		((AACADTSPacketizer)mPacketizer).setSamplingRate(mQuality.samplingRate);
+		MP4Muxer.getInstance().setAudioFormat(mQuality.samplingRate, mChannel, mConfig);
 		super.encodeWithMediaRecorder();
 	}
 
@@ -199,6 +201,7 @@ public class AACStream extends AudioStream {
 		final int bufferSize = AudioRecord.getMinBufferSize(mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT)*2;
 
 		((AACLATMPacketizer)mPacketizer).setSamplingRate(mQuality.samplingRate);
+		MP4Muxer.getInstance().setAudioFormat(mQuality.samplingRate, mChannel, mConfig);
 
 		mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
 		mMediaCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
@@ -20,20 +20,13 @@
 
 package com.jjcamera.apps.iosched.streaming.audio;
 
-import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Date;
 
 import com.jjcamera.apps.iosched.streaming.MediaStream;
-import com.jjcamera.apps.iosched.streaming.SessionBuilder;
 import com.jjcamera.apps.iosched.streaming.exceptions.ConfNotSupportedException;
 import com.jjcamera.apps.iosched.streaming.exceptions.StorageUnavailableException;
-import com.jjcamera.apps.iosched.streaming.mp4.MP4Muxer;
-import com.jjcamera.apps.iosched.util.SDCardUtils;
-import com.jjcamera.apps.iosched.util.UIUtils;
 
 import android.media.MediaRecorder;
 import android.os.ParcelFileDescriptor;
@@ -128,33 +121,11 @@ public abstract class AudioStream  extends MediaStream {
 			}
 		}
 
-		FileOutputStream fop = createTempRecorder();	
-
 		// the mPacketizer encapsulates this stream in an RTP stream and send it over the network
-		mPacketizer.setOutputStream(fop);
 		mPacketizer.setInputStream(is);
 		mPacketizer.start();
 		mStreaming = true;
 		
 	}
 
-	static public FileOutputStream createTempRecorder(){
-		final String AACFILE = SDCardUtils.getExternalSdCardPathForVideo()+"/recorder" + (new Date()).getTime() + ".aac";
-
-		Log.i(TAG, "Saving temp AACFILE file at: " + AACFILE);
-
-		FileOutputStream fop = null;
-		try {
-			File file = new File(AACFILE);
-			file.createNewFile();
-			fop = new FileOutputStream(file);
-
-			MP4Muxer.getInstance().setAudioSource(AACFILE);
-		} catch (IOException e) {
-			//throw new StorageUnavailableException(e.getMessage());
-			UIUtils.DisplayToast(SessionBuilder.getInstance().getContext(), e.getMessage());
-		}
-		return fop;
-	}
-	
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.gl;
+
+/**
+ * Decides which frames of the camera are rendered into the input surface of the encoder, 
+ * so that it is not fed faster than the requested frame rate. Frames are dropped evenly:
+ * with a 30 fps camera and 20 fps requested, one frame out of three is dropped.
+ */
+public class FrameLimiter {
+
+	/** Interval between two frames in ns, 0 if the frame rate is not limited. */
+	private long mInterval = 0;
+
+	/** Timestamp at which the next frame is expected. */
+	private long mNext = 0;
+
+	/** @param framerate The maximum frame rate, 0 to let all frames through */
+	public synchronized void setMaxFramerate(int framerate) {
+		mInterval = framerate > 0 ? 1000000000L/framerate : 0;
+		mNext = 0;
+	}
+
+	public synchronized int getMaxFramerate() {
+		return mInterval > 0 ? (int) (1000000000L/mInterval) : 0;
+	}
+
+	/** The next frame will be accepted whatever its timestamp. */
+	public synchronized void reset() {
+		mNext = 0;
+	}
+
+	/**
+	 * @param timestamp The timestamp of the frame in ns
+	 * @return Whether the frame should be given to the encoder
+	 */
+	public synchronized boolean accept(long timestamp) {
+		if (mInterval == 0) return true;
+
+		// A quarter of the interval is tolerated for the jitter of the camera
+		if (mNext != 0 && timestamp < mNext - mInterval/4) return false;
+
+		// Starts over after a gap, the skipped slots are not made up for
+		if (mNext == 0 || timestamp - mNext > mInterval) {
+			mNext = timestamp + mInterval;
+		} else {
+			mNext += mInterval;
+		}
+		return true;
+	}
+
+}
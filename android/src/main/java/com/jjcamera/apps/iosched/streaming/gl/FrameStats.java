@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.gl;
+
+/**
+ * Timing of the frames rendered by the GL thread of the {@link SurfaceView}:
+ * how long rendering takes, how late frames are compared to the timestamp the
+ * camera gave them and how many of them were given to the encoder.
+ */
+public class FrameStats {
+
+	/** Weight of the last frame in the averages. */
+	private static final float ALPHA = 0.05f;
+
+	/** Latencies above this are ignored, the camera uses another clock. */
+	private static final long MAX_LATENCY = 1000000000L;
+
+	private long mFrames, mEncoded, mSkipped;
+	private long mMaxRenderTime = 0, mLastTimestamp = 0;
+	private float mRenderTime = 0, mLatency = 0, mInterval = 0;
+
+	/**
+	 * Called by the GL thread once the frame has been rendered.
+	 * @param timestamp The timestamp of the frame given by the camera in ns
+	 * @param renderTime The time it took to render the frame everywhere in ns
+	 * @param latency The time between the timestamp and the end of the rendering, in ns
+	 * @param encoded Whether the frame was given to the encoder
+	 */
+	public synchronized void onFrame(long timestamp, long renderTime, long latency, boolean encoded) {
+		mFrames++;
+		if (encoded) mEncoded++;
+		else mSkipped++;
+
+		mRenderTime = mFrames == 1 ? renderTime : mRenderTime + ALPHA*(renderTime-mRenderTime);
+		if (renderTime > mMaxRenderTime) mMaxRenderTime = renderTime;
+
+		if (latency >= 0 && latency < MAX_LATENCY) {
+			mLatency = mLatency == 0 ? latency : mLatency + ALPHA*(latency-mLatency);
+		}
+
+		if (mLastTimestamp != 0 && timestamp > mLastTimestamp) {
+			long interval = timestamp - mLastTimestamp;
+			mInterval = mInterval == 0 ? interval : mInterval + ALPHA*(interval-mInterval);
+		}
+		mLastTimestamp = timestamp;
+	}
+
+	public synchronized long getFrameCount() {
+		return mFrames;
+	}
+
+	/** Number of frames rendered into the input surface of the encoder. */
+	public synchronized long getEncodedFrameCount() {
+		return mEncoded;
+	}
+
+	/** Number of frames only rendered in the preview. */
+	public synchronized long getSkippedFrameCount() {
+		return mSkipped;
+	}
+
+	/** Average time needed to render a frame in us. */
+	public synchronized long getAverageRenderTime() {
+		return (long) (mRenderTime/1000);
+	}
+
+	/** Longest time needed to render a frame in us. */
+	public synchronized long getMaxRenderTime() {
+		return mMaxRenderTime/1000;
+	}
+
+	/** Average latency between the capture and the end of the rendering in us. */
+	public synchronized long getAverageLatency() {
+		return (long) (mLatency/1000);
+	}
+
+	/** Frame rate of the camera, estimated from the timestamps of the frames. */
+	public synchronized float getFramerate() {
+		return mInterval > 0 ? 1000000000f/mInterval : 0;
+	}
+
+	public synchronized void reset() {
+		mFrames = mEncoded = mSkipped = 0;
+		mMaxRenderTime = mLastTimestamp = 0;
+		mRenderTime = mLatency = mInterval = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d frames (%d encoded, %d skipped), %.1f fps, render: %d us (max %d us), latency: %d us",
+				mFrames, mEncoded, mSkipped, getFramerate(), getAverageRenderTime(), getMaxRenderTime(), getAverageLatency());
+	}
+
+}
@@ -61,6 +61,7 @@ public class SurfaceManager {
 	private EGLDisplay mEGLDisplay = null;
 
 	private Surface mSurface;
+	private int mWidth, mHeight;
 
 	/**
 	 * Creates an EGL context and an EGL surface.
@@ -79,6 +80,19 @@ public class SurfaceManager {
 		eglSetup();
 	}
 
+	public Surface getSurface() {
+		return mSurface;
+	}
+
+	/** Width of the EGL surface, known once it has been created. */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
 	public void makeCurrent() {
 		if (!EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext))
 			throw new RuntimeException("eglMakeCurrent failed");
@@ -156,6 +170,12 @@ public class SurfaceManager {
 				surfaceAttribs, 0);
 		checkEglError("eglCreateWindowSurface");
 
+		int[] size = new int[1];
+		EGL14.eglQuerySurface(mEGLDisplay, mEGLSurface, EGL14.EGL_WIDTH, size, 0);
+		mWidth = size[0];
+		EGL14.eglQuerySurface(mEGLDisplay, mEGLSurface, EGL14.EGL_HEIGHT, size, 0);
+		mHeight = size[0];
+
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
         GLES20.glDisable(GLES20.GL_CULL_FACE);
 		
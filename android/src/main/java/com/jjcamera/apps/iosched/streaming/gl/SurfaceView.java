@@ -20,6 +20,8 @@
 
 package com.jjcamera.apps.iosched.streaming.gl;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.concurrent.Semaphore;
 
 import com.jjcamera.apps.iosched.streaming.MediaStream;
@@ -63,6 +65,9 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 	
 	/** The surface view will fill completely fill its parent. */
 	public static final int ASPECT_RATIO_STRETCH = 0x00;
+
+	/** Interval between two logs of the {@link FrameStats} while encoding, in ns. */
+	private static final long STATS_INTERVAL = 10000000000L;
 	
 	private Thread mThread = null;
 	private Handler mHandler = null;
@@ -73,13 +78,19 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 	// The surface in which the preview is rendered
 	private SurfaceManager mViewSurfaceManager = null;
 	
-	// The input surface of the MediaCodec
-	private SurfaceManager mCodecSurfaceManager = null;
+	// The input surfaces of the MediaCodecs
+	private final ArrayList<Output> mOutputs = new ArrayList<Output>();
+
+	// Overlays used by the outputs, their textures are deleted when the GL thread stops
+	private final HashSet<TextOverlay> mOverlays = new HashSet<TextOverlay>();
 	
 	// Handles the rendering of the SurfaceTexture we got 
 	// from the camera, onto a Surface
 	private TextureManager mTextureManager = null;
 
+	// Timing of the frames rendered by the GL thread
+	private final FrameStats mFrameStats = new FrameStats();
+
 	private final Semaphore mLock = new Semaphore(0);
 	private final Object mSyncObject = new Object();
 
@@ -101,17 +112,52 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 	}
 
 	public void addMediaCodecSurface(Surface surface) {
+		addMediaCodecSurface(surface, 0, null);
+	}
+
+	/**
+	 * The camera preview will also be rendered in the input surface of a MediaCodec, 
+	 * scaled to its resolution. Several encoders can be fed this way, each frame of 
+	 * the camera is only drawn once per surface.
+	 * @param surface The input surface of the MediaCodec
+	 * @param framerate The maximum frame rate, 0 to give every frame of the camera to the encoder,
+	 * all frames are still rendered in the SurfaceView
+	 * @param overlay Text drawn over the video given to this encoder, can be null
+	 */
+	public void addMediaCodecSurface(Surface surface, int framerate, TextOverlay overlay) {
+		synchronized (mSyncObject) {
+			Output output = new Output(new SurfaceManager(surface,mViewSurfaceManager), overlay);
+			output.limiter.setMaxFramerate(framerate);
+			if (mOutputs.isEmpty()) mFrameStats.reset();
+			mOutputs.add(output);
+			if (overlay != null) mOverlays.add(overlay);
+		}
+	}
+
+	/** Timing of the frames rendered since the first input surface of a MediaCodec was added. */
+	public FrameStats getFrameStats() {
+		return mFrameStats;
+	}
+
+	/** Stops rendering in the input surface of this MediaCodec. */
+	public void removeMediaCodecSurface(Surface surface) {
 		synchronized (mSyncObject) {
-			mCodecSurfaceManager = new SurfaceManager(surface,mViewSurfaceManager);			
+			for (int i=0;i<mOutputs.size();i++) {
+				if (mOutputs.get(i).manager.getSurface() == surface) {
+					mOutputs.remove(i).manager.release();
+					return;
+				}
+			}
 		}
 	}
 
+	/** Stops rendering in the input surfaces of all the MediaCodecs. */
 	public void removeMediaCodecSurface() {
 		synchronized (mSyncObject) {
-			if (mCodecSurfaceManager != null) {
-				mCodecSurfaceManager.release();
-				mCodecSurfaceManager = null;
+			for (int i=0;i<mOutputs.size();i++) {
+				mOutputs.get(i).manager.release();
 			}
+			mOutputs.clear();
 		}
 	}
 
@@ -138,26 +184,42 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 		mLock.release();
 
 		try {
-			long ts = 0, oldts = 0;
+			long ts, start, now, lastLog = System.nanoTime();
+			boolean encoded;
 			while (mRunning) {
 				synchronized (mSyncObject) {
-					mSyncObject.wait(2500);
+					if (!mFrameAvailable) mSyncObject.wait(2500);
 					if (mFrameAvailable) {
 						mFrameAvailable = false;
+						start = System.nanoTime();
 
 						mViewSurfaceManager.makeCurrent();
 						mTextureManager.updateFrame();
 						mTextureManager.drawFrame();
 						mViewSurfaceManager.swapBuffer();
 
-						if (mCodecSurfaceManager != null) {
-							mCodecSurfaceManager.makeCurrent();
-							mTextureManager.drawFrame();
-							oldts = ts;
-							ts = mTextureManager.getSurfaceTexture().getTimestamp();
-							//Log.d(TAG,"FPS: "+(1000000000/(ts-oldts)));
-							mCodecSurfaceManager.setPresentationTime(ts);
-							mCodecSurfaceManager.swapBuffer();
+						ts = mTextureManager.getSurfaceTexture().getTimestamp();
+						encoded = false;
+						for (int i=0;i<mOutputs.size();i++) {
+							Output output = mOutputs.get(i);
+							if (!output.limiter.accept(ts)) continue;
+							SurfaceManager manager = output.manager;
+							manager.makeCurrent();
+							mTextureManager.drawFrame(manager.getWidth(), manager.getHeight());
+							if (output.overlay != null) {
+								output.overlay.update();
+								output.overlay.draw(manager.getWidth(), manager.getHeight());
+							}
+							manager.setPresentationTime(ts);
+							manager.swapBuffer();
+							encoded = true;
+						}
+
+						now = System.nanoTime();
+						mFrameStats.onFrame(ts, now-start, now-ts, encoded);
+						if (!mOutputs.isEmpty() && now-lastLog > STATS_INTERVAL) {
+							Log.d(TAG, mFrameStats.toString());
+							lastLog = now;
 						}
 
 					} else {
@@ -167,6 +229,15 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 			}
 		} catch (InterruptedException ignore) {
 		} finally {
+			synchronized (mSyncObject) {
+				try {
+					mViewSurfaceManager.makeCurrent();
+					for (TextOverlay overlay : mOverlays) overlay.release();
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Overlays could not be released: "+e.getMessage());
+				}
+				mOverlays.clear();
+			}
 			mViewSurfaceManager.release();
 			mTextureManager.release();
 		}
@@ -225,6 +296,17 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable, O
 		}
 	}
 		
+	/** An input surface of a MediaCodec in which the preview is rendered. */
+	private static class Output {
+		final SurfaceManager manager;
+		final FrameLimiter limiter = new FrameLimiter();
+		final TextOverlay overlay;
+		Output(SurfaceManager manager, TextOverlay overlay) {
+			this.manager = manager;
+			this.overlay = overlay;
+		}
+	}
+
 	/**
 	 * This class is a helper to measure views that require a specific aspect ratio.
 	 * @author Jesper Borgstrup
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.gl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+/**
+ * Text drawn by the GL thread of the {@link SurfaceView} over the camera preview 
+ * before it is given to an encoder: a fixed label, the current date and time, or both.
+ * The text is rendered with a {@link Canvas} in a texture which is only uploaded again
+ * when the text changes, so once per second with the timestamp.
+ */
+public class TextOverlay {
+
+	public final static String TAG = "TextOverlay";
+
+	/** Height of the text in the bitmap, it is then scaled to the output. */
+	private static final int TEXT_SIZE = 32;
+
+	/** Height of the overlay relatively to the height of the output. */
+	private static final float HEIGHT = 1/20f;
+
+	/** Margin between the overlay and the top left corner, relatively to the height of the output. */
+	private static final float MARGIN = 1/40f;
+
+	private static final String VERTEX_SHADER =
+			"attribute vec4 aPosition;\n" +
+					"attribute vec2 aTextureCoord;\n" +
+					"varying vec2 vTextureCoord;\n" +
+					"void main() {\n" +
+					"  gl_Position = aPosition;\n" +
+					"  vTextureCoord = aTextureCoord;\n" +
+					"}\n";
+
+	private static final String FRAGMENT_SHADER =
+			"precision mediump float;\n" +
+					"varying vec2 vTextureCoord;\n" +
+					"uniform sampler2D sTexture;\n" +
+					"void main() {\n" +
+					"  gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+					"}\n";
+
+	private final SimpleDateFormat mFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+	private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final float[] mVerticesData = new float[16];
+	private final FloatBuffer mVertices;
+
+	private String mText = null;
+	private boolean mTimestamp = false;
+
+	// The text only changes once per second, it is built once for every output
+	private final Date mDate = new Date();
+	private long mSecond = -1;
+	private String mCurrent = null;
+
+	// Only used by the GL thread
+	private String mRendered = null;
+	private int mProgram = 0, mTexture = 0;
+	private int maPositionHandle, maTextureHandle;
+	private int mBitmapWidth, mBitmapHeight;
+
+	public TextOverlay() {
+		mPaint.setColor(Color.WHITE);
+		mPaint.setTextSize(TEXT_SIZE);
+		mPaint.setTypeface(Typeface.MONOSPACE);
+		mVertices = ByteBuffer.allocateDirect(mVerticesData.length*4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	/** A label drawn after the timestamp if there is one, null to remove it. */
+	public synchronized void setText(String text) {
+		mText = text;
+		mCurrent = null;
+	}
+
+	/** Draws the current date and time. */
+	public synchronized void setTimestampEnabled(boolean enabled) {
+		mTimestamp = enabled;
+		mCurrent = null;
+	}
+
+	/** Returns the text to draw, null if there is none. */
+	synchronized String getText() {
+		if (!mTimestamp) return mText;
+		long second = System.currentTimeMillis()/1000;
+		if (mCurrent == null || second != mSecond) {
+			mSecond = second;
+			mDate.setTime(second*1000);
+			String date = mFormat.format(mDate);
+			mCurrent = mText != null ? date+" "+mText : date;
+		}
+		return mCurrent;
+	}
+
+	/**
+	 * Uploads the text in the texture if it has changed.
+	 * Must be called by the GL thread with an EGL context current.
+	 */
+	void update() {
+		String text = getText();
+		if (text == null || text.length() == 0) {
+			mRendered = null;
+			return;
+		}
+		// The same string is returned until the text changes
+		if (text.equals(mRendered)) return;
+
+		if (mProgram == 0) {
+			mProgram = TextureManager.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+			if (mProgram == 0) {
+				throw new RuntimeException("failed creating program");
+			}
+			maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+			maTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+			int[] textures = new int[1];
+			GLES20.glGenTextures(1, textures, 0);
+			mTexture = textures[0];
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			TextureManager.checkGlError("overlay texture");
+		}
+
+		// The text is drawn in white on a translucent black box
+		Paint.FontMetricsInt metrics = mPaint.getFontMetricsInt();
+		int padding = TEXT_SIZE/4;
+		mBitmapWidth = (int) Math.ceil(mPaint.measureText(text)) + 2*padding;
+		mBitmapHeight = metrics.descent - metrics.ascent + 2*padding;
+		Bitmap bitmap = Bitmap.createBitmap(mBitmapWidth, mBitmapHeight, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+		canvas.drawARGB(0x80, 0, 0, 0);
+		canvas.drawText(text, padding, padding - metrics.ascent, mPaint);
+
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+		bitmap.recycle();
+		TextureManager.checkGlError("overlay texImage2D");
+
+		mRendered = text;
+	}
+
+	/**
+	 * Draws the text in the top left corner of the current EGL surface, 
+	 * after {@link #update()} has been called.
+	 */
+	void draw(int width, int height) {
+		if (mRendered == null) return;
+
+		// In normalized device coordinates, the overlay keeps the aspect ratio of the bitmap
+		float h = 2*HEIGHT, w = h*mBitmapWidth/mBitmapHeight*height/width;
+		float left = -1 + 2*MARGIN*height/width, top = 1 - 2*MARGIN;
+		setVertex(0, left, top-h, 0, 1);
+		setVertex(1, left+w, top-h, 1, 1);
+		setVertex(2, left, top, 0, 0);
+		setVertex(3, left+w, top, 1, 0);
+		mVertices.put(mVerticesData).position(0);
+
+		GLES20.glViewport(0, 0, width, height);
+		GLES20.glUseProgram(mProgram);
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+
+		mVertices.position(0);
+		GLES20.glVertexAttribPointer(maPositionHandle, 2, GLES20.GL_FLOAT, false, 16, mVertices);
+		GLES20.glEnableVertexAttribArray(maPositionHandle);
+		mVertices.position(2);
+		GLES20.glVertexAttribPointer(maTextureHandle, 2, GLES20.GL_FLOAT, false, 16, mVertices);
+		GLES20.glEnableVertexAttribArray(maTextureHandle);
+
+		// The bitmap has premultiplied alpha
+		GLES20.glEnable(GLES20.GL_BLEND);
+		GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+		GLES20.glDisable(GLES20.GL_BLEND);
+		TextureManager.checkGlError("overlay glDrawArrays");
+	}
+
+	/** Deletes the texture and the program, must be called by the GL thread. */
+	void release() {
+		if (mProgram != 0) {
+			GLES20.glDeleteProgram(mProgram);
+			GLES20.glDeleteTextures(1, new int[] {mTexture}, 0);
+			mProgram = mTexture = 0;
+		}
+		mRendered = null;
+	}
+
+	private void setVertex(int i, float x, float y, float u, float v) {
+		mVerticesData[4*i] = x;
+		mVerticesData[4*i+1] = y;
+		mVerticesData[4*i+2] = u;
+		mVerticesData[4*i+3] = v;
+	}
+
+}
@@ -124,6 +124,15 @@ public class TextureManager {
 		mSurfaceTexture.updateTexImage();
 	}
 	
+	/**
+	 * Draws the frame scaled to a surface of the given size, the EGL surface must be current.
+	 * Every input surface of an encoder can have its own resolution.
+	 */
+	public void drawFrame(int width, int height) {
+		GLES20.glViewport(0, 0, width, height);
+		drawFrame();
+	}
+
 	public void drawFrame() {	
 		checkGlError("onDrawFrame start");
 		mSurfaceTexture.getTransformMatrix(mSTMatrix);
@@ -231,7 +240,7 @@ public class TextureManager {
 		}
 	}
 
-	private int loadShader(int shaderType, String source) {
+	static int loadShader(int shaderType, String source) {
 		int shader = GLES20.glCreateShader(shaderType);
 		checkGlError("glCreateShader type=" + shaderType);
 		GLES20.glShaderSource(shader, source);
@@ -247,7 +256,7 @@ public class TextureManager {
 		return shader;
 	}
 
-	private int createProgram(String vertexSource, String fragmentSource) {
+	static int createProgram(String vertexSource, String fragmentSource) {
 		int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
 		if (vertexShader == 0) {
 			return 0;
@@ -278,7 +287,7 @@ public class TextureManager {
 		return program;
 	}
 
-	public void checkGlError(String op) {
+	public static void checkGlError(String op) {
 		int error;
 		while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
 			Log.e(TAG, op + ": glError " + error);
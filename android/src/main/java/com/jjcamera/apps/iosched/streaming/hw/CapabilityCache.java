@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.hw;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Persistent database of what was learned by probing the device: usable encoder
+ * configurations, actual camera frame rates... Entries are keyed by device/codec/resolution
+ * (see {@link #key(Object...)}) and carry their own version, so that a probe whose logic
+ * changes only invalidates its own results.
+ * 
+ * The whole database is stored as one JSON string in the shared preferences and dropped
+ * when the build fingerprint of the phone changes (i.e. after a system update).
+ * Lookups only hit memory, the probes can be skipped on warm starts and the cached results
+ * are checked again later with {@link #validate(String, Validator)} in a background thread.
+ */
+public class CapabilityCache {
+
+	public final static String TAG = "CapabilityCache";
+
+	/** Key of the shared preference in which the database is stored. */
+	private static final String PREF_KEY = "libstreaming-capabilities";
+
+	/** Will be incremented every time the layout of the database is modified. */
+	private static final int VERSION = 1;
+
+	/** Checks that a cached result still holds, called in a background thread. */
+	public interface Validator {
+		boolean isValid(JSONObject entry);
+	}
+
+	private static CapabilityCache sInstance = null;
+
+	private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CapabilityCache");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	private final SharedPreferences mPreferences;
+	private final ConcurrentHashMap<String, JSONObject> mEntries = new ConcurrentHashMap<String, JSONObject>();
+	private final ConcurrentHashMap<String, Boolean> mValidated = new ConcurrentHashMap<String, Boolean>();
+
+	/** Returns the database stored in those shared preferences, loading it if needed. */
+	public synchronized static CapabilityCache getInstance(SharedPreferences prefs) {
+		if (sInstance == null || sInstance.mPreferences != prefs) {
+			sInstance = new CapabilityCache(prefs);
+		}
+		return sInstance;
+	}
+
+	/** 
+	 * Loads the database in a background thread, to be called as soon as the process starts
+	 * so that the first session does not have to parse it.
+	 */
+	public static void preload(final SharedPreferences prefs) {
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				getInstance(prefs);
+			}
+		});
+	}
+
+	/** Builds a key from its components, e.g. key("encoder", "video/avc", 640, 480). */
+	public static String key(Object... parts) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0;i<parts.length;i++) {
+			if (i>0) sb.append('/');
+			sb.append(parts[i]);
+		}
+		return sb.toString();
+	}
+
+	private CapabilityCache(SharedPreferences prefs) {
+		mPreferences = prefs;
+		load();
+	}
+
+	/** 
+	 * Returns the cached entry, or null if there is none or if it was saved 
+	 * by another version of the probe. 
+	 */
+	public JSONObject get(String key, int version) {
+		JSONObject entry = mEntries.get(key);
+		if (entry == null || entry.optInt("version", -1) != version) return null;
+		return entry.optJSONObject("data");
+	}
+
+	public void put(String key, int version, JSONObject data) {
+		JSONObject entry = new JSONObject();
+		try {
+			entry.put("version", version);
+			entry.put("data", data);
+		} catch (JSONException e) {
+			throw new IllegalArgumentException(e);
+		}
+		mEntries.put(key, entry);
+		save();
+	}
+
+	public void remove(String key) {
+		if (mEntries.remove(key) != null) save();
+	}
+
+	/** Drops the whole database. */
+	public void clear() {
+		mEntries.clear();
+		mValidated.clear();
+		save();
+	}
+
+	/** 
+	 * Checks the entry in a background thread, once per process, and removes it
+	 * if the validator rejects it. The result already in use is not affected, 
+	 * the probe will simply be run again next time.
+	 */
+	public void validate(final String key, final Validator validator) {
+		final JSONObject entry = mEntries.get(key);
+		if (entry == null || mValidated.putIfAbsent(key, Boolean.TRUE) != null) return;
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean valid;
+				try {
+					valid = validator.isValid(entry.optJSONObject("data"));
+				} catch (Exception e) {
+					Log.e(TAG, "Validation of "+key+" failed", e);
+					valid = false;
+				}
+				if (!valid) {
+					Log.w(TAG, "Cached result "+key+" does not hold anymore");
+					// Only removes it if it was not replaced in the meantime
+					if (mEntries.remove(key, entry)) save();
+				}
+			}
+		});
+	}
+
+	private void load() {
+		long now = System.nanoTime();
+		String json = mPreferences.getString(PREF_KEY, null);
+		if (json == null) return;
+		try {
+			JSONObject root = new JSONObject(json);
+			if (root.optInt("version") != VERSION || !String.valueOf(Build.FINGERPRINT).equals(root.optString("device"))) {
+				Log.d(TAG, "Capabilities were saved on another build, they will be probed again");
+				return;
+			}
+			JSONObject entries = root.getJSONObject("entries");
+			Iterator<String> it = entries.keys();
+			while (it.hasNext()) {
+				String key = it.next();
+				mEntries.put(key, entries.getJSONObject(key));
+			}
+			Log.d(TAG, mEntries.size()+" capabilities loaded in "+(System.nanoTime()-now)/1000+" us");
+		} catch (JSONException e) {
+			Log.e(TAG, "Corrupted capability database: "+e.getMessage());
+			mEntries.clear();
+		}
+	}
+
+	private synchronized void save() {
+		JSONObject root = new JSONObject();
+		try {
+			root.put("version", VERSION);
+			root.put("device", String.valueOf(Build.FINGERPRINT));
+			JSONObject entries = new JSONObject();
+			for (String key : mEntries.keySet()) {
+				JSONObject entry = mEntries.get(key);
+				if (entry != null) entries.put(key, entry);
+			}
+			root.put("entries", entries);
+		} catch (JSONException e) {
+			Log.e(TAG, e.getMessage());
+			return;
+		}
+		// Written asynchronously, lookups never go through the preferences again
+		mPreferences.edit().putString(PREF_KEY, root.toString()).apply();
+	}
+
+}
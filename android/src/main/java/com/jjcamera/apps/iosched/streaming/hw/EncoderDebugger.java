@@ -25,16 +25,17 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import com.jjcamera.apps.iosched.streaming.hw.CodecManager.Codec;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.os.Build;
 import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
@@ -56,12 +57,9 @@ public class EncoderDebugger {
 
 	public final static String TAG = "EncoderDebugger";
 
-	/** Prefix that will be used for all shared preferences saved by libstreaming. */
-	private static final String PREF_PREFIX = "libstreaming-";
-
 	/** 
 	 * If this is set to false the test will be run only once and the result 
-	 * will be saved in the shared preferences. 
+	 * will be saved in the {@link CapabilityCache}. 
 	 */
 	private static final boolean DEBUG = false;
 	
@@ -163,28 +161,9 @@ public class EncoderDebugger {
 	private void debug() {
 		
 		// If testing the phone again is not needed, 
-		// we just restore the result from the shared preferences
-		if (!checkTestNeeded()) {
-			String resolution = mWidth+"x"+mHeight+"-";			
-
-			boolean success = mPreferences.getBoolean(PREF_PREFIX+resolution+"success",false);
-			if (!success) {
-				throw new RuntimeException("Phone not supported with this resolution ("+mWidth+"x"+mHeight+")");
-			}
-
-			mNV21.setSize(mWidth, mHeight);
-			mNV21.setSliceHeigth(mPreferences.getInt(PREF_PREFIX+resolution+"sliceHeight", 0));
-			mNV21.setStride(mPreferences.getInt(PREF_PREFIX+resolution+"stride", 0));
-			mNV21.setYPadding(mPreferences.getInt(PREF_PREFIX+resolution+"padding", 0));
-			mNV21.setPlanar(mPreferences.getBoolean(PREF_PREFIX+resolution+"planar", false));
-			mNV21.setColorPanesReversed(mPreferences.getBoolean(PREF_PREFIX+resolution+"reversed", false));
-			mEncoderName = mPreferences.getString(PREF_PREFIX+resolution+"encoderName", "");
-			mEncoderColorFormat = mPreferences.getInt(PREF_PREFIX+resolution+"colorFormat", 0);
-			mB64PPS = mPreferences.getString(PREF_PREFIX+resolution+"pps", "");
-			mB64SPS = mPreferences.getString(PREF_PREFIX+resolution+"sps", "");
-
+		// we just restore the result from the capability cache
+		if (restoreTestResult()) {
 			Log.v(TAG, "The encoder "+mEncoderName+" is usable with resolution "+mWidth+"x"+mHeight);
-
 			return;
 		}
 
@@ -218,7 +197,6 @@ public class EncoderDebugger {
 				mNV21.setYPadding(0);
 				mNV21.setEncoderColorFormat(mEncoderColorFormat);
 
-				// /!\ NV21Convertor can directly modify the input
 				createTestImage();
 				mData = mNV21.convert(mInitialImage);
 
@@ -320,54 +298,83 @@ public class EncoderDebugger {
 
 	}
 
-	private boolean checkTestNeeded() {
-		String resolution = mWidth+"x"+mHeight+"-";
+	private String getCacheKey() {
+		return CapabilityCache.key("encoder", MIME_TYPE, mWidth+"x"+mHeight);
+	}
 
+	/**
+	 * Restores the result of a previous test from the {@link CapabilityCache}.
+	 * The cache is dropped when the system of the phone is updated and entries 
+	 * are versioned, so the test will run again if it has been modified.
+	 * The encoder is checked again in the background, in case it has disappeared.
+	 */
+	private boolean restoreTestResult() {
 		// Forces the test
-		if (DEBUG || mPreferences==null) return true; 
-
-		// If the sdk has changed on the phone, or the version of the test 
-		// it has to be run again
-		if (mPreferences.contains(PREF_PREFIX+resolution+"lastSdk")) {
-			int lastSdk = mPreferences.getInt(PREF_PREFIX+resolution+"lastSdk", 0);
-			int lastVersion = mPreferences.getInt(PREF_PREFIX+resolution+"lastVersion", 0);
-			if (Build.VERSION.SDK_INT>lastSdk || VERSION>lastVersion) {
-				return true;
+		if (DEBUG || mPreferences==null) return false; 
+
+		final CapabilityCache cache = CapabilityCache.getInstance(mPreferences);
+		JSONObject result = cache.get(getCacheKey(), VERSION);
+		if (result == null) return false;
+
+		mNV21.setSize(mWidth, mHeight);
+		mNV21.setSliceHeigth(result.optInt("sliceHeight", 0));
+		mNV21.setStride(result.optInt("stride", 0));
+		mNV21.setYPadding(result.optInt("padding", 0));
+		mNV21.setPlanar(result.optBoolean("planar", false));
+		mNV21.setColorPanesReversed(result.optBoolean("reversed", false));
+		mEncoderName = result.optString("encoderName", "");
+		mEncoderColorFormat = result.optInt("colorFormat", 0);
+		mB64PPS = result.optString("pps", "");
+		mB64SPS = result.optString("sps", "");
+
+		cache.validate(getCacheKey(), new CapabilityCache.Validator() {
+			@Override
+			public boolean isValid(JSONObject entry) {
+				String name = entry.optString("encoderName");
+				int colorFormat = entry.optInt("colorFormat");
+				Codec[] encoders = CodecManager.findEncodersForMimeType(MIME_TYPE);
+				for (int i=0;i<encoders.length;i++) {
+					if (!encoders[i].name.equals(name)) continue;
+					for (int j=0;j<encoders[i].formats.length;j++) {
+						if (encoders[i].formats[j] == colorFormat) return true;
+					}
+				}
+				return false;
 			}
-		} else {
-			return true;
-		}
-		return false;
-	}
+		});
 
+		return true;
+	}
 
 	/**
-	 * Saves the result of the test in the shared preferences,
-	 * we will run it again only if the SDK has changed on the phone,
-	 * or if this test has been modified.
+	 * Saves the result of the test in the {@link CapabilityCache}.
+	 * Failures are not saved, the test will be run again next time.
 	 */	
 	private void saveTestResult(boolean success) {
-		String resolution = mWidth+"x"+mHeight+"-";
-		Editor editor = mPreferences.edit();
-
-		editor.putBoolean(PREF_PREFIX+resolution+"success", success);
-
-		if (success) {
-			editor.putInt(PREF_PREFIX+resolution+"lastSdk", Build.VERSION.SDK_INT);
-			editor.putInt(PREF_PREFIX+resolution+"lastVersion", VERSION);
-			editor.putInt(PREF_PREFIX+resolution+"sliceHeight", mNV21.getSliceHeigth());
-			editor.putInt(PREF_PREFIX+resolution+"stride", mNV21.getStride());
-			editor.putInt(PREF_PREFIX+resolution+"padding", mNV21.getYPadding());
-			editor.putBoolean(PREF_PREFIX+resolution+"planar", mNV21.getPlanar());
-			editor.putBoolean(PREF_PREFIX+resolution+"reversed", mNV21.getUVPanesReversed());
-			editor.putString(PREF_PREFIX+resolution+"encoderName", mEncoderName);
-			editor.putInt(PREF_PREFIX+resolution+"colorFormat", mEncoderColorFormat);
-			editor.putString(PREF_PREFIX+resolution+"encoderName", mEncoderName);
-			editor.putString(PREF_PREFIX+resolution+"pps", mB64PPS);
-			editor.putString(PREF_PREFIX+resolution+"sps", mB64SPS);
+		if (mPreferences == null) return;
+		CapabilityCache cache = CapabilityCache.getInstance(mPreferences);
+
+		if (!success) {
+			cache.remove(getCacheKey());
+			return;
 		}
 
-		editor.commit();
+		JSONObject result = new JSONObject();
+		try {
+			result.put("sliceHeight", mNV21.getSliceHeigth());
+			result.put("stride", mNV21.getStride());
+			result.put("padding", mNV21.getYPadding());
+			result.put("planar", mNV21.getPlanar());
+			result.put("reversed", mNV21.getUVPanesReversed());
+			result.put("encoderName", mEncoderName);
+			result.put("colorFormat", mEncoderColorFormat);
+			result.put("pps", mB64PPS);
+			result.put("sps", mB64SPS);
+		} catch (JSONException e) {
+			Log.e(TAG, e.getMessage());
+			return;
+		}
+		cache.put(getCacheKey(), VERSION, result);
 	}
 
 	/**
@@ -21,29 +21,58 @@
 package com.jjcamera.apps.iosched.streaming.hw;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 
 import android.media.MediaCodecInfo;
 import android.util.Log;
 
 /**
  * Converts from NV21 to YUV420 semi planar or planar.
+ * 
+ * The frame is written in one pass in the layout expected by the encoder: the rows of the luma pane
+ * are <code>stride</code> bytes apart and the pane has <code>sliceHeight</code> rows, then come 
+ * <code>yPadding</code> bytes and the chroma pane(s) with the same stride and slice height.
+ * U and V are swapped or de-interleaved eight bytes at a time, and no buffer is allocated once 
+ * the first frames have been converted.
  */		
 public class NV21Convertor {
 
+	public final static String TAG = "NV21Convertor";
+
+	/** Number of camera buffers whose views are kept, the camera recycles a handful of them. */
+	private final static int VIEWS = 8;
+
 	private int mSliceHeight, mHeight;
 	private int mStride, mWidth;
 	private int mSize;
 	private boolean mPlanar, mPanesReversed = false;
 	private int mYPadding;
 	private byte[] mBuffer; 
-	ByteBuffer mCopy;
-	
+	private ByteBuffer mBufferWrapper;
+
+	// The converted chroma pane(s), before the stride is applied
+	private byte[] mChroma;
+	private LongBuffer mChromaLongs;
+	private IntBuffer mChromaInts;
+
+	// Views on the chroma pane of the last camera buffers
+	private final byte[][] mViewArrays = new byte[VIEWS][];
+	private final LongBuffer[] mViews = new LongBuffer[VIEWS];
+	private int mNextView = 0;
+
 	public void setSize(int width, int height) {
 		mHeight = height;
 		mWidth = width;
 		mSliceHeight = height;
 		mStride = width;
 		mSize = mWidth*mHeight;
+		mChroma = null;
+		for (int i=0;i<VIEWS;i++) {
+			mViewArrays[i] = null;
+			mViews[i] = null;
+		}
 	}
 	
 	public void setStride(int width) {
@@ -62,9 +91,15 @@ public class NV21Convertor {
 		mYPadding = padding;
 	}
 	
+	/** Returns the size of the NV21 frames of the camera. */
 	public int getBufferSize() {
 		return 3*mSize/2;
 	}
+
+	/** Returns the size of the converted frames. */
+	public int getOutputSize() {
+		return 3*getStride()*getSliceHeigth()/2+mYPadding;
+	}
 	
 	public void setEncoderColorFormat(int colorFormat) {
 		switch (colorFormat) {
@@ -84,12 +119,14 @@ public class NV21Convertor {
 		mPanesReversed = b;
 	}
 	
+	/** Returns the stride of the encoder, never smaller than the width. */
 	public int getStride() {
-		return mStride;
+		return Math.max(mStride, mWidth);
 	}
 
+	/** Returns the slice height of the encoder, never smaller than the height. */
 	public int getSliceHeigth() {
-		return mSliceHeight;
+		return Math.max(mSliceHeight, mHeight);
 	}
 
 	public int getYPadding() {
@@ -105,62 +142,146 @@ public class NV21Convertor {
 		return mPanesReversed;
 	}
 	
+	/**
+	 * Converts a NV21 frame straight into the input buffer of the encoder.
+	 * The data is written at the position of the buffer, which is moved after the frame.
+	 * The camera buffer is not modified.
+	 */
 	public void convert(byte[] data, ByteBuffer buffer) {
-		byte[] result = convert(data);
-		int min = buffer.capacity() < data.length?buffer.capacity() : data.length;
-		buffer.put(result, 0, min);
+		int size = getOutputSize();
+		if (buffer.remaining() < size) {
+			// The frame is truncated, as it used to be
+			Log.e(TAG, "The input buffer of the encoder is too small: "+buffer.remaining()+" < "+size);
+			convert(data);
+			buffer.put(mBuffer, 0, buffer.remaining());
+			return;
+		}
+		write(data, buffer);
 	}
 	
+	/**
+	 * Converts a NV21 frame.
+	 * @return A buffer owned by the convertor holding {@link #getOutputSize()} bytes, it's overwritten by the next call
+	 */
 	public byte[] convert(byte[] data) {
+		int size = getOutputSize();
+		if (mBuffer==null || mBuffer.length != size) {
+			mBuffer = new byte[size];
+			mBufferWrapper = ByteBuffer.wrap(mBuffer);
+		}
+		mBufferWrapper.clear();
+		write(data, mBufferWrapper);
+		return mBuffer;
+	}
+
+	private void write(byte[] data, ByteBuffer buffer) {
+		int stride = getStride(), sliceHeight = getSliceHeigth();
+		int end = buffer.position() + getOutputSize();
 
-		// A buffer large enough for every case
-		if (mBuffer==null || mBuffer.length != 3*mSliceHeight*mStride/2+mYPadding) {
-			mBuffer = new byte[3*mSliceHeight*mStride/2+mYPadding];
+		// Luma pane
+		if (stride == mWidth) {
+			buffer.put(data, 0, mSize);
+		} else {
+			for (int row = 0; row < mHeight; row++) {
+				buffer.put(data, row*mWidth, mWidth);
+				buffer.position(buffer.position() + stride - mWidth);
+			}
 		}
-		
+		buffer.position(buffer.position() + (sliceHeight-mHeight)*stride + mYPadding);
+
+		// Chroma pane(s)
 		if (!mPlanar) {
-			if (mSliceHeight==mHeight && mStride==mWidth) {
-				// Swaps U and V
-				if (!mPanesReversed) {
-					for (int i = mSize; i < mSize+mSize/2; i += 2) {
-						mBuffer[0] = data[i+1];
-						data[i+1] = data[i];
-						data[i] = mBuffer[0]; 
-					}
-				}
-				if (mYPadding>0) {
-					System.arraycopy(data, 0, mBuffer, 0, mSize);
-					System.arraycopy(data, mSize, mBuffer, mSize+mYPadding, mSize/2);
-					return mBuffer;
-				}
-				return data;
+			if (mPanesReversed) {
+				// NV21 already is what the encoder expects
+				putRows(buffer, data, mSize, mWidth, mHeight/2, stride);
+			} else {
+				swap(data);
+				putRows(buffer, mChroma, 0, mWidth, mHeight/2, stride);
 			}
 		} else {
-			if (mSliceHeight==mHeight && mStride==mWidth) {
-				// De-interleave U and V
-				if (!mPanesReversed) {
-					for (int i = 0; i < mSize/4; i+=1) {
-						mBuffer[i] = data[mSize+2*i+1];
-						mBuffer[mSize/4+i] = data[mSize+2*i];
-					}
-				} else {
-					for (int i = 0; i < mSize/4; i+=1) {
-						mBuffer[i] = data[mSize+2*i];
-						mBuffer[mSize/4+i] = data[mSize+2*i+1];
-					}
-				}
-				if (mYPadding == 0) {
-					System.arraycopy(mBuffer, 0, data, mSize, mSize/2);
-				} else {
-					System.arraycopy(data, 0, mBuffer, 0, mSize);
-					System.arraycopy(mBuffer, 0, mBuffer, mSize+mYPadding, mSize/2);
-					return mBuffer;
-				}
-				return data;
+			deinterleave(data);
+			int pane = (stride/2)*(sliceHeight/2);
+			int start = buffer.position();
+			putRows(buffer, mChroma, 0, mWidth/2, mHeight/2, stride/2);
+			buffer.position(start + pane);
+			putRows(buffer, mChroma, mSize/4, mWidth/2, mHeight/2, stride/2);
+		}
+		buffer.position(end);
+	}
+
+	private static void putRows(ByteBuffer buffer, byte[] src, int offset, int width, int rows, int stride) {
+		if (stride == width) {
+			buffer.put(src, offset, width*rows);
+			return;
+		}
+		int position = buffer.position();
+		for (int row = 0; row < rows; row++) {
+			buffer.position(position + row*stride);
+			buffer.put(src, offset + row*width, width);
+		}
+	}
+
+	/** Turns the VU pairs of the camera into UV pairs in {@link #mChroma}. */
+	private void swap(byte[] data) {
+		int length = mSize/2;
+		LongBuffer in = prepare(data);
+		if (in == null) {
+			for (int i = 0; i < length; i += 2) {
+				mChroma[i] = data[mSize+i+1];
+				mChroma[i+1] = data[mSize+i];
 			}
+			return;
+		}
+		for (int i = 0, n = length/8; i < n; i++) {
+			long x = in.get(i);
+			mChromaLongs.put(i, ((x & 0x00FF00FF00FF00FFL) << 8) | ((x >>> 8) & 0x00FF00FF00FF00FFL));
 		}
-		
-		return data;
-	}	
+	}
+
+	/** Splits the VU pairs of the camera into the U and V panes of {@link #mChroma}, or V and U if they are reversed. */
+	private void deinterleave(byte[] data) {
+		int quarter = mSize/4;
+		LongBuffer in = prepare(data);
+		int u = mPanesReversed ? quarter : 0, v = mPanesReversed ? 0 : quarter;
+		if (in == null) {
+			for (int i = 0; i < quarter; i++) {
+				mChroma[u+i] = data[mSize+2*i+1];
+				mChroma[v+i] = data[mSize+2*i];
+			}
+			return;
+		}
+		// Eight bytes of the camera hold four VU pairs, they give four bytes to each pane
+		u /= 4;
+		v /= 4;
+		for (int i = 0, n = quarter/4; i < n; i++) {
+			long x = in.get(i);
+			mChromaInts.put(v+i, (int) ((x & 0xFF) | ((x >>> 8) & 0xFF00) | ((x >>> 16) & 0xFF0000) | ((x >>> 24) & 0xFF000000L)));
+			x >>>= 8;
+			mChromaInts.put(u+i, (int) ((x & 0xFF) | ((x >>> 8) & 0xFF00) | ((x >>> 16) & 0xFF0000) | ((x >>> 24) & 0xFF000000L)));
+		}
+	}
+
+	/**
+	 * Allocates the chroma buffer if needed and returns a view on the chroma pane of the camera buffer.
+	 * @return The view, or null if the pane can't be read eight bytes at a time 
+	 */
+	private LongBuffer prepare(byte[] data) {
+		if (mChroma == null) {
+			mChroma = new byte[mSize/2];
+			ByteBuffer chroma = ByteBuffer.wrap(mChroma).order(ByteOrder.LITTLE_ENDIAN);
+			mChromaLongs = chroma.asLongBuffer();
+			mChromaInts = chroma.asIntBuffer();
+		}
+		if (mSize % 16 != 0) return null;
+		for (int i = 0; i < VIEWS; i++) {
+			if (mViewArrays[i] == data) return mViews[i];
+		}
+		ByteBuffer pane = ByteBuffer.wrap(data, mSize, mSize/2).slice();
+		LongBuffer view = pane.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		mViewArrays[mNextView] = data;
+		mViews[mNextView] = view;
+		mNextView = (mNextView + 1) % VIEWS;
+		return view;
+	}
 	
 }
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.jjcamera.apps.iosched.streaming.mp4.MP4Parser.Box;
+
+/**
+ * Reads back the samples of a file written by {@link FragmentedMp4Writer}, one track at a time.
+ *
+ * The file is memory-mapped by a {@link MP4Parser}: boxes are parsed in place and the data of a
+ * sample is a slice of the mapping, nothing is copied in the heap. The init segment is parsed
+ * when the reader is created, the fragments as the samples are read. Reading starts at the first fragment, or at
+ * the offset of a key frame found in the {@link SeekTable} of the recording.
+ *
+ * A segment of a {@link RecordingStore} may be longer than its recording: reading stops at the
+ * free box that hides the rest of the file, or at a fragment that does not follow the previous
+ * one. This class is not thread safe, each track is read with its own reader.
+ */
+public class FragmentedMp4Reader {
+
+	public final static String TAG = "FragmentedMp4Reader";
+
+	private final static int AVC1 = MP4Parser.type("avc1"), AVCC = MP4Parser.type("avcC");
+	private final static int MP4A = MP4Parser.type("mp4a"), ESDS = MP4Parser.type("esds");
+	private final static int VIDE = MP4Parser.type("vide"), SOUN = MP4Parser.type("soun");
+	private final static int MOOV = MP4Parser.type("moov"), MOOF = MP4Parser.type("moof"), MFHD = MP4Parser.type("mfhd"), TRAF = MP4Parser.type("traf");
+	private final static int TFHD = MP4Parser.type("tfhd"), TFDT = MP4Parser.type("tfdt"), TRUN = MP4Parser.type("trun");
+	private final static int FREE = MP4Parser.type("free"), SKIP = MP4Parser.type("skip");
+
+	private final static int SAMPLE_IS_NON_SYNC = 0x00010000;
+
+	/** A track found in the init segment. */
+	private static class Track {
+		int mId = -1, mTimescale = 0;
+		int mDefaultDuration = 0, mDefaultSize = 0, mDefaultFlags = 0;
+	}
+
+	private final ByteBuffer mData;
+	private final int mLimit;
+	private int mFirstFragment = -1;
+	private Track mVideo = null, mAudio = null;
+
+	private int mWidth, mHeight;
+	private byte[] mSps, mPps;
+	private int mSampleRate, mChannelCount, mAudioConfig;
+
+	// The samples of the selected track in the fragment being read
+	private Track mTrack = null;
+	private int mNext, mSequence, mIndex, mCount;
+	private long mNextTime;
+	private long[] mTimes = new long[64];
+	private int[] mOffsets = new int[64], mSizes = new int[64], mDurations = new int[64];
+	private boolean[] mSync = new boolean[64];
+
+	/**
+	 * Maps the file and parses its init segment, the video track is selected.
+	 * @param file A file written by {@link FragmentedMp4Writer}
+	 * @param length The number of bytes of the file that can be read, or 0 for the whole file
+	 * @throws IOException If the file has no init segment or no H.264 track
+	 */
+	public FragmentedMp4Reader(File file, long length) throws IOException {
+		MP4Parser parser = new MP4Parser(file, length);
+		mData = parser.getData();
+		if (mData == null) throw new IOException("Too large to be mapped: " + file);
+		mLimit = mData.limit();
+
+		// The fragments are not indexed, they are read as the samples are
+		for (Box box = parser.readBox(0, mLimit); box != null; box = parser.readBox(box.getPosition() + box.getSize(), mLimit)) {
+			if (box.getType() == MOOV) {
+				parseMovie(parser, box);
+			} else if (box.getType() == MOOF) {
+				mFirstFragment = (int) box.getPosition();
+				break;
+			}
+		}
+		if (mVideo == null || mSps == null || mPps == null) throw new IOException("No H.264 track in " + file);
+		selectTrack(true);
+	}
+
+	public boolean hasAudio() {
+		return mAudio != null;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/** The sequence parameter set of the video, without start code. */
+	public byte[] getSps() {
+		return mSps;
+	}
+
+	/** The picture parameter set of the video, without start code. */
+	public byte[] getPps() {
+		return mPps;
+	}
+
+	public int getSampleRate() {
+		return mSampleRate;
+	}
+
+	public int getChannelCount() {
+		return mChannelCount;
+	}
+
+	/** The AudioSpecificConfig of the AAC track (ISO/IEC 14496-3), on two bytes. */
+	public int getAudioConfig() {
+		return mAudioConfig;
+	}
+
+	/** Selects the track read by {@link #advance()}, reading starts again at the first fragment. */
+	public void selectTrack(boolean video) {
+		if (!video && mAudio == null) throw new IllegalStateException("The file has no audio track");
+		mTrack = video ? mVideo : mAudio;
+		seekTo(-1);
+	}
+
+	/** 
+	 * The next sample read is the first one of the selected track in the fragment at that offset, or after it.
+	 * @param offset The offset of a fragment given by a {@link SeekTable}, or -1 for the first fragment 
+	 */
+	public void seekTo(long offset) {
+		mNext = offset < mFirstFragment || offset >= mLimit ? mFirstFragment : (int) offset;
+		mSequence = -1;
+		mNextTime = 0;
+		mIndex = mCount = 0;
+	}
+
+	/** 
+	 * Moves to the next sample of the selected track, the first one after {@link #seekTo(long)}.
+	 * @return False once there is no sample left
+	 */
+	public boolean advance() {
+		if (++mIndex < mCount) return true;
+		mIndex = mCount = 0;
+		while (mCount == 0) {
+			if (!readFragment()) return false;
+		}
+		return true;
+	}
+
+	/** Decoding time of the sample in us, relative to the beginning of the file. */
+	public long getSampleTime() {
+		return mTimes[mIndex] * 1000000L / mTrack.mTimescale;
+	}
+
+	public long getSampleDuration() {
+		return mDurations[mIndex] * 1000000L / mTrack.mTimescale;
+	}
+
+	public boolean isSyncSample() {
+		return mSync[mIndex];
+	}
+
+	/** Returns the data of the sample, read only, between the position and the limit of the buffer. */
+	public ByteBuffer getSampleData() {
+		ByteBuffer data = mData.duplicate();
+		data.limit(mOffsets[mIndex] + mSizes[mIndex]).position(mOffsets[mIndex]);
+		return data;
+	}
+
+	/** 
+	 * Returns the duration of the selected track in us, read from all of its fragments.
+	 * Reading starts again at the first fragment.
+	 */
+	public long getDuration() {
+		long end = 0;
+		seekTo(-1);
+		while (advance()) end = getSampleTime() + getSampleDuration();
+		seekTo(-1);
+		return end;
+	}
+
+	/** Parses the next fragment, returns false if there is none. */
+	private boolean readFragment() {
+		while (mNext >= 0) {
+			int position = mNext, size = boxSize(position, mLimit);
+			int type = size > 0 ? mData.getInt(position+4) : 0;
+			if (size == 0 || type == FREE || type == SKIP) break;
+			mNext += size;
+			if (type == MOOF) {
+				if (!parseFragment(position, position + size)) break;
+				return true;
+			}
+		}
+		// A fragment only partly read is dropped
+		mNext = -1;
+		mCount = 0;
+		return false;
+	}
+
+	/** Reads the samples of the selected track in a moof, returns false if it is not the next fragment. */
+	private boolean parseFragment(int moof, int end) {
+		int start = moof + headerSize(moof);
+		int mfhd = find(start, end, MFHD);
+		if (mfhd < 0) return false;
+		int sequence = mData.getInt(mfhd + headerSize(mfhd) + 4);
+		// What is left of an older recording, or a fragment that was not written
+		if (mSequence >= 0 && sequence != mSequence + 1) return false;
+		mSequence = sequence;
+
+		for (int traf = start, size; (size = boxSize(traf, end)) > 0; traf += size) {
+			if (mData.getInt(traf+4) == TRAF && !parseTrackFragment(moof, traf + headerSize(traf), traf + size)) return false;
+		}
+		return true;
+	}
+
+	private boolean parseTrackFragment(int moof, int start, int end) {
+		int tfhd = find(start, end, TFHD);
+		if (tfhd < 0) return false;
+		int p = tfhd + headerSize(tfhd);
+		int flags = mData.getInt(p) & 0xFFFFFF;
+		if (mData.getInt(p+4) != mTrack.mId) return true;
+		p += 8;
+		long base = moof;
+		int duration = mTrack.mDefaultDuration, size = mTrack.mDefaultSize, sampleFlags = mTrack.mDefaultFlags;
+		if ((flags & 0x01) != 0) { base = mData.getLong(p); p += 8; }
+		if ((flags & 0x02) != 0) p += 4;
+		if ((flags & 0x08) != 0) { duration = mData.getInt(p); p += 4; }
+		if ((flags & 0x10) != 0) { size = mData.getInt(p); p += 4; }
+		if ((flags & 0x20) != 0) sampleFlags = mData.getInt(p);
+
+		int tfdt = find(start, end, TFDT);
+		if (tfdt >= 0) {
+			int q = tfdt + headerSize(tfdt);
+			mNextTime = mData.get(q) == 1 ? mData.getLong(q+4) : mData.getInt(q+4) & 0xFFFFFFFFL;
+		}
+
+		long data = base;
+		for (int trun = start, length; (length = boxSize(trun, end)) > 0; trun += length) {
+			if (mData.getInt(trun+4) != TRUN) continue;
+			p = trun + headerSize(trun);
+			flags = mData.getInt(p) & 0xFFFFFF;
+			int count = mData.getInt(p+4);
+			p += 8;
+			if ((flags & 0x01) != 0) { data = base + mData.getInt(p); p += 4; }
+			int firstFlags = sampleFlags;
+			if ((flags & 0x04) != 0) { firstFlags = mData.getInt(p); p += 4; }
+			int entry = Integer.bitCount(flags & 0xF00) * 4;
+			if (count < 0 || (long) count * entry > trun + length - p) return false;
+			ensureCapacity(mCount + count);
+			for (int i=0;i<count;i++) {
+				int d = duration, s = size, f = i == 0 ? firstFlags : sampleFlags;
+				if ((flags & 0x100) != 0) { d = mData.getInt(p); p += 4; }
+				if ((flags & 0x200) != 0) { s = mData.getInt(p); p += 4; }
+				if ((flags & 0x400) != 0) { f = mData.getInt(p); p += 4; }
+				if ((flags & 0x800) != 0) p += 4;
+				// The file is cut in the middle of the sample
+				if (s < 0 || data + s > mLimit) return false;
+				mTimes[mCount] = mNextTime;
+				mOffsets[mCount] = (int) data;
+				mSizes[mCount] = s;
+				mDurations[mCount] = d;
+				mSync[mCount] = (f & SAMPLE_IS_NON_SYNC) == 0;
+				mCount++;
+				mNextTime += d & 0xFFFFFFFFL;
+				data += s;
+			}
+		}
+		return true;
+	}
+
+	private void parseMovie(MP4Parser parser, Box moov) throws IOException {
+		for (Box trak : moov.getChildren("trak")) parseTrack(parser, trak);
+		// The defaults of the samples of the fragments
+		Box mvex = moov.getChild("mvex");
+		if (mvex == null) return;
+		for (Box trex : mvex.getChildren("trex")) {
+			int p = (int) trex.getContentPosition();
+			int id = mData.getInt(p+4);
+			Track track = mVideo != null && mVideo.mId == id ? mVideo : mAudio != null && mAudio.mId == id ? mAudio : null;
+			if (track == null) continue;
+			track.mDefaultDuration = mData.getInt(p+12);
+			track.mDefaultSize = mData.getInt(p+16);
+			track.mDefaultFlags = mData.getInt(p+20);
+		}
+	}
+
+	private void parseTrack(MP4Parser parser, Box trak) throws IOException {
+		Track track = new Track();
+		Box tkhd = trak.getChild("tkhd");
+		if (tkhd != null) {
+			int p = (int) tkhd.getContentPosition();
+			track.mId = mData.getInt(p + (mData.get(p) == 1 ? 20 : 12));
+		}
+		Box mdhd = parser.find(trak, "mdia/mdhd"), hdlr = parser.find(trak, "mdia/hdlr");
+		if (mdhd == null || hdlr == null) return;
+		int p = (int) mdhd.getContentPosition();
+		track.mTimescale = mData.getInt(p + (mData.get(p) == 1 ? 20 : 12));
+		int handler = mData.getInt((int) hdlr.getContentPosition() + 8);
+		if (track.mTimescale <= 0) return;
+
+		// The first sample entry, in minf/stbl/stsd
+		Box stsd = parser.find(trak, "mdia/minf/stbl/stsd");
+		if (stsd == null || stsd.getChildren().isEmpty()) return;
+		Box entry = stsd.getChildren().get(0);
+		p = (int) entry.getContentPosition();
+
+		if (handler == VIDE && entry.getType() == AVC1 && mVideo == null) {
+			mWidth = mData.getShort(p+24) & 0xFFFF;
+			mHeight = mData.getShort(p+26) & 0xFFFF;
+			Box avcC = entry.getChild(AVCC);
+			if (avcC == null) return;
+			try {
+				StsdBox config = new StsdBox(avcC.getContent());
+				mSps = config.getSPS();
+				mPps = config.getPPS();
+				mVideo = track;
+			} catch (IOException ignore) {}
+		} else if (handler == SOUN && entry.getType() == MP4A && mAudio == null) {
+			mChannelCount = mData.getShort(p+16) & 0xFFFF;
+			mSampleRate = mData.getInt(p+24) >>> 16;
+			Box esds = entry.getChild(ESDS);
+			if (esds != null && parseEsDescriptor((int) esds.getContentPosition() + 4, (int) (esds.getPosition() + esds.getSize()))) mAudio = track;
+		}
+	}
+
+	/** Finds the DecoderSpecificInfo in the descriptors of an esds box (ISO/IEC 14496-1). */
+	private boolean parseEsDescriptor(int p, int end) {
+		while (p + 2 <= end) {
+			int tag = mData.get(p++) & 0xFF, length = 0, b;
+			do {
+				if (p >= end) return false;
+				b = mData.get(p++) & 0xFF;
+				length = length << 7 | b & 0x7F;
+			} while ((b & 0x80) != 0);
+
+			if (tag == 0x03) {
+				// ES_Descriptor: its descriptors follow the optional fields
+				int flags = mData.get(p+2) & 0xFF;
+				p += 3;
+				if ((flags & 0x80) != 0) p += 2;
+				if ((flags & 0x40) != 0) p += 1 + (mData.get(p) & 0xFF);
+				if ((flags & 0x20) != 0) p += 2;
+			} else if (tag == 0x04) {
+				// DecoderConfigDescriptor
+				p += 13;
+			} else if (tag == 0x05) {
+				if (length < 2 || p + 2 > end) return false;
+				mAudioConfig = mData.getShort(p) & 0xFFFF;
+				return true;
+			} else {
+				p += length;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the size of the box at the position, or 0 if there is no valid box there. */
+	private int boxSize(int position, int end) {
+		if (position < 0 || end - position < 8) return 0;
+		long size = mData.getInt(position) & 0xFFFFFFFFL;
+		if (size == 1) {
+			if (end - position < 16) return 0;
+			size = mData.getLong(position+8);
+		} else if (size == 0) {
+			// The box extends to the end of the file
+			size = end - position;
+		}
+		return size < 8 || size > end - position ? 0 : (int) size;
+	}
+
+	private int headerSize(int position) {
+		return mData.getInt(position) == 1 ? 16 : 8;
+	}
+
+	/** Returns the position of the first box of that type between the two positions, or -1. */
+	private int find(int start, int end, int type) {
+		for (int position = start, size; (size = boxSize(position, end)) > 0; position += size) {
+			if (mData.getInt(position+4) == type) return position;
+		}
+		return -1;
+	}
+
+	private void ensureCapacity(int count) {
+		if (count <= mTimes.length) return;
+		int n = Math.max(count, mTimes.length*2);
+		mTimes = Arrays.copyOf(mTimes, n);
+		mOffsets = Arrays.copyOf(mOffsets, n);
+		mSizes = Arrays.copyOf(mSizes, n);
+		mDurations = Arrays.copyOf(mDurations, n);
+		mSync = Arrays.copyOf(mSync, n);
+	}
+
+}
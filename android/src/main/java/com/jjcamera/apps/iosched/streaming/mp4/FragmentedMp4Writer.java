@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+/**
+ * Writes a fragmented MP4 file (ISO/IEC 14496-12) while the samples are produced.
+ *
+ * The file starts with an init segment (ftyp and moov, without any sample) followed by a moof
+ * and a mdat for each fragment. A fragment starts at each key frame of the video track once
+ * {@link #FRAGMENT_DURATION} has elapsed, the audio samples received in the meantime go in
+ * the same fragment. The file can be played up to its last fragment while it is being written.
+ *
+ * Samples are built with {@link #startSample}, {@link #write} and {@link #setSync}. The duration of
+ * a sample is only known when the next one starts, the last sample of a track gets the duration
+ * of the previous one when the file is closed. This class is not thread safe.
+ */
+public class FragmentedMp4Writer {
+
+	public final static String TAG = "FragmentedMp4Writer";
+
+	/** Minimum duration of a fragment in ms. */
+	public final static long FRAGMENT_DURATION = 1000;
+
+	/** A fragment is written without waiting for a key frame when it holds that many bytes. */
+	public final static int MAX_FRAGMENT_SIZE = 4*1024*1024;
+
+	public final static int VIDEO_TIMESCALE = 90000;
+
+	private final static int SAMPLE_FLAGS_SYNC = 0x02000000;
+	private final static int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+	// Transformation matrices of the video track, rotation of 0, 90, 180 and 270 degrees
+	private final static int[][] MATRICES = new int[][] {
+		{ 0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 },
+		{ 0, 0x00010000, 0, 0xFFFF0000, 0, 0, 0, 0, 0x40000000 },
+		{ 0xFFFF0000, 0, 0, 0, 0xFFFF0000, 0, 0, 0, 0x40000000 },
+		{ 0, 0xFFFF0000, 0, 0x00010000, 0, 0, 0, 0, 0x40000000 }
+	};
+
+	/** The samples of a track waiting to be written in the next fragment. */
+	public static class Track {
+
+		final int mId, mTimescale;
+		final boolean mVideo;
+
+		// Data of the samples, the open sample is at the end
+		byte[] mData = new byte[64*1024];
+		int mLength = 0;
+
+		// Closed samples
+		int mCount = 0;
+		int[] mSizes = new int[64], mDurations = new int[64];
+		boolean[] mSync = new boolean[64];
+		long mBaseTime = 0;
+
+		// Sample being built
+		boolean mOpen = false, mOpenSync = false;
+		int mOpenOffset = 0;
+		long mOpenTime = 0, mLastDuration = 0;
+
+		// Presentation time in us of the first sample of the file
+		long mOrigin = Long.MIN_VALUE;
+
+		Track(int id, int timescale, boolean video) {
+			mId = id;
+			mTimescale = timescale;
+			mVideo = video;
+		}
+
+		long toTime(long ptsUs) {
+			return (ptsUs - mOrigin) * mTimescale / 1000000L;
+		}
+
+		void close(long nextTime) {
+			long duration = Math.max(1, nextTime - mOpenTime);
+			if (mCount == mSizes.length) {
+				int n = mCount*2;
+				int[] sizes = new int[n], durations = new int[n];
+				boolean[] sync = new boolean[n];
+				System.arraycopy(mSizes, 0, sizes, 0, mCount);
+				System.arraycopy(mDurations, 0, durations, 0, mCount);
+				System.arraycopy(mSync, 0, sync, 0, mCount);
+				mSizes = sizes;
+				mDurations = durations;
+				mSync = sync;
+			}
+			if (mCount == 0) mBaseTime = mOpenTime;
+			mSizes[mCount] = mLength - mOpenOffset;
+			mDurations[mCount] = (int) duration;
+			mSync[mCount] = mOpenSync;
+			mCount++;
+			mLastDuration = duration;
+			mOpen = false;
+		}
+
+		void ensureCapacity(int length) {
+			if (mLength + length > mData.length) {
+				byte[] data = new byte[Math.max(mData.length*2, mLength + length)];
+				System.arraycopy(mData, 0, data, 0, mLength);
+				mData = data;
+			}
+		}
+
+		/** Forgets the closed samples once they have been written, the open sample is kept. */
+		void compact() {
+			int closed = mOpen ? mOpenOffset : mLength;
+			System.arraycopy(mData, closed, mData, 0, mLength - closed);
+			mLength -= closed;
+			mOpenOffset = 0;
+			mCount = 0;
+		}
+
+		long getClosedDuration() {
+			return mOpen ? mOpenTime - mBaseTime : 0;
+		}
+
+	}
+
+	private final RecordingWriter mOutput;
+	private final Track mVideo, mAudio;
+	private final byte[] mScratch = new byte[4];
+	private ByteBuffer mBox = ByteBuffer.allocate(4096);
+	private final int[] mBoxStack = new int[16];
+	private int mDepth = 0;
+	private int mSequence = 0;
+	private int mDroppedFragments = 0;
+
+	/**
+	 * Writes the init segment of the file.
+	 * @param output The file is written by this writer, it is closed by {@link #close()}
+	 * @param width The width of the video
+	 * @param height The height of the video
+	 * @param rotation The rotation of the video in degrees: 0, 90, 180 or 270
+	 * @param sps The sequence parameter set of the video, without start code
+	 * @param pps The picture parameter set of the video, without start code
+	 * @param sampleRate The sampling rate of the audio track, or 0 if there is no audio track
+	 * @param channelCount The number of channels of the audio track
+	 * @param audioConfig The AudioSpecificConfig of the AAC stream (ISO/IEC 14496-3), on two bytes
+	 */
+	public FragmentedMp4Writer(RecordingWriter output, int width, int height, int rotation, byte[] sps, byte[] pps,
+			int sampleRate, int channelCount, int audioConfig) throws IOException {
+		mOutput = output;
+		mVideo = new Track(1, VIDEO_TIMESCALE, true);
+		mAudio = sampleRate > 0 ? new Track(2, sampleRate, false) : null;
+
+		start("ftyp");
+		putType("isom");
+		mBox.putInt(0x200);
+		putType("isom");
+		putType("iso5");
+		putType("avc1");
+		putType("mp41");
+		end();
+
+		start("moov");
+		writeMovieHeader();
+		writeVideoTrack(width, height, MATRICES[(rotation/90)&3], sps, pps);
+		if (mAudio != null) writeAudioTrack(sampleRate, channelCount, audioConfig);
+		start("mvex");
+		writeTrackExtends(mVideo);
+		if (mAudio != null) writeTrackExtends(mAudio);
+		end();
+		end();
+
+		mBox.flip();
+		if (!mOutput.write(mBox)) throw new IOException("The init segment of the file could not be written");
+	}
+
+	public Track getVideoTrack() {
+		return mVideo;
+	}
+
+	/** Returns the audio track, or null if the file has none. */
+	public Track getAudioTrack() {
+		return mAudio;
+	}
+
+	/**
+	 * Starts a new sample, the previous one is closed.
+	 * @param ptsUs The presentation time of the sample in us
+	 */
+	public void startSample(Track track, long ptsUs) throws IOException {
+		if (track.mOrigin == Long.MIN_VALUE) {
+			// The codecs share the same clock, when the audio starts a bit after the video it's kept in sync
+			long delta = ptsUs - mVideo.mOrigin;
+			track.mOrigin = track.mVideo || mVideo.mOrigin == Long.MIN_VALUE || delta < 0 || delta > 10000000L ? ptsUs : mVideo.mOrigin;
+		}
+		long time = track.toTime(ptsUs);
+		if (track.mOpen) {
+			// Timestamps must increase
+			if (time <= track.mOpenTime) time = track.mOpenTime + 1;
+			track.close(time);
+		}
+		if (track.mVideo && track.mLength >= MAX_FRAGMENT_SIZE) {
+			writeFragment();
+		}
+		track.mOpen = true;
+		track.mOpenSync = !track.mVideo;
+		track.mOpenOffset = track.mLength;
+		track.mOpenTime = time;
+	}
+
+	/** 
+	 * Marks the sample being built as a key frame.
+	 * A new fragment starts with it if the current one is long enough.
+	 */
+	public void setSync(Track track) throws IOException {
+		if (!track.mOpen) return;
+		track.mOpenSync = true;
+		if (track.mVideo && track.mCount > 0 
+				&& track.getClosedDuration() >= FRAGMENT_DURATION * track.mTimescale / 1000) {
+			writeFragment();
+		}
+	}
+
+	/** Appends data to the sample being built. */
+	public void write(Track track, byte[] data, int offset, int length) {
+		if (!track.mOpen) return;
+		track.ensureCapacity(length);
+		System.arraycopy(data, offset, track.mData, track.mLength, length);
+		track.mLength += length;
+	}
+
+	/** Appends the data between the position and the limit of the buffer to the sample being built. */
+	public void write(Track track, ByteBuffer data) {
+		if (!track.mOpen) return;
+		int length = data.remaining();
+		track.ensureCapacity(length);
+		data.get(track.mData, track.mLength, length);
+		track.mLength += length;
+	}
+
+	/** Appends a 32 bits integer to the sample being built, the length of a NAL unit for instance. */
+	public void writeInt(Track track, int value) {
+		mScratch[0] = (byte) (value >> 24);
+		mScratch[1] = (byte) (value >> 16);
+		mScratch[2] = (byte) (value >> 8);
+		mScratch[3] = (byte) value;
+		write(track, mScratch, 0, 4);
+	}
+
+	/** Returns the presentation time in us of the sample being built, relative to the first one of the file. */
+	public long getDurationUs() {
+		return mVideo.mOpenTime * 1000000L / mVideo.mTimescale;
+	}
+
+	/** Returns the number of bytes of the file, some of them may not be written yet. */
+	public long getSize() {
+		return mOutput.getQueuedBytes();
+	}
+
+	/** Returns the number of fragments dropped because the storage did not keep up. */
+	public int getDroppedFragments() {
+		return mDroppedFragments;
+	}
+
+	/** Writes the samples left and closes the file. */
+	public void close() throws IOException {
+		try {
+			if (mVideo.mOpen) mVideo.close(mVideo.mOpenTime + (mVideo.mLastDuration > 0 ? mVideo.mLastDuration : VIDEO_TIMESCALE/30));
+			if (mAudio != null && mAudio.mOpen) mAudio.close(mAudio.mOpenTime + (mAudio.mLastDuration > 0 ? mAudio.mLastDuration : 1024));
+			writeFragment();
+		} finally {
+			mOutput.close();
+		}
+	}
+
+	/** Writes a moof and a mdat with the closed samples of every track. */
+	private void writeFragment() throws IOException {
+		int audio = mAudio != null ? mAudio.mCount : 0;
+		if (mVideo.mCount == 0 && audio == 0) return;
+
+		int videoLength = mVideo.mCount > 0 ? mVideo.mOpen ? mVideo.mOpenOffset : mVideo.mLength : 0;
+		int audioLength = audio > 0 ? mAudio.mOpen ? mAudio.mOpenOffset : mAudio.mLength : 0;
+
+		mBox.clear();
+		mDepth = 0;
+		int moof = start("moof");
+		start("mfhd");
+		mBox.putInt(0);
+		mBox.putInt(++mSequence);
+		end();
+		int videoOffset = mVideo.mCount > 0 ? writeTrackFragment(mVideo) : -1;
+		int audioOffset = audio > 0 ? writeTrackFragment(mAudio) : -1;
+		end();
+		int moofSize = mBox.position() - moof;
+
+		// The offsets of the data are relative to the moof
+		if (videoOffset >= 0) mBox.putInt(videoOffset, moofSize + 8);
+		if (audioOffset >= 0) mBox.putInt(audioOffset, moofSize + 8 + videoLength);
+
+		ensureBox(8);
+		mBox.putInt(8 + videoLength + audioLength);
+		putType("mdat");
+		mBox.flip();
+
+		if (mOutput.isFailed()) throw new IOException("The recording could not be written");
+
+		// A fragment is written whole or not at all, the file stays playable with a gap in its timeline
+		if (mOutput.reserve(mBox.remaining() + videoLength + audioLength)) {
+			// Playback can start at the fragment, see SeekTable
+			if (mVideo.mCount > 0 && mVideo.mSync[0]) mOutput.addSyncPoint(mVideo.mBaseTime * 1000000L / mVideo.mTimescale);
+			mOutput.write(mBox);
+			mOutput.write(mVideo.mData, 0, videoLength);
+			mOutput.write(audio > 0 ? mAudio.mData : mVideo.mData, 0, audioLength);
+		} else {
+			mSequence--;
+			if (mDroppedFragments++ == 0) Log.w(TAG, "The storage is too slow, fragments are dropped");
+		}
+
+		if (mVideo.mCount > 0) mVideo.compact();
+		if (audio > 0) mAudio.compact();
+	}
+
+	/** Writes the traf of a track, returns the position of the data offset of its trun, patched afterwards. */
+	private int writeTrackFragment(Track track) {
+		start("traf");
+
+		// default-base-is-moof
+		start("tfhd");
+		mBox.putInt(0x020000);
+		mBox.putInt(track.mId);
+		end();
+
+		start("tfdt");
+		mBox.putInt(0x01000000);
+		mBox.putLong(track.mBaseTime);
+		end();
+
+		// data-offset, sample-duration, sample-size and sample-flags present
+		start("trun");
+		mBox.putInt(0x000701);
+		mBox.putInt(track.mCount);
+		int offset = mBox.position();
+		mBox.putInt(0);
+		ensureBox(12*track.mCount);
+		for (int i=0;i<track.mCount;i++) {
+			mBox.putInt(track.mDurations[i]);
+			mBox.putInt(track.mSizes[i]);
+			mBox.putInt(track.mSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+		}
+		end();
+
+		end();
+		return offset;
+	}
+
+	private void writeMovieHeader() {
+		start("mvhd");
+		mBox.putInt(0);
+		mBox.putInt(0); // creation time
+		mBox.putInt(0); // modification time
+		mBox.putInt(1000);
+		mBox.putInt(0); // duration, unknown
+		mBox.putInt(0x00010000); // rate
+		mBox.putShort((short) 0x0100); // volume
+		mBox.putShort((short) 0);
+		mBox.putLong(0);
+		putMatrix(MATRICES[0]);
+		for (int i=0;i<6;i++) mBox.putInt(0);
+		mBox.putInt(mAudio != null ? 3 : 2); // next track id
+		end();
+	}
+
+	private void writeVideoTrack(int width, int height, int[] matrix, byte[] sps, byte[] pps) {
+		start("trak");
+		writeTrackHeader(mVideo, 0, matrix, width, height);
+		start("mdia");
+		writeMediaHeader(mVideo);
+		writeHandler("vide", "VideoHandler");
+		start("minf");
+		start("vmhd");
+		mBox.putInt(1);
+		mBox.putLong(0);
+		end();
+		writeDataInformation();
+		start("stbl");
+		start("stsd");
+		mBox.putInt(0);
+		mBox.putInt(1);
+		start("avc1");
+		mBox.putInt(0);
+		mBox.putShort((short) 0);
+		mBox.putShort((short) 1); // data reference index
+		for (int i=0;i<4;i++) mBox.putInt(0);
+		mBox.putShort((short) width);
+		mBox.putShort((short) height);
+		mBox.putInt(0x00480000); // 72 dpi
+		mBox.putInt(0x00480000);
+		mBox.putInt(0);
+		mBox.putShort((short) 1); // frame count
+		for (int i=0;i<8;i++) mBox.putInt(0); // compressor name
+		mBox.putShort((short) 0x18); // depth
+		mBox.putShort((short) -1);
+		start("avcC");
+		ensureBox(sps.length + pps.length + 16);
+		mBox.put((byte) 1);
+		mBox.put(sps[1]); // profile
+		mBox.put(sps[2]); // compatibility
+		mBox.put(sps[3]); // level
+		mBox.put((byte) 0xFF); // NAL units are preceded by their length on 4 bytes
+		mBox.put((byte) 0xE1);
+		mBox.putShort((short) sps.length);
+		mBox.put(sps);
+		mBox.put((byte) 1);
+		mBox.putShort((short) pps.length);
+		mBox.put(pps);
+		end();
+		end();
+		end();
+		writeEmptySampleTable();
+		end();
+		end();
+		end();
+		end();
+	}
+
+	private void writeAudioTrack(int sampleRate, int channelCount, int config) {
+		start("trak");
+		writeTrackHeader(mAudio, 0x0100, MATRICES[0], 0, 0);
+		start("mdia");
+		writeMediaHeader(mAudio);
+		writeHandler("soun", "SoundHandler");
+		start("minf");
+		start("smhd");
+		mBox.putInt(0);
+		mBox.putInt(0);
+		end();
+		writeDataInformation();
+		start("stbl");
+		start("stsd");
+		mBox.putInt(0);
+		mBox.putInt(1);
+		start("mp4a");
+		mBox.putInt(0);
+		mBox.putShort((short) 0);
+		mBox.putShort((short) 1); // data reference index
+		mBox.putLong(0);
+		mBox.putShort((short) channelCount);
+		mBox.putShort((short) 16); // sample size
+		mBox.putInt(0);
+		mBox.putInt(sampleRate << 16);
+		start("esds");
+		mBox.putInt(0);
+		// ES_Descriptor
+		mBox.put((byte) 0x03).put((byte) 25);
+		mBox.putShort((short) mAudio.mId);
+		mBox.put((byte) 0);
+		// DecoderConfigDescriptor: MPEG-4 audio, audio stream
+		mBox.put((byte) 0x04).put((byte) 17);
+		mBox.put((byte) 0x40).put((byte) 0x15);
+		mBox.put((byte) 0).putShort((short) 0); // buffer size
+		mBox.putInt(0); // max bitrate
+		mBox.putInt(0); // average bitrate
+		// DecoderSpecificInfo: the AudioSpecificConfig
+		mBox.put((byte) 0x05).put((byte) 2);
+		mBox.putShort((short) config);
+		// SLConfigDescriptor
+		mBox.put((byte) 0x06).put((byte) 1).put((byte) 2);
+		end();
+		end();
+		end();
+		writeEmptySampleTable();
+		end();
+		end();
+		end();
+		end();
+	}
+
+	private void writeTrackHeader(Track track, int volume, int[] matrix, int width, int height) {
+		start("tkhd");
+		mBox.putInt(0x000003); // enabled, in movie
+		mBox.putInt(0);
+		mBox.putInt(0);
+		mBox.putInt(track.mId);
+		mBox.putInt(0);
+		mBox.putInt(0); // duration, unknown
+		mBox.putLong(0);
+		mBox.putShort((short) 0); // layer
+		mBox.putShort((short) 0); // alternate group
+		mBox.putShort((short) volume);
+		mBox.putShort((short) 0);
+		putMatrix(matrix);
+		mBox.putInt(width << 16);
+		mBox.putInt(height << 16);
+		end();
+	}
+
+	private void writeMediaHeader(Track track) {
+		start("mdhd");
+		mBox.putInt(0);
+		mBox.putInt(0);
+		mBox.putInt(0);
+		mBox.putInt(track.mTimescale);
+		mBox.putInt(0);
+		mBox.putShort((short) 0x55C4); // und
+		mBox.putShort((short) 0);
+		end();
+	}
+
+	private void writeHandler(String type, String name) {
+		start("hdlr");
+		mBox.putInt(0);
+		mBox.putInt(0);
+		putType(type);
+		mBox.putInt(0);
+		mBox.putInt(0);
+		mBox.putInt(0);
+		for (int i=0;i<name.length();i++) mBox.put((byte) name.charAt(i));
+		mBox.put((byte) 0);
+		end();
+	}
+
+	private void writeDataInformation() {
+		start("dinf");
+		start("dref");
+		mBox.putInt(0);
+		mBox.putInt(1);
+		start("url ");
+		mBox.putInt(1); // the data is in this file
+		end();
+		end();
+		end();
+	}
+
+	/** The samples are described by the fragments. */
+	private void writeEmptySampleTable() {
+		for (String type : new String[] { "stts", "stsc", "stco" }) {
+			start(type);
+			mBox.putInt(0);
+			mBox.putInt(0);
+			end();
+		}
+		start("stsz");
+		mBox.putInt(0);
+		mBox.putInt(0);
+		mBox.putInt(0);
+		end();
+	}
+
+	private void writeTrackExtends(Track track) {
+		start("trex");
+		mBox.putInt(0);
+		mBox.putInt(track.mId);
+		mBox.putInt(1);
+		mBox.putInt(0);
+		mBox.putInt(0);
+		mBox.putInt(0);
+		end();
+	}
+
+	private void putMatrix(int[] matrix) {
+		for (int value : matrix) mBox.putInt(value);
+	}
+
+	private void putType(String type) {
+		for (int i=0;i<4;i++) mBox.put((byte) type.charAt(i));
+	}
+
+	/** Opens a box, its size is written by {@link #end()}. */
+	private int start(String type) {
+		ensureBox(256);
+		int position = mBox.position();
+		mBoxStack[mDepth++] = position;
+		mBox.putInt(0);
+		putType(type);
+		return position;
+	}
+
+	private void end() {
+		int position = mBoxStack[--mDepth];
+		mBox.putInt(position, mBox.position() - position);
+	}
+
+	private void ensureBox(int length) {
+		if (mBox.remaining() < length) {
+			ByteBuffer box = ByteBuffer.allocate(Math.max(mBox.capacity()*2, mBox.position() + length));
+			mBox.flip();
+			box.put(mBox);
+			mBox = box;
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+/**
+ * Keeps the parts of a stream given since its last key frame, for the {@link PrerollBuffer} of the muxer
+ * and the GopCache of the RTP sockets. The parts are copied one after the other in a buffer allocated
+ * once, the owner keeps what it needs to know about each of them in arrays of {@link #getMaxParts()} items.
+ * The memory is bounded: a GOP that doesn't fit is forgotten up to the next call to {@link #start()}.
+ * It is not thread safe.
+ */
+public class GopStore {
+
+	public final static String TAG = "GopStore";
+
+	private final String mOwner;
+	private final int mMinParts, mBytesPerPart;
+	private int mSize, mLength = 0;
+	private byte[] mData;
+	private int[] mOffsets, mLengths;
+	private int mCount = 0;
+	private boolean mStarted = false;
+	private long mOverflows = 0;
+
+	/**
+	 * @param owner The tag of the owner, used in the logs
+	 * @param size The maximum number of bytes kept, 0 disables the store
+	 * @param minParts The number of parts kept at least
+	 * @param bytesPerPart The average size of a part, the number of parts is bounded by size/bytesPerPart
+	 */
+	public GopStore(String owner, int size, int minParts, int bytesPerPart) {
+		mOwner = owner;
+		mSize = size;
+		mMinParts = minParts;
+		mBytesPerPart = bytesPerPart;
+	}
+
+	/** Sets the maximum number of bytes kept, 0 disables the store. The GOP being kept is forgotten. */
+	public void setSize(int size) {
+		mSize = size;
+		mData = null;
+		clear();
+	}
+
+	public int getSize() {
+		return mSize;
+	}
+
+	/** Returns the number of parts the store can hold. */
+	public int getMaxParts() {
+		return Math.max(mMinParts, mSize/mBytesPerPart);
+	}
+
+	/** 
+	 * Forgets the previous GOP and keeps the parts given from now on. 
+	 * @return false if the store is disabled
+	 */
+	public boolean start() {
+		if (mSize <= 0) return false;
+		if (mData == null) allocate();
+		mCount = 0;
+		mLength = 0;
+		mStarted = true;
+		return true;
+	}
+
+	/** Forgets what was kept, nothing is kept until the next call to {@link #start()}. */
+	public void clear() {
+		mStarted = false;
+		mCount = 0;
+		mLength = 0;
+	}
+
+	/** Returns true if the parts given are kept. */
+	public boolean isStarted() {
+		return mStarted;
+	}
+
+	/** Returns true if the store holds a GOP from its key frame. */
+	public boolean isValid() {
+		return mStarted && mCount > 0;
+	}
+
+	/**
+	 * Copies a part.
+	 * @return The index of the part, or -1 if it is not kept
+	 */
+	public int add(byte[] data, int offset, int length) {
+		if (!accept(length)) return -1;
+		System.arraycopy(data, offset, mData, mLength, length);
+		return next(length);
+	}
+
+	/** Same as {@link #add(byte[], int, int)}, the buffer is consumed. */
+	public int add(ByteBuffer data) {
+		int length = data.remaining();
+		if (!accept(length)) {
+			data.position(data.limit());
+			return -1;
+		}
+		data.get(mData, mLength, length);
+		return next(length);
+	}
+
+	/** Returns the number of parts kept. */
+	public int getCount() {
+		return mCount;
+	}
+
+	/** Returns the number of bytes kept. */
+	public int getLength() {
+		return mLength;
+	}
+
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getOffset(int i) {
+		return mOffsets[i];
+	}
+
+	public int getLength(int i) {
+		return mLengths[i];
+	}
+
+	/** Returns the number of GOPs that were too large to be kept. */
+	public long getOverflowCount() {
+		return mOverflows;
+	}
+
+	private boolean accept(int length) {
+		if (!mStarted) return false;
+		if (mLength + length > mData.length || mCount == mOffsets.length) {
+			mOverflows++;
+			if (mOverflows % 100 == 1) Log.w(mOwner, "GOP larger than " + mData.length + " bytes, not kept");
+			clear();
+			return false;
+		}
+		return true;
+	}
+
+	private int next(int length) {
+		mOffsets[mCount] = mLength;
+		mLengths[mCount] = length;
+		mLength += length;
+		return mCount++;
+	}
+
+	private void allocate() {
+		mData = new byte[mSize];
+		mOffsets = new int[getMaxParts()];
+		mLengths = new int[getMaxParts()];
+	}
+
+}
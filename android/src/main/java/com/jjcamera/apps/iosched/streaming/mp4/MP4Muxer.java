@@ -1,35 +1,22 @@
 package com.jjcamera.apps.iosched.streaming.mp4;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.Arrays;
 
 
 import android.util.Log;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 
-import com.coremedia.iso.IsoFile;
 import com.coremedia.iso.boxes.Container;
 import com.coremedia.iso.boxes.MovieHeaderBox;
 import com.coremedia.iso.boxes.TrackBox;
 import com.coremedia.iso.boxes.TrackHeaderBox;
 import com.googlecode.mp4parser.FileDataSourceImpl;
 import com.googlecode.mp4parser.authoring.Movie;
-import com.googlecode.mp4parser.authoring.Mp4TrackImpl;
-import com.googlecode.mp4parser.authoring.Track;
 import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
-import com.googlecode.mp4parser.authoring.tracks.AACTrackImpl;
-import com.googlecode.mp4parser.authoring.tracks.CroppedTrack;
 import com.googlecode.mp4parser.authoring.tracks.h264.H264TrackImpl;
 import com.googlecode.mp4parser.util.Matrix;
 import com.googlecode.mp4parser.util.Path;
@@ -38,34 +25,53 @@ import com.jjcamera.apps.iosched.util.SDCardUtils;
 
 
 /**
- * Parse an mp4 file.
- * An mp4 file contains a tree where each node has a name and a size.
- * This class is used by H264Stream.java to determine the SPS and PPS parameters of a short video recorded by the phone.
+ * Records the streams in fragmented MP4 files, see {@link FragmentedMp4Writer}.
+ * The packetizers hand their access units over as they send them, a new file is started
+ * at the first key frame after {@link #SEGMENT_DURATION}, or before the file outgrows the 
+ * segments of the {@link RecordingStore}.
+ * Video is given NAL unit by NAL unit, the NAL units that share a timestamp form a sample
+ * and the parameter sets are kept for the init segment of the files.
+ * When the recording is triggered, by motion for instance, files are only written while 
+ * {@link #setTriggerActive(boolean)} is on, and until the next key frame after it is off. 
+ * Meanwhile the current GOP is kept in memory, a file starts with it when the trigger fires.
  */
 public class MP4Muxer {
 
 	private static final String TAG = "MP4Muxer";
 
-	private Handler mHandler;
-	private String mVideoFile;
-	private String mAudioFile;
-	private long mVideoTime = 0;
-	private long mAudioTime = 0;
-
-	private class MP4Info{
-		public String mVideoName;
-		public String mAudioName;
-		public String mMp4Name;
-		public Matrix mMatrix;
-	}
+	/** Duration of a file in ms. */
+	public static final long SEGMENT_DURATION = 60000;
 
-	final BlockingQueue<MP4Info> linkedBlockingQueue = new LinkedBlockingQueue<MP4Info>();
-	private MP4Info mMP4Info;
+	private static final int NAL_SKIP = -2;
+	private static final int NAL_PREROLL = -3;
 
-	private static Matrix sMatrix = Matrix.ROTATE_0;
+	private static volatile int sRotation = 0;
 	// The MP4Muxer implements the singleton pattern
 	private static volatile MP4Muxer sMuxerInst = null;
 
+	private FragmentedMp4Writer mWriter = null;
+	private RecordingStore mStore = null;
+	private RecordingStore.Segment mSegment = null;
+	private boolean mFailed = false;
+
+	// Recording triggered by motion
+	private boolean mTriggered = false, mTriggerActive = false, mPrerollPending = false, mPrerollStart = false;
+	private final PrerollBuffer mPreroll = new PrerollBuffer();
+	// How long ago in ms the pre-roll being written started
+	private long mPrerollAge = 0;
+
+	// Format of the streams
+	private int mWidth = 0, mHeight = 0;
+	private byte[] mSps = null, mPps = null;
+	private boolean mNewParameterSets = false;
+	private int mSampleRate = 0, mChannelCount = 0, mAudioConfig = 0;
+
+	// NAL unit being received
+	private long mNalPts = 0, mSamplePts = Long.MIN_VALUE, mAudioPts = Long.MIN_VALUE;
+	private int mNalType = NAL_SKIP, mNalLength = 0;
+	private byte[] mParameterSet = new byte[256];
+	private int mParameterSetLength = 0;
+
 	/**
 	 * Returns a reference to the {@link MP4Muxer}.
 	 * @return The reference to the {@link MP4Muxer}
@@ -81,133 +87,342 @@ public class MP4Muxer {
 		return sMuxerInst;
 	}	
 
-	private MP4Muxer(){
-	    HandlerThread thread = new HandlerThread("com.jjcamera.apps.iosched.streaming.mp4.mp4muxer");
-		thread.start();
+	private MP4Muxer(){}
 
-		mHandler = new Handler(thread.getLooper());
+	public static void setRotationMatrix(int iDegree){
+		sRotation = iDegree == 90 || iDegree == 180 || iDegree == 270 ? iDegree : 0;
+	}
 
-	}	
+	/** Enables the recording of the video, the files are started once the parameter sets and a key frame are known. */
+	public synchronized void setVideoFormat(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		// Resolves the storage and reads the index before the packetizers need it
+		mStore = RecordingStore.getInstance();
+	}
 
-	/** set the orginal video/audio file source. **/
-	public synchronized void setVideoSource(final String path){
-		mVideoFile = path;
-	}	
-	
-	public synchronized void setAudioSource(final String path){
-		mAudioFile = path;
+	/**
+	 * Only records when the trigger is active, see {@link #setTriggerActive(boolean)}.
+	 * Disabled by default: everything is recorded.
+	 */
+	public synchronized void setTriggered(boolean triggered) {
+		if (mTriggered == triggered) return;
+		mTriggered = triggered;
+		mTriggerActive = mPrerollPending = false;
+		mPreroll.clear();
 	}
 
-	public synchronized void setVideoStartTime(final long time){
-		mVideoTime = time;
-	}	
-	
-	public synchronized void setAudioStartTime(final long time){
-		mAudioTime = time;
+	/**
+	 * Starts or stops a triggered recording. The file starts with the GOP being streamed, 
+	 * and ends at the first key frame after the trigger is released.
+	 */
+	public synchronized void setTriggerActive(boolean active) {
+		if (mTriggerActive == active) return;
+		mTriggerActive = active;
+		Log.d(TAG, "Trigger " + (active ? "on" : "off"));
+		// The pre-roll is written at the beginning of the next NAL unit, the current one may not be complete
+		mPrerollPending = active && mWriter == null;
 	}
 
-	public synchronized long getVideoStartTime(){
-		return mVideoTime;
-	}	
-	
-	public synchronized long getAudioStartTime(){
-		return mAudioTime;
+	/** 
+	 * Sets the maximum size of the GOP kept in memory for triggered recordings. 
+	 * @param size The size in bytes, {@link PrerollBuffer#DEFAULT_SIZE} by default, 0 disables the pre-roll
+	 */
+	public synchronized void setPrerollSize(int size) {
+		mPreroll.setSize(size);
 	}
 
-	public synchronized void setVideoReady(){
-		mMP4Info = new MP4Info();
-		mMP4Info.mVideoName = mVideoFile;
+	/** Sets the parameter sets of the video, when they are not repeated in the stream. */
+	public synchronized void setVideoParameterSets(byte[] sps, byte[] pps) {
+		if (sps != null) updateParameterSet(7, sps, sps.length);
+		if (pps != null) updateParameterSet(8, pps, pps.length);
 	}
 
-	public synchronized boolean getVideoReady(){
-		return mMP4Info != null;
+	/**
+	 * Adds an audio track to the next files.
+	 * @param sampleRate The sampling rate of the AAC stream
+	 * @param channelCount The number of channels
+	 * @param config The AudioSpecificConfig of the stream
+	 */
+	public synchronized void setAudioFormat(int sampleRate, int channelCount, int config) {
+		mSampleRate = sampleRate;
+		mChannelCount = channelCount;
+		mAudioConfig = config;
 	}
 
-	public synchronized void setAudioReady(){
-		mMP4Info.mAudioName = mAudioFile;
+	/**
+	 * Starts a NAL unit, its content is then given with {@link #appendVideo}.
+	 * @param ptsUs The presentation time of the access unit of the NAL unit, in us
+	 * @param length The length of the NAL unit, without start code
+	 */
+	public synchronized void startVideoNal(long ptsUs, int length) {
+		endNal();
+		mNalPts = ptsUs;
+		mNalLength = length;
+		mNalType = -1;
 	}
 
-	public static void setRotationMatrix(int iDegree){
-	 	if(iDegree == 90)
-			sMatrix = Matrix.ROTATE_90;
-		else if(iDegree == 180)
-			sMatrix = Matrix.ROTATE_180;
-		else
-			sMatrix = Matrix.ROTATE_0;
+	/** Appends a part of the NAL unit started with {@link #startVideoNal(long, int)}. */
+	public synchronized void appendVideo(byte[] data, int offset, int length) {
+		if (length <= 0) return;
+		if (mNalType == -1) startNal(data[offset]);
+		if (mNalType == 7 || mNalType == 8) {
+			if (mParameterSetLength + length > mParameterSet.length) mParameterSet = Arrays.copyOf(mParameterSet, mParameterSetLength + length);
+			System.arraycopy(data, offset, mParameterSet, mParameterSetLength, length);
+			mParameterSetLength += length;
+		} else if (mNalType == NAL_PREROLL) {
+			mPreroll.add(mPrerollStart ? PrerollBuffer.VIDEO_START : PrerollBuffer.VIDEO, mNalPts, mNalLength, data, offset, length);
+			mPrerollStart = false;
+		} else if (mNalType != NAL_SKIP && mWriter != null) {
+			mWriter.write(mWriter.getVideoTrack(), data, offset, length);
+		}
 	}
 
-	/*private Matrix getRotationMatrix(){
-		int rotation = this.getWindowManager().getDefaultDisplay().getRotation();
-		Matrix m = Matrix.ROTATE_0;
-		switch (rotation) {
-		    case Surface.ROTATION_0:
-		        m = Matrix.ROTATE_90;
-		        break;
-		    case Surface.ROTATION_90:
-		        m = Matrix.ROTATE_0;
-		        break;
-		    case Surface.ROTATION_180:
-		        m = Matrix.ROTATE_90;
-		        break;
-		    case Surface.ROTATION_270:
-		        m = Matrix.ROTATE_180;
-		        break;
-		}	
+	/** Appends the data between the position and the limit of the buffer to the NAL unit, the buffer is consumed. */
+	public synchronized void appendVideo(ByteBuffer data) {
+		if (!data.hasRemaining()) return;
+		if (mNalType == -1) startNal(data.get(data.position()));
+		if (mNalType == 7 || mNalType == 8) {
+			int length = data.remaining();
+			if (mParameterSetLength + length > mParameterSet.length) mParameterSet = Arrays.copyOf(mParameterSet, mParameterSetLength + length);
+			data.get(mParameterSet, mParameterSetLength, length);
+			mParameterSetLength += length;
+		} else if (mNalType == NAL_PREROLL) {
+			mPreroll.add(mPrerollStart ? PrerollBuffer.VIDEO_START : PrerollBuffer.VIDEO, mNalPts, mNalLength, data);
+			mPrerollStart = false;
+		} else if (mNalType != NAL_SKIP && mWriter != null) {
+			mWriter.write(mWriter.getVideoTrack(), data);
+		} else {
+			data.position(data.limit());
+		}
+	}
 
-		return m;
-	}*/
-		
-	/** the orginal files is collecting. **/
-	public synchronized void collect(){		
+	/**
+	 * Records an access unit in the Annex B format, the NAL units are preceded by start codes.
+	 * @param data The access unit lies between the position and the limit of the buffer, it is consumed
+	 * @param ptsUs The presentation time of the access unit, in us
+	 */
+	public synchronized void writeVideo(ByteBuffer data, long ptsUs) {
+		int limit = data.limit(), start = -1, i = data.position();
+		while (i + 2 < limit) {
+			if ((data.get(i+2)&0xFF) > 1) {
+				i += 3;
+			} else if (data.get(i) == 0 && data.get(i+1) == 0 && data.get(i+2) == 1) {
+				if (start >= 0) {
+					// Trailing zeros belong to the next start code
+					int end = i;
+					if (end > start && data.get(end-1) == 0) end--;
+					writeNal(data, start, end, ptsUs);
+					data.limit(limit);
+				}
+				i += 3;
+				start = i;
+			} else {
+				i++;
+			}
+		}
+		if (start >= 0) writeNal(data, start, limit, ptsUs);
+		data.limit(limit).position(limit);
+	}
+
+	/**
+	 * Records a part of an AAC access unit, without ADTS header.
+	 * The parts of an access unit share its presentation time.
+	 */
+	public synchronized void writeAudio(byte[] data, int offset, int length, long ptsUs) {
+		if (mWriter == null && mTriggered && mSampleRate > 0) {
+			mPreroll.add(ptsUs != mAudioPts ? PrerollBuffer.AUDIO_START : PrerollBuffer.AUDIO, ptsUs, 0, data, offset, length);
+			mAudioPts = ptsUs;
+			return;
+		}
+		if (mWriter == null || mWriter.getAudioTrack() == null) return;
 		try {
-			String timeStamp = new SimpleDateFormat("/yyyy_MM_dd_HH_mm_ss").format(new Date());
-			mMP4Info.mMp4Name = timeStamp + ".mp4";	
-			mMP4Info.mMatrix = sMatrix;
-			
-			linkedBlockingQueue.put(mMP4Info);
-
-			mHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						MP4Info mi = linkedBlockingQueue.take();
-						muxerFile(mi);
-					}catch (InterruptedException e) {
-					}
-				}				
-			});
-		}catch (InterruptedException e) {
-		}finally{
-			mMP4Info = null;
+			if (ptsUs != mAudioPts) {
+				mAudioPts = ptsUs;
+				mWriter.startSample(mWriter.getAudioTrack(), ptsUs);
+			}
+			mWriter.write(mWriter.getAudioTrack(), data, offset, length);
+		} catch (IOException e) {
+			fail(e);
 		}
-	}	
-	
-	public synchronized void stop(){		
+	}
+
+	/** Closes the file being recorded, the formats of the streams must be given again for the next one. */
+	public synchronized void stop() {
+		endNal();
+		close();
+		mWidth = mHeight = 0;
+		mSps = mPps = null;
+		mSampleRate = 0;
+		mNalType = NAL_SKIP;
+		mFailed = false;
+		mTriggerActive = mPrerollPending = false;
+		mPreroll.clear();
+	}
+
+	private void writeNal(ByteBuffer data, int start, int end, long ptsUs) {
+		if (end <= start) return;
+		startVideoNal(ptsUs, end - start);
+		data.limit(end).position(start);
+		appendVideo(data);
+	}
+
+	/** Called with the first byte of a NAL unit. */
+	private void startNal(byte header) {
+		mNalType = header & 0x1F;
+		if (mNalType == 7 || mNalType == 8) {
+			mParameterSetLength = 0;
+			return;
+		}
+		// Access unit delimiters are useless in a MP4 file
+		if (mNalType == 9 || mNalType == 0) {
+			mNalType = NAL_SKIP;
+			return;
+		}
+
+		if (mPrerollPending) {
+			mPrerollPending = false;
+			if (mWriter == null) writePreroll();
+		}
+
+		boolean key = mNalType == 5;
+		boolean newSample = mNalPts != mSamplePts;
+		if (key && newSample && mWriter != null && (mNewParameterSets || mWriter.getDurationUs() >= SEGMENT_DURATION*1000L 
+				|| mWriter.getSize() >= mStore.getSegmentSize() - FragmentedMp4Writer.MAX_FRAGMENT_SIZE
+				|| (mTriggered && !mTriggerActive))) {
+			close();
+		}
+		if (mWriter == null && mTriggered && !mTriggerActive) {
+			// Kept in memory until the trigger fires
+			if (key && newSample) mPreroll.startGop();
+			if (newSample) mSamplePts = mNalPts;
+			mNalType = NAL_PREROLL;
+			mPrerollStart = true;
+			return;
+		}
+		if (!startSample(key, newSample)) mNalType = NAL_SKIP;
+	}
+
+	/** Writes the header of a NAL unit of the video track, starts a sample or a file if needed. */
+	private boolean startSample(boolean key, boolean newSample) {
 		try {
-			String timeStamp = new SimpleDateFormat("/yyyy_MM_dd_HH_mm_ss").format(new Date());
-			mMP4Info = new MP4Info();
-			mMP4Info.mVideoName = mVideoFile;
-			mMP4Info.mAudioName = mAudioFile;
-			mMP4Info.mMp4Name = timeStamp + ".mp4";	
-			mMP4Info.mMatrix = sMatrix;
-			linkedBlockingQueue.put(mMP4Info);
-
-			mHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						MP4Info mi = linkedBlockingQueue.take();
-						muxerFile(mi);
-					}catch (InterruptedException e) {
-					}
-				}				
-			});
-		}catch (InterruptedException e) {
-		}finally{
-			mMP4Info = null;
+			if (mWriter == null) {
+				// A file starts with a key frame
+				if (!key || !open()) return false;
+				newSample = true;
+			}
+			FragmentedMp4Writer.Track track = mWriter.getVideoTrack();
+			if (newSample) {
+				mSamplePts = mNalPts;
+				mWriter.startSample(track, mNalPts);
+			}
+			if (key) mWriter.setSync(track);
+			mWriter.writeInt(track, mNalLength);
+			return true;
+		} catch (IOException e) {
+			fail(e);
+			return false;
 		}
-	}	
-	
+	}
+
+	/** Starts a file with the GOP kept in memory, the NAL unit being started is written after it. */
+	private void writePreroll() {
+		if (!mPreroll.isValid()) return;
+		long nalPts = mNalPts;
+		int nalLength = mNalLength;
+		byte[] data = mPreroll.getData();
+		int count = mPreroll.getCount(), frames = 0;
+		boolean writing = false;
+		mSamplePts = mAudioPts = Long.MIN_VALUE;
+		mPrerollAge = Math.max(0, (nalPts - mPreroll.getTime(0))/1000);
+		for (int i=0;i<count && !mFailed;i++) {
+			int offset = mPreroll.getOffset(i), length = mPreroll.getLength(i);
+			switch (mPreroll.getKind(i)) {
+			case PrerollBuffer.VIDEO_START:
+				mNalPts = mPreroll.getTime(i);
+				mNalLength = mPreroll.getSize(i);
+				boolean newSample = mNalPts != mSamplePts;
+				writing = startSample((data[offset] & 0x1F) == 5, newSample);
+				if (writing && newSample) frames++;
+				// Falls through
+			case PrerollBuffer.VIDEO:
+				if (writing) mWriter.write(mWriter.getVideoTrack(), data, offset, length);
+				break;
+			default:
+				// Audio given before the first NAL unit of the key frame is left out
+				if (mWriter != null) writeAudio(data, offset, length, mPreroll.getTime(i));
+			}
+		}
+		if (mWriter != null) Log.d(TAG, "Pre-roll of " + frames + " frame(s) written");
+		mPreroll.clear();
+		mPrerollAge = 0;
+		mNalPts = nalPts;
+		mNalLength = nalLength;
+	}
+
+	private void endNal() {
+		if ((mNalType == 7 || mNalType == 8) && mParameterSetLength > 0) {
+			updateParameterSet(mNalType, mParameterSet, mParameterSetLength);
+		}
+		mNalType = NAL_SKIP;
+	}
+
+	private void updateParameterSet(int type, byte[] data, int length) {
+		byte[] current = type == 7 ? mSps : mPps;
+		if (current != null && current.length == length && Arrays.equals(current, Arrays.copyOf(data, length))) return;
+		byte[] set = Arrays.copyOf(data, length);
+		if (type == 7) mSps = set;
+		else mPps = set;
+		// The init segment of the file being written describes the previous ones
+		if (mWriter != null) mNewParameterSets = true;
+	}
+
+	private boolean open() {
+		if (mFailed || mWidth == 0 || mSps == null || mSps.length < 4 || mPps == null || mStore == null) return false;
+		// The start time of the segment is the one of its first frame, its key frames are indexed from it
+		mSegment = mStore.newSegment(System.currentTimeMillis() - mPrerollAge);
+		// The segment is opened and written by the thread of the writer, the storage can't stall the packetizers
+		RecordingWriter output = new RecordingWriter(mSegment);
+		output.start();
+		try {
+			mWriter = new FragmentedMp4Writer(output, mWidth, mHeight, sRotation, mSps, mPps, mSampleRate, mChannelCount, mAudioConfig);
+			mNewParameterSets = false;
+			mSamplePts = mAudioPts = Long.MIN_VALUE;
+			Log.i(TAG, "Recording " + mSegment + (mSampleRate > 0 ? " with audio" : ""));
+			return true;
+		} catch (IOException e) {
+			output.close();
+			fail(e);
+			return false;
+		}
+	}
+
+	private void close() {
+		if (mWriter == null) return;
+		mSegment.setEndTime(System.currentTimeMillis());
+		try {
+			mWriter.close();
+			Log.i(TAG, "Recorded " + mSegment + ", " + mWriter.getDurationUs()/1000 + " ms, " + mWriter.getSize() + " bytes"
+					+ (mWriter.getDroppedFragments() > 0 ? ", " + mWriter.getDroppedFragments() + " fragments dropped" : ""));
+		} catch (IOException e) {
+			Log.e(TAG, "Recording of " + mSegment + " not completed: " + e.getMessage());
+		}
+		mWriter = null;
+	}
+
+	/** Stops recording until the next call to {@link #stop()}, the storage is probably full or missing. */
+	private void fail(IOException e) {
+		Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Recording failed");
+		mFailed = true;
+		if (mWriter != null) {
+			mSegment.setEndTime(System.currentTimeMillis());
+			try {
+				mWriter.close();
+			} catch (IOException ignore) {}
+			mWriter = null;
+		}
+	}
+
 	public static void muxerFileDebug(){
 		try 
 		{
@@ -234,72 +449,4 @@ public class MP4Muxer {
 		}	
 	}
 
-	private static void muxerFile(MP4Info mi){		
-
-		String videoFile = mi.mVideoName, audioFile = mi.mAudioName, outputFile = mi.mMp4Name;
-		Matrix mMatrix = mi.mMatrix;
-
-		File fVideo = new File(videoFile), fAudio = new File(audioFile);
-
-		if(fVideo.length()==0){
-			fVideo.delete();
-        	fAudio.delete();
-
-			return;
-		}
-
-		if(fAudio.length()==0){
-        	fAudio.delete();
-			audioFile = null;
-		}	
-		
-		try {
-			Log.i(TAG,  "generate a MP4 file...");
-			
-			// build a MP4 file
-			H264TrackImpl h264Track = null;
-			AACTrackImpl aacTrack = null;
-
-			h264Track = new H264TrackImpl(new FileDataSourceImpl(videoFile), "eng", UriParser.videoQuality.framerate, 1);
-			if(audioFile != null)
-		 		aacTrack = new AACTrackImpl(new FileDataSourceImpl(audioFile));
-
-			Movie movie = new Movie();
-			movie.setMatrix(mMatrix);
-			movie.addTrack(h264Track);
-			h264Track.getTrackMetaData().setMatrix(mMatrix);
-			if(aacTrack != null){
-				/*
-					In AAC there are always samplerate/1024 sample/s so each sample's duration is 1000 * 1024 / samplerate milliseconds.
-
-					48KHz => ~21.3ms
-					44.1KHz => ~23.2ms
-					By omitting samples from the start you can easily shorten the audio track. Remove as many as you need. You will not be able to match audio and video exactly with that but the human perception is more sensible to early audio than to late audio.
-				*/
-				Log.i(TAG, "video getDuration " + h264Track.getDuration() );
-				Log.i(TAG, "audio getDuration " + aacTrack.getDuration() );
-				Log.i(TAG, "video length (ms) " + h264Track.getSamples().size() * 1000 / UriParser.videoQuality.framerate);
-				Log.i(TAG, "audio length (ms) " + aacTrack.getSamples().size() * 128);
-				//int offset = 10;// 1300/ (1000 * 1024 / 8000);
-				//CroppedTrack aacTrackShort = new CroppedTrack(aacTrack, offset, aacTrack.getSamples().size());
-				//movie.addTrack(aacTrackShort);
-				movie.addTrack(aacTrack);
-			}
-
-			Container mp4file = new DefaultMp4Builder().build(movie);
-
-			FileChannel fc = new FileOutputStream(new File(SDCardUtils.getExternalSdCardPathForVideo() + outputFile)).getChannel();
-			mp4file.writeContainer(fc);
-			fc.close();
-
-			Log.i(TAG, "finish a MP4 file...");
-		}
-		catch(Exception e) {
-			e.printStackTrace();
-		}	
-
-		fVideo.delete();
-        fAudio.delete();
-	}
-	
 }
@@ -21,125 +21,338 @@ package com.jjcamera.apps.iosched.streaming.mp4;
 
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-
-import android.util.Base64;
-import android.util.Log;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Parse an mp4 file.
+ * Parses an mp4 file (ISO/IEC 14496-12).
  * An mp4 file contains a tree where each node has a name and a size.
- * This class is used by H264Stream.java to determine the SPS and PPS parameters of a short video recorded by the phone.
+ * 
+ * The file is memory-mapped and nothing is read until it is needed: the children of a box are
+ * indexed the first time they are looked for, so finding the moov box of a recording only reads
+ * the headers of the boxes before it. Boxes may have 64 bits sizes, a file larger than what can
+ * be mapped at once is mapped a box at a time. The sample tables are returned as primitive arrays.
+ * 
+ * This class is used by H264Stream.java to determine the SPS and PPS parameters of a short video 
+ * recorded by the phone, and by {@link FragmentedMp4Reader} to read the recordings back.
  */
 public class MP4Parser {
 
 	private static final String TAG = "MP4Parser";
 
-	private HashMap<String, Long> mBoxes = new HashMap<String, Long>();
-	private final RandomAccessFile mFile;
-	private long mPos = 0;
+	// Files up to that size are mapped at once
+	private static final long MAX_MAPPING = Integer.MAX_VALUE;
+
+	private static final int STSD = type("stsd"), AVC1 = type("avc1"), AVC3 = type("avc3"), MP4A = type("mp4a");
+	private static final int META = type("meta"), DREF = type("dref"), AVCC = type("avcC");
+	private static final int STSZ = type("stsz"), STCO = type("stco"), CO64 = type("co64"), STSS = type("stss");
+	private static final int MOOV = type("moov");
+
+	// The boxes whose content is made of boxes, and STSD
+	private static final int[] CONTAINERS = types("moov", "trak", "mdia", "minf", "stbl", "dinf", "edts", 
+			"mvex", "moof", "traf", "mfra", "udta", "meta", "dref", "stsd", "avc1", "avc3", "mp4a");
+
+	/** A box of the file, its children are indexed the first time they are looked for. */
+	public class Box {
+
+		private final long mPosition, mSize;
+		private final int mHeaderSize, mType;
+		private List<Box> mChildren = null;
+
+		private Box(long position, long size, int headerSize, int type) {
+			mPosition = position;
+			mSize = size;
+			mHeaderSize = headerSize;
+			mType = type;
+		}
+
+		/** The type of the box, see {@link MP4Parser#type(String)}. */
+		public int getType() {
+			return mType;
+		}
+
+		/** Offset of the box in the file. */
+		public long getPosition() {
+			return mPosition;
+		}
+
+		/** Size of the box, header included. */
+		public long getSize() {
+			return mSize;
+		}
+
+		/** Offset in the file of the content of the box, after its header. */
+		public long getContentPosition() {
+			return mPosition + mHeaderSize;
+		}
+
+		public long getContentSize() {
+			return mSize - mHeaderSize;
+		}
+
+		/** Returns the boxes contained in this one, empty if it is not a container. */
+		public List<Box> getChildren() throws IOException {
+			if (mChildren == null) mChildren = index(this);
+			return mChildren;
+		}
+
+		/** Returns the first child of that type, or null. */
+		public Box getChild(int type) throws IOException {
+			for (Box child : getChildren()) {
+				if (child.mType == type) return child;
+			}
+			return null;
+		}
+
+		public Box getChild(String type) throws IOException {
+			return getChild(type(type));
+		}
+
+		/** Returns the children of that type, the traks of a moov for instance. */
+		public List<Box> getChildren(String type) throws IOException {
+			int t = type(type);
+			List<Box> boxes = new ArrayList<Box>();
+			for (Box child : getChildren()) {
+				if (child.mType == t) boxes.add(child);
+			}
+			return boxes;
+		}
 
+		/** Returns the content of the box, read only, between the position and the limit of the buffer. */
+		public ByteBuffer getContent() throws IOException {
+			return map(getContentPosition(), getContentSize());
+		}
+
+		@Override
+		public String toString() {
+			return typeName(mType) + "@" + mPosition + "+" + mSize;
+		}
+
+	}
+
+	private final FileChannel mChannel;
+	private final ByteBuffer mData;
+	private final long mLength;
+	private final ByteBuffer mHeader = ByteBuffer.allocate(16);
+	private final Box mRoot;
 
 	/** Parses the mp4 file. **/
 	public static MP4Parser parse(String path) throws IOException {
-		return new MP4Parser(path);
+		return new MP4Parser(new File(path), 0);
 	}	
-	
-	private MP4Parser(final String path) throws IOException, FileNotFoundException {
-		mFile = new RandomAccessFile(new File(path), "r");
+
+	/**
+	 * Maps the file, no box is read yet.
+	 * @param file The mp4 file
+	 * @param length The number of bytes of the file that can be read, or 0 for the whole file
+	 */
+	public MP4Parser(File file, long length) throws IOException {
+		FileInputStream input = new FileInputStream(file);
 		try {
-			parse("",mFile.length());
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new IOException("Parse error: malformed mp4 file");
+			FileChannel channel = input.getChannel();
+			long size = channel.size();
+			mLength = length > 0 && length < size ? length : size;
+			if (mLength <= MAX_MAPPING) {
+				// The mapping stays valid once the file is closed
+				mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+				mChannel = null;
+				input.close();
+			} else {
+				mData = null;
+				mChannel = channel;
+			}
+		} catch (IOException e) {
+			input.close();
+			throw e;
 		}
+		mRoot = new Box(0, mLength, 0, 0);
+	}
+
+	/** Parses a file already in memory, between the position and the limit of the buffer. */
+	public MP4Parser(ByteBuffer data) {
+		mData = data.slice();
+		mChannel = null;
+		mLength = mData.limit();
+		mRoot = new Box(0, mLength, 0, 0);
 	}
-	
+
 	public void close() {
 		try {
-			mFile.close();
+			if (mChannel != null) mChannel.close();
 		} catch (Exception e) {};
 	}
-	
+
+	/** The boxes at the top level of the file are the children of the root. */
+	public Box getRoot() {
+		return mRoot;
+	}
+
+	public long getLength() {
+		return mLength;
+	}
+
+	/** 
+	 * Returns the whole file, read only, or null if it is too large to be mapped at once.
+	 * Positions in the buffer are offsets in the file.
+	 */
+	public ByteBuffer getData() {
+		return mData != null ? mData.duplicate() : null;
+	}
+
+	/** 
+	 * Returns the box at the end of the path, the first one of its type at each level.
+	 * @param path The types of the boxes from the top level, "/moov/trak/mdia" for instance
+	 * @return The box, or null if there is none
+	 */
+	public Box find(String path) throws IOException {
+		Box box = mRoot;
+		int start = path.startsWith("/") ? 1 : 0;
+		while (box != null && start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) end = path.length();
+			box = box.getChild(path.substring(start, end));
+			start = end + 1;
+		}
+		return box;
+	}
+
+	/** 
+	 * Reads the header of the box at that position.
+	 * @param end The end of the parent of the box
+	 * @return The box, or null if there is no valid box there
+	 */
+	public Box readBox(long position, long end) throws IOException {
+		if (position < 0 || end > mLength || end - position < 8) return null;
+		ByteBuffer header = readHeader(position, (int) Math.min(16, end - position));
+		long size = header.getInt(0) & 0xFFFFFFFFL;
+		int type = header.getInt(4), headerSize = 8;
+		if (size == 1) {
+			// 64 bits size
+			if (header.limit() < 16) return null;
+			size = header.getLong(8);
+			headerSize = 16;
+		} else if (size == 0) {
+			// The box extends to the end of its parent
+			size = end - position;
+		}
+		if (size < headerSize || size > end - position) return null;
+		return new Box(position, size, headerSize, type);
+	}
+
 	public long getBoxPos(String box) throws IOException {
-		Long r = mBoxes.get(box);
+		Box r = find(box);
 
 		if (r==null) throw new IOException("Box not found: "+box);
-		return mBoxes.get(box);
+		return r.getPosition();
 	}
 
+	/** Returns the sample description of the first H.264 track of the file. */
 	public StsdBox getStsdBox() throws IOException {
-		try {
-			return new StsdBox(mFile,getBoxPos("/moov/trak/mdia/minf/stbl/stsd"));
-		} catch (IOException e) {
-			throw new IOException("stsd box could not be found");
-		}
-	}
-
-	private void parse(String path, long len) throws IOException {
-		ByteBuffer byteBuffer;
-		long sum = 0, newlen = 0;
-		byte[] buffer = new byte[8];
-		String name = "";
-		
-		if(!path.equals("")) mBoxes.put(path, mPos-8);
-
-		while (sum<len) {
-			mFile.read(buffer,0,8);
-			mPos += 8; sum += 8; 
-
-			if (validBoxName(buffer)) {
-				name = new String(buffer,4,4);
-
-				if (buffer[3] == 1) {
-					// 64 bits atom size
-					mFile.read(buffer,0,8);
-					mPos += 8; sum += 8;
-					byteBuffer = ByteBuffer.wrap(buffer,0,8);
-					newlen = byteBuffer.getLong()-16;
-				} else {
-					// 32 bits atom size
-					byteBuffer = ByteBuffer.wrap(buffer,0,4);
-					newlen = byteBuffer.getInt()-8;
-				}
-
-				// 1061109559+8 correspond to "????" in ASCII the HTC Desire S seems to write that sometimes, maybe other phones do
-				// "wide" atom would produce a newlen == 0, and we shouldn't throw an exception because of that
-				if (newlen < 0 || newlen == 1061109559) throw new IOException();
-				
-				Log.d(TAG, "Atom -> name: "+name+" position: "+mPos+", length: "+newlen);
-				sum += newlen;
-				parse(path+'/'+name,newlen);
-
-			}
-			else {
-				if( len < 8){
-					mFile.seek(mFile.getFilePointer() - 8 + len);
-					sum += len-8;
-				} else {
-					int skipped = mFile.skipBytes((int)(len-8));
-					if (skipped < ((int)(len-8))) {
-						throw new IOException();
-					}
-					mPos += len-8;
-					sum += len-8;
-				}
+		Box moov = mRoot.getChild(MOOV);
+		if (moov != null) {
+			for (Box trak : moov.getChildren("trak")) {
+				Box stsd = find(trak, "mdia/minf/stbl/stsd");
+				Box avcC = stsd != null ? findSampleEntry(stsd, AVCC) : null;
+				if (avcC != null) return new StsdBox(avcC.getContent());
 			}
 		}
+		throw new IOException("stsd box could not be found");
 	}
 
-	private boolean validBoxName(byte[] buffer) {
-		for (int i=0;i<4;i++) {
-			// If the next 4 bytes are neither lowercase letters nor numbers
-			if ((buffer[i+4]< 'a' || buffer[i+4]>'z') && (buffer[i+4]<'0'|| buffer[i+4]>'9') ) return false;
+	/** 
+	 * Returns the size of each sample of a track, given by its stsz box.
+	 * @param stbl The sample table of the track
+	 * @return The sizes, empty if the table has none
+	 */
+	public int[] getSampleSizes(Box stbl) throws IOException {
+		Box stsz = stbl.getChild(STSZ);
+		if (stsz == null) return new int[0];
+		ByteBuffer content = stsz.getContent();
+		int p = content.position();
+		// The table is only there when the samples have different sizes
+		int size = content.getInt(p+4), count = checkCount(content, p+8, size == 0 ? 4 : 0, 12);
+		int[] sizes = new int[count];
+		if (size != 0) {
+			// Every sample has the same size
+			for (int i=0;i<count;i++) sizes[i] = size;
+		} else {
+			content.position(p+12);
+			content.asIntBuffer().get(sizes);
 		}
-		return true;
+		return sizes;
+	}
+
+	/** 
+	 * Returns the offset in the file of each chunk of a track, given by its stco or co64 box.
+	 * @param stbl The sample table of the track
+	 */
+	public long[] getChunkOffsets(Box stbl) throws IOException {
+		Box co64 = stbl.getChild(CO64);
+		if (co64 != null) {
+			ByteBuffer content = co64.getContent();
+			int p = content.position();
+			long[] offsets = new long[checkCount(content, p+4, 8, 8)];
+			content.position(p+8);
+			content.asLongBuffer().get(offsets);
+			return offsets;
+		}
+		Box stco = stbl.getChild(STCO);
+		if (stco == null) return new long[0];
+		ByteBuffer content = stco.getContent();
+		int p = content.position();
+		int count = checkCount(content, p+4, 4, 8);
+		long[] offsets = new long[count];
+		for (int i=0;i<count;i++) offsets[i] = content.getInt(p+8+4*i) & 0xFFFFFFFFL;
+		return offsets;
+	}
+
+	/** 
+	 * Returns the numbers of the sync samples of a track, starting from 1, given by its stss box.
+	 * @param stbl The sample table of the track
+	 * @return The numbers in increasing order, or null if every sample is a sync sample
+	 */
+	public int[] getSyncSamples(Box stbl) throws IOException {
+		Box stss = stbl.getChild(STSS);
+		if (stss == null) return null;
+		ByteBuffer content = stss.getContent();
+		int p = content.position();
+		int[] samples = new int[checkCount(content, p+4, 4, 8)];
+		content.position(p+8);
+		content.asIntBuffer().get(samples);
+		return samples;
+	}
+
+	/** Returns the box at the end of a path relative to a box, or null. */
+	public Box find(Box box, String path) throws IOException {
+		int start = 0;
+		while (box != null && start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) end = path.length();
+			box = box.getChild(path.substring(start, end));
+			start = end + 1;
+		}
+		return box;
+	}
+
+	/** Returns a box of that type in the first sample entry of a stsd box, the avcC or esds box for instance. */
+	public Box findSampleEntry(Box stsd, int type) throws IOException {
+		List<Box> entries = stsd.getChildren();
+		return entries.isEmpty() ? null : entries.get(0).getChild(type);
 	}
-	
+
+	/** Returns the code of a box type, the way it is written in the file. */
+	public static int type(String type) {
+		return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+	}
+
+	public static String typeName(int type) {
+		return new String(new char[] { (char) (type >>> 24), (char) (type >> 16 & 0xFF), (char) (type >> 8 & 0xFF), (char) (type & 0xFF) });
+	}
+
 	static String toHexString(byte[] buffer,int start, int len) {
 		String c;
 		StringBuilder s = new StringBuilder();
@@ -150,106 +363,69 @@ public class MP4Parser {
 		return s.toString();
 	}
 
-}
-
-class StsdBox {
-
-	private RandomAccessFile fis;
-	private byte[] buffer = new byte[4];
-	private long pos = 0;
-
-	private byte[] pps;
-	private byte[] sps;
-	private int spsLength, ppsLength;
-
-	/** Parse the sdsd box in an mp4 file
-	 * fis: proper mp4 file
-	 * pos: stsd box's position in the file
-	 */
-	public StsdBox (RandomAccessFile fis, long pos) {
-
-		this.fis = fis;
-		this.pos = pos;
-
-		findBoxAvcc();
-		findSPSandPPS();
-
-	}
-
-	public String getProfileLevel() {
-		return MP4Parser.toHexString(sps,1,3);
-	}
-
-	public String getB64PPS() {
-		return Base64.encodeToString(pps, 0, ppsLength, Base64.NO_WRAP);
-	}
-
-	public String getB64SPS() {
-		return Base64.encodeToString(sps, 0, spsLength, Base64.NO_WRAP);
-	}
-
-	private boolean findSPSandPPS() {
-		/*
-		 *  SPS and PPS parameters are stored in the avcC box
-		 *  You may find really useful information about this box 
-		 *  in the document ISO-IEC 14496-15, part 5.2.4.1.1
-		 *  The box's structure is described there
-		 *  <pre>
-		 *  aligned(8) class AVCDecoderConfigurationRecord {
-		 *		unsigned int(8) configurationVersion = 1;
-		 *		unsigned int(8) AVCProfileIndication;
-		 *		unsigned int(8) profile_compatibility;
-		 *		unsigned int(8) AVCLevelIndication;
-		 *		bit(6) reserved = ‘111111’b;
-		 *		unsigned int(2) lengthSizeMinusOne;
-		 *		bit(3) reserved = ‘111’b;
-		 *		unsigned int(5) numOfSequenceParameterSets;
-		 *		for (i=0; i< numOfSequenceParameterSets; i++) {
-		 *			unsigned int(16) sequenceParameterSetLength ;
-		 *			bit(8*sequenceParameterSetLength) sequenceParameterSetNALUnit;
-		 *		}
-		 *		unsigned int(8) numOfPictureParameterSets;
-		 *		for (i=0; i< numOfPictureParameterSets; i++) {
-		 *			unsigned int(16) pictureParameterSetLength;
-		 *			bit(8*pictureParameterSetLength) pictureParameterSetNALUnit;
-		 *		}
-		 *	}
-		 *  </pre>
-		 */
-		try {
-
-			// TODO: Here we assume that numOfSequenceParameterSets = 1, numOfPictureParameterSets = 1 !
-			// Here we extract the SPS parameter
-			fis.skipBytes(7);
-			spsLength  = 0xFF&fis.readByte();
-			sps = new byte[spsLength];
-			fis.read(sps,0,spsLength);
-			// Here we extract the PPS parameter
-			fis.skipBytes(2);
-			ppsLength = 0xFF&fis.readByte();
-			pps = new byte[ppsLength];
-			fis.read(pps,0,ppsLength);
-
-		} catch (IOException e) {
-			return false;
+	/** Indexes the children of a box, up to the first one that is not valid. */
+	private List<Box> index(Box parent) throws IOException {
+		List<Box> children = new ArrayList<Box>();
+		int offset = contentOffset(parent);
+		if (offset < 0) return children;
+		long end = parent.mPosition + parent.mSize;
+		Box child;
+		for (long position = parent.getContentPosition() + offset; (child = readBox(position, end)) != null; position += child.mSize) {
+			children.add(child);
 		}
+		return children;
+	}
 
-		return true;
+	/** Returns where the boxes start in the content of a container, or -1 if the box is not a container. */
+	private int contentOffset(Box box) {
+		if (box == mRoot) return 0;
+		int type = box.mType;
+		boolean container = false;
+		for (int t : CONTAINERS) container |= t == type;
+		if (!container) return -1;
+		// Full boxes with an entry count, and sample entries
+		if (type == STSD || type == DREF) return 8;
+		if (type == META) return 4;
+		if (type == AVC1 || type == AVC3) return 78;
+		if (type == MP4A) return 28;
+		return 0;
 	}
 
-	private boolean findBoxAvcc() {
-		try {
-			fis.seek(pos+8);
-			while (true) {
-				while (fis.read() != 'a');
-				fis.read(buffer,0,3);
-				if (buffer[0] == 'v' && buffer[1] == 'c' && buffer[2] == 'C') break;
+	private ByteBuffer readHeader(long position, int length) throws IOException {
+		mHeader.clear();
+		if (mData != null) {
+			for (int i=0;i<length;i++) mHeader.put(mData.get((int) position + i));
+		} else {
+			mHeader.limit(length);
+			while (mHeader.hasRemaining()) {
+				if (mChannel.read(mHeader, position + mHeader.position()) < 0) break;
 			}
-		} catch (IOException e) {
-			return false;
 		}
-		return true;
+		mHeader.flip();
+		return mHeader;
+	}
+
+	private ByteBuffer map(long position, long length) throws IOException {
+		if (length > MAX_MAPPING) throw new IOException("The box is too large to be mapped: " + length + " bytes");
+		if (mData != null) {
+			ByteBuffer data = mData.duplicate();
+			data.limit((int) (position + length)).position((int) position);
+			return data;
+		}
+		return mChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+
+	/** Reads the entry count of a table, throws if the entries don't fit in its box. */
+	private static int checkCount(ByteBuffer content, int position, int entrySize, int headerSize) throws IOException {
+		long count = content.getInt(position) & 0xFFFFFFFFL;
+		if (count * entrySize > content.limit() - content.position() - headerSize) throw new IOException("Truncated sample table");
+		return (int) count;
+	}
 
+	private static int[] types(String... types) {
+		int[] codes = new int[types.length];
+		for (int i=0;i<types.length;i++) codes[i] = type(types[i]);
+		return codes;
 	}
 
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps what is given to the {@link MP4Muxer} since the last key frame while nothing is recorded,
+ * so that a recording triggered by motion starts with the whole GOP in which the motion was detected.
+ * The parts of the NAL units and of the audio access units are kept in the order they were given, 
+ * the packetizers of both tracks run in parallel. The memory is allocated once and bounded, a GOP 
+ * that doesn't fit is dropped and the recording starts at the next key frame instead, see {@link GopStore}.
+ * It is only used with the lock of the {@link MP4Muxer}.
+ */
+class PrerollBuffer {
+
+	public final static String TAG = "PrerollBuffer";
+
+	/** Default size of the buffer in bytes. */
+	public static final int DEFAULT_SIZE = 1024*1024;
+
+	/** First part of a NAL unit, its size is the length of the whole NAL unit. */
+	public static final byte VIDEO_START = 0;
+	/** Next part of a NAL unit. */
+	public static final byte VIDEO = 1;
+	/** First part of an audio access unit. */
+	public static final byte AUDIO_START = 2;
+	/** Next part of an audio access unit. */
+	public static final byte AUDIO = 3;
+
+	// A GOP of a second holds a few NAL units per frame and about 50 audio access units
+	private final GopStore mStore = new GopStore(TAG, DEFAULT_SIZE, 256, 1024);
+	private int[] mSizes;
+	private long[] mTimes;
+	private byte[] mKinds;
+	private boolean mAudioStarted = false;
+
+	/** Sets the maximum number of bytes buffered, 0 disables the pre-roll. */
+	public void setSize(int size) {
+		mStore.setSize(size);
+		mSizes = null;
+		mTimes = null;
+		mKinds = null;
+	}
+
+	/** Returns true if the buffer holds a GOP from its key frame. */
+	public boolean isValid() {
+		return mStore.isValid();
+	}
+
+	/** Forgets what was buffered, buffering resumes at the next key frame. */
+	public void clear() {
+		mStore.clear();
+	}
+
+	/** Called before the first NAL unit of a key frame, the previous GOP is forgotten. */
+	public void startGop() {
+		if (!mStore.start()) return;
+		if (mKinds == null) {
+			int parts = mStore.getMaxParts();
+			mSizes = new int[parts];
+			mTimes = new long[parts];
+			mKinds = new byte[parts];
+		}
+		// The audio access unit being given is incomplete
+		mAudioStarted = false;
+	}
+
+	/**
+	 * Keeps a part of a NAL unit or of an audio access unit.
+	 * @param kind {@link #VIDEO_START}, {@link #VIDEO}, {@link #AUDIO_START} or {@link #AUDIO}
+	 * @param time The presentation time in us
+	 * @param size The length of the NAL unit for {@link #VIDEO_START}
+	 */
+	public void add(byte kind, long time, int size, byte[] data, int offset, int length) {
+		if (!accept(kind)) return;
+		set(mStore.add(data, offset, length), kind, time, size);
+	}
+
+	/** Same as {@link #add(byte, long, int, byte[], int, int)}, the buffer is consumed. */
+	public void add(byte kind, long time, int size, ByteBuffer data) {
+		if (!accept(kind)) {
+			data.position(data.limit());
+			return;
+		}
+		set(mStore.add(data), kind, time, size);
+	}
+
+	public int getCount() {
+		return mStore.getCount();
+	}
+
+	public byte getKind(int i) {
+		return mKinds[i];
+	}
+
+	public long getTime(int i) {
+		return mTimes[i];
+	}
+
+	public int getSize(int i) {
+		return mSizes[i];
+	}
+
+	public byte[] getData() {
+		return mStore.getData();
+	}
+
+	public int getOffset(int i) {
+		return mStore.getOffset(i);
+	}
+
+	public int getLength(int i) {
+		return mStore.getLength(i);
+	}
+
+	/** Returns the number of GOPs that were too large to be buffered. */
+	public long getOverflowCount() {
+		return mStore.getOverflowCount();
+	}
+
+	private boolean accept(byte kind) {
+		if (!mStore.isStarted()) return false;
+		// The access unit that started before the key frame is left out
+		if (kind == AUDIO_START) mAudioStarted = true;
+		else if (kind == AUDIO && !mAudioStarted) return false;
+		return true;
+	}
+
+	private void set(int i, byte kind, long time, int size) {
+		if (i < 0) return;
+		mKinds[i] = kind;
+		mTimes[i] = time;
+		mSizes[i] = size;
+	}
+
+}
@@ -0,0 +1,609 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.jjcamera.apps.iosched.util.SDCardUtils;
+
+/**
+ * Keeps the recordings in a ring of pre-allocated segment files under a quota.
+ *
+ * Every segment file is allocated once with {@link #getSegmentSize()} bytes and then reused:
+ * when the quota is reached, the file of the oldest segment is renamed and overwritten by the
+ * next one, segments older than the maximum age are turned back into free slots. The storage
+ * can't fill up while recording and the file system does not have to find room for each file.
+ * 
+ * Files keep the names of the recordings (their start time) so that they can still be browsed.
+ * A compact index ({@link #INDEX_NAME}, a fixed size record per slot) lists the segments, it is
+ * read once when the store is created and updated in place, the directory is never scanned.
+ * Each slot also has a {@link SeekTable} of the key frames of its segment, appended to as the
+ * fragments are written: a time is found with {@link #getSegment(long)} and then the offset
+ * of its key frame, without opening the recordings.
+ * 
+ * Segments are opened and closed by the thread of their {@link RecordingWriter}.
+ */
+public class RecordingStore {
+
+	public final static String TAG = "RecordingStore";
+
+	/** Size of a segment file, a minute at 8 Mbit/s. */
+	public final static long DEFAULT_SEGMENT_SIZE = 64L*1024*1024;
+
+	/** By default the recordings take at most this share of the space of the storage. */
+	public final static float DEFAULT_QUOTA = 0.5f;
+
+	public final static String INDEX_NAME = "segments.idx";
+
+	public final static int STATE_FREE = 0;
+	public final static int STATE_RECORDING = 1;
+	public final static int STATE_COMPLETE = 2;
+
+	private final static int MOOF = MP4Parser.type("moof"), MFHD = MP4Parser.type("mfhd"), MDAT = MP4Parser.type("mdat");
+	private final static int FREE = MP4Parser.type("free");
+
+	private final static String FREE_PREFIX = ".slot-";
+	private final static String SEEK_PREFIX = ".seek-";
+
+	// Layout of the index: a header and then a record per slot
+	private final static int MAGIC = 0x4A4A5349;
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 16;
+	private final static int RECORD_SIZE = 64;
+	private final static int NAME_SIZE = 36;
+
+	private static RecordingStore sInstance = null;
+
+	private final File mDir;
+	private final long mSegmentSize;
+	private final ArrayList<Segment> mSlots = new ArrayList<Segment>();
+	private final SimpleDateFormat mFormat = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss", Locale.US);
+	private RandomAccessFile mIndex;
+	private int mMaxSegments;
+	private long mMaxAge = 0;
+
+	/** A recording, from its creation to its eviction. */
+	public class Segment implements RecordingWriter.Target {
+
+		private final String mBaseName;
+		private final long mStartTime;
+		private volatile String mName;
+		private volatile long mEndTime = 0, mLength = 0;
+		private volatile int mState = STATE_FREE;
+		private volatile int mSlot = -1;
+
+		// Seek table being written, only used by the writer thread
+		private FileChannel mSeek = null;
+		private ByteBuffer mEntry = null;
+
+		private Segment(String name, long startTime) {
+			mBaseName = name;
+			mName = name;
+			mStartTime = startTime;
+		}
+
+		/** Returns the file of the segment, its name is only final once it has been opened. */
+		public File getFile() {
+			return new File(mDir, mName);
+		}
+
+		/** Wall clock time of the beginning of the segment in ms. */
+		public long getStartTime() {
+			return mStartTime;
+		}
+
+		/** Wall clock time of the end of the segment in ms, 0 while it is recorded. */
+		public long getEndTime() {
+			return mEndTime;
+		}
+
+		/** Number of bytes of the recording, the file may be larger. */
+		public long getLength() {
+			return mLength;
+		}
+
+		public int getState() {
+			return mState;
+		}
+
+		/** Sets the time at which the recording stopped, before the writer is closed. */
+		public void setEndTime(long time) {
+			mEndTime = time;
+		}
+
+		/** 
+		 * Returns the key frames written so far, empty if the segment has been evicted.
+		 * Read from the storage at each call.
+		 */
+		public SeekTable getSeekTable() throws IOException {
+			int slot = mSlot;
+			if (mState == STATE_FREE || slot < 0) return new SeekTable();
+			return SeekTable.read(getSeekFile(slot));
+		}
+
+		@Override
+		public FileChannel open() throws IOException {
+			return openSegment(this);
+		}
+
+		@Override
+		public void addSyncPoint(long timeUs, long offset) throws IOException {
+			if (mSeek == null) return;
+			if (mEntry == null) mEntry = ByteBuffer.allocate(SeekTable.ENTRY_SIZE);
+			mEntry.clear();
+			SeekTable.put(mEntry, mStartTime + timeUs/1000, offset);
+			mEntry.flip();
+			while (mEntry.hasRemaining()) mSeek.write(mEntry);
+		}
+
+		@Override
+		public void close(FileChannel channel, long written) throws IOException {
+			closeSegment(this, channel, written);
+		}
+
+		@Override
+		public String toString() {
+			return getFile().getPath();
+		}
+
+	}
+
+	/** Returns the store of the video directory, created on the first call. */
+	public synchronized static RecordingStore getInstance() {
+		File dir = new File(SDCardUtils.getExternalSdCardPathForVideo());
+		if (sInstance == null || !sInstance.mDir.equals(dir)) {
+			if (sInstance != null) sInstance.release();
+			sInstance = new RecordingStore(dir, DEFAULT_SEGMENT_SIZE);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Loads the index of the directory, the quota is {@link #DEFAULT_QUOTA} of the storage.
+	 * @param dir The directory in which the segments are stored
+	 * @param segmentSize The size of the segment files
+	 */
+	public RecordingStore(File dir, long segmentSize) {
+		mDir = dir;
+		mSegmentSize = segmentSize;
+		mMaxSegments = (int) Math.max(2, (long) (dir.getTotalSpace()*DEFAULT_QUOTA)/segmentSize);
+		try {
+			mIndex = new RandomAccessFile(new File(dir, INDEX_NAME), "rw");
+			load();
+		} catch (IOException e) {
+			Log.e(TAG, "Can't read the index of " + dir + ": " + e.getMessage());
+			mSlots.clear();
+		}
+	}
+
+	/**
+	 * Sets how much space and how long the recordings are kept.
+	 * @param maxBytes The maximum size of all the segment files, at least two segments are kept
+	 * @param maxAge The maximum age of a segment in ms, 0 to keep them until the space is needed
+	 */
+	public synchronized void setQuota(long maxBytes, long maxAge) {
+		mMaxSegments = (int) Math.max(2, maxBytes/mSegmentSize);
+		mMaxAge = maxAge;
+	}
+
+	public long getSegmentSize() {
+		return mSegmentSize;
+	}
+
+	public File getDirectory() {
+		return mDir;
+	}
+
+	/** 
+	 * Creates a segment for a recording starting now, nothing is done on the storage 
+	 * until a {@link RecordingWriter} opens it.
+	 */
+	public synchronized Segment newSegment(long startTime) {
+		return new Segment(mFormat.format(new Date(startTime)) + ".mp4", startTime);
+	}
+
+	/** Returns the segments being recorded or complete, the oldest first. */
+	public synchronized List<Segment> getSegments() {
+		ArrayList<Segment> segments = new ArrayList<Segment>();
+		for (Segment segment : mSlots) {
+			if (segment.mState != STATE_FREE) segments.add(segment);
+		}
+		Collections.sort(segments, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment a, Segment b) {
+				return a.mStartTime < b.mStartTime ? -1 : a.mStartTime == b.mStartTime ? 0 : 1;
+			}
+		});
+		return segments;
+	}
+
+	/** Returns the segments recorded between the two times in ms, the oldest first. */
+	public synchronized List<Segment> getSegments(long from, long to) {
+		List<Segment> segments = getSegments();
+		for (int i=segments.size()-1;i>=0;i--) {
+			Segment segment = segments.get(i);
+			boolean before = segment.mState == STATE_COMPLETE && segment.mEndTime <= from;
+			if (before || segment.mStartTime > to) segments.remove(i);
+		}
+		return segments;
+	}
+
+	/** Returns the segment recorded at that time, or null. */
+	public synchronized Segment getSegment(long time) {
+		for (Segment segment : mSlots) {
+			if (segment.mState == STATE_FREE || time < segment.mStartTime) continue;
+			if (segment.mState == STATE_RECORDING || time < segment.mEndTime) return segment;
+		}
+		return null;
+	}
+
+	/** Closes the index. */
+	public synchronized void release() {
+		try {
+			if (mIndex != null) mIndex.close();
+		} catch (IOException ignore) {}
+		mIndex = null;
+	}
+
+	/** Called by the writer thread of the segment, finds it a slot and a file. */
+	private synchronized FileChannel openSegment(Segment segment) throws IOException {
+		evictExpired(System.currentTimeMillis());
+
+		int slot = pickSlot();
+		Segment old = slot < mSlots.size() ? mSlots.get(slot) : null;
+		String name = segment.mBaseName;
+		for (int i=1;isNameUsed(name);i++) {
+			name = segment.mBaseName.replace(".mp4", "_" + i + ".mp4");
+		}
+		segment.mName = name;
+		File file = segment.getFile();
+
+		// The file of the slot is reused, it is already allocated
+		if (old != null && old.mState != STATE_FREE) {
+			Log.d(TAG, "Evicting " + old.mName);
+			old.mState = STATE_FREE;
+		}
+		if (old != null && old.mName.length() > 0 && !old.getFile().renameTo(file)) {
+			Log.e(TAG, "Can't reuse " + old.getFile());
+			old.getFile().delete();
+		}
+
+		segment.mSlot = slot;
+		segment.mState = STATE_RECORDING;
+		if (slot < mSlots.size()) mSlots.set(slot, segment);
+		else mSlots.add(segment);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			allocate(raf, segment);
+			writeRecord(slot);
+			trim();
+		} catch (IOException e) {
+			raf.close();
+			free(slot, false);
+			throw e;
+		}
+		openSeekTable(segment);
+		return raf.getChannel();
+	}
+
+	/** The seek table of the previous segment of the slot is replaced. */
+	private void openSeekTable(Segment segment) {
+		try {
+			FileChannel seek = new RandomAccessFile(getSeekFile(segment.mSlot), "rw").getChannel();
+			seek.truncate(0);
+			segment.mSeek = seek;
+		} catch (IOException e) {
+			Log.e(TAG, "Can't write the seek table of " + segment + ": " + e.getMessage());
+		}
+	}
+
+	private File getSeekFile(int slot) {
+		return new File(mDir, SEEK_PREFIX + slot);
+	}
+
+	/** Called by the writer thread once the segment has been written. */
+	private void closeSegment(Segment segment, FileChannel channel, long written) throws IOException {
+		if (segment.mSeek != null) {
+			try {
+				segment.mSeek.close();
+			} catch (IOException ignore) {}
+			segment.mSeek = null;
+		}
+
+		// What is left of the previous recording in the file is hidden in a free box
+		long rest = channel.size() - written;
+		if (rest >= 16 || (rest >= 8 && rest <= 0xFFFFFFFFL)) {
+			ByteBuffer box = ByteBuffer.allocate(16);
+			if (rest <= 0xFFFFFFFFL) {
+				box.putInt((int) rest);
+				box.put(new byte[] {'f','r','e','e'});
+			} else {
+				box.putInt(1);
+				box.put(new byte[] {'f','r','e','e'});
+				box.putLong(rest);
+			}
+			box.flip();
+			channel.write(box, written);
+		} else if (rest > 0) {
+			channel.truncate(written);
+		}
+
+		synchronized (this) {
+			segment.mLength = written;
+			if (segment.mEndTime == 0) segment.mEndTime = System.currentTimeMillis();
+			segment.mState = STATE_COMPLETE;
+			if (segment.mSlot >= 0 && segment.mSlot < mSlots.size() && mSlots.get(segment.mSlot) == segment) {
+				writeRecord(segment.mSlot);
+			}
+		}
+	}
+
+	/** A free slot with a file, a new slot, or the slot of the oldest segment. */
+	private int pickSlot() throws IOException {
+		int slot = -1;
+		for (int i=0;i<mSlots.size() && i<mMaxSegments;i++) {
+			Segment segment = mSlots.get(i);
+			if (segment.mState != STATE_FREE) continue;
+			if (segment.mName.length() > 0) return i;
+			if (slot < 0) slot = i;
+		}
+		if (slot < 0 && mSlots.size() < mMaxSegments) slot = mSlots.size();
+		if (slot < 0) slot = oldest();
+		if (slot < 0) throw new IOException("No room for a new segment");
+		return slot;
+	}
+
+	/** Returns the slot of the oldest complete segment, or -1. */
+	private int oldest() {
+		int slot = -1;
+		for (int i=0;i<mSlots.size();i++) {
+			Segment segment = mSlots.get(i);
+			if (segment.mState != STATE_COMPLETE) continue;
+			if (slot < 0 || segment.mStartTime < mSlots.get(slot).mStartTime) slot = i;
+		}
+		return slot;
+	}
+
+	/** Makes sure the file has the size of a segment, older segments are deleted if the storage is full. */
+	private void allocate(RandomAccessFile raf, Segment segment) throws IOException {
+		if (raf.length() == mSegmentSize) return;
+		if (raf.length() > mSegmentSize) {
+			raf.setLength(mSegmentSize);
+			return;
+		}
+		while (true) {
+			try {
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+					try {
+						Os.posix_fallocate(raf.getFD(), 0, mSegmentSize);
+					} catch (ErrnoException e) {
+						throw new IOException(e.getMessage());
+					}
+				} else {
+					raf.setLength(mSegmentSize);
+				}
+				return;
+			} catch (IOException e) {
+				int slot = oldest();
+				if (slot < 0) {
+					// Recorded anyway, the file grows as it is written
+					Log.e(TAG, "Can't allocate " + segment + ": " + e.getMessage());
+					return;
+				}
+				Log.w(TAG, "The storage is full, " + mSlots.get(slot).mName + " is deleted");
+				free(slot, true);
+			}
+		}
+	}
+
+	/** Turns the segments older than the maximum age into free slots, their files are kept. */
+	private void evictExpired(long now) throws IOException {
+		if (mMaxAge <= 0) return;
+		for (int i=0;i<mSlots.size();i++) {
+			Segment segment = mSlots.get(i);
+			if (segment.mState == STATE_COMPLETE && segment.mEndTime < now - mMaxAge) {
+				Log.d(TAG, "Evicting " + segment.mName + ", older than " + mMaxAge/1000 + " s");
+				free(i, false);
+			}
+		}
+	}
+
+	/** Deletes the segments and the free files beyond the quota, after it has been lowered. */
+	private void trim() throws IOException {
+		int used = 0;
+		for (int i=0;i<mSlots.size();i++) {
+			Segment segment = mSlots.get(i);
+			if (segment.mState != STATE_FREE) used++;
+			else if (i >= mMaxSegments && segment.mName.length() > 0) free(i, true);
+		}
+		while (used-- > mMaxSegments) {
+			int slot = oldest();
+			if (slot < 0) break;
+			free(slot, true);
+		}
+	}
+
+	/** 
+	 * Frees a slot, the file is renamed so that it can be reused, or deleted.
+	 * The segment using the slot is replaced in the index by a free one.
+	 */
+	private void free(int slot, boolean delete) throws IOException {
+		Segment segment = mSlots.get(slot);
+		Segment free = new Segment("", 0);
+		if (segment.mName.length() > 0) {
+			File file = segment.getFile();
+			if (delete) {
+				file.delete();
+			} else {
+				free.mName = FREE_PREFIX + slot;
+				if (!file.renameTo(free.getFile())) {
+					file.delete();
+					free.mName = "";
+				}
+			}
+		}
+		segment.mState = STATE_FREE;
+		getSeekFile(slot).delete();
+		free.mSlot = slot;
+		mSlots.set(slot, free);
+		writeRecord(slot);
+	}
+
+	private boolean isNameUsed(String name) {
+		for (Segment segment : mSlots) {
+			if (segment.mName.equals(name)) return true;
+		}
+		return false;
+	}
+
+	private void load() throws IOException {
+		if (mIndex.length() < HEADER_SIZE) {
+			writeHeader();
+			return;
+		}
+		mIndex.seek(0);
+		if (mIndex.readInt() != MAGIC || mIndex.readInt() != VERSION) {
+			Log.e(TAG, "Unknown index, the segments of " + mDir + " are forgotten");
+			mIndex.setLength(0);
+			writeHeader();
+			return;
+		}
+		int count = mIndex.readInt();
+		byte[] data = new byte[count*RECORD_SIZE];
+		mIndex.seek(HEADER_SIZE);
+		mIndex.readFully(data);
+		ByteBuffer records = ByteBuffer.wrap(data);
+		byte[] name = new byte[NAME_SIZE];
+		for (int i=0;i<count;i++) {
+			records.position(i*RECORD_SIZE);
+			int state = records.getInt();
+			long start = records.getLong(), end = records.getLong(), length = records.getLong();
+			records.get(name);
+			int n = 0;
+			while (n < NAME_SIZE && name[n] != 0) n++;
+			Segment segment = new Segment(new String(name, 0, n, "US-ASCII"), start);
+			segment.mSlot = i;
+			segment.mState = state;
+			segment.mEndTime = end;
+			segment.mLength = length;
+			mSlots.add(segment);
+			if (state == STATE_RECORDING) {
+				// The recording was interrupted, the file can be played up to its last fragment
+				File file = segment.getFile();
+				segment.mState = STATE_COMPLETE;
+				segment.mEndTime = file.lastModified();
+				segment.mLength = findEnd(file, i);
+				writeRecord(i);
+			}
+		}
+		Log.d(TAG, count + " slots in " + mDir);
+	}
+
+	/** 
+	 * Returns the end of the last complete fragment of an interrupted recording, the rest of the
+	 * file may be what is left of an older one. The fragments are walked from the last key frame.
+	 */
+	private long findEnd(File file, int slot) {
+		long position = 0, end = 0;
+		try {
+			SeekTable table = SeekTable.read(getSeekFile(slot));
+			if (table.getCount() > 0) end = position = table.getOffset(table.getCount()-1);
+		} catch (IOException e) {
+			Log.e(TAG, "Can't read the seek table of " + file + ": " + e.getMessage());
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			long length = raf.length();
+			int sequence = -1;
+			while (position + 16 <= length) {
+				raf.seek(position);
+				long size = raf.readInt() & 0xFFFFFFFFL;
+				int type = raf.readInt();
+				if (size == 1) size = raf.readLong();
+				if (size < 8 || size > length - position || type == FREE) break;
+				if (type == MOOF) {
+					// The fragments of the recording follow each other
+					raf.seek(position + 8);
+					raf.readInt();
+					if (raf.readInt() != MFHD) break;
+					raf.readInt();
+					int next = raf.readInt();
+					if (sequence >= 0 && next != sequence + 1) break;
+					sequence = next;
+				} else if (type == MDAT || sequence < 0) {
+					// A fragment is complete with its mdat, the init segment with its last box
+					end = position + size;
+				}
+				position += size;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Can't read " + file + ": " + e.getMessage());
+		} finally {
+			try {
+				if (raf != null) raf.close();
+			} catch (IOException ignore) {}
+		}
+		return end;
+	}
+
+	private void writeHeader() throws IOException {
+		mIndex.seek(0);
+		mIndex.writeInt(MAGIC);
+		mIndex.writeInt(VERSION);
+		mIndex.writeInt(mSlots.size());
+		mIndex.writeInt(0);
+	}
+
+	private void writeRecord(int slot) throws IOException {
+		if (mIndex == null) return;
+		Segment segment = mSlots.get(slot);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putInt(segment.mState);
+		record.putLong(segment.mStartTime);
+		record.putLong(segment.mEndTime);
+		record.putLong(segment.mLength);
+		byte[] name = segment.mName.getBytes("US-ASCII");
+		record.put(name, 0, Math.min(name.length, NAME_SIZE));
+		mIndex.seek(HEADER_SIZE + (long) slot*RECORD_SIZE);
+		mIndex.write(record.array());
+		if (slot == mSlots.size()-1) writeHeader();
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Writes a recording on its own thread so that the storage never stalls the thread producing the data.
+ *
+ * The data is copied in large direct buffers which are handed to the writer thread once full.
+ * At most {@link #MAX_BUFFERS} buffers exist: when the storage is too slow and they are all waiting
+ * to be written, the data is dropped instead of waiting. {@link #reserve(long)} tells beforehand 
+ * whether a block of data, a fragment of a MP4 file for instance, can be queued in one piece.
+ * 
+ * The producer must be a single thread.
+ */
+public class RecordingWriter implements Runnable {
+
+	public final static String TAG = "RecordingWriter";
+
+	public final static int BUFFER_SIZE = 512*1024;
+
+	/** The recording uses at most BUFFER_SIZE*MAX_BUFFERS bytes of memory. */
+	public final static int MAX_BUFFERS = 16;
+
+	/** Sync points waiting for their data to be written, a fragment per second is usual. */
+	public final static int MAX_SYNC_POINTS = 64;
+
+	// Queued after the last buffer
+	private final static ByteBuffer END = ByteBuffer.allocate(0);
+
+	/** Provides the file of the recording, the methods are called by the writer thread. */
+	public interface Target {
+		FileChannel open() throws IOException;
+		/** 
+		 * Called once the data of a sync point has been written, see {@link RecordingWriter#addSyncPoint(long)}.
+		 * @param timeUs The time of the sync point in the recording, in us
+		 * @param offset The offset of the sync point in the file
+		 */
+		void addSyncPoint(long timeUs, long offset) throws IOException;
+		/** Called once the last byte has been written, before the channel is closed. */
+		void close(FileChannel channel, long written) throws IOException;
+	}
+
+	private final File mFile;
+	private final Target mTarget;
+	private FileChannel mChannel;
+	private final ArrayBlockingQueue<ByteBuffer> mFull = new ArrayBlockingQueue<ByteBuffer>(MAX_BUFFERS+1);
+	private final ArrayBlockingQueue<ByteBuffer> mFree = new ArrayBlockingQueue<ByteBuffer>(MAX_BUFFERS);
+	private final ArrayBlockingQueue<long[]> mSyncPoints = new ArrayBlockingQueue<long[]>(MAX_SYNC_POINTS);
+	private ByteBuffer mCurrent = null;
+	private int mAllocated = 0;
+	private boolean mClosed = false;
+	private Thread mThread;
+
+	private volatile boolean mFailed = false;
+	private volatile long mWritten = 0;
+	private long mQueued = 0, mDropped = 0;
+
+	/**
+	 * The file is opened by the writer thread.
+	 * @param file The file is created, or truncated if it exists
+	 */
+	public RecordingWriter(File file) {
+		mFile = file;
+		mTarget = null;
+	}
+
+	/** @param target Opens the file in the writer thread, a segment of a {@link RecordingStore} for instance */
+	public RecordingWriter(Target target) {
+		mFile = null;
+		mTarget = target;
+	}
+
+	public void start() {
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	/** Returns true if that many bytes can be queued without dropping anything. */
+	public boolean reserve(long length) {
+		if (mFailed || mClosed) return false;
+		long room = mCurrent != null ? mCurrent.remaining() : 0;
+		room += (long) (mFree.size() + MAX_BUFFERS - mAllocated) * BUFFER_SIZE;
+		return room >= length;
+	}
+
+	/** 
+	 * Queues data, it is dropped if the storage does not keep up.
+	 * @return false if some of the data was dropped
+	 */
+	public boolean write(byte[] data, int offset, int length) {
+		while (length > 0) {
+			if (!next()) {
+				mDropped += length;
+				return false;
+			}
+			int n = Math.min(length, mCurrent.remaining());
+			mCurrent.put(data, offset, n);
+			offset += n;
+			length -= n;
+			mQueued += n;
+		}
+		return true;
+	}
+
+	/** 
+	 * Queues the data between the position and the limit of the buffer, which is consumed.
+	 * @return false if some of the data was dropped
+	 */
+	public boolean write(ByteBuffer data) {
+		int limit = data.limit();
+		while (data.hasRemaining()) {
+			if (!next()) {
+				mDropped += data.remaining();
+				data.position(limit);
+				return false;
+			}
+			int n = Math.min(data.remaining(), mCurrent.remaining());
+			data.limit(data.position() + n);
+			mCurrent.put(data);
+			data.limit(limit);
+			mQueued += n;
+		}
+		return true;
+	}
+
+	/** 
+	 * Marks the next byte queued as a point from which the recording can be played, the beginning 
+	 * of a fragment starting with a key frame for instance. The {@link Target} gets it once written.
+	 * @param timeUs The time of the sync point in the recording, in us
+	 */
+	public void addSyncPoint(long timeUs) {
+		if (mTarget == null || mFailed || mClosed) return;
+		if (!mSyncPoints.offer(new long[] {timeUs, mQueued})) Log.w(TAG, "Sync point dropped");
+	}
+
+	/** Hands the data queued so far to the writer thread. */
+	public void flush() {
+		if (mCurrent != null && mCurrent.position() > 0) {
+			mCurrent.flip();
+			mFull.offer(mCurrent);
+			mCurrent = null;
+		}
+	}
+
+	/** Flushes the data and lets the writer thread close the file once it's written, does not wait. */
+	public void close() {
+		if (mClosed) return;
+		flush();
+		mClosed = true;
+		mFull.offer(END);
+	}
+
+	/** Waits for the writer thread to write the data and close the file. */
+	public void join() throws InterruptedException {
+		if (mThread != null) mThread.join();
+	}
+
+	/** True once the file could not be opened or written, the data queued afterwards is dropped. */
+	public boolean isFailed() {
+		return mFailed;
+	}
+
+	/** Returns the number of bytes queued, written or not yet. */
+	public long getQueuedBytes() {
+		return mQueued;
+	}
+
+	/** Returns the number of bytes written in the file. */
+	public long getWrittenBytes() {
+		return mWritten;
+	}
+
+	/** Returns the number of bytes dropped because the storage did not keep up. */
+	public long getDroppedBytes() {
+		return mDropped;
+	}
+
+	/** Makes sure the current buffer has some room, returns false if there is none left. */
+	private boolean next() {
+		if (mFailed || mClosed) return false;
+		if (mCurrent != null && mCurrent.hasRemaining()) return true;
+		flush();
+		mCurrent = mFree.poll();
+		if (mCurrent == null && mAllocated < MAX_BUFFERS) {
+			mCurrent = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			mAllocated++;
+		}
+		return mCurrent != null;
+	}
+
+	@Override
+	public void run() {
+		try {
+			if (mTarget != null) mChannel = mTarget.open();
+			else mChannel = new FileOutputStream(mFile).getChannel();
+		} catch (IOException e) {
+			Log.e(TAG, "Can't open " + (mFile != null ? mFile : mTarget) + ": " + e.getMessage());
+			mFailed = true;
+		}
+		try {
+			ByteBuffer buffer;
+			while ((buffer = mFull.take()) != END) {
+				try {
+					if (!mFailed) {
+						while (buffer.hasRemaining()) mWritten += mChannel.write(buffer);
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "Recording failed: " + e.getMessage());
+					mFailed = true;
+				}
+				buffer.clear();
+				mFree.offer(buffer);
+				if (mTarget != null && !mFailed) addSyncPoints();
+			}
+		} catch (InterruptedException ignore) {
+		} finally {
+			if (mTarget != null && mChannel != null) {
+				try {
+					mTarget.close(mChannel, mWritten);
+				} catch (IOException e) {
+					Log.e(TAG, "Can't close " + mTarget + ": " + e.getMessage());
+				}
+			}
+			if (mChannel != null) {
+				try {
+					mChannel.close();
+				} catch (IOException ignore) {}
+			}
+		}
+	}
+
+	/** Hands the sync points whose data has been written to the target. */
+	private void addSyncPoints() {
+		long[] point;
+		while ((point = mSyncPoints.peek()) != null && point[1] < mWritten) {
+			mSyncPoints.poll();
+			try {
+				mTarget.addSyncPoint(point[0], point[1]);
+			} catch (IOException e) {
+				Log.e(TAG, "Can't add a sync point to " + mTarget + ": " + e.getMessage());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The key frames of a recording: their wall clock time and the offset in the file of the 
+ * fragment they start, the init segment of the file lies before the first one. Playback and 
+ * export of a time window seek to its first fragment with it, without parsing the file.
+ * 
+ * The table of a segment of a {@link RecordingStore} is stored next to it, an entry of
+ * {@link #ENTRY_SIZE} bytes being appended as each fragment is written. 
+ */
+public class SeekTable {
+
+	/** An entry holds the time in ms and the offset, both on 64 bits. */
+	public final static int ENTRY_SIZE = 16;
+
+	private long[] mTimes, mOffsets;
+	private int mCount = 0;
+
+	public SeekTable() {
+		this(16);
+	}
+
+	private SeekTable(int capacity) {
+		mTimes = new long[Math.max(1, capacity)];
+		mOffsets = new long[mTimes.length];
+	}
+
+	/** Reads the table of a file written with {@link #put}, a truncated last entry is ignored. */
+	public static SeekTable read(File file) throws IOException {
+		if (!file.exists()) return new SeekTable();
+		FileInputStream input = new FileInputStream(file);
+		try {
+			FileChannel channel = input.getChannel();
+			int count = (int) (channel.size()/ENTRY_SIZE);
+			ByteBuffer data = ByteBuffer.allocate(count*ENTRY_SIZE);
+			while (data.hasRemaining() && channel.read(data) >= 0);
+			data.flip();
+			SeekTable table = new SeekTable(count);
+			while (data.remaining() >= ENTRY_SIZE) table.add(data.getLong(), data.getLong());
+			return table;
+		} finally {
+			input.close();
+		}
+	}
+
+	/** Encodes an entry in the buffer. */
+	public static void put(ByteBuffer buffer, long time, long offset) {
+		buffer.putLong(time);
+		buffer.putLong(offset);
+	}
+
+	/** Adds a key frame, the entries are sorted by time. */
+	public void add(long time, long offset) {
+		if (mCount == mTimes.length) {
+			mTimes = Arrays.copyOf(mTimes, mCount*2);
+			mOffsets = Arrays.copyOf(mOffsets, mCount*2);
+		}
+		mTimes[mCount] = time;
+		mOffsets[mCount] = offset;
+		mCount++;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	/** Wall clock time of the key frame in ms. */
+	public long getTime(int i) {
+		return mTimes[i];
+	}
+
+	/** Offset in the file of the fragment that starts with the key frame. */
+	public long getOffset(int i) {
+		return mOffsets[i];
+	}
+
+	/** 
+	 * Returns the last key frame at or before the time, where playback must start to show it.
+	 * @return The index of the entry, 0 if the time is before the first one, -1 if the table is empty
+	 */
+	public int find(long time) {
+		if (mCount == 0) return -1;
+		int low = 0, high = mCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mTimes[mid] <= time) low = mid;
+			else high = mid - 1;
+		}
+		return low;
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.util.Base64;
+
+/** The SPS and PPS of the first H.264 track of a file. */
+class StsdBox {
+
+	private byte[] pps;
+	private byte[] sps;
+
+	/** Parse the avcC box of a sample entry
+	 * avcC: the content of the box
+	 */
+	public StsdBox (ByteBuffer avcC) throws IOException {
+		if (!findSPSandPPS(avcC)) throw new IOException("Malformed avcC box");
+	}
+
+	public String getProfileLevel() {
+		return MP4Parser.toHexString(sps,1,3);
+	}
+
+	public String getB64PPS() {
+		return Base64.encodeToString(pps, 0, pps.length, Base64.NO_WRAP);
+	}
+
+	public String getB64SPS() {
+		return Base64.encodeToString(sps, 0, sps.length, Base64.NO_WRAP);
+	}
+
+	public byte[] getSPS() {
+		return sps;
+	}
+
+	public byte[] getPPS() {
+		return pps;
+	}
+
+	private boolean findSPSandPPS(ByteBuffer avcC) {
+		/*
+		 *  SPS and PPS parameters are stored in the avcC box
+		 *  You may find really useful information about this box 
+		 *  in the document ISO-IEC 14496-15, part 5.2.4.1.1
+		 *  The box's structure is described there
+		 *  <pre>
+		 *  aligned(8) class AVCDecoderConfigurationRecord {
+		 *		unsigned int(8) configurationVersion = 1;
+		 *		unsigned int(8) AVCProfileIndication;
+		 *		unsigned int(8) profile_compatibility;
+		 *		unsigned int(8) AVCLevelIndication;
+		 *		bit(6) reserved = ‘111111’b;
+		 *		unsigned int(2) lengthSizeMinusOne;
+		 *		bit(3) reserved = ‘111’b;
+		 *		unsigned int(5) numOfSequenceParameterSets;
+		 *		for (i=0; i< numOfSequenceParameterSets; i++) {
+		 *			unsigned int(16) sequenceParameterSetLength ;
+		 *			bit(8*sequenceParameterSetLength) sequenceParameterSetNALUnit;
+		 *		}
+		 *		unsigned int(8) numOfPictureParameterSets;
+		 *		for (i=0; i< numOfPictureParameterSets; i++) {
+		 *			unsigned int(16) pictureParameterSetLength;
+		 *			bit(8*pictureParameterSetLength) pictureParameterSetNALUnit;
+		 *		}
+		 *	}
+		 *  </pre>
+		 */
+		try {
+			// Only the first SPS and the first PPS are kept
+			avcC.position(avcC.position() + 5);
+			int count = avcC.get() & 0x1F;
+			for (int i=0;i<count;i++) {
+				byte[] nal = new byte[avcC.getShort() & 0xFFFF];
+				avcC.get(nal);
+				if (i == 0) sps = nal;
+			}
+			count = avcC.get() & 0xFF;
+			for (int i=0;i<count;i++) {
+				byte[] nal = new byte[avcC.getShort() & 0xFFFF];
+				avcC.get(nal);
+				if (i == 0) pps = nal;
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+
+		return sps != null && pps != null && sps.length >= 4;
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtcp;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.util.Log;
+
+/**
+ * Adapts the bitrate of an encoder to the receiver reports of its stream.
+ * The bitrate is decreased in proportion to the packets lost when they exceed {@link #LOSS_HIGH},
+ * and slowly increased back while few packets are lost and the round trip time doesn't grow,
+ * like the loss based part of Google Congestion Control. All the receivers of a stream share the same encoder,
+ * so the worst of their recent reports decides.
+ */
+public class BitrateController {
+
+	public final static String TAG = "BitrateController";
+
+	/** Above this fraction of packets lost, the bitrate is decreased. */
+	public static final float LOSS_HIGH = 0.10f;
+
+	/** Below this fraction of packets lost, the bitrate may be increased. */
+	public static final float LOSS_LOW = 0.02f;
+
+	/** The bitrate is increased by 8% at most once per {@link #INCREASE_INTERVAL}. */
+	public static final float INCREASE = 0.08f;
+
+	/** Minimum time in ns between two increases. */
+	public static final long INCREASE_INTERVAL = 1000000000L;
+
+	/** No increase is allowed during that time in ns after a decrease. */
+	public static final long HOLD = 4000000000L;
+
+	/** The reports of a receiver older than that in ns are ignored, it may have left. */
+	public static final long REPORT_TIMEOUT = 15000000000L;
+
+	/** Listens to the changes of the target bitrate. */
+	public interface Listener {
+		public void onBitrateChanged(int bitrate);
+	}
+
+	private static class Receiver {
+		float loss;
+		long rtt, minRtt = Long.MAX_VALUE, timestamp;
+	}
+
+	private final HashMap<Integer, Receiver> mReceivers = new HashMap<Integer, Receiver>();
+	private final int mMin, mMax;
+	private int mBitrate;
+	private long mLastDecrease = Long.MIN_VALUE/2, mLastIncrease = Long.MIN_VALUE/2;
+	private Listener mListener;
+
+	/**
+	 * @param min The minimum bitrate in bit/s
+	 * @param max The maximum bitrate in bit/s, the encoder starts at that bitrate
+	 */
+	public BitrateController(int min, int max) {
+		mMin = Math.min(min, max);
+		mMax = max;
+		mBitrate = max;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** Returns the target bitrate in bit/s. */
+	public synchronized int getBitrate() {
+		return mBitrate;
+	}
+
+	/**
+	 * Takes into account the report of a receiver.
+	 * @param ssrc The SSRC of the stream sent to the receiver
+	 * @param report The report, its round trip time and timestamp must be set
+	 */
+	public void update(int ssrc, ReceiverReport report) {
+		update(ssrc, report.getFractionLost(), report.getRoundTripTime(), report.getTimestamp());
+	}
+
+	/**
+	 * Takes into account the report of a receiver.
+	 * @param ssrc The SSRC of the stream sent to the receiver
+	 * @param loss The fraction of packets lost, between 0 and 1
+	 * @param rtt The round trip time in ns, -1 if unknown
+	 * @param now The time the report was received in ns
+	 */
+	public void update(int ssrc, float loss, long rtt, long now) {
+		int bitrate;
+		synchronized (this) {
+			Receiver receiver = mReceivers.get(ssrc);
+			if (receiver == null) {
+				receiver = new Receiver();
+				mReceivers.put(ssrc, receiver);
+			}
+			receiver.loss = loss;
+			receiver.rtt = rtt;
+			receiver.timestamp = now;
+			if (rtt >= 0) receiver.minRtt = Math.min(receiver.minRtt, rtt);
+
+			// The worst receiver, the queues of its path grow when its round trip time exceeds the minimum
+			float worst = 0;
+			boolean queuing = false;
+			Iterator<Receiver> it = mReceivers.values().iterator();
+			while (it.hasNext()) {
+				Receiver r = it.next();
+				if (now - r.timestamp > REPORT_TIMEOUT) {
+					it.remove();
+					continue;
+				}
+				worst = Math.max(worst, r.loss);
+				if (r.rtt >= 0 && r.rtt > r.minRtt + r.minRtt/2 + 20000000L) queuing = true;
+			}
+
+			bitrate = mBitrate;
+			if (worst > LOSS_HIGH) {
+				// Several receivers may report the same congestion, the bitrate is only decreased once per second
+				if (now - mLastDecrease >= INCREASE_INTERVAL) {
+					bitrate = (int) (mBitrate * (1 - worst/2));
+					mLastDecrease = now;
+				}
+			} else if (worst < LOSS_LOW && !queuing) {
+				if (now - mLastDecrease >= HOLD && now - mLastIncrease >= INCREASE_INTERVAL) {
+					bitrate = (int) (mBitrate * (1 + INCREASE));
+					mLastIncrease = now;
+				}
+			}
+			bitrate = Math.max(mMin, Math.min(mMax, bitrate));
+			if (bitrate == mBitrate) return;
+			Log.d(TAG, "Bitrate: " + mBitrate + " -> " + bitrate + " bit/s, loss: " + worst + (queuing ? ", queuing" : ""));
+			mBitrate = bitrate;
+		}
+
+		Listener listener = mListener;
+		if (listener != null) listener.onBitrateChanged(bitrate);
+	}
+
+	/** Forgets the receivers, the bitrate goes back to the maximum. */
+	public synchronized void reset() {
+		mReceivers.clear();
+		mBitrate = mMax;
+		mLastDecrease = mLastIncrease = Long.MIN_VALUE/2;
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtcp;
+
+/**
+ * The report block that a receiver sends back about one of our streams, in an RTCP RR or SR (RFC 3550).
+ * {@link #parse(byte[], int, int, int)} looks for the block about an SSRC in a compound RTCP packet,
+ * the same instance is reused for every packet received.
+ */
+public class ReceiverReport {
+
+	/** Packet type of a Sender Report. */
+	public static final int PT_SR = 200;
+
+	/** Packet type of a Receiver Report. */
+	public static final int PT_RR = 201;
+
+	private static final int BLOCK_LENGTH = 24;
+
+	private int mFractionLost, mCumulativeLost;
+	private long mHighestSequence, mJitter, mLastSenderReport, mDelay;
+	private long mTimestamp, mRoundTripTime = -1;
+
+	/**
+	 * Parses a compound RTCP packet.
+	 * @param ssrc The SSRC of the stream the report must be about
+	 * @return True if the packet contained a report block about ssrc, the fields are updated
+	 */
+	public boolean parse(byte[] data, int offset, int length, int ssrc) {
+		int end = offset + length;
+		while (end - offset >= 8) {
+			// Version(2), Padding(1), Reception report count(5), Packet type(8), Length(16) in 32 bits words minus one
+			if ((data[offset]&0xC0) != 0x80) return false;
+			int count = data[offset]&0x1F;
+			int type = data[offset+1]&0xFF;
+			int next = offset + 4*((int) getInt(data, offset+2, 2)+1);
+			if (next > end) return false;
+
+			int block = -1;
+			if (type == PT_SR) block = offset + 28;
+			else if (type == PT_RR) block = offset + 8;
+
+			if (block > 0) {
+				for (int i=0; i<count && block+BLOCK_LENGTH<=next; i++, block+=BLOCK_LENGTH) {
+					if ((int) getInt(data, block, 4) == ssrc) {
+						mFractionLost = data[block+4]&0xFF;
+						// Cumulative number of packets lost, 24 bits signed
+						mCumulativeLost = ((int) getInt(data, block+5, 3) << 8) >> 8;
+						mHighestSequence = getInt(data, block+8, 4);
+						mJitter = getInt(data, block+12, 4);
+						mLastSenderReport = getInt(data, block+16, 4);
+						mDelay = getInt(data, block+20, 4);
+						mRoundTripTime = -1;
+						return true;
+					}
+				}
+			}
+			offset = next;
+		}
+		return false;
+	}
+
+	/** Returns the fraction of packets lost since the previous report, between 0 and 1. */
+	public float getFractionLost() {
+		return mFractionLost / 256f;
+	}
+
+	/** Returns the number of packets lost since the beginning of the stream. */
+	public int getCumulativeLost() {
+		return mCumulativeLost;
+	}
+
+	/** Returns the highest sequence number received, extended with the number of cycles in the 16 high bits. */
+	public long getHighestSequence() {
+		return mHighestSequence;
+	}
+
+	/** Returns the interarrival jitter in units of the RTP timestamps. */
+	public long getJitter() {
+		return mJitter;
+	}
+
+	/** Returns the middle 32 bits of the NTP timestamp of the last SR received, 0 if none was received yet. */
+	public long getLastSenderReport() {
+		return mLastSenderReport;
+	}
+
+	/** Returns the delay since the last SR was received, in units of 1/65536 seconds. */
+	public long getDelay() {
+		return mDelay;
+	}
+
+	/** Sets when the report was received, in the time base of {@link com.jjcamera.apps.iosched.streaming.rtp.MediaClock}. */
+	public void setTimestamp(long timestamp) {
+		mTimestamp = timestamp;
+	}
+
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	/** Sets the round trip time computed by {@link SenderReport#getRoundTripTime(ReceiverReport)}. */
+	public void setRoundTripTime(long rtt) {
+		mRoundTripTime = rtt;
+	}
+
+	/** Returns the round trip time in ns, or -1 if it is not known. */
+	public long getRoundTripTime() {
+		return mRoundTripTime;
+	}
+
+	private static long getInt(byte[] data, int offset, int length) {
+		long n = 0;
+		for (int i=0; i<length; i++) {
+			n = (n << 8) | (data[offset+i]&0xFF);
+		}
+		return n;
+	}
+
+}
@@ -25,34 +25,56 @@ import static com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.TRANSPORT_UDP;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.nio.channels.IllegalSelectorException;
 
-import android.os.SystemClock;
+import com.jjcamera.apps.iosched.streaming.rtp.DatagramTransport;
+import com.jjcamera.apps.iosched.streaming.rtp.InterleavedWriter;
+import com.jjcamera.apps.iosched.streaming.rtp.MediaClock;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket;
+
 import android.util.Log;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * Over UDP, the RTCP packets sent back by the receiver to the local port are handed to a {@link Listener},
+ * and the time the last reports were sent is kept to compute the round trip time from their receiver reports.
  */
 public class SenderReport {
 
+	public final static String TAG = "SenderReport";
+
 	public static final int MTU = 1500;
 
 	private static final int PACKET_LENGTH = 28;
+
+	// Number of reports sent whose time is kept, a receiver report may refer to one of them
+	private static final int HISTORY = 4;
+
+	/** Receives the RTCP packets sent by the receiver over UDP. */
+	public interface Listener {
+		/** Called from the thread of the report, timestamp is in the time base of {@link MediaClock}. */
+		public void onRtcpPacket(byte[] data, int offset, int length, long timestamp);
+	}
 	
-	private MulticastSocket usock;
-	private DatagramPacket upack;
+	private volatile DatagramTransport mDatagram;
+	private InetAddress mDest;
 
 	private int mTransport;
 	private OutputStream mOutputStream = null;
+	private InterleavedWriter mWriter = null;
 	private byte[] mBuffer = new byte[MTU];
 	private int mSSRC, mPort = -1;
 	private int mOctetCount = 0, mPacketCount = 0;
 	private long interval, delta, now, oldnow;
 	private byte mTcpHeader[];
 
+	private final long[] mSentNtp = new long[HISTORY], mSentTime = new long[HISTORY];
+	private int mSent = 0;
+
+	private volatile Listener mListener;
+	private volatile boolean mClosed = false;
+	private Thread mReceiver;
+
 	public SenderReport(int ssrc) throws IOException {
 		super();
 		this.mSSRC = ssrc;
@@ -85,13 +107,7 @@ public class SenderReport {
 		/* Byte 20,21,22,23  ->  packet count				 	 */
 		/* Byte 24,25,26,27  ->  octet count			         */
 
-		try {
-			usock = new MulticastSocket();
-		} catch (IOException e) {
-			// Very unlikely to happen. Means that all UDP ports are already being used
-			throw new RuntimeException(e.getMessage());
-		}
-		upack = new DatagramPacket(mBuffer, 1);
+		mDatagram = RtpSocket.createTransport(DatagramTransport.MODE_SOCKET);
 
 		// By default we sent one report every 3 secconde
 		interval = 3000;
@@ -99,7 +115,40 @@ public class SenderReport {
 	}
 
 	public void close() {
-		usock.close();
+		mClosed = true;
+		mDatagram.close();
+	}
+
+	/** Sets the listener of the RTCP packets received over UDP, they are received once the first report is sent. */
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Computes the round trip time from the LSR and DLSR fields of a receiver report (RFC 3550, 6.4.1).
+	 * The NTP timestamp of our reports is the time of the media, so the time they were actually sent is used.
+	 * @return The round trip time in ns, or -1 if the report doesn't refer to one of the last reports sent
+	 */
+	public synchronized long getRoundTripTime(ReceiverReport report) {
+		long lsr = report.getLastSenderReport();
+		if (lsr == 0) return -1;
+		for (int i=0; i<HISTORY && i<mSent; i++) {
+			if (mSentNtp[i] == lsr) {
+				long rtt = report.getTimestamp() - mSentTime[i] - report.getDelay()*1000000000L/65536;
+				return Math.max(0, rtt);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Sets how the reports are sent over UDP, the local port changes.
+	 * @param mode Can be {@link DatagramTransport#MODE_SOCKET} or {@link DatagramTransport#MODE_CHANNEL}
+	 */
+	public void setTransportMode(int mode) {
+		DatagramTransport old = mDatagram;
+		mDatagram = RtpSocket.createTransport(mode);
+		old.close();
 	}
 
 	/**
@@ -117,21 +166,24 @@ public class SenderReport {
 	 * @param length The length of the packet 
 	 * @param rtpts
 	 *            The RTP timestamp.
+	 * @param timestamp
+	 *            The same timestamp in ns, in the time base of {@link MediaClock}.
 	 * @throws IOException 
 	 **/
-	public void update(int length, long rtpts) throws IOException {
+	public void update(int length, long rtpts, long timestamp) throws IOException {
 		mPacketCount += 1;
 		mOctetCount += length;
 		setLong(mPacketCount, 20, 24);
 		setLong(mOctetCount, 24, 28);
 
-		now = SystemClock.elapsedRealtime();
+		now = MediaClock.now()/1000000;
 		delta += oldnow != 0 ? now-oldnow : 0;
 		oldnow = now;
 		if (interval>0) {
 			if (delta>=interval) {
-				// We send a Sender Report
-				send(System.nanoTime(), rtpts);
+				// We send a Sender Report, the NTP timestamp is the time of the RTP timestamp so 
+				// that the receiver can synchronize the streams
+				send(MediaClock.toNtp(timestamp), rtpts);
 				delta = 0;
 			}
 		}
@@ -150,8 +202,7 @@ public class SenderReport {
 	public void setDestination(InetAddress dest, int dport) {
 		mTransport = TRANSPORT_UDP;
 		mPort = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		mDest = dest;
 	}
 
 	/**
@@ -161,16 +212,25 @@ public class SenderReport {
 	 */ 
 	public void setOutputStream(OutputStream os, byte channelIdentifier) {
 		mTransport = TRANSPORT_TCP;
+		mWriter = null;
 		mOutputStream = os;
 		mTcpHeader[1] = channelIdentifier;
 	}	
+
+	/** Reports will be interleaved in the RTSP connection of the client by the writer. */
+	public void setInterleaved(InterleavedWriter writer, byte channelIdentifier) {
+		mTransport = TRANSPORT_TCP;
+		mOutputStream = null;
+		mWriter = writer;
+		mTcpHeader[1] = channelIdentifier;
+	}
 	
 	public int getPort() {
 		return mPort;
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return mDatagram.getLocalPort();
 	}
 
 	public int getSSRC() {
@@ -199,19 +259,24 @@ public class SenderReport {
 	 * Sends the RTCP packet over the network.
 	 * 
 	 * @param ntpts
-	 *            the NTP timestamp.
+	 *            the 64 bits NTP timestamp.
 	 * @param rtpts
 	 *            the RTP timestamp.
 	 */
 	private void send(long ntpts, long rtpts) throws IOException {
-		long hb = ntpts/1000000000;
-		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
-		setLong(hb, 8, 12);
-		setLong(lb, 12, 16);
+		setLong(ntpts >>> 32, 8, 12);
+		setLong(ntpts & 0xFFFFFFFFL, 12, 16);
 		setLong(rtpts, 16, 20);
+		synchronized (this) {
+			mSentNtp[mSent % HISTORY] = (ntpts >>> 16) & 0xFFFFFFFFL;
+			mSentTime[mSent % HISTORY] = MediaClock.now();
+			mSent++;
+		}
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
+			mDatagram.send(mBuffer, PACKET_LENGTH, mDest, mPort);
+			if (mReceiver == null) startReceiving();
+		} else if (mWriter != null) {
+			mWriter.offer(mTcpHeader[1], mBuffer, 0, PACKET_LENGTH);
 		} else {
 			synchronized (mOutputStream) {
 				try {
@@ -221,6 +286,35 @@ public class SenderReport {
 			}
 		}
 	}
-		
-	
+
+	/** 
+	 * Receives the RTCP packets sent to the local port until the report is closed.
+	 * It starts after the first report is sent, a {@link java.nio.channels.DatagramChannel} is connected by then.
+	 */
+	private void startReceiving() {
+		mReceiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[MTU];
+				while (!mClosed) {
+					DatagramTransport datagram = mDatagram;
+					try {
+						int length = datagram.receive(buffer);
+						Listener listener = mListener;
+						if (listener != null && length > 0) {
+							listener.onRtcpPacket(buffer, 0, length, MediaClock.now());
+						}
+					} catch (IOException e) {
+						// The transport has been replaced by setTransportMode()
+						if (datagram != mDatagram) continue;
+						if (!mClosed) Log.e(TAG, e.getMessage() != null ? e.getMessage() : "RTCP packet not received");
+						break;
+					}
+				}
+			}
+		}, "RTCP receiver");
+		mReceiver.setDaemon(true);
+		mReceiver.start();
+	}
+
 }
@@ -20,11 +20,9 @@
 
 package com.jjcamera.apps.iosched.streaming.rtp;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 import com.jjcamera.apps.iosched.streaming.audio.AACStream;
-import com.jjcamera.apps.iosched.streaming.audio.AudioStream;
 import com.jjcamera.apps.iosched.streaming.mp4.MP4Muxer;
 
 import android.os.SystemClock;
@@ -57,6 +55,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 	public void start() {
 		if (t==null) {
 			mStopped = false;
+			clock.reset();
 			t = new Thread(this);
 			t.start();
 		}
@@ -100,37 +99,21 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		boolean protection;
 		int frameLength, sum, length, nbau, nbpk, samplingRateIndex, profile;
 		long oldtime = SystemClock.elapsedRealtime(), now = oldtime;
-		byte[] header = new byte[8]; 
+		byte[] header = new byte[9];
+		long skipped;
 
 		try {
-			while (!Thread.interrupted() && !mStopped) {
-
-				if(os!=null && MP4Muxer.getInstance().getVideoReady()){		
-					os.flush();
-					os.close();
-				
-					MP4Muxer.getInstance().setAudioReady();
-					MP4Muxer.getInstance().collect();
+			BitstreamScanner scanner = getScanner();
 
-					FileOutputStream fop = AudioStream.createTempRecorder();
-					setOutputStream(fop);
-				}
+			while (!Thread.interrupted() && !mStopped) {
 
-				// Synchronisation: ADTS packet starts with 12bits set to 1
-				while (true) {
-					if ( (is.read()&0xFF) == 0xFF ) {
-						header[1] = (byte) is.read();
-						if ( (header[1]&0xF0) == 0xF0) {
-							byte st[] = new byte[] {(byte)0xFF, header[1]};
-							streamWrite(st, 0, 2);
-							break;
-						}
-					}
-				}
+				// Synchronisation: ADTS packet starts with 12bits set to 1, it's searched in the buffer of the scanner
+				skipped = scanner.skipToAdtsSync();
+				if (skipped > 0) Log.w(TAG, "ADTS stream out of sync, " + skipped + " bytes skipped");
 
 				// Parse adts header (ADTS packets start with a 7 or 9 byte long header)
-				fill(header, 2, 5);
-				streamWrite(header, 2 , 5);
+				fill(header, 0, 7);
+				streamWrite(header, 0, 7);
 
 				// The protection bit indicates whether or not the header contains the two extra bytes
 				protection = (header[1]&0x01)>0 ? true : false;
@@ -147,15 +130,15 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 				// Read CRS if any
 				if (!protection){
-					is.read(header,0,2);
-					streamWrite(header, 0 , 2);
+					fill(header, 7, 2);
+					streamWrite(header, 7, 2);
 				}
 
 				samplingRate = AACStream.AUDIO_SAMPLING_RATES[(header[2]&0x3C) >> 2];
 				profile = ( (header[2]&0xC0) >> 6 ) + 1 ;
 
-				// We update the RTP timestamp
-				ts +=  1024L*1000000000L/samplingRate; //stats.average();
+				// We update the RTP timestamp, an ADTS frame holds 1024 samples
+				ts = clock.nextSamples(1024, samplingRate);
 
 				//Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p: "+profile+" sr: "+samplingRate);
 
@@ -176,6 +159,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 					sum += length;
 					fill(buffer.mBuffers, rtphl+4, length);
 					streamWrite(buffer.mBuffers, rtphl+4, length);
+					if (isRecorded()) MP4Muxer.getInstance().writeAudio(buffer.mBuffers, rtphl+4, length, ts/1000);
 
 					// AU-headers-length field: contains the size in bits of a AU-header
 					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
@@ -22,7 +22,10 @@ package com.jjcamera.apps.iosched.streaming.rtp;
 
 import java.io.IOException;
 
+import com.jjcamera.apps.iosched.streaming.mp4.MP4Muxer;
+
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.os.SystemClock;
 import android.util.Log;
@@ -94,12 +97,17 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 					
 					// Seems to happen sometimes
 					if (oldts>ts) {
-						socket.commitBuffer();
+						socket.commitBuffer(buffer);
 						continue;
 					}
 					
 					socket.markNextPacket(buffer.mBuffers);
 					socket.updateTimestamp(buffer, ts);
+
+					// The first buffer of the codec holds its configuration, it's not a frame
+					if (isRecorded() && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+						MP4Muxer.getInstance().writeAudio(buffer.mBuffers, rtphl+4, length, bufferInfo.presentationTimeUs);
+					}
 					
 					// AU-headers-length field: contains the size in bits of a AU-header
 					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
@@ -118,7 +126,7 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 					send(buffer, rtphl+length+4);
 					
 				} else {
-					socket.commitBuffer();
+					socket.commitBuffer(buffer);
 				}		
 				
 			}
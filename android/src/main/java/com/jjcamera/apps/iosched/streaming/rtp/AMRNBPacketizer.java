@@ -53,6 +53,7 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	public void start() {
 		if (t==null) {
+			clock.reset();
 			t = new Thread(this);
 			t.start();
 		}
@@ -110,7 +111,7 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 				// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
 				// FIXME: Is this really always the case ??
-				ts += 160L*1000000000L/samplingRate; //stats.average();
+				ts = clock.nextSamples(160, samplingRate);
 				socket.updateTimestamp(buffer, ts);
 				socket.markNextPacket(buffer.mBuffers);
 
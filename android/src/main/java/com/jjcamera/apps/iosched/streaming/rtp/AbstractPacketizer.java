@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import com.jjcamera.apps.iosched.streaming.rtcp.SenderReport;
@@ -46,12 +47,22 @@ abstract public class AbstractPacketizer {
 	protected RtpSocket.PacketBufferClass buffer;
 	
 	protected long ts = 0;
+	// Timestamps of the streams that only give the duration of their frames
+	protected final MediaClock clock = new MediaClock();
 	protected volatile boolean startsend = false;
 	protected volatile boolean endstream = false;
 
+	// Used to write direct buffers to the recording
+	private byte[] mScratch = null;
+
+	// Buffers the input of the packetizers that parse a raw bit stream
+	private BitstreamScanner mScanner = null;
+
+	// The packets of a recording played back must not be recorded again
+	private boolean mRecorded = true;
+
 	public AbstractPacketizer() {
 		int ssrc = new Random().nextInt();
-		ts = new Random().nextInt(Integer.MAX_VALUE);
 		socket = new RtpSocket();
 		socket.setSSRC(ssrc);
 	}
@@ -76,10 +87,30 @@ abstract public class AbstractPacketizer {
 		this.os = os;
 	}
 	
+	/** 
+	 * Selects whether the stream goes to the {@link com.jjcamera.apps.iosched.streaming.mp4.MP4Muxer}, it does by default.
+	 * @param recorded False for a stream read from a recording
+	 */
+	public void setRecorded(boolean recorded) {
+		mRecorded = recorded;
+	}
+
+	public boolean isRecorded() {
+		return mRecorded;
+	}
+
 	public void setTimeToLive(int ttl) throws IOException {
 		socket.setTimeToLive(ttl);
 	}
 
+	/**
+	 * Selects how RTP and RTCP packets are sent when UDP is used.
+	 * @param mode Can be {@link DatagramTransport#MODE_SOCKET} or {@link DatagramTransport#MODE_CHANNEL}
+	 */
+	public void setTransportMode(int mode) {
+		socket.setTransportMode(mode);
+	}
+
 	/**
 	 * Sets the destination of the stream.
 	 * @param dest The destination address of the stream
@@ -99,6 +130,7 @@ abstract public class AbstractPacketizer {
 	/** Resets the socket of packetizer. */
 	public void reset(){
 		socket.reset();
+		clock.reset();
 		startsend = false;
 		endstream = false;
 	}
@@ -107,24 +139,47 @@ abstract public class AbstractPacketizer {
 	protected void send(RtpSocket.PacketBufferClass ppb, int length) throws IOException {
 		InetAddress dest = socket.getDestination();
 		
-		if(dest != null){
+		if(socket.hasReceivers()){
 			socket.commitBuffer(ppb, dest, length);
+		} else {
+			socket.commitBuffer(ppb);
 		}
 	}
 	
+	/** 
+	 * Sends a packet of a stream that can only be decoded from its sync points.
+	 * @param key 1 if the stream can be decoded from this packet on, nothing is sent before the first one
+	 */
 	protected void send(RtpSocket.PacketBufferClass ppb, int length, int key) throws IOException {
 		InetAddress dest = socket.getDestination();
+		ppb.mSyncPoint = key == 1;
 		
-		if(dest != null){		// key is for h264 
+		if(socket.hasReceivers()){		// key is for h264 
 			if(key == 1 && !startsend)	{				
 				startsend = true;
 				//Log.v(TAG, "get first key frame type in the stream.")
 			}
 			if(startsend)
 				socket.commitBuffer(ppb, dest, length);
+			else
+				socket.commitBuffer(ppb);
+		} else {
+			socket.commitBuffer(ppb);
 		}
 	}
 
+	/** 
+	 * Wraps the input stream in a {@link BitstreamScanner}, unless it already is one.
+	 * The buffer of the scanner is reused from one stream to the next.
+	 */
+	protected BitstreamScanner getScanner() {
+		if (is instanceof BitstreamScanner) return (BitstreamScanner) is;
+		if (mScanner == null) mScanner = new BitstreamScanner(is);
+		else mScanner.setInputStream(is);
+		is = mScanner;
+		return mScanner;
+	}
+
 	/** For debugging purposes. */
 	protected static String printBuffer(byte[] buffer, int start,int end) {
 		String str = "";
@@ -137,6 +192,23 @@ abstract public class AbstractPacketizer {
 			os.write(b, off, len);
 	}
 
+	/** Writes the data between the position and the limit of the buffer, which is consumed. */
+	protected void streamWrite(ByteBuffer b) throws IOException {
+		if (this.os == null) {
+			return;
+		} else if (b.hasArray()) {
+			os.write(b.array(), b.arrayOffset()+b.position(), b.remaining());
+			b.position(b.limit());
+		} else {
+			if (mScratch == null) mScratch = new byte[4096];
+			while (b.hasRemaining()) {
+				int len = Math.min(mScratch.length, b.remaining());
+				b.get(mScratch, 0, len);
+				os.write(mScratch, 0, len);
+			}
+		}
+	}
+
 	/** Used in packetizers to estimate timestamps in RTP packets. */
 	protected static class Statistics {
 
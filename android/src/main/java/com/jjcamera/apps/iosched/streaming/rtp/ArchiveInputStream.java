@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.jjcamera.apps.iosched.streaming.mp4.FragmentedMp4Reader;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+
+/**
+ * Gives the samples of a recording to a packetizer as if they came from an encoder.
+ * The samples are read by a {@link FragmentedMp4Reader} in the memory-mapped file and handed
+ * out at the pace of their timestamps, set by a {@link Timeline} shared by the tracks of the 
+ * recording. H.264 samples are split into their NAL units, which are not preceded by start codes.
+ */
+@SuppressLint("NewApi")
+public class ArchiveInputStream extends MediaCodecInputStream {
+
+	public final static String TAG = "ArchiveInputStream";
+
+	/** Samples are handed out that long in ns before their timestamp, the RTP socket paces the packets. */
+	private final static long LEAD = 20000000L;
+
+	/** 
+	 * Maps the times of the samples of a recording on the clock of the streams, see {@link MediaClock}.
+	 * Playback can be paused and resumed, the timestamps go on from where they stopped.
+	 */
+	public static class Timeline {
+
+		private final long mStart, mEnd;
+		private long mOrigin;
+		private long mPausedAt = -1;
+
+		/**
+		 * Playback starts now.
+		 * @param startUs Time in us in the recording of the first sample played
+		 * @param endUs Time in us at which playback stops, or -1 for the end of the recording
+		 */
+		public Timeline(long startUs, long endUs) {
+			mStart = startUs;
+			mEnd = endUs < 0 ? Long.MAX_VALUE : endUs;
+			mOrigin = MediaClock.now();
+		}
+
+		public long getStart() {
+			return mStart;
+		}
+
+		public long getEnd() {
+			return mEnd;
+		}
+
+		public synchronized void pause() {
+			if (mPausedAt < 0) mPausedAt = MediaClock.now();
+		}
+
+		public synchronized void resume() {
+			if (mPausedAt < 0) return;
+			mOrigin += MediaClock.now() - mPausedAt;
+			mPausedAt = -1;
+			notifyAll();
+		}
+
+		public synchronized boolean isPaused() {
+			return mPausedAt >= 0;
+		}
+
+		/** Returns the time in us in the recording being played, or where it was paused. */
+		public synchronized long getPosition() {
+			long now = mPausedAt >= 0 ? mPausedAt : MediaClock.now();
+			return mStart + Math.max(0, now - mOrigin)/1000;
+		}
+
+		/** Returns the timestamp in ns of a sample, in the time base of {@link MediaClock}. */
+		public synchronized long toTimestamp(long timeUs) {
+			return mOrigin + (timeUs - mStart)*1000;
+		}
+
+		/** Returns how long in ns to wait before the sample plays, Long.MAX_VALUE while paused. */
+		synchronized long getDelay(long timeUs) {
+			return mPausedAt >= 0 ? Long.MAX_VALUE : toTimestamp(timeUs) - MediaClock.now();
+		}
+
+	}
+
+	private final FragmentedMp4Reader mReader;
+	private final Timeline mTimeline;
+	private final boolean mVideo;
+	private final BufferInfo mInfo = new BufferInfo();
+	private ByteBuffer mSample = null, mBuffer = null;
+	private volatile boolean mClosed = false;
+
+	/**
+	 * @param reader The reader of the track, already positioned with {@link FragmentedMp4Reader#seekTo(long)}
+	 * @param video True if the track is the H.264 track
+	 * @param timeline The timeline of the tracks of the recording
+	 */
+	public ArchiveInputStream(FragmentedMp4Reader reader, boolean video, Timeline timeline) {
+		mReader = reader;
+		mVideo = video;
+		mTimeline = timeline;
+	}
+
+	/** Stops the stream, the packetizer blocked on it is woken up. */
+	@Override
+	public void close() {
+		synchronized (mTimeline) {
+			mClosed = true;
+			mTimeline.notifyAll();
+		}
+	}
+
+	/** 
+	 * Returns the next NAL unit or AAC frame once it is time to send it.
+	 * @throws IOException Once the stream is closed, or at the end of the recording
+	 */
+	@Override
+	public ByteBuffer readBuffer() throws IOException {
+		while (mBuffer == null && !mClosed) {
+			if (mSample == null || !mSample.hasRemaining()) {
+				if (!nextSample()) {
+					close();
+					break;
+				}
+			}
+			if (mVideo) {
+				mBuffer = nextNalUnit();
+			} else {
+				mBuffer = mSample;
+				mSample = null;
+			}
+		}
+		if (mClosed) throw new IOException("This InputStream was closed");
+		return mBuffer;
+	}
+
+	@Override
+	public void release() {
+		mBuffer = null;
+	}
+
+	@Override
+	public int available() {
+		return mBuffer != null ? mBuffer.remaining() : 0;
+	}
+
+	@Override
+	public BufferInfo getLastBufferInfo() {
+		return mInfo;
+	}
+
+	@Override
+	public boolean hasStartCodes() {
+		return false;
+	}
+
+	/** Waits for the next sample of the track, returns false at the end of the timeline. */
+	private boolean nextSample() {
+		while (mReader.advance()) {
+			long time = mReader.getSampleTime();
+			if (time >= mTimeline.getEnd()) return false;
+			// The audio of the fragment may start before the key frame
+			if (time < mTimeline.getStart()) continue;
+			if (!await(time)) return false;
+			mSample = mReader.getSampleData();
+			mInfo.set(0, mSample.remaining(), mTimeline.toTimestamp(time)/1000, 
+					mReader.isSyncSample() ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+			return true;
+		}
+		return false;
+	}
+
+	/** Slices the next NAL unit out of the sample, the NAL units are preceded by their length on 4 bytes. */
+	private ByteBuffer nextNalUnit() {
+		int length = mSample.remaining() >= 5 ? mSample.getInt() : -1;
+		if (length <= 0 || length > mSample.remaining()) {
+			// The rest of the sample can't be parsed
+			mSample.position(mSample.limit());
+			return null;
+		}
+		ByteBuffer nal = mSample.duplicate();
+		nal.limit(nal.position() + length);
+		mSample.position(nal.limit());
+		return nal;
+	}
+
+	private boolean await(long timeUs) {
+		synchronized (mTimeline) {
+			long delay;
+			while (!mClosed && (delay = mTimeline.getDelay(timeUs)) > LEAD) {
+				try {
+					mTimeline.wait(delay == Long.MAX_VALUE ? 0 : Math.max(1, (delay - LEAD)/1000000));
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return !mClosed;
+		}
+	}
+
+}
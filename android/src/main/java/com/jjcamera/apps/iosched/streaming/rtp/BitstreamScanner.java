@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffers the bit stream a packetizer reads from a pipe, and looks for sync words in the buffer.
+ *
+ * Reads return the buffered bytes, or what one read of the pipe returns, so that they never wait 
+ * for more data than what's available. The bytes before the position in the buffer are kept 
+ * so that a few bytes can be put back with {@link #unread(byte[], int, int)}.
+ */
+public class BitstreamScanner extends InputStream {
+
+	public final static String TAG = "BitstreamScanner";
+
+	public final static int DEFAULT_SIZE = 8192;
+
+	/** Number of bytes that can always be put back. */
+	public final static int MAX_UNREAD = 16;
+
+	private InputStream mIn;
+	private final byte[] mBuffer;
+	private int mPosition = MAX_UNREAD, mEnd = MAX_UNREAD;
+
+	public BitstreamScanner(InputStream in) {
+		this(in, DEFAULT_SIZE);
+	}
+
+	public BitstreamScanner(InputStream in, int size) {
+		mIn = in;
+		mBuffer = new byte[MAX_UNREAD + size];
+	}
+
+	/** Reads another stream, the buffered data is discarded. */
+	public void setInputStream(InputStream in) {
+		mIn = in;
+		mPosition = mEnd = MAX_UNREAD;
+	}
+
+	/** Returns the number of bytes in the buffer. */
+	public int buffered() {
+		return mEnd - mPosition;
+	}
+
+	/** 
+	 * Makes sure that some bytes are buffered, waiting for them if needed.
+	 * @param length At most the size of the buffer
+	 * @return false if the stream ended before
+	 */
+	public boolean request(int length) throws IOException {
+		if (mEnd - mPosition >= length) return true;
+		// The buffered bytes are moved to the front, the bytes put back stay there
+		int start = Math.min(mPosition, MAX_UNREAD);
+		if (mPosition > start) {
+			System.arraycopy(mBuffer, mPosition, mBuffer, start, mEnd - mPosition);
+			mEnd -= mPosition - start;
+			mPosition = start;
+		}
+		while (mEnd - mPosition < length) {
+			int len = mIn.read(mBuffer, mEnd, mBuffer.length - mEnd);
+			if (len < 0) return false;
+			mEnd += len;
+		}
+		return true;
+	}
+
+	/** Returns a buffered byte, {@link #request(int)} must have been called before. */
+	public int peek(int offset) {
+		return mBuffer[mPosition + offset] & 0xFF;
+	}
+
+	/** Skips buffered bytes, {@link #request(int)} must have been called before. */
+	public void skipBuffered(int length) {
+		mPosition += length;
+	}
+
+	/** 
+	 * Puts back bytes that were read, the next read returns them first.
+	 * @param length At most {@link #MAX_UNREAD} bytes, since the last time bytes were put back
+	 */
+	public void unread(byte[] b, int offset, int length) {
+		if (length > mPosition) throw new IllegalStateException("At most "+MAX_UNREAD+" bytes can be put back");
+		mPosition -= length;
+		System.arraycopy(b, offset, mBuffer, mPosition, length);
+	}
+
+	/**
+	 * Skips the bytes preceding the next ADTS sync word (12 bits set to 1), which is left in the stream.
+	 * @return The number of bytes skipped
+	 */
+	public long skipToAdtsSync() throws IOException {
+		long skipped = 0;
+		while (true) {
+			if (!request(2)) throw new EOFException("End of stream while looking for an ADTS header");
+			int i = mPosition, last = mEnd - 1;
+			while (i < last && (mBuffer[i] != (byte) 0xFF || (mBuffer[i+1] & 0xF0) != 0xF0)) i++;
+			skipped += i - mPosition;
+			mPosition = i;
+			if (i < last) return skipped;
+		}
+	}
+
+	/**
+	 * Skips the bytes up to and including the next occurrence of a marker, the type of a MP4 box for instance.
+	 * @return The number of bytes skipped, the marker included
+	 */
+	public long skipPast(byte[] marker) throws IOException {
+		long skipped = 0;
+		int length = marker.length;
+		while (true) {
+			if (!request(length)) throw new EOFException("End of stream while looking for a marker");
+			int i = mPosition, last = mEnd - length;
+			for (; i <= last; i++) {
+				if (mBuffer[i] != marker[0]) continue;
+				int j = 1;
+				while (j < length && mBuffer[i+j] == marker[j]) j++;
+				if (j == length) {
+					skipped += i + length - mPosition;
+					mPosition = i + length;
+					return skipped;
+				}
+			}
+			// The end of the buffer may hold the beginning of the marker
+			skipped += i - mPosition;
+			mPosition = i;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!request(1)) return -1;
+		return mBuffer[mPosition++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		int n = mEnd - mPosition;
+		if (n == 0) {
+			// Large reads don't go through the buffer
+			if (length >= mBuffer.length - MAX_UNREAD) return mIn.read(b, offset, length);
+			if (!request(1)) return -1;
+			n = mEnd - mPosition;
+		}
+		n = Math.min(n, length);
+		System.arraycopy(mBuffer, mPosition, b, offset, n);
+		mPosition += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long buffered = Math.min(n, mEnd - mPosition);
+		mPosition += buffered;
+		return buffered < n ? buffered + mIn.skip(n - buffered) : buffered;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return mEnd - mPosition + mIn.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mIn.close();
+	}
+
+}
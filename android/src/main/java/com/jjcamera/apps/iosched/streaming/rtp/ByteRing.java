@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands bytes from one thread to another, like a pipe, without locks.
+ * There must be a single writer thread and a single reader thread. Each of them only moves its own 
+ * position, and parks when the ring is full or empty until the other one unparks it.
+ * The writer ends the stream with {@link #closeWrite()}, the reader gets -1 once it has read everything.
+ * The reader stops the writer with {@link #close()}, the writer then gets an IOException.
+ */
+public class ByteRing {
+
+	public final static String TAG = "ByteRing";
+
+	// Number of times a thread checks the ring again before parking
+	private static final int SPINS = 16;
+
+	private final byte[] mBuffer;
+	private final int mMask;
+
+	// The number of bytes written and read since the beginning, each is only modified by one thread
+	private volatile long mTail = 0, mHead = 0;
+
+	private volatile boolean mEndOfStream = false, mClosed = false;
+	private volatile IOException mError;
+	private volatile Thread mReader, mWriter;
+
+	/** @param capacity Rounded up to a power of two */
+	public ByteRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mBuffer = new byte[size];
+		mMask = size - 1;
+	}
+
+	public int capacity() {
+		return mBuffer.length;
+	}
+
+	/** Returns the number of bytes that can be read without blocking. */
+	public int available() {
+		return (int) (mTail - mHead);
+	}
+
+	/** 
+	 * Writes all the bytes, blocks while the ring is full.
+	 * @throws IOException If the reader has closed the ring or the stream has been ended
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (mEndOfStream) throw new IOException("Write end closed");
+		long tail = mTail;
+		while (length > 0) {
+			int n = Math.min(length, awaitSpace(tail));
+			int index = (int) tail & mMask;
+			int first = Math.min(n, mBuffer.length - index);
+			System.arraycopy(data, offset, mBuffer, index, first);
+			if (n > first) System.arraycopy(data, offset + first, mBuffer, 0, n - first);
+			tail += n;
+			offset += n;
+			length -= n;
+			// Publishes the bytes
+			mTail = tail;
+			Thread reader = mReader;
+			if (reader != null) LockSupport.unpark(reader);
+		}
+	}
+
+	/**
+	 * Reads at most length bytes, blocks until at least one is available.
+	 * @return The number of bytes read, or -1 at the end of the stream
+	 * @throws IOException If the writer has ended the stream with an error, or the ring is closed
+	 */
+	public int read(byte[] data, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		long head = mHead;
+		int available = awaitData(head);
+		if (available < 0) return -1;
+		int n = Math.min(length, available);
+		int index = (int) head & mMask;
+		int first = Math.min(n, mBuffer.length - index);
+		System.arraycopy(mBuffer, index, data, offset, first);
+		if (n > first) System.arraycopy(mBuffer, 0, data, offset + first, n - first);
+		// Frees the space
+		mHead = head + n;
+		Thread writer = mWriter;
+		if (writer != null) LockSupport.unpark(writer);
+		return n;
+	}
+
+	/** Called by the writer, the reader gets the end of the stream once it has read what remains. */
+	public void closeWrite() {
+		mEndOfStream = true;
+		Thread reader = mReader;
+		if (reader != null) LockSupport.unpark(reader);
+	}
+
+	/** Called by the writer, the reader gets the exception once it has read what remains. */
+	public void closeWrite(IOException e) {
+		mError = e;
+		closeWrite();
+	}
+
+	/** Called by the reader, the writer gets an IOException. */
+	public void close() {
+		mClosed = true;
+		Thread writer = mWriter;
+		if (writer != null) LockSupport.unpark(writer);
+		Thread reader = mReader;
+		if (reader != null) LockSupport.unpark(reader);
+	}
+
+	/** Empties the ring so that it can be used again, neither thread may be using it. */
+	public void reset() {
+		mHead = mTail = 0;
+		mError = null;
+		mEndOfStream = mClosed = false;
+	}
+
+	/** Returns a stream that reads from the ring, its close() closes the ring. */
+	public InputStream getInputStream() {
+		return new InputStream() {
+			private final byte[] mByte = new byte[1];
+
+			@Override
+			public int read() throws IOException {
+				return ByteRing.this.read(mByte, 0, 1) < 0 ? -1 : mByte[0]&0xFF;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				return ByteRing.this.read(buffer, offset, length);
+			}
+
+			@Override
+			public int available() {
+				return ByteRing.this.available();
+			}
+
+			@Override
+			public void close() {
+				ByteRing.this.close();
+			}
+		};
+	}
+
+	/** Returns a stream that writes to the ring, its close() ends the stream. */
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			private final byte[] mByte = new byte[1];
+
+			@Override
+			public void write(int b) throws IOException {
+				mByte[0] = (byte) b;
+				ByteRing.this.write(mByte, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				ByteRing.this.write(buffer, offset, length);
+			}
+
+			@Override
+			public void close() {
+				closeWrite();
+			}
+		};
+	}
+
+	private int awaitData(long head) throws IOException {
+		int spins = 0;
+		while (true) {
+			long tail = mTail;
+			if (tail != head) return (int) (tail - head);
+			if (mClosed) throw new IOException("Ring closed");
+			if (mEndOfStream) {
+				// Bytes written before the end of the stream are visible now
+				if (mTail != head) continue;
+				if (mError != null) throw mError;
+				return -1;
+			}
+			if (spins++ < SPINS) {
+				Thread.yield();
+				continue;
+			}
+			mReader = Thread.currentThread();
+			// The writer may have published bytes before it could see the reader
+			if (mTail == head && !mEndOfStream && !mClosed) LockSupport.park(this);
+			mReader = null;
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private int awaitSpace(long tail) throws IOException {
+		int spins = 0;
+		while (true) {
+			if (mClosed) throw new IOException("Read end closed");
+			int free = mBuffer.length - (int) (tail - mHead);
+			if (free > 0) return free;
+			if (spins++ < SPINS) {
+				Thread.yield();
+				continue;
+			}
+			mWriter = Thread.currentThread();
+			if (tail - mHead == mBuffer.length && !mClosed) LockSupport.park(this);
+			mWriter = null;
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import com.jjcamera.apps.iosched.streaming.rtcp.SenderReport;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+import android.util.Log;
+
+/**
+ * Sends packets through a {@link DatagramChannel}.
+ * RTP packets are written straight from the {@link ByteBuffer} backing 
+ * {@link PacketBufferClass#mBuffers}: the header and the payload filled in by the 
+ * packetizer are never copied. The channel is not connected: the packets of every
+ * subscriber go through it, each one costs a single send, and the RTCP packets of
+ * all the receivers are received.
+ */
+public class ChannelTransport implements DatagramTransport {
+
+	public final static String TAG = "ChannelTransport";
+
+	private final DatagramChannel mChannel;
+	private final ByteBuffer mBuffer, mReceived;
+
+	// The addresses of the last destinations, so that one is not allocated for each packet
+	private final InetSocketAddress[] mAddresses = new InetSocketAddress[8];
+	private int mNextAddress = 0;
+
+	public ChannelTransport() {
+		try {
+			mChannel = DatagramChannel.open();
+			mChannel.configureBlocking(true);
+			// Binds the channel right away, the local port is sent to the client in the RTSP SETUP reply
+			mChannel.socket().bind(null);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		mBuffer = ByteBuffer.allocateDirect(RtpSocket.MTU);
+		mReceived = ByteBuffer.allocateDirect(SenderReport.MTU);
+	}
+
+	@Override
+	public void send(PacketBufferClass pbc) throws IOException {
+		ByteBuffer bb = pbc.mByteBuffer;
+		bb.clear();
+		bb.limit(pbc.mPackets.getLength());
+		mChannel.send(bb, getAddress(pbc.mPackets.getAddress(), pbc.mPackets.getPort()));
+	}
+
+	@Override
+	public synchronized void send(byte[] buffer, int length, InetAddress dest, int port) throws IOException {
+		mBuffer.clear();
+		mBuffer.put(buffer, 0, length);
+		mBuffer.flip();
+		mChannel.send(mBuffer, getAddress(dest, port));
+	}
+
+	@Override
+	public int receive(byte[] buffer) throws IOException {
+		mReceived.clear();
+		mChannel.receive(mReceived);
+		mReceived.flip();
+		int length = Math.min(mReceived.remaining(), buffer.length);
+		mReceived.get(buffer, 0, length);
+		return length;
+	}
+
+	@Override
+	public void setTimeToLive(int ttl) throws IOException {
+		// IP_MULTICAST_TTL can't be set on a DatagramChannel before API 24
+		Log.w(TAG, "The TTL is ignored with a DatagramChannel");
+	}
+
+	@Override
+	public int getLocalPort() {
+		return mChannel.socket().getLocalPort();
+	}
+
+	@Override
+	public void close() {
+		try {
+			mChannel.close();
+		} catch (IOException ignore) {}
+	}
+
+	private synchronized InetSocketAddress getAddress(InetAddress dest, int port) {
+		for (InetSocketAddress address : mAddresses) {
+			if (address != null && address.getPort() == port && dest.equals(address.getAddress())) return address;
+		}
+		InetSocketAddress address = new InetSocketAddress(dest, port);
+		mAddresses[mNextAddress] = address;
+		mNextAddress = (mNextAddress + 1) % mAddresses.length;
+		return address;
+	}
+
+}
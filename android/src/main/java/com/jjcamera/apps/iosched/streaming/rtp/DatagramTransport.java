@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+/**
+ * Sends RTP and RTCP packets over UDP, and receives the RTCP packets sent back by the receivers.
+ * Use {@link RtpSocket#createTransport(int)} to get an implementation.
+ */
+public interface DatagramTransport {
+
+	/** Use this to send packets with a blocking {@link java.net.MulticastSocket}. */
+	public final static int MODE_SOCKET = 0x00;
+
+	/** Use this to send packets with a NIO {@link java.nio.channels.DatagramChannel}. */
+	public final static int MODE_CHANNEL = 0x01;
+
+	/** Sends an RTP packet to the address and port set in {@link PacketBufferClass#mPackets}. */
+	public void send(PacketBufferClass pbc) throws IOException;
+
+	/** Sends the first length bytes of buffer, used for RTCP packets. */
+	public void send(byte[] buffer, int length, InetAddress dest, int port) throws IOException;
+
+	/**
+	 * Blocks until a packet is received and copies it into buffer, used for RTCP packets.
+	 * It may only be called by one thread, an IOException is thrown once the transport is closed.
+	 * @return The length of the packet
+	 */
+	public int receive(byte[] buffer) throws IOException;
+
+	/** Sets the Time To Live of multicast packets. */
+	public void setTimeToLive(int ttl) throws IOException;
+
+	public int getLocalPort();
+
+	public void close();
+
+}
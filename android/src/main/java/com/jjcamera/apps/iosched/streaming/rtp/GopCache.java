@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+
+import com.jjcamera.apps.iosched.streaming.mp4.GopStore;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+import android.util.Log;
+
+/**
+ * Keeps a copy of the packets sent since the last sync point of the stream (SPS, PPS and IDR for H.264),
+ * so that a subscriber that joins in the middle of a GOP can decode the stream right away instead of 
+ * waiting for the next key frame. The packets are indexed by access unit, an access unit being the 
+ * packets that share a timestamp. The memory used is bounded: a GOP that doesn't fit isn't cached, see {@link GopStore}.
+ * It is only used by the send thread of the {@link RtpSocket}.
+ */
+public class GopCache {
+
+	public final static String TAG = "GopCache";
+
+	/** Default size of the cache in bytes. */
+	public static final int DEFAULT_SIZE = 1024*1024;
+
+	/** The access units of the pre-roll are 1 ms apart, the last one 1 ms before the live edge. */
+	public static final long REPLAY_STEP = 1000000L;
+
+	private final RtpSocket mSocket;
+	// Packets are at least a few hundred bytes long, except the small NAL units
+	private final GopStore mStore = new GopStore(TAG, DEFAULT_SIZE, 64, 256);
+	private int[] mUnits;
+	private int mUnitCount = 0;
+	private long mLastTimestamp;
+	private long mReplays = 0;
+
+	// The packets of the pre-roll are copied there before being sent
+	private PacketBufferClass mScratch;
+
+	GopCache(RtpSocket socket) {
+		mSocket = socket;
+	}
+
+	/** 
+	 * Sets the maximum number of bytes the cache holds, 0 disables it. 
+	 * It must not be called while the socket is sending packets.
+	 */
+	public void setSize(int size) {
+		mStore.setSize(size);
+		mUnits = null;
+		invalidate();
+	}
+
+	public int getSize() {
+		return mStore.getSize();
+	}
+
+	/** Returns true if the cache holds a GOP from its sync point. */
+	public boolean isValid() {
+		return mStore.isValid();
+	}
+
+	/** Returns the number of access units cached. */
+	public int getUnitCount() {
+		return mStore.isStarted() ? mUnitCount : 0;
+	}
+
+	/** Returns the number of packets cached. */
+	public int getPacketCount() {
+		return mStore.getCount();
+	}
+
+	/** Returns the number of GOPs that were too large to be cached. */
+	public long getOverflowCount() {
+		return mStore.getOverflowCount();
+	}
+
+	/** Returns the number of times the cache was sent to a new subscriber. */
+	public long getReplayCount() {
+		return mReplays;
+	}
+
+	/** Forgets the GOP being cached, caching resumes at the next sync point. */
+	public void invalidate() {
+		mStore.clear();
+		mUnitCount = 0;
+	}
+
+	/** Copies a packet that has just been sent. */
+	void add(PacketBufferClass pbc) {
+		if (pbc.mSyncPoint && mStore.start()) {
+			if (mUnits == null) mUnits = new int[mStore.getMaxParts()];
+			mUnitCount = 0;
+		}
+
+		// When the GOP is too large, a new subscriber will wait for the next sync point
+		int i = mStore.add(pbc.mBuffers, 0, pbc.mPackets.getLength());
+		if (i < 0) return;
+
+		if (i == 0 || pbc.mTimestamps != mLastTimestamp) mUnitCount++;
+		mLastTimestamp = pbc.mTimestamps;
+		mUnits[i] = mUnitCount - 1;
+	}
+
+	/** 
+	 * Returns true if the cache can be sent before the packet: it must start the access unit following
+	 * the ones cached, which are then complete.
+	 */
+	boolean canReplayBefore(PacketBufferClass pbc) {
+		return mStore.isValid() && !pbc.mSyncPoint && pbc.mTimestamps != mLastTimestamp;
+	}
+
+	/**
+	 * Sends the cached access units to the subscriber at once. Their timestamps are rewritten 
+	 * so that they end right before the live packet, the decoder of the receiver catches up on the GOP
+	 * and plays the live stream without delay.
+	 * @param timestamp The timestamp in ns of the live packet that will follow
+	 * @return False if the subscriber could not take every packet
+	 */
+	boolean replay(RtpSubscriber subscriber, DatagramTransport datagram, long timestamp) throws IOException {
+		if (mScratch == null) mScratch = new PacketBufferClass();
+		PacketBufferClass pbc = mScratch;
+		byte[] data = mStore.getData();
+		for (int i=0; i<mStore.getCount(); i++) {
+			int length = mStore.getLength(i);
+			System.arraycopy(data, mStore.getOffset(i), pbc.mBuffers, 0, length);
+			pbc.mPackets.setLength(length);
+			pbc.mKeyFrame = true;
+			long ts = timestamp - (mUnitCount - mUnits[i]) * REPLAY_STEP;
+			long rtpts = mSocket.toRtp(ts);
+			pbc.mTimestamps = ts;
+			pbc.mBuffers[4] = (byte) (rtpts >> 24);
+			pbc.mBuffers[5] = (byte) (rtpts >> 16);
+			pbc.mBuffers[6] = (byte) (rtpts >> 8);
+			pbc.mBuffers[7] = (byte) rtpts;
+			if (!subscriber.transmit(datagram, pbc, rtpts)) return false;
+		}
+		mReplays++;
+		Log.d(TAG, "Pre-roll of " + mUnitCount + " access unit(s), " + mStore.getLength() + " bytes sent to " + Integer.toHexString(subscriber.getSSRC()));
+		return true;
+	}
+
+}
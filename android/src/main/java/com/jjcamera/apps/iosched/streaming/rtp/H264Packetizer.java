@@ -20,16 +20,14 @@
 
 package com.jjcamera.apps.iosched.streaming.rtp;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import android.annotation.SuppressLint;
 import android.util.Log;
 
 import com.jjcamera.apps.iosched.streaming.mp4.MP4Muxer;
-import com.jjcamera.apps.iosched.streaming.video.VideoStream;
 
 
 /**
@@ -54,9 +52,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	private Statistics stats = new Statistics();
 	private byte[] sps = null, pps = null, stapa = null;
 	byte[] header = new byte[5];	
+	private BitstreamScanner scanner = null;
 	private int count = 0;
 	private int streamType = 1;
 	private final int keyFrameSync = 1;
+	// Type of the previous NAL unit, 24 for the STAP-A holding the parameter sets
+	private int prevType = 0;
 	
 	private final static int MAX_NALU_LENGTH = 10000000;	//10MB for 720p
 	private final static byte START_CODE[] = new byte[] { 0, 0, 0, 1 };		// H264 AnnexB format
@@ -144,6 +145,9 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 			System.arraycopy(sps, 0, stapa, 3, sps.length);
 			System.arraycopy(pps, 0, stapa, 5 + sps.length, pps.length);
 		}
+
+		// The parameter sets may not be repeated in the stream, the recording needs them
+		if (isRecorded()) MP4Muxer.getInstance().setVideoParameterSets(sps, pps);
 	}	
 
 	public void run() {
@@ -151,14 +155,16 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		long duration = 0;
 		Log.d(TAG,"H264 packetizer started !");
 		stats.reset();
+		clock.reset();
 		count = 0;
 
 		if (is instanceof MediaCodecInputStream) {
-			streamType = 1;
+			streamType = ((MediaCodecInputStream) is).hasStartCodes() ? 1 : 2;
 			socket.setCacheSize(0);
 		} else {
 			streamType = 0;	
 			socket.setCacheSize(10);
+			scanner = getScanner();
 		}
 
 		try {
@@ -192,41 +198,24 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	 * Reads a NAL unit in the FIFO and sends it.
 	 * If it is too big, we split it in FU-A units (RFC 3984).
 	 */
-	@SuppressLint("NewApi")
 	private void send() throws IOException, InterruptedException {
 		int sum = 1, len = 0, type;
 
-		if (streamType == 0) {
-			// NAL units are preceeded by their length, we parse the length
-			fill(header,0,5);
-			ts += delay;			
-			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-			if (naluLength>MAX_NALU_LENGTH || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
-			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
+		if (streamType != 0) {
+			sendBuffer();
+			return;
 		}
 
+		// NAL units are preceeded by their length, we parse the length
+		fill(header,0,5);
+		ts = clock.next(delay);
+		naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+		if (naluLength>MAX_NALU_LENGTH || naluLength<0) resync();
+
 		// Parses the NAL unit type
 		type = header[4]&0x1F;
 
-		if(streamType == 0 && type == 0){	//unknown, will end of stream?
+		if(type == 0){	//unknown, will end of stream?
 			Log.d(TAG,"get 0 NAL type in the stream! Length = " +  naluLength);
 
 			int nBufLen = Math.min(8, naluLength);
@@ -250,52 +239,15 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				return;
 			}
 		}
-	
-		// The stream already contains NAL unit type 7 or 8, we don't need 
-		// to add them to the stream ourselves
-		if (type == 7 || type == 8) {
-			Log.v(TAG,"SPS or PPS present in the stream.");
-			count++;
-			if (count>4) {
-				sps = null;
-				pps = null;
-			}
-		}
-
-		if(type == 5 && os!=null){
-			long time = MP4Muxer.getInstance().getVideoStartTime();
-			long now = System.nanoTime();
 
-			if(time == 0){
-				MP4Muxer.getInstance().setVideoStartTime(now);
-			}
-			else if((now - time) > 60000000000L){		// 1 min
-				os.flush();
-				os.close();
-				
-				MP4Muxer.getInstance().setVideoReady();
-				FileOutputStream fop = VideoStream.createTempRecorder();
-				setOutputStream(fop);
-				
-				MP4Muxer.getInstance().setVideoStartTime(now);
-			}
-		}
+		startNalUnit(type);
 
-		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-		if (type == 5 && sps != null && pps != null) {	
-			buffer = socket.requestBuffer();
-			socket.markNextPacket(buffer.mBuffers);
-			socket.updateTimestamp(buffer, ts);
-			System.arraycopy(stapa, 0, buffer.mBuffers, rtphl, stapa.length);
-			streamWrite(START_CODE, 0, 4);
-			streamWrite(stapa, 3, sps.length);
-			streamWrite(START_CODE, 0, 4);
-			streamWrite(stapa, sps.length + 5, pps.length);
-			super.send(buffer, rtphl+stapa.length, keyFrameSync);
-		}
+		// IDR slices and parameter sets must reach the decoder, other NAL units may be dropped by the FIFO
+		boolean key = type == 5 || type == 7 || type == 8;
 
 		streamWrite(START_CODE, 0, 4);
+		MP4Muxer muxer = isRecorded() ? MP4Muxer.getInstance() : null;
+		if (muxer != null) muxer.startVideoNal(ts/1000, naluLength);
 
 		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
 
@@ -303,16 +255,19 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
 			buffer = socket.requestBuffer();
 			buffer.mBuffers[rtphl] = header[4];
+			buffer.mKeyFrame = key;
 			len = fill(buffer.mBuffers, rtphl+1,  naluLength-1);
 			socket.updateTimestamp(buffer, ts);
 			socket.markNextPacket(buffer.mBuffers);
 			streamWrite(buffer.mBuffers, rtphl, naluLength);
-			super.send(buffer, naluLength+rtphl, 0);		
+			if (muxer != null) muxer.appendVideo(buffer.mBuffers, rtphl, naluLength);
+			super.send(buffer, naluLength+rtphl, syncPoint(type, buffer.mBuffers[rtphl+1]));		
 			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
 		}
 		// Large NAL unit => Split nal unit 
 		else {
 			streamWrite(header, 4, 1);
+			if (muxer != null) muxer.appendVideo(header, 4, 1);
 			
 			// Set FU-A header
 			header[1] = (byte) (header[4] & 0x1F);  // FU header type
@@ -324,9 +279,13 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 			while (sum < naluLength) {
 				buffer = socket.requestBuffer();
 				buffer.mBuffers[rtphl] = header[0];
+				buffer.mKeyFrame = key;
 				buffer.mBuffers[rtphl+1] = header[1];
 				socket.updateTimestamp(buffer, ts);
-				if ((len = fill(buffer.mBuffers, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; 
+				if ((len = fill(buffer.mBuffers, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) {
+					socket.commitBuffer(buffer);
+					return;
+				}
 				sum += len;
 				// Last packet before next NAL
 				if (sum >= naluLength) {
@@ -335,12 +294,162 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 					socket.markNextPacket(buffer.mBuffers);
 				}
 				streamWrite(buffer.mBuffers, rtphl + 2, len);
-				super.send(buffer, len+rtphl+2, 0);			
+				if (muxer != null) muxer.appendVideo(buffer.mBuffers, rtphl + 2, len);
+				super.send(buffer, len+rtphl+2, (header[1]&0x80) != 0 ? syncPoint(type, buffer.mBuffers[rtphl+2]) : 0);			
 				// Switch start bit
 				header[1] = (byte) (header[1] & 0x7F); 
 				//Log.d(TAG,"----- FU-A unit, sum:"+sum);
 			}
 		}
+		prevType = type;
+	}
+
+	/**
+	 * Sends the NAL unit held by the output buffer of the codec, without going through an InputStream.
+	 * The payloads are sliced straight from the buffer of the codec into the buffers of the packets, 
+	 * the recording and the output stream get the NAL unit from that same buffer.
+	 */
+	@SuppressLint("NewApi")
+	private void sendBuffer() throws IOException, InterruptedException {
+		MediaCodecInputStream codec = (MediaCodecInputStream) is;
+		ByteBuffer nal = codec.readBuffer();
+		if (nal == null) return;
+
+		try {
+			ts = codec.getLastBufferInfo().presentationTimeUs*1000L;
+
+			int start = nal.position(), end = nal.limit();
+			if (streamType == 1) {
+				// NAL units are preceeded with 0x00000001
+				if (end - start < 5 || nal.get(start) != 0 || nal.get(start+1) != 0 || nal.get(start+2) != 0) {
+					// Turns out, the NAL units are not preceeded with 0x00000001
+					Log.e(TAG, "NAL units are not preceeded by 0x00000001");
+					streamType = 2;
+				} else {
+					start += 4;
+				}
+			}
+			if (start >= end) return;
+
+			naluLength = end - start;
+			byte nalHeader = nal.get(start);
+			int type = nalHeader&0x1F;
+
+			startNalUnit(type);
+
+			// IDR slices and parameter sets must reach the decoder, other NAL units may be dropped by the FIFO
+			boolean key = type == 5 || type == 7 || type == 8;
+
+			// The recording and the output stream get the start code of the codec along with the NAL unit,
+			// the muxer splits the access unit at the start codes as it may hold several NAL units
+			MP4Muxer muxer = isRecorded() ? MP4Muxer.getInstance() : null;
+			long pts = codec.getLastBufferInfo().presentationTimeUs;
+			if (streamType == 1) {
+				nal.position(start - 4);
+				if (muxer != null) muxer.writeVideo(nal, pts);
+				nal.limit(end).position(start - 4);
+			} else {
+				if (muxer != null) {
+					muxer.startVideoNal(pts, naluLength);
+					muxer.appendVideo(nal);
+				}
+				nal.limit(end).position(start);
+				streamWrite(START_CODE, 0, 4);
+			}
+			streamWrite(nal);
+
+			// Small NAL unit => Single NAL unit 
+			if (naluLength<=MAXPACKETSIZE-rtphl-2) {
+				buffer = socket.requestBuffer();
+				buffer.mKeyFrame = key;
+				nal.limit(end).position(start);
+				ByteBuffer payload = buffer.mByteBuffer;
+				payload.clear();
+				payload.position(rtphl);
+				payload.put(nal);
+				socket.updateTimestamp(buffer, ts);
+				socket.markNextPacket(buffer.mBuffers);
+				super.send(buffer, naluLength+rtphl, syncPoint(type, naluLength > 1 ? nal.get(start+1) : 0));
+			}
+			// Large NAL unit => Split nal unit 
+			else {
+				// FU indicator: NRI of the NAL unit and type 28, FU header: type of the NAL unit and start bit
+				byte indicator = (byte) ((nalHeader & 0x60) + 28);
+				byte fu = (byte) ((nalHeader & 0x1F) | 0x80);
+
+				int sum = start + 1, len;
+				while (sum < end) {
+					len = Math.min(end - sum, MAXPACKETSIZE-rtphl-2);
+					buffer = socket.requestBuffer();
+					buffer.mKeyFrame = key;
+					buffer.mBuffers[rtphl] = indicator;
+					socket.updateTimestamp(buffer, ts);
+					// Last packet before next NAL
+					if (sum + len >= end) {
+						// End bit on
+						fu |= 0x40;
+						socket.markNextPacket(buffer.mBuffers);
+					}
+					buffer.mBuffers[rtphl+1] = fu;
+					nal.limit(sum + len).position(sum);
+					ByteBuffer payload = buffer.mByteBuffer;
+					payload.clear();
+					payload.position(rtphl+2);
+					payload.put(nal);
+					sum += len;
+					super.send(buffer, len+rtphl+2, (fu&0x80) != 0 ? syncPoint(type, nal.get(start+1)) : 0);
+					// Switch start bit
+					fu &= 0x7F;
+				}
+			}
+			prevType = type;
+		} finally {
+			codec.release();
+		}
+	}
+
+	/** 
+	 * Takes care of the parameter sets before a NAL unit is sent.
+	 * @param type The type of the NAL unit
+	 */
+	private void startNalUnit(int type) throws IOException, InterruptedException {
+		// The stream already contains NAL unit type 7 or 8, we don't need 
+		// to add them to the stream ourselves
+		if (type == 7 || type == 8) {
+			Log.v(TAG,"SPS or PPS present in the stream.");
+			count++;
+			if (count>4) {
+				sps = null;
+				pps = null;
+			}
+		}
+
+		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
+		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+		if (type == 5 && sps != null && pps != null) {	
+			buffer = socket.requestBuffer();
+			socket.markNextPacket(buffer.mBuffers);
+			socket.updateTimestamp(buffer, ts);
+			System.arraycopy(stapa, 0, buffer.mBuffers, rtphl, stapa.length);
+			streamWrite(START_CODE, 0, 4);
+			streamWrite(stapa, 3, sps.length);
+			streamWrite(START_CODE, 0, 4);
+			streamWrite(stapa, sps.length + 5, pps.length);
+			super.send(buffer, rtphl+stapa.length, keyFrameSync);
+			prevType = 24;
+		}
+	}
+
+	/**
+	 * Returns 1 if the stream can be decoded from the NAL unit on: it is an SPS, or the first slice 
+	 * of an IDR picture not preceded by the parameter sets.
+	 * @param type The type of the NAL unit
+	 * @param data The byte following its header, the first bit is set when first_mb_in_slice is 0
+	 */
+	private int syncPoint(int type, byte data) {
+		if (type == 7) return keyFrameSync;
+		if (type == 5 && (data&0x80) != 0 && prevType != 7 && prevType != 8 && prevType != 24) return keyFrameSync;
+		return 0;
 	}
 
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
@@ -357,37 +466,37 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	private void resync() throws IOException {
 		int type;
-		int len;
 
 		Log.e(TAG,"Packetizer out of sync ! Let's try to fix that...(NAL length: "+naluLength+")");
 
+		// The header is put back in the buffer, a NAL unit is searched from its second byte on
+		scanner.unread(header, 1, 4);
+
 		while (true) {
 
-			header[0] = header[1];
-			header[1] = header[2];
-			header[2] = header[3];
-			header[3] = header[4];
-			header[4] = (byte) is.read();
-			if (header[4]<0) {
+			if (!scanner.request(5)) {
 				throw new IOException("End of stream for resync");
 			}
-			
-			type = header[4]&0x1F;
+
+			type = scanner.peek(4)&0x1F;
 
 			if (type == 5 || type == 1) {
-				naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+				naluLength = scanner.peek(3) | scanner.peek(2)<<8 | scanner.peek(1)<<16 | scanner.peek(0)<<24;
 				if (naluLength>0 && naluLength<=MAX_NALU_LENGTH) {
+					fill(header, 0, 5);
 					oldtime = System.nanoTime();
 					Log.e(TAG,"A NAL unit may have been found in the bit stream !");
 					break;
 				}
 				if (naluLength==0) {
 					Log.e(TAG,"NAL unit with NULL size found...");
-				} else if (header[3]==0xFF && header[2]==0xFF && header[1]==0xFF && header[0]==0xFF) {
+				} else if (naluLength==0xFFFFFFFF) {
 					Log.e(TAG,"NAL unit with 0xFFFFFFFF size found...");
 				}
 			}
 
+			scanner.skipBuffered(1);
+
 		}
 
 	}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+/**
+ * Writes RTP and RTCP packets interleaved in the RTSP connection of a client (RFC 2326, section 10.12),
+ * along with the RTSP responses sent to that client.
+ *
+ * Packets are copied in a bounded ring of buffers allocated once, then written by another thread
+ * with gathering writes of the '$' headers and the payloads, so that a slow client never blocks the
+ * send thread of a {@link RtpSocket}. When the ring is full, packets are dropped: see {@link #offer}.
+ *
+ * With a blocking channel, the writer has its own thread, started with {@link #start()}.
+ * With a non blocking channel, {@link #flush()} must be called when the channel can be written,
+ * the listener set with {@link #setListener(Runnable)} is told when there is something to write.
+ */
+public class InterleavedWriter implements Runnable {
+
+	public final static String TAG = "InterleavedWriter";
+
+	/** Number of packets a client may lag behind before packets are dropped. */
+	public final static int DEFAULT_CAPACITY = 256;
+
+	// Maximum number of buffers handed to a gathering write
+	private final static int MAX_GATHER = 64;
+
+	private final GatheringByteChannel mChannel;
+	private final int mCapacity;
+	private final ByteBuffer[] mHeaders, mPayloads;
+	private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+	private final LinkedList<ByteBuffer> mControl = new LinkedList<ByteBuffer>();
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotEmpty = mLock.newCondition();
+
+	// Absolute positions of the next packet to write in the channel and of the next packet queued
+	private long mRead = 0, mWrite = 0;
+	private boolean mClosed = false;
+
+	private Runnable mListener = null;
+	private Thread mThread = null;
+
+	private int mMaxDepth = 0;
+	private long mDropped = 0, mSent = 0;
+
+	/**
+	 * Allocates the buffers of the writer.
+	 * @param channel The channel of the RTSP connection, a SocketChannel
+	 * @param capacity The number of packets that can wait to be written
+	 */
+	public InterleavedWriter(GatheringByteChannel channel, int capacity) {
+		mChannel = channel;
+		mCapacity = capacity;
+		mHeaders = new ByteBuffer[capacity];
+		mPayloads = new ByteBuffer[capacity];
+		for (int i=0;i<capacity;i++) {
+			mHeaders[i] = ByteBuffer.allocate(4);
+			mPayloads[i] = ByteBuffer.allocateDirect(RtpSocket.MTU);
+		}
+	}
+
+	/** Sets the listener called when the writer has something to write and was idle, used with non blocking channels. */
+	public void setListener(Runnable listener) {
+		mListener = listener;
+	}
+
+	/** Starts the thread writing to a blocking channel. */
+	public void start() {
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+	}
+
+	/**
+	 * Queues a packet prefixed with the interleaved header.
+	 * It's called by the send threads of the sockets, it never blocks.
+	 * @param channelIdentifier The interleaved channel of the packet
+	 * @return false if the packet was dropped because the client doesn't keep up
+	 */
+	public boolean offer(byte channelIdentifier, byte[] data, int offset, int length) {
+		if (length > RtpSocket.MTU) return false;
+		boolean idle;
+		mLock.lock();
+		try {
+			if (mClosed) return false;
+			if (mWrite - mRead >= mCapacity) {
+				mDropped++;
+				return false;
+			}
+			idle = isEmpty();
+			int i = index(mWrite);
+			ByteBuffer header = mHeaders[i];
+			header.clear();
+			header.put((byte) '$').put(channelIdentifier).put((byte) (length>>8)).put((byte) length);
+			header.flip();
+			ByteBuffer payload = mPayloads[i];
+			payload.clear();
+			payload.put(data, offset, length);
+			payload.flip();
+			mWrite++;
+			int depth = (int) (mWrite - mRead);
+			if (depth > mMaxDepth) mMaxDepth = depth;
+			mNotEmpty.signal();
+		} finally {
+			mLock.unlock();
+		}
+		if (idle) notifyListener();
+		return true;
+	}
+
+	/** Queues a RTSP message, it is written between two packets and it is never dropped. */
+	public void send(byte[] message) {
+		boolean idle;
+		mLock.lock();
+		try {
+			if (mClosed) return;
+			idle = isEmpty();
+			mControl.add(ByteBuffer.wrap(message));
+			mNotEmpty.signal();
+		} finally {
+			mLock.unlock();
+		}
+		if (idle) notifyListener();
+	}
+
+	/**
+	 * Writes as much as possible of what is queued.
+	 * @return true if everything has been written
+	 * @throws IOException if the channel is closed
+	 */
+	public boolean flush() throws IOException {
+		while (true) {
+			int n = 0;
+			long first;
+			mLock.lock();
+			try {
+				if (isEmpty()) return true;
+				first = mRead;
+				// The packets being written belong to this thread until mRead moves, a message can't be
+				// inserted in the middle of a packet already partially written
+				boolean packetFirst = mRead < mWrite && mHeaders[index(mRead)].position() > 0;
+				if (!packetFirst) n = gatherControl(n);
+				for (long p = mRead; p < mWrite && n < MAX_GATHER - 1; p++) {
+					mGather[n++] = mHeaders[index(p)];
+					mGather[n++] = mPayloads[index(p)];
+				}
+				if (packetFirst) n = gatherControl(n);
+			} finally {
+				mLock.unlock();
+			}
+
+			long written = mChannel.write(mGather, 0, n);
+
+			mLock.lock();
+			try {
+				while (!mControl.isEmpty() && !mControl.getFirst().hasRemaining()) {
+					mControl.removeFirst();
+				}
+				while (mRead < mWrite && !mPayloads[index(mRead)].hasRemaining()) {
+					mRead++;
+				}
+				mSent += mRead - first;
+			} finally {
+				mLock.unlock();
+			}
+			for (int i=0;i<n;i++) mGather[i] = null;
+
+			// The socket buffer is full
+			if (written == 0) return false;
+		}
+	}
+
+	/** Writes the queue to a blocking channel until the writer is closed. */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				mLock.lockInterruptibly();
+				try {
+					while (isEmpty() && !mClosed) mNotEmpty.await();
+					if (mClosed) break;
+				} finally {
+					mLock.unlock();
+				}
+				flush();
+			}
+		} catch (InterruptedException ignore) {
+		} catch (IOException e) {
+			// The channel closed after the writer is not an error
+			if (!isClosed()) Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Write failed");
+			// The reading side of the connection will notice the socket is closed
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	/**
+	 * Drops what was not written yet and stops the thread of the writer, the channel is not closed.
+	 * The thread stops once the write in progress returns: close the channel first so that a write
+	 * blocked by a client that doesn't read anymore fails.
+	 */
+	public void close() {
+		mLock.lock();
+		try {
+			mClosed = true;
+			mRead = mWrite;
+			mControl.clear();
+			mNotEmpty.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+		Thread t = mThread;
+		if (t != null && t != Thread.currentThread()) {
+			try {
+				t.join();
+			} catch (InterruptedException ignore) {}
+		}
+	}
+
+	/** Returns the number of packets waiting to be written. */
+	public int getDepth() {
+		mLock.lock();
+		try {
+			return (int) (mWrite - mRead);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the maximum number of packets that waited to be written at the same time. */
+	public int getMaxDepth() {
+		return mMaxDepth;
+	}
+
+	/** Returns the number of packets dropped because the ring was full. */
+	public long getDroppedPackets() {
+		return mDropped;
+	}
+
+	/** Returns the number of packets written in the channel. */
+	public long getSentPackets() {
+		return mSent;
+	}
+
+	private int gatherControl(int n) {
+		for (ByteBuffer message : mControl) {
+			if (n >= MAX_GATHER) break;
+			mGather[n++] = message;
+		}
+		return n;
+	}
+
+	private boolean isClosed() {
+		mLock.lock();
+		try {
+			return mClosed;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private boolean isEmpty() {
+		return mRead == mWrite && mControl.isEmpty();
+	}
+
+	private int index(long position) {
+		return (int) (position % mCapacity);
+	}
+
+	private void notifyListener() {
+		Runnable listener = mListener;
+		if (listener != null) listener.run();
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+/**
+ * The clock shared by every stream: timestamps are in ns in the time base of {@link System#nanoTime()},
+ * which is also the one of the presentation times given to the encoders and of the camera.
+ *
+ * The static methods convert those timestamps into RTP and NTP timestamps. An instance gives the 
+ * timestamps of a stream whose frames only have a nominal duration, like the streams of the MediaRecorder.
+ * The timestamps follow the durations and are slowly pulled towards the time at which the frames are
+ * received, so that the streams don't drift apart. They never go backward.
+ */
+public class MediaClock {
+
+	public final static String TAG = "MediaClock";
+
+	/** Seconds between the origins of NTP (1900) and of the Unix time (1970). */
+	public final static long NTP_OFFSET = 2208988800L;
+
+	private final static long NS = 1000000000L;
+
+	/** The smoothed error is corrected by this fraction per frame. */
+	private final static int SMOOTHING = 32;
+
+	/** A frame duration is corrected by at most this fraction of it. */
+	private final static int MAX_SLEW = 10;
+
+	/** Beyond that lag in ns, the timestamps jump to the wall clock. */
+	private final static long MAX_LAG = NS;
+
+	// Offset between the Unix time and the time base, in ns
+	private final static long sEpoch = System.currentTimeMillis()*1000000L - System.nanoTime();
+
+	private long mTime = Long.MIN_VALUE;
+	private long mError = 0;
+	private long mRemainder = 0;
+
+	/** Returns the current time in the time base. */
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/** 
+	 * Converts a time in ns to a RTP timestamp, without losing precision.
+	 * @param rate The clock rate of the RTP stream in Hz
+	 */
+	public static long toRtp(long ns, long rate) {
+		return (ns/NS)*rate + (ns%NS)*rate/NS;
+	}
+
+	/** Converts a time in ns to a 64 bits NTP timestamp: seconds in the high word, fraction in the low word. */
+	public static long toNtp(long ns) {
+		long time = ns + sEpoch;
+		long seconds = time/NS + NTP_OFFSET;
+		long fraction = ((time%NS) << 32)/NS;
+		return seconds << 32 | fraction;
+	}
+
+	/** The next frame starts the stream again. */
+	public void reset() {
+		mTime = Long.MIN_VALUE;
+		mError = 0;
+		mRemainder = 0;
+	}
+
+	/**
+	 * Returns the timestamp of a frame that has just been received.
+	 * @param duration The nominal duration of the previous frame in ns
+	 */
+	public long next(long duration) {
+		long now = now();
+		if (mTime == Long.MIN_VALUE) {
+			mTime = now;
+			return mTime;
+		}
+		mTime += duration;
+
+		long error = now - mTime;
+		if (error > MAX_LAG) {
+			// The stream was interrupted
+			mTime = now;
+			mError = 0;
+			return mTime;
+		}
+
+		// The reception of the frames jitters, only the average error is corrected
+		mError += (error - mError)/SMOOTHING;
+		long correction = mError/SMOOTHING;
+		long max = duration/MAX_SLEW;
+		if (correction > max) correction = max;
+		else if (correction < -max) correction = -max;
+		mTime += correction;
+		mError -= correction;
+		return mTime;
+	}
+
+	/**
+	 * Returns the timestamp of a frame that has just been received, for a stream of audio samples.
+	 * The fractions of ns are carried over from frame to frame, the durations don't accumulate rounding errors.
+	 * @param samples The number of samples of the previous frame
+	 * @param rate The sampling rate in Hz
+	 */
+	public long nextSamples(long samples, long rate) {
+		mRemainder += samples*NS;
+		long duration = mRemainder/rate;
+		mRemainder %= rate;
+		return next(duration);
+	}
+
+}
@@ -54,6 +54,10 @@ public class MediaCodecInputStream extends InputStream {
 		mBuffers = mMediaCodec.getOutputBuffers();
 	}
 
+	/** For the streams whose buffers don't come from a codec, they override {@link #readBuffer()} and {@link #release()}. */
+	protected MediaCodecInputStream() {
+	}
+
 	@Override
 	public void close() {
 		mClosed = true;
@@ -69,37 +73,12 @@ public class MediaCodecInputStream extends InputStream {
 		int min = 0;
 
 		try {
-			if (mBuffer==null) {
-				while (!Thread.interrupted() && !mClosed) {
-					mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-					if (mIndex>=0 ){
-						//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
-						mBuffer = mBuffers[mIndex];
-						mBuffer.position(0);
-						break;
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-						mBuffers = mMediaCodec.getOutputBuffers();
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-						mMediaFormat = mMediaCodec.getOutputFormat();
-						Log.i(TAG,mMediaFormat.toString());
-					} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-						Log.v(TAG,"No buffer available...");
-						//return 0;
-					} else {
-						Log.e(TAG,"Message: "+mIndex);
-						//return 0;
-					}
-				}			
-			}
+			ByteBuffer data = readBuffer();
+			if (data==null) return 0;
 			
-			if (mClosed) throw new IOException("This InputStream was closed");
-			
-			min = length < mBufferInfo.size - mBuffer.position() ? length : mBufferInfo.size - mBuffer.position(); 
-			mBuffer.get(buffer, offset, min);
-			if (mBuffer.position()>=mBufferInfo.size) {
-				mMediaCodec.releaseOutputBuffer(mIndex, false);
-				mBuffer = null;
-			}
+			min = length < data.remaining() ? length : data.remaining(); 
+			data.get(buffer, offset, min);
+			if (!data.hasRemaining()) release();
 			
 		} catch (RuntimeException e) {
 			e.printStackTrace();
@@ -107,16 +86,68 @@ public class MediaCodecInputStream extends InputStream {
 
 		return min;
 	}
+
+	/**
+	 * Returns the output buffer of the codec being read, or the next one, without copying it.
+	 * The data lies between the position and the limit of the buffer, it can only be used
+	 * until {@link #release()} is called.
+	 * @return The buffer, or null if the thread was interrupted before the codec produced anything
+	 */
+	public ByteBuffer readBuffer() throws IOException {
+		try {
+			if (mBuffer==null) dequeue();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		if (mClosed) throw new IOException("This InputStream was closed");
+		return mBuffer;
+	}
+
+	/** Gives the output buffer being read back to the codec. */
+	public void release() {
+		if (mBuffer != null) {
+			mBuffer = null;
+			mMediaCodec.releaseOutputBuffer(mIndex, false);
+		}
+	}
 	
 	public int available() {
 		if (mBuffer != null) 
-			return mBufferInfo.size - mBuffer.position();
+			return mBuffer.remaining();
 		else 
 			return 0;
 	}
 
+	private void dequeue() {
+		while (!Thread.interrupted() && !mClosed) {
+			mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+			if (mIndex>=0 ){
+				//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
+				mBuffer = mBuffers[mIndex];
+				mBuffer.clear();
+				mBuffer.position(mBufferInfo.offset);
+				mBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
+				break;
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				mBuffers = mMediaCodec.getOutputBuffers();
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				mMediaFormat = mMediaCodec.getOutputFormat();
+				Log.i(TAG,mMediaFormat.toString());
+			} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				Log.v(TAG,"No buffer available...");
+			} else {
+				Log.e(TAG,"Message: "+mIndex);
+			}
+		}
+	}
+
 	public BufferInfo getLastBufferInfo() {
 		return mBufferInfo;
 	}
 
+	/** Returns true if the NAL units of the buffers are preceded by a start code, as the encoders do. */
+	public boolean hasStartCodes() {
+		return true;
+	}
+
 }
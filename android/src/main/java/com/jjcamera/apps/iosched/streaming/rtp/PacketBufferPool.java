@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+/**
+ * A bounded pool of RTP packet buffers.
+ * All the buffers are allocated once, when the pool is created, and are recycled
+ * by the send thread of the {@link RtpSocket} once the packet has been sent.
+ * The fixed part of the RTP header (version, payload type and SSRC) is stamped
+ * in advance so that packetizers only need to fill in the payload.
+ */
+public class PacketBufferPool {
+
+	public final static String TAG = "PacketBufferPool";
+
+	/** When the pool is empty, waits for a buffer to be recycled before dropping the packet. */
+	public final static int POLICY_BLOCK = 0x00;
+
+	/** When the pool is empty, drops the packet right away. */
+	public final static int POLICY_DROP = 0x01;
+
+	private final ArrayBlockingQueue<PacketBufferClass> mFree;
+	private final PacketBufferClass mDiscard;
+	private final int mCapacity;
+
+	private volatile int mPolicy = POLICY_BLOCK;
+	private volatile long mBlockTimeout = 200;
+
+	private volatile byte mPayloadType = 96;
+	private volatile int mSsrc = 0;
+	private volatile int mGeneration = 0;
+
+	private final AtomicInteger mInUse = new AtomicInteger();
+	private final AtomicInteger mHighWater = new AtomicInteger();
+	private final AtomicLong mExhausted = new AtomicLong();
+
+	/**
+	 * Allocates all the buffers of the pool.
+	 * @param capacity The number of packets the pool can hold
+	 */
+	public PacketBufferPool(int capacity) {
+		mCapacity = capacity;
+		mFree = new ArrayBlockingQueue<PacketBufferClass>(capacity);
+		for (int i=0;i<capacity;i++) {
+			PacketBufferClass pbc = new PacketBufferClass();
+			stamp(pbc);
+			mFree.offer(pbc);
+		}
+		mDiscard = new PacketBufferClass();
+		mDiscard.mDiscard = true;
+	}
+
+	/**
+	 * Sets the backpressure policy applied when all the buffers are in use.
+	 * @param policy Can be {@link #POLICY_BLOCK} or {@link #POLICY_DROP}
+	 * @param timeout Maximum time in ms to wait for a free buffer with {@link #POLICY_BLOCK}
+	 */
+	public void setPolicy(int policy, long timeout) {
+		mPolicy = policy;
+		mBlockTimeout = timeout;
+	}
+
+	public int getPolicy() {
+		return mPolicy;
+	}
+
+	/**
+	 * Sets the fields of the RTP header that are common to every packet.
+	 * Buffers are restamped lazily the next time they are handed out.
+	 */
+	public synchronized void setHeader(byte payloadType, int ssrc) {
+		mPayloadType = payloadType;
+		mSsrc = ssrc;
+		mGeneration++;
+		stamp(mDiscard);
+	}
+
+	/**
+	 * Returns a free buffer of the pool.
+	 * If the pool is exhausted, a discard buffer is returned according to the policy:
+	 * it can be filled as any other buffer but it will never be sent.
+	 * @throws InterruptedException
+	 */
+	public PacketBufferClass acquire() throws InterruptedException {
+		PacketBufferClass pbc = mFree.poll();
+
+		if (pbc == null) {
+			mExhausted.incrementAndGet();
+			if (mPolicy == POLICY_BLOCK && mBlockTimeout > 0) {
+				pbc = mFree.poll(mBlockTimeout, TimeUnit.MILLISECONDS);
+			}
+			if (pbc == null) {
+				mDiscard.mBuffers[1] = (byte) (mPayloadType & 0x7F);
+				mDiscard.mKeyFrame = true;
+				mDiscard.mSyncPoint = false;
+				return mDiscard;
+			}
+		}
+
+		if (pbc.mStamp != mGeneration) stamp(pbc);
+
+		// Clears the marker bit left by the previous use of the buffer
+		pbc.mBuffers[1] = (byte) (mPayloadType & 0x7F);
+		pbc.mKeyFrame = true;
+		pbc.mSyncPoint = false;
+
+		int inUse = mInUse.incrementAndGet();
+		if (inUse > mHighWater.get()) mHighWater.set(inUse);
+
+		return pbc;
+	}
+
+	/** Gives a buffer back to the pool. */
+	public void release(PacketBufferClass pbc) {
+		if (pbc == null || pbc.mDiscard) return;
+		if (mFree.offer(pbc)) {
+			mInUse.decrementAndGet();
+		}
+	}
+
+	/** Returns true if the buffer was handed out because the pool was exhausted. */
+	public boolean isDiscard(PacketBufferClass pbc) {
+		return pbc == mDiscard;
+	}
+
+	/** Returns the number of buffers allocated by the pool. */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/** Returns the number of buffers ready to be handed out. */
+	public int getAvailable() {
+		return mFree.size();
+	}
+
+	/** Returns the number of buffers currently held by the packetizer or waiting to be sent. */
+	public int getInUse() {
+		return mInUse.get();
+	}
+
+	/** Returns the highest number of buffers that were in use at the same time. */
+	public int getHighWaterMark() {
+		return mHighWater.get();
+	}
+
+	/** Returns the number of times a buffer was requested while the pool was empty. */
+	public long getExhaustedCount() {
+		return mExhausted.get();
+	}
+
+	/** Returns the occupancy of the pool in percents. */
+	public int getOccupancy() {
+		return 100*mInUse.get()/mCapacity;
+	}
+
+	/** Resets the statistics of the pool. */
+	public void resetStats() {
+		mHighWater.set(mInUse.get());
+		mExhausted.set(0);
+	}
+
+	private void stamp(PacketBufferClass pbc) {
+		byte[] buffer = pbc.mBuffers;
+
+		/* Version(2), Padding(0), Extension(0), Source Identifier(0) */
+		buffer[0] = (byte) 0x80;
+
+		/* Payload Type */
+		buffer[1] = (byte) (mPayloadType & 0x7F);
+
+		/* Byte 8,9,10,11  ->  Sync Source Identifier */
+		int ssrc = mSsrc;
+		buffer[8] = (byte) (ssrc >> 24);
+		buffer[9] = (byte) (ssrc >> 16);
+		buffer[10] = (byte) (ssrc >> 8);
+		buffer[11] = (byte) ssrc;
+
+		pbc.mStamp = mGeneration;
+	}
+
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+/**
+ * A bounded FIFO of RTP packets sitting between a packetizer and the send thread of a {@link RtpSocket}.
+ *
+ * A frame is a run of packets that carry the same timestamp, an access unit: the marker bit can't be
+ * used since H.264 sets it at the end of every NAL unit, and an access unit made of several slices
+ * must not be partly sent. Packets are always dropped by whole frames:
+ * <ul>
+ * <li>When the FIFO is above its high watermark, new frames that are not key frames are dropped.</li>
+ * <li>When the FIFO holds more than the latency target, every queued frame not being sent yet is
+ * discarded and frames are dropped up to the next key frame.</li>
+ * <li>When the FIFO (or the pool of buffers) is exhausted in the middle of a frame, the frame is
+ * canceled. If it was a key frame, frames are dropped up to the next one.</li>
+ * </ul>
+ * Dropped packets are given back to the {@link PacketBufferPool}.
+ */
+public class PacketFifo {
+
+	public final static String TAG = "PacketFifo";
+
+	private final PacketBufferClass[] mPackets;
+	private final boolean[] mStarts;
+	private final int mCapacity;
+	private final PacketBufferPool mPool;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotEmpty = mLock.newCondition();
+
+	// Absolute positions of the next packet to read and to write
+	private long mRead = 0, mWrite = 0;
+	// Absolute position of the first packet of the frame being queued
+	private long mFrameStart = 0;
+
+	// Timestamp of the last packet offered, a new one starts a frame
+	private long mLastTimestamp = 0;
+	private boolean mFirst = true;
+	private boolean mFrameKey = false;
+	private boolean mDroppingFrame = false;
+	private boolean mWaitKey = false;
+
+	private int mHighWatermark;
+	private long mLatencyTarget = 2000000000L;
+
+	private int mMaxDepth = 0;
+	private long mDroppedFrames = 0, mDroppedPackets = 0, mFlushes = 0;
+
+	/**
+	 * @param capacity Maximum number of packets held by the FIFO
+	 * @param pool The pool dropped packets are given back to
+	 */
+	public PacketFifo(int capacity, PacketBufferPool pool) {
+		mCapacity = capacity;
+		mPackets = new PacketBufferClass[capacity];
+		mStarts = new boolean[capacity];
+		mPool = pool;
+		mHighWatermark = 3*capacity/4;
+	}
+
+	/**
+	 * Sets the number of queued packets above which new non key frames are dropped.
+	 * @param packets A number of packets lower than the capacity of the FIFO
+	 */
+	public void setHighWatermark(int packets) {
+		mLock.lock();
+		try {
+			mHighWatermark = Math.min(packets, mCapacity);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the maximum duration of the stream the FIFO may hold before it skips to the next key frame.
+	 * @param latency The latency target in ms, 0 disables it
+	 */
+	public void setLatencyTarget(long latency) {
+		mLock.lock();
+		try {
+			mLatencyTarget = latency*1000000L;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a packet, or drops it according to the overflow policy.
+	 * The timestamp and {@link PacketBufferClass#mKeyFrame} of the packets
+	 * are used to delimit frames.
+	 * @return false if the packet was dropped, it then belongs to the pool again
+	 */
+	public boolean offer(PacketBufferClass pbc) {
+		mLock.lock();
+		try {
+			boolean start = mFirst || pbc.mTimestamps != mLastTimestamp;
+			mFirst = false;
+			mLastTimestamp = pbc.mTimestamps;
+
+			if (pbc.mDiscard) {
+				// The pool ran out of buffers, the current frame can't be sent in one piece
+				if (start) {
+					mFrameKey = pbc.mKeyFrame;
+					mFrameStart = mWrite;
+				}
+				if (start || !mDroppingFrame) {
+					cancelFrame();
+					mDroppedFrames++;
+					if (mFrameKey) mWaitKey = true;
+				}
+				mDroppingFrame = true;
+				drop(pbc);
+				return false;
+			}
+
+			if (start) {
+				mDroppingFrame = false;
+				mFrameKey = pbc.mKeyFrame;
+				if (mWaitKey) {
+					if (pbc.mKeyFrame) mWaitKey = false;
+					else mDroppingFrame = true;
+				} else if (mLatencyTarget > 0 && mRead < mWrite
+						&& pbc.mTimestamps - mPackets[index(mRead)].mTimestamps > mLatencyTarget) {
+					flush();
+					if (!pbc.mKeyFrame) {
+						mWaitKey = true;
+						mDroppingFrame = true;
+					}
+				} else if (!pbc.mKeyFrame && mWrite - mRead >= mHighWatermark) {
+					mDroppingFrame = true;
+				}
+				if (mDroppingFrame) mDroppedFrames++;
+				mFrameStart = mWrite;
+			}
+
+			if (!mDroppingFrame && mWrite - mRead >= mCapacity) {
+				// Full: a key frame makes everything queued before it useless, otherwise the frame is canceled
+				if (start && pbc.mKeyFrame) {
+					flush();
+					mFrameStart = mWrite;
+				}
+				if (mWrite - mRead >= mCapacity) {
+					cancelFrame();
+					mDroppedFrames++;
+					if (mFrameKey) mWaitKey = true;
+					mDroppingFrame = true;
+				}
+			}
+
+			if (mDroppingFrame) {
+				drop(pbc);
+				return false;
+			}
+
+			int i = index(mWrite++);
+			mPackets[i] = pbc;
+			mStarts[i] = start;
+
+			int depth = (int) (mWrite - mRead);
+			if (depth > mMaxDepth) mMaxDepth = depth;
+
+			mNotEmpty.signal();
+			return true;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the oldest packet of the FIFO, waiting if necessary.
+	 * @return The packet or null if the timeout expired
+	 */
+	public PacketBufferClass poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		mLock.lockInterruptibly();
+		try {
+			while (mRead == mWrite) {
+				if (nanos <= 0) return null;
+				nanos = mNotEmpty.awaitNanos(nanos);
+			}
+			int i = index(mRead++);
+			PacketBufferClass pbc = mPackets[i];
+			mPackets[i] = null;
+			return pbc;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the oldest packet of the FIFO, waiting if necessary, along with the packets
+	 * queued after it that carry the same timestamp, so that a whole frame can be sent per wakeup.
+	 * @param packets Receives the packets, its length is the maximum number of packets retrieved
+	 * @return The number of packets retrieved, 0 if the timeout expired
+	 */
+	public int drain(PacketBufferClass[] packets, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		mLock.lockInterruptibly();
+		try {
+			while (mRead == mWrite) {
+				if (nanos <= 0) return 0;
+				nanos = mNotEmpty.awaitNanos(nanos);
+			}
+			int n = 0;
+			long ts = mPackets[index(mRead)].mTimestamps;
+			while (n < packets.length && mRead < mWrite) {
+				int i = index(mRead);
+				if (mPackets[i].mTimestamps != ts) break;
+				packets[n++] = mPackets[i];
+				mPackets[i] = null;
+				mRead++;
+			}
+			return n;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Gives all the queued packets back to the pool. */
+	public void clear() {
+		mLock.lock();
+		try {
+			while (mRead < mWrite) {
+				int i = index(mRead++);
+				mPool.release(mPackets[i]);
+				mPackets[i] = null;
+			}
+			mRead = mWrite = mFrameStart = 0;
+			// The rest of the frame being queued, if any, is now useless
+			mDroppingFrame = !mFirst;
+			mWaitKey = false;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the number of packets waiting to be sent. */
+	public int getDepth() {
+		mLock.lock();
+		try {
+			return (int) (mWrite - mRead);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the maximum number of packets that were queued at the same time. */
+	public int getMaxDepth() {
+		mLock.lock();
+		try {
+			return mMaxDepth;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/** Returns the number of frames dropped by the overflow policy. */
+	public long getDroppedFrames() {
+		mLock.lock();
+		try {
+			return mDroppedFrames;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the number of packets dropped by the overflow policy. */
+	public long getDroppedPackets() {
+		mLock.lock();
+		try {
+			return mDroppedPackets;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns how many times the FIFO skipped to the next key frame because the latency target was exceeded. */
+	public long getFlushCount() {
+		mLock.lock();
+		try {
+			return mFlushes;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Resets the counters. */
+	public void resetStats() {
+		mLock.lock();
+		try {
+			mMaxDepth = (int) (mWrite - mRead);
+			mDroppedFrames = mDroppedPackets = mFlushes = 0;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private int index(long position) {
+		return (int) (position % mCapacity);
+	}
+
+	private void drop(PacketBufferClass pbc) {
+		mDroppedPackets++;
+		mPool.release(pbc);
+	}
+
+	/** Removes the packets of the frame being queued that have not been sent yet. */
+	private void cancelFrame() {
+		truncate(Math.max(mFrameStart, mRead));
+	}
+
+	/** Removes every queued frame that has not started to be sent. */
+	private void flush() {
+		long from = mRead;
+		// The send thread may be in the middle of a frame, we let it finish
+		while (from < mWrite && !mStarts[index(from)]) from++;
+		if (from < mWrite) {
+			long before = mDroppedPackets;
+			for (long p = from; p < mWrite; p++) {
+				if (mStarts[index(p)]) mDroppedFrames++;
+			}
+			truncate(from);
+			if (mDroppedPackets > before) mFlushes++;
+		}
+	}
+
+	private void truncate(long from) {
+		while (mWrite > from) {
+			int i = index(--mWrite);
+			drop(mPackets[i]);
+			mPackets[i] = null;
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads the packets of a frame over the interval between two frames, with a token bucket.
+ *
+ * The bucket holds at most the burst budget, which can be sent at once, and is full when a frame starts.
+ * It fills at the rate needed to send the rest of the frame within a fraction of the frame interval, 
+ * the spread. The interval is measured from the timestamps of the frames. A large key frame thus 
+ * leaves as a short burst followed by evenly spaced packets, instead of saturating the Wi-Fi link.
+ * Small frames, audio frames for instance, fit in the budget and are never delayed.
+ * 
+ * Only the send thread of the {@link RtpSocket} uses the pacer.
+ */
+public class PacketPacer {
+
+	public final static String TAG = "PacketPacer";
+
+	public final static int DEFAULT_BURST = 8*RtpSocket.MTU;
+	public final static int DEFAULT_SPREAD = 75;
+
+	// Bounds of the frame interval, in ns
+	private final static long MIN_INTERVAL = 1000000L, MAX_INTERVAL = 200000000L;
+
+	private int mBurst = DEFAULT_BURST;
+	private int mSpread = DEFAULT_SPREAD;
+
+	private long mFrameTimestamp = Long.MIN_VALUE;
+	private long mInterval = 0;
+	private long mFrameEnd = 0;
+	// Rate of the bucket in bytes per ns, 0 when the frame is sent at once
+	private double mRate = 0;
+	private double mTokens = 0;
+	private long mLastFill = 0;
+
+	// Inter-packet gaps within the frames
+	private long mLastSend = 0;
+	private long mPackets = 0, mGaps = 0, mGapSum = 0, mMaxGap = 0, mMinGap = Long.MAX_VALUE, mPaced = 0;
+
+	/**
+	 * @param burst The number of bytes of a frame sent at once
+	 * @param spread The percentage of the frame interval over which the rest of a frame is spread, 0 disables pacing
+	 */
+	public void setPacing(int burst, int spread) {
+		mBurst = burst;
+		mSpread = Math.max(0, Math.min(100, spread));
+	}
+
+	/**
+	 * Called with each batch of packets sharing a timestamp before they are sent.
+	 * A batch with the same timestamp as the previous one continues its frame.
+	 * @param timestamp The timestamp of the packets in ns
+	 * @param bytes The size of the packets of the batch
+	 */
+	public void startBatch(long timestamp, int bytes) {
+		long now = MediaClock.now();
+		if (timestamp != mFrameTimestamp) {
+			long delta = timestamp - mFrameTimestamp;
+			if (mFrameTimestamp != Long.MIN_VALUE && delta > 0 && delta < 1000000000L) {
+				mInterval = mInterval == 0 ? delta : (7*mInterval + delta)/8;
+			}
+			mFrameTimestamp = timestamp;
+			mFrameEnd = now + Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, mInterval))*mSpread/100;
+			mTokens = mBurst;
+			mLastSend = 0;
+		}
+		long remaining = mFrameEnd - now;
+		mRate = mSpread > 0 && mInterval > 0 && remaining > 0 ? (double) bytes / remaining : 0;
+		mLastFill = now;
+	}
+
+	/** Waits until the packet can be sent. */
+	public void pace(int length) throws InterruptedException {
+		long now = MediaClock.now();
+		if (mRate > 0) {
+			mTokens = Math.min(mBurst, mTokens + (now - mLastFill)*mRate);
+			mLastFill = now;
+			if (mTokens < length) {
+				long deadline = now + (long) ((length - mTokens)/mRate);
+				while ((now = MediaClock.now()) < deadline) {
+					LockSupport.parkNanos(deadline - now);
+					if (Thread.interrupted()) throw new InterruptedException();
+				}
+				mPaced++;
+				mLastFill = now;
+				mTokens = length;
+			}
+			mTokens -= length;
+		}
+
+		mPackets++;
+		if (mLastSend != 0) {
+			long gap = now - mLastSend;
+			mGaps++;
+			mGapSum += gap;
+			if (gap > mMaxGap) mMaxGap = gap;
+			if (gap < mMinGap) mMinGap = gap;
+		}
+		mLastSend = now;
+	}
+
+	/** Returns the number of packets sent. */
+	public long getPacketCount() {
+		return mPackets;
+	}
+
+	/** Returns the number of packets that had to wait for the bucket. */
+	public long getPacedCount() {
+		return mPaced;
+	}
+
+	/** Returns the average gap in ns between two packets of the same frame. */
+	public long getAverageGap() {
+		return mGaps > 0 ? mGapSum/mGaps : 0;
+	}
+
+	/** Returns the smallest gap in ns between two packets of the same frame. */
+	public long getMinGap() {
+		return mGaps > 0 ? mMinGap : 0;
+	}
+
+	/** Returns the largest gap in ns between two packets of the same frame. */
+	public long getMaxGap() {
+		return mMaxGap;
+	}
+
+	/** Returns the measured interval between two frames in ns. */
+	public long getFrameInterval() {
+		return mInterval;
+	}
+
+	/** Resets the counters. */
+	public void resetStats() {
+		mPackets = mGaps = mGapSum = mMaxGap = mPaced = 0;
+		mMinGap = Long.MAX_VALUE;
+	}
+
+	/** The next batch starts a new stream. */
+	public void reset() {
+		mFrameTimestamp = Long.MIN_VALUE;
+		mInterval = 0;
+		mRate = 0;
+		mLastSend = 0;
+	}
+
+}
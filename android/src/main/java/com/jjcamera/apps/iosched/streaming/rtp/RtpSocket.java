@@ -24,12 +24,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import com.jjcamera.apps.iosched.streaming.rtcp.BitrateController;
+import com.jjcamera.apps.iosched.streaming.rtcp.ReceiverReport;
 import com.jjcamera.apps.iosched.streaming.rtcp.SenderReport;
 import android.os.SystemClock;
 import android.util.Log;
@@ -39,6 +40,7 @@ import android.util.Log;
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * Packets are produced once and sent to every {@link RtpSubscriber} of the socket.
  */
 public class RtpSocket implements Runnable {
 
@@ -52,37 +54,73 @@ public class RtpSocket implements Runnable {
 	
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
-	public static final int MAX_PACKET_COUNT = 1000;	 // TODO: readjust that when the FIFO is full
+	public static final int MAX_PACKET_COUNT = 1000;
 
-	private MulticastSocket mSocket;
-	private ConcurrentLinkedQueue<PacketBufferClass> mBufferQ;
+	/** Maximum number of packets sent per wakeup of the send thread. */
+	public static final int MAX_BATCH_SIZE = 64;
+
+	// True if direct buffers expose their memory as a byte array, as they do on Android
+	private static final boolean DIRECT_ARRAY;
+
+	static {
+		ByteBuffer bb = ByteBuffer.allocateDirect(MTU);
+		DIRECT_ARRAY = bb.hasArray() && bb.arrayOffset() == 0;
+	}
+
+	private volatile DatagramTransport mDatagram;
+	private int mTransportMode;
+	private PacketFifo mFifo;
+	private PacketBufferPool mPool;
+	private final PacketPacer mPacer = new PacketPacer();
+	private final GopCache mGopCache = new GopCache(this);
+	private long mDroppedFrames = 0;
 	private SenderReport mReport;
+	private volatile BitrateController mBitrateController;
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
 	private Thread mThread;
 
-	private int mTransport;
+	// Receives the packets sent to the destination set with setDestination() or setOutputStream()
+	private final RtpSubscriber mDefault;
+	private final CopyOnWriteArrayList<RtpSubscriber> mSubscribers = new CopyOnWriteArrayList<RtpSubscriber>();
+
 	private long mCacheSize;
 	private long mClock = 0;
 	private long mOldTimestamp = 0;
-	private int mSsrc, mSeq = 0, mPort = -1;
+	// Random offset of the RTP timestamps (RFC 3550)
+	private final long mTimestampOffset = new Random().nextInt() & 0xFFFFFFFFL;
+	private int mSsrc, mPort = -1;
 	private InetAddress mDest;
-	private AtomicInteger mBufferInOut;
 	private int mCount = 0;
-	private byte mTcpHeader[];
 	private byte mPayloadType;
 	protected OutputStream mOutputStream = null;
 	
 	private AverageBitrate mAverageBitrate;
 
-	public class PacketBufferClass {
+	public static class PacketBufferClass {
 		public DatagramPacket mPackets;
 		public long mTimestamps;
 		public byte[] mBuffers;
-
-		private PacketBufferClass(){
+		/** Wraps {@link #mBuffers}, it is direct when the platform allows it. */
+		public ByteBuffer mByteBuffer;
+		/** False if the packet belongs to a frame that can be dropped without breaking the decoding of the next key frame. */
+		public boolean mKeyFrame;
+		/** True if the stream can be decoded from this packet on, the {@link GopCache} starts there. */
+		public boolean mSyncPoint;
+
+		// Set on the buffer handed out when the pool is exhausted, it is never sent
+		boolean mDiscard = false;
+		// Generation of the RTP header stamped by the pool
+		int mStamp = -1;
+
+		PacketBufferClass(){
 			mTimestamps = 0;
-			mBuffers = new byte[MTU];
+			if (DIRECT_ARRAY) {
+				mByteBuffer = ByteBuffer.allocateDirect(MTU);
+				mBuffers = mByteBuffer.array();
+			} else {
+				mBuffers = new byte[MTU];
+				mByteBuffer = ByteBuffer.wrap(mBuffers);
+			}
 			mPackets = new DatagramPacket(mBuffers, 1);
 		}
     }
@@ -94,68 +132,49 @@ public class RtpSocket implements Runnable {
 	public RtpSocket() {
 		
 		mCacheSize = 0;
-		mBufferQ = new ConcurrentLinkedQueue<PacketBufferClass>();
+		mPool = new PacketBufferPool(MAX_PACKET_COUNT);
+		mFifo = new PacketFifo(MAX_PACKET_COUNT, mPool);
 
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
-		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,0};
-		mBufferInOut = new AtomicInteger();
+		mDefault = new RtpSubscriber(this, mReport, mSsrc);
 		mPayloadType = 96;
+		mPool.setHeader(mPayloadType, mSsrc);
 		
 		resetFifo();
 
-		try {
-			mSocket = new MulticastSocket();
-		} catch (Exception e) {
-			throw new RuntimeException(e.getMessage());
-		}
+		mTransportMode = DatagramTransport.MODE_SOCKET;
+		mDatagram = createTransport(mTransportMode);
 		
 	}
 
-	private PacketBufferClass createPacket(){
-		PacketBufferClass pPacketBuffer = new PacketBufferClass();
-
-
-		/*							     Version(2)  Padding(0)					 					*/
-		/*									 ^		  ^			Extension(0)						*/
-		/*									 |		  |				^								*/
-		/*									 | --------				|								*/
-		/*									 | |---------------------								*/
-		/*									 | ||  -----------------------> Source Identifier(0)	*/
-		/*									 | ||  |												*/
-		pPacketBuffer.mBuffers[0] = (byte) Integer.parseInt("10000000",2);
-
-		/* Payload Type */
-		pPacketBuffer.mBuffers[1] = (byte) mPayloadType;
-
-		/* Byte 2,3        ->  Sequence Number                   */
-		/* Byte 4,5,6,7    ->  Timestamp                         */
-		/* Byte 8,9,10,11  ->  Sync Source Identifier            */
-
-		pPacketBuffer.mPackets.setPort(mPort);
-		//pPacketBuffer.mPackets.setAddress(mDest);
-		setLong(pPacketBuffer.mBuffers, mSsrc, 8, 12);
-
-		return pPacketBuffer;
+	/**
+	 * Creates a transport for RTP or RTCP packets sent over UDP.
+	 * @param mode Can be {@link DatagramTransport#MODE_SOCKET} or {@link DatagramTransport#MODE_CHANNEL}
+	 */
+	public static DatagramTransport createTransport(int mode) {
+		if (mode == DatagramTransport.MODE_CHANNEL) {
+			return new ChannelTransport();
+		}
+		return new SocketTransport();
 	}
 
 	private void resetFifo() {
 		mCount = 0;
-		mBufferInOut.set(0);
-		//mBufferRequested = new Semaphore(MAX_PACKET_COUNT);
-		mBufferCommitted = new Semaphore(0);
-		mReport.reset();
+		mDefault.reset();
 		mAverageBitrate.reset();
-		mBufferQ.clear();
+		// Recycles the packets that were never sent
+		mFifo.clear();
+		mGopCache.invalidate();
 		mOldTimestamp = 0;
-		mSeq = 0;
 
 		Log.d(TAG, "resetFifo");
 	}
 
 	public synchronized void reset(){
 		this.mDest = null;
+		mOutputStream = null;
+		mSubscribers.remove(mDefault);
 
 		Thread t = mThread;
 
@@ -169,19 +188,91 @@ public class RtpSocket implements Runnable {
 	
 	/** Closes the underlying socket. */
 	public void close() {
-		mSocket.close();
+		mDatagram.close();
+		for (RtpSubscriber subscriber : mSubscribers) {
+			subscriber.close();
+		}
+		mReport.close();
+	}
+
+	/**
+	 * Adds a receiver of the stream, it gets its own SSRC, sequence numbers and RTCP reports.
+	 * Packets are produced once whatever the number of subscribers.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public RtpSubscriber addSubscriber(InetAddress dest, int rtpPort, int rtcpPort) {
+		SenderReport report = new SenderReport();
+		report.setTransportMode(mTransportMode);
+		RtpSubscriber subscriber = new RtpSubscriber(this, report, new Random().nextInt());
+		subscriber.setDestination(dest, rtpPort, rtcpPort);
+		mSubscribers.add(subscriber);
+		Log.d(TAG, "Subscriber added: " + dest + ":" + rtpPort + ", " + mSubscribers.size() + " receiver(s)");
+		return subscriber;
+	}
+
+	/**
+	 * Adds a receiver of the stream whose packets are interleaved in its RTSP connection.
+	 * @param writer The writer of the RTSP connection of the receiver
+	 * @param channelIdentifier The interleaved channel used for RTP, the next one is used for RTCP
+	 */
+	public RtpSubscriber addSubscriber(InterleavedWriter writer, byte channelIdentifier) {
+		RtpSubscriber subscriber = new RtpSubscriber(this, new SenderReport(), new Random().nextInt());
+		subscriber.setInterleaved(writer, channelIdentifier);
+		mSubscribers.add(subscriber);
+		Log.d(TAG, "Interleaved subscriber added on channel " + channelIdentifier + ", " + mSubscribers.size() + " receiver(s)");
+		return subscriber;
+	}
+
+	/** Stops sending packets to the subscriber and releases its resources. */
+	public void removeSubscriber(RtpSubscriber subscriber) {
+		if (subscriber != mDefault && mSubscribers.remove(subscriber)) {
+			subscriber.close();
+			Log.d(TAG, "Subscriber removed, " + mSubscribers.size() + " receiver(s)");
+		}
+	}
+
+	/** Returns the number of receivers of the stream, including the destination set with {@link #setDestination(InetAddress, int, int)}. */
+	public int getSubscriberCount() {
+		return mSubscribers.size();
+	}
+
+	/** Returns true if the packets committed will be sent to at least one receiver. */
+	public boolean hasReceivers() {
+		return !mSubscribers.isEmpty();
+	}
+
+	/**
+	 * Sets how RTP and RTCP packets are sent over UDP.
+	 * The local ports change, so it must be called before the ports are given to the receiver.
+	 * @param mode Can be {@link DatagramTransport#MODE_SOCKET} or {@link DatagramTransport#MODE_CHANNEL}
+	 */
+	public synchronized void setTransportMode(int mode) {
+		if (mode == mTransportMode) return;
+		DatagramTransport old = mDatagram;
+		mTransportMode = mode;
+		mDatagram = createTransport(mode);
+		mReport.setTransportMode(mode);
+		old.close();
+	}
+
+	public int getTransportMode() {
+		return mTransportMode;
 	}
 
 	/** Sets the rtp payload type of the stream. */
 	public void setPayloadType(byte payloadType) {
 		this.mPayloadType= payloadType;
+		mPool.setHeader(mPayloadType, mSsrc);
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
 
-		mReport.setSSRC(mSsrc);
+		mPool.setHeader(mPayloadType, mSsrc);
+		mDefault.setSSRC(mSsrc);
 	}
 
 	/** Returns the SSRC of the stream. */
@@ -194,6 +285,73 @@ public class RtpSocket implements Runnable {
 		mClock = clock;
 	}
 
+	/**
+	 * Sets what happens when a packetizer requests a buffer while all of them are waiting to be sent.
+	 * @param policy Can be {@link PacketBufferPool#POLICY_BLOCK} or {@link PacketBufferPool#POLICY_DROP}
+	 * @param timeout Maximum time in ms the packetizer will be blocked with {@link PacketBufferPool#POLICY_BLOCK}
+	 */
+	public void setBackpressurePolicy(int policy, long timeout) {
+		mPool.setPolicy(policy, timeout);
+	}
+
+	/** Returns the pool of packet buffers, it can be used to monitor its occupancy. */
+	public PacketBufferPool getBufferPool() {
+		return mPool;
+	}
+
+	/** Returns the FIFO of packets waiting to be sent, it can be used to monitor its depth and the frames dropped. */
+	public PacketFifo getFifo() {
+		return mFifo;
+	}
+
+	/** Returns the pacer of the send thread, it can be used to monitor the gaps between packets. */
+	public PacketPacer getPacer() {
+		return mPacer;
+	}
+
+	/** Returns the cache of the last GOP sent, it can be used to monitor the pre-rolls sent to new subscribers. */
+	public GopCache getGopCache() {
+		return mGopCache;
+	}
+
+	/**
+	 * Sets how much of the last GOP is kept for the subscribers that join in the middle of it.
+	 * @param size The size of the cache in bytes, {@link GopCache#DEFAULT_SIZE} by default, 0 disables it
+	 */
+	public synchronized void setGopCacheSize(int size) {
+		if (mThread == null) mGopCache.setSize(size);
+		else Log.e(TAG, "The size of the GOP cache can't be changed while packets are sent");
+	}
+
+	/**
+	 * Sets how the packets of a frame are spread over the interval between two frames.
+	 * @param burst The number of bytes of a frame sent at once, {@link PacketPacer#DEFAULT_BURST} by default
+	 * @param spread The percentage of the frame interval used to send the rest of a frame, 0 disables pacing
+	 */
+	public void setPacing(int burst, int spread) {
+		mPacer.setPacing(burst, spread);
+	}
+
+	/** The controller will be given the reports of the receivers of the socket, null to remove it. */
+	public void setBitrateController(BitrateController controller) {
+		mBitrateController = controller;
+	}
+
+	/** Called by a subscriber when its receiver has sent a report. */
+	void onReceiverReport(RtpSubscriber subscriber, ReceiverReport report) {
+		BitrateController controller = mBitrateController;
+		if (controller != null) controller.update(subscriber.getSSRC(), report);
+	}
+
+	/**
+	 * Sets the maximum amount of the stream that may wait in the FIFO.
+	 * Beyond that, the FIFO is emptied and the stream resumes at the next key frame.
+	 * @param latency The latency target in ms, 0 disables it
+	 */
+	public void setLatencyTarget(long latency) {
+		mFifo.setLatencyTarget(latency);
+	}
+
 	/** Sets the size of the FIFO in ms. */
 	public void setCacheSize(long cacheSize) {
 		mCacheSize = cacheSize;
@@ -201,17 +359,22 @@ public class RtpSocket implements Runnable {
 	
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
-		mSocket.setTimeToLive(ttl);
+		mDatagram.setTimeToLive(ttl);
 	}
 
 	/** Sets the destination address and to which the packets will be sent. */
 	public synchronized void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		if (dport != 0 && rtcpPort != 0) {
-			mTransport = TRANSPORT_UDP;
 			this.mPort = dport;
 			this.mDest = dest;
+			mOutputStream = null;
 
-			mReport.setDestination(dest, rtcpPort);
+			mDefault.setDestination(dest, dport, rtcpPort);
+			if (dest == null) {
+				mSubscribers.remove(mDefault);
+			} else {
+				mSubscribers.addIfAbsent(mDefault);
+			}
 		}
 	}
 
@@ -227,10 +390,9 @@ public class RtpSocket implements Runnable {
 	 */ 
 	public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
 		if (outputStream != null) {
-			mTransport = TRANSPORT_TCP;
 			mOutputStream = outputStream;
-			mTcpHeader[1] = channelIdentifier;
-			mReport.setOutputStream(outputStream, (byte) (channelIdentifier + 1));
+			mDefault.setOutputStream(outputStream, channelIdentifier);
+			mSubscribers.addIfAbsent(mDefault);
 		}
 	}
 
@@ -240,7 +402,7 @@ public class RtpSocket implements Runnable {
 
 	public int[] getLocalPorts() {
 		return new int[] {
-			mSocket.getLocalPort(),
+			mDatagram.getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
@@ -255,55 +417,43 @@ public class RtpSocket implements Runnable {
 	}
 	
 	/** 
-	 * Returns an available buffer from the FIFO, it can then be modified. 
-	 * Call {@link #commitBuffer(int)} to send it over the network.
+	 * Returns an available buffer from the pool, it can then be modified. 
+	 * Call {@link #commitBuffer(PacketBufferClass, InetAddress, int)} to send it over the network.
 	 * @throws InterruptedException 
 	 **/
 	public PacketBufferClass requestBuffer() throws InterruptedException {
-		PacketBufferClass pbc = createPacket();
-	
-		//mBufferRequested.acquire();
-		pbc.mBuffers[1] &= 0x7F;
-		return pbc;
+		return mPool.acquire();
 	}
 
-	/*public void removeBuffer() throws IOException {
-		mBufferQ.poll();
-	}*/
-
-	/** Puts the buffer back into the FIFO without sending the packet. */
-	public void commitBuffer() throws IOException {
-
-		createSendThread();
-		
-		if (mBufferInOut.incrementAndGet() >= MAX_PACKET_COUNT) {
-			Log.d(TAG, "mBufferInOut overflow: " + mBufferInOut.get());
-		}
-
-		mBufferCommitted.release();
+	/** Puts the buffer back into the pool without sending the packet. */
+	public void commitBuffer(PacketBufferClass ppb) {
+		mPool.release(ppb);
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(PacketBufferClass ppb, InetAddress dest, int length) throws IOException {
 
-		if (dest==null)
+		if (dest==null && mSubscribers.isEmpty()) {
+			mPool.release(ppb);
 			throw new IOException("No destination ip address set for the stream !");
+		}
 
-		updateSequence(ppb.mBuffers);
+		// The destination is set by each subscriber when the packet is sent
 		ppb.mPackets.setLength(length);
-		ppb.mPackets.setAddress(dest);
-
-		mAverageBitrate.push(length);
 
-		if (mBufferInOut.incrementAndGet() >= MAX_PACKET_COUNT) {
-			Log.d(TAG, "mBufferInOut overflow: " + mBufferInOut.get());
+		// The FIFO may drop the packet, and the rest of its frame, if the network can't keep up
+		if (!mFifo.offer(ppb)) {
+			long dropped = mFifo.getDroppedPackets();
+			if (dropped % 100 == 1) {
+				Log.w(TAG, "FIFO overflow, " + dropped + " packet(s) and " + mFifo.getDroppedFrames() + " frame(s) dropped so far");
+			}
+			return;
 		}
-	
-		mBufferQ.add(ppb);
-		mBufferCommitted.release();
+
+		mAverageBitrate.push(length);
 
 		if (mCount < 1){
-			Log.d(TAG, "commitBuffer-- Timestamp:" + ppb.mTimestamps + ", mBufferInOut: " + mBufferInOut);
+			Log.d(TAG, "commitBuffer-- Timestamp:" + ppb.mTimestamps + ", depth: " + mFifo.getDepth());
 		}	
 
 		createSendThread();
@@ -314,21 +464,21 @@ public class RtpSocket implements Runnable {
 		return mAverageBitrate.average();
 	}
 
-	/** Increments the sequence number. */
-	private void updateSequence(byte[] buf) {
-		setLong(buf, ++mSeq, 2, 4);
-	}
-
 	/** 
 	 * Overwrites the timestamp in the packet.
-	 * @param timestamp The new timestamp in ns.
+	 * @param timestamp The new timestamp in ns, in the time base of {@link MediaClock}.
 	 **/
 	public void updateTimestamp(PacketBufferClass ppb, long timestamp) {		
 		if(timestamp < 0)
-			Log.e(TAG, mBufferInOut.get() + " timestamp is below zero: "+timestamp);
+			Log.e(TAG, mFifo.getDepth() + " timestamp is below zero: "+timestamp);
 	
 		ppb.mTimestamps= timestamp;
-		setLong(ppb.mBuffers, (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+		setLong(ppb.mBuffers, toRtp(timestamp), 4, 8);
+	}
+
+	/** Converts a timestamp in ns to the clock rate of the stream, the result is truncated to 32 bits when written. */
+	long toRtp(long timestamp) {
+		return MediaClock.toRtp(timestamp, mClock) + mTimestampOffset;
 	}
 
 	/** Sets the marker in the RTP packet. */
@@ -336,87 +486,99 @@ public class RtpSocket implements Runnable {
 		buf[1] |= 0x80;
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
+	/** 
+	 * The Thread sends the packets in the FIFO at the pace of their timestamps.
+	 * Packets sharing a timestamp are sent in one go.
+	 */
 	@Override
 	public void run() {			
 		long delta = 0;
-		Statistics stats = new Statistics(50, 3000);
+		// The first batch sent after the cache was filled, the following ones are sent relative to it
+		long anchorTime = 0, anchorTimestamp = 0;
+		PacketBufferClass[] batch = new PacketBufferClass[MAX_BATCH_SIZE];
 		
 		try {
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Log.d(TAG, "rtp send thread is running now...");
 			Thread.sleep(mCacheSize);
+			mPacer.reset();
 
-			while ( mBufferCommitted.tryAcquire(4, TimeUnit.SECONDS) ) {        //if no new data within 4 sec, thread exit
-			
-				PacketBufferClass pNewData = mBufferQ.poll();
-				
-				if (pNewData == null) {
-					Log.e(TAG, "newdata is empty, it should not happen");
-					continue;
-				}
+			int n;
+
+			while ( (n = mFifo.drain(batch, 4, TimeUnit.SECONDS)) > 0 ) {        //if no new data within 4 sec, thread exit
 
 				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					delta = pNewData.mTimestamps - mOldTimestamp;
-
-					if (delta > 0) {
-						stats.push(delta);
-						long d = stats.average() / 1000000;
-						if( d > 1000 )
-							Log.d(TAG,"d: "+d+" delay: "+delta/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize > 0 && d < 1000) Thread.sleep(d);
-					} else if (delta < 0) {
-						Log.e(TAG, "TS: " + pNewData.mTimestamps + " OLD: " + mOldTimestamp);
+					delta = batch[0].mTimestamps - mOldTimestamp;
+					if (delta < 0) {
+						Log.e(TAG, "TS: " + batch[0].mTimestamps + " OLD: " + mOldTimestamp);
 					}
 				}
 
-				mReport.update(pNewData.mPackets.getLength(), (pNewData.mTimestamps / 100L) * (mClock / 1000L) / 10000L);
-				mOldTimestamp = pNewData.mTimestamps;
-				
-				if (mCount++ >= 0) {
-					if (mTransport == TRANSPORT_UDP) {
-						try {
-							mSocket.send(pNewData.mPackets);
-						}
-						catch(Exception e) {
-							Log.e(TAG, e.getMessage());
+				// We ensure that packets are sent at the pace of the stream no matter how the RtpSocket is used.
+				// The deadline of a batch is given by its timestamp, the delays of the sleeps don't accumulate.
+				if (mCacheSize > 0) {
+					long now = MediaClock.now();
+					long wait = anchorTime + (batch[0].mTimestamps - anchorTimestamp) - now;
+					if (anchorTime == 0 || delta < 0 || wait > 1000000000L) {
+						// First batch, or the timestamps jumped
+						anchorTime = now;
+						anchorTimestamp = batch[0].mTimestamps;
+					} else if (wait > 0) {
+						Thread.sleep(wait/1000000, (int) (wait%1000000));
+					}
+				}
+
+				DatagramTransport datagram = mDatagram;
+
+				// Frames dropped by the FIFO may be needed to decode the GOP being cached
+				long dropped = mFifo.getDroppedFrames();
+				if (dropped != mDroppedFrames) {
+					mDroppedFrames = dropped;
+					mGopCache.invalidate();
+				}
+
+				int bytes = 0;
+				for (int i=0;i<n;i++) bytes += batch[i].mPackets.getLength();
+				mPacer.startBatch(batch[0].mTimestamps, bytes);
+
+				for (int i=0;i<n;i++) {
+					PacketBufferClass pNewData = batch[i];
+					mPacer.pace(pNewData.mPackets.getLength());
+					batch[i] = null;
+
+					long rtpts = toRtp(pNewData.mTimestamps);
+					mOldTimestamp = pNewData.mTimestamps;
+
+					// Sequence numbers and SSRC are rewritten for each subscriber, at the last moment
+					// so that dropped packets leave no gap
+					for (RtpSubscriber subscriber : mSubscribers) {
+						if (subscriber.isReady()) {
+							subscriber.send(datagram, pNewData, rtpts);
 						}
-					} else {
-						sendTCP(pNewData);
 					}
 
-					if (mCount <= 1) {
-						Log.d(TAG, "send " + pNewData.mPackets.getAddress().toString() + " -- Timestamp:" + pNewData.mTimestamps + ", mBufferInOut: " + mBufferInOut.get());
+					mGopCache.add(pNewData);
+
+					if (mCount++ < 1) {
+						Log.d(TAG, "send -- Timestamp:" + pNewData.mTimestamps + ", receivers: " + mSubscribers.size() + ", depth: " + mFifo.getDepth());
 					}
+					mPool.release(pNewData);
 				}
-				mBufferInOut.decrementAndGet();
-				//mBufferRequested.release();
 			}
 		}catch (InterruptedException e) {}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
+		// Packets of an interrupted batch go back to the pool
+		for (int i=0;i<batch.length;i++) {
+			mPool.release(batch[i]);
+			batch[i] = null;
+		}
 		Log.d(TAG, "rtp send thread is stopping now...");
 		mThread = null;
 		resetFifo();
 	}
 
-	private void sendTCP(PacketBufferClass sData) {
-		synchronized (mOutputStream) {
-			int len = sData.mPackets.getLength();
-			Log.d(TAG,"sent "+len);
-			mTcpHeader[2] = (byte) (len>>8);
-			mTcpHeader[3] = (byte) (len&0xFF);
-			try {
-				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(sData.mBuffers, 0, len);
-			} catch (Exception e) {}
-		}
-	}
-
 	private void setLong(byte[] buffer, long n, int begin, int end) {
 		for (end--; end >= begin; end--) {
 			buffer[end] = (byte) (n % 256);
@@ -487,53 +649,4 @@ public class RtpSocket implements Runnable {
 		
 	}
 	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
-		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
-		}
-
-	}
-
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+import com.jjcamera.apps.iosched.streaming.rtcp.ReceiverReport;
+import com.jjcamera.apps.iosched.streaming.rtcp.SenderReport;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+import android.util.Log;
+
+/**
+ * A receiver of the packets of a {@link RtpSocket}.
+ * The packetizer produces each RTP packet once, then the send thread of the socket
+ * rewrites its sequence number and SSRC for every subscriber before sending it.
+ * Each subscriber also has its own RTCP {@link SenderReport}. It starts receiving packets with
+ * the {@link GopCache} of the socket if it holds the current GOP, at the next key frame otherwise.
+ * The RTCP packets sent back by the receiver are parsed into a {@link ReceiverReport}.
+ */
+public class RtpSubscriber implements SenderReport.Listener {
+
+	public final static String TAG = "RtpSubscriber";
+
+	private final RtpSocket mSocket;
+	private final SenderReport mReport;
+	private final ReceiverReport mReceiverReport = new ReceiverReport();
+	private volatile boolean mReceived = false;
+	private final byte mTcpHeader[] = new byte[] {'$',0,0,0};
+
+	private volatile InetAddress mDest;
+	private volatile int mRtpPort = -1, mRtcpPort = -1;
+	private volatile OutputStream mOutputStream = null;
+	private volatile InterleavedWriter mWriter = null;
+	private volatile boolean mActive = true;
+	private boolean mWaitKey = true, mFrameStart = true;
+	private int mSsrc, mSeq = 0;
+	private long mPackets = 0;
+
+	RtpSubscriber(RtpSocket socket, SenderReport report, int ssrc) {
+		mSocket = socket;
+		mReport = report;
+		mReport.setListener(this);
+		setSSRC(ssrc);
+	}
+
+	/** Sets the destination of the RTP and RTCP packets sent over UDP. */
+	public void setDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		mOutputStream = null;
+		mWriter = null;
+		mRtpPort = rtpPort;
+		mRtcpPort = rtcpPort;
+		mDest = dest;
+		mReport.setDestination(dest, rtcpPort);
+	}
+
+	/** 
+	 * Packets will be written to the output stream, prefixed with the interleaved header of RFC 2326.
+	 * RTCP packets use the channel following channelIdentifier.
+	 */
+	public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
+		mTcpHeader[1] = channelIdentifier;
+		mReport.setOutputStream(outputStream, (byte) (channelIdentifier + 1));
+		mWriter = null;
+		mOutputStream = outputStream;
+	}
+
+	/**
+	 * Packets will be interleaved in the RTSP connection of the client by the writer,
+	 * RTCP packets use the channel following channelIdentifier.
+	 */
+	public void setInterleaved(InterleavedWriter writer, byte channelIdentifier) {
+		mTcpHeader[1] = channelIdentifier;
+		mReport.setInterleaved(writer, (byte) (channelIdentifier + 1));
+		mOutputStream = null;
+		mWriter = writer;
+	}
+
+	/** Returns the interleaved channels used for RTP and RTCP, or null if packets are sent over UDP. */
+	public byte[] getChannels() {
+		if (mWriter == null && mOutputStream == null) return null;
+		return new byte[] { mTcpHeader[1], (byte) (mTcpHeader[1] + 1) };
+	}
+
+	/** Packets are not sent to inactive subscribers, their sequence numbers don't move either. */
+	public void setActive(boolean active) {
+		if (active && !mActive) mWaitKey = true;
+		mActive = active;
+	}
+
+	public boolean isActive() {
+		return mActive;
+	}
+
+	void setSSRC(int ssrc) {
+		mSsrc = ssrc;
+		mReport.setSSRC(ssrc);
+	}
+
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	public InetAddress getDestination() {
+		return mDest;
+	}
+
+	/** Returns the destination ports, the first one is used for RTP and the second one for RTCP. */
+	public int[] getDestinationPorts() {
+		return new int[] { mRtpPort, mRtcpPort };
+	}
+
+	/** Returns the source ports, the first one is used for RTP and the second one for RTCP. */
+	public int[] getLocalPorts() {
+		return new int[] { mSocket.getLocalPorts()[0], mReport.getLocalPort() };
+	}
+
+	/** Returns the sequence number of the last packet sent. */
+	public int getSequence() {
+		return mSeq;
+	}
+
+	/** Returns the number of packets sent to the subscriber. */
+	public long getPacketCount() {
+		return mPackets;
+	}
+
+	/** Returns the last report of the receiver, or null if none has been received. */
+	public ReceiverReport getReceiverReport() {
+		return mReceived ? mReceiverReport : null;
+	}
+
+	/**
+	 * Handles an RTCP packet sent by the receiver, over UDP or interleaved in the RTSP connection.
+	 * @param timestamp The time the packet was received in the time base of {@link MediaClock}
+	 */
+	@Override
+	public void onRtcpPacket(byte[] data, int offset, int length, long timestamp) {
+		synchronized (mReceiverReport) {
+			if (!mReceiverReport.parse(data, offset, length, mSsrc)) return;
+			mReceiverReport.setTimestamp(timestamp);
+			mReceiverReport.setRoundTripTime(mReport.getRoundTripTime(mReceiverReport));
+			mReceived = true;
+			mSocket.onReceiverReport(this, mReceiverReport);
+		}
+	}
+
+	boolean isReady() {
+		return mActive && (mWriter != null || mOutputStream != null || (mDest != null && mRtpPort > 0));
+	}
+
+	void reset() {
+		mWaitKey = true;
+		mFrameStart = true;
+		mSeq = 0;
+		mPackets = 0;
+		mReport.reset();
+	}
+
+	void close() {
+		mReport.close();
+	}
+
+	/** Rewrites the header of the packet for the subscriber and sends it. */
+	void send(DatagramTransport datagram, PacketBufferClass pbc, long rtpts) throws IOException {
+		byte[] buffer = pbc.mBuffers;
+
+		// A receiver that joins in the middle of the stream could not decode anything before a key frame,
+		// it gets the access units cached since the last one, or waits for the next one
+		boolean start = mFrameStart;
+		mFrameStart = (buffer[1] & 0x80) != 0;
+		if (mWaitKey) {
+			GopCache cache = mSocket.getGopCache();
+			if (start && cache.canReplayBefore(pbc) && cache.replay(this, datagram, pbc.mTimestamps)) {
+				mWaitKey = false;
+			} else {
+				if (!start || !pbc.mKeyFrame) return;
+				mWaitKey = false;
+			}
+		}
+
+		transmit(datagram, pbc, rtpts);
+	}
+
+	/** 
+	 * Rewrites the sequence number and the SSRC of the packet and sends it.
+	 * @return False if the packet could not be sent, the subscriber then waits for the next key frame
+	 */
+	boolean transmit(DatagramTransport datagram, PacketBufferClass pbc, long rtpts) throws IOException {
+		byte[] buffer = pbc.mBuffers;
+		int len = pbc.mPackets.getLength();
+
+		mSeq = (mSeq + 1) & 0xFFFF;
+		buffer[2] = (byte) (mSeq >> 8);
+		buffer[3] = (byte) mSeq;
+		buffer[8] = (byte) (mSsrc >> 24);
+		buffer[9] = (byte) (mSsrc >> 16);
+		buffer[10] = (byte) (mSsrc >> 8);
+		buffer[11] = (byte) mSsrc;
+
+		InterleavedWriter writer = mWriter;
+		OutputStream os = mOutputStream;
+		if (writer != null) {
+			// The client doesn't keep up, it will be able to decode the stream again from the next key frame
+			if (!writer.offer(mTcpHeader[1], buffer, 0, len)) {
+				mWaitKey = true;
+				return false;
+			}
+		} else if (os == null) {
+			pbc.mPackets.setAddress(mDest);
+			pbc.mPackets.setPort(mRtpPort);
+			try {
+				datagram.send(pbc);
+			} catch (Exception e) {
+				Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Packet not sent");
+			}
+		} else {
+			synchronized (os) {
+				mTcpHeader[2] = (byte) (len>>8);
+				mTcpHeader[3] = (byte) (len&0xFF);
+				try {
+					os.write(mTcpHeader);
+					os.write(buffer, 0, len);
+				} catch (Exception e) {}
+			}
+		}
+
+		mPackets++;
+		mReport.update(len, rtpts, pbc.mTimestamps);
+		return true;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+/**
+ * Sends packets one at a time through a {@link MulticastSocket}.
+ */
+public class SocketTransport implements DatagramTransport {
+
+	private final MulticastSocket mSocket;
+	private final DatagramPacket mPacket, mReceived;
+
+	public SocketTransport() {
+		try {
+			mSocket = new MulticastSocket();
+		} catch (IOException e) {
+			// Very unlikely to happen. Means that all UDP ports are already being used
+			throw new RuntimeException(e.getMessage());
+		}
+		mPacket = new DatagramPacket(new byte[1], 1);
+		mReceived = new DatagramPacket(new byte[1], 1);
+	}
+
+	@Override
+	public void send(PacketBufferClass pbc) throws IOException {
+		mSocket.send(pbc.mPackets);
+	}
+
+	@Override
+	public void send(byte[] buffer, int length, InetAddress dest, int port) throws IOException {
+		synchronized (mPacket) {
+			mPacket.setData(buffer, 0, length);
+			mPacket.setAddress(dest);
+			mPacket.setPort(port);
+			mSocket.send(mPacket);
+		}
+	}
+
+	@Override
+	public int receive(byte[] buffer) throws IOException {
+		mReceived.setData(buffer, 0, buffer.length);
+		mSocket.receive(mReceived);
+		return mReceived.getLength();
+	}
+
+	@Override
+	public void setTimeToLive(int ttl) throws IOException {
+		mSocket.setTimeToLive(ttl);
+	}
+
+	@Override
+	public int getLocalPort() {
+		return mSocket.getLocalPort();
+	}
+
+	@Override
+	public void close() {
+		mSocket.close();
+	}
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.rtsp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import com.jjcamera.apps.iosched.streaming.mp4.FragmentedMp4Reader;
+import com.jjcamera.apps.iosched.streaming.mp4.MP4Config;
+import com.jjcamera.apps.iosched.streaming.mp4.RecordingStore;
+import com.jjcamera.apps.iosched.streaming.mp4.SeekTable;
+import com.jjcamera.apps.iosched.streaming.rtp.AACLATMPacketizer;
+import com.jjcamera.apps.iosched.streaming.rtp.AbstractPacketizer;
+import com.jjcamera.apps.iosched.streaming.rtp.ArchiveInputStream;
+import com.jjcamera.apps.iosched.streaming.rtp.H264Packetizer;
+import com.jjcamera.apps.iosched.streaming.rtp.InterleavedWriter;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSubscriber;
+
+import android.util.Log;
+
+/**
+ * Plays a segment of the {@link RecordingStore} back to a RTSP client, through the packetizers of the live streams.
+ *
+ * The segment is selected by the path of the URI, {@link #PATH} followed by the name of its file. 
+ * The tracks have the ids of the tracks of a {@link com.jjcamera.apps.iosched.streaming.Session}: 
+ * 0 for the audio, 1 for the video. Playback starts at the key frame at or before the beginning of 
+ * the range requested, found with the {@link SeekTable} of the segment, and the samples are sent at
+ * the pace of their timestamps. Each client has its own player.
+ */
+public class ArchivePlayer {
+
+	public final static String TAG = "ArchivePlayer";
+
+	/** The URIs of the recordings start with that path. */
+	public final static String PATH = "/archive/";
+
+	private final RecordingStore.Segment mSegment;
+	private final SeekTable mSeekTable;
+	private final FragmentedMp4Reader mVideoReader, mAudioReader;
+	private final H264Packetizer mVideo;
+	private final AACLATMPacketizer mAudio;
+	private final long mDuration;
+	private ArchiveInputStream.Timeline mTimeline = null;
+	private ArchiveInputStream mVideoStream = null, mAudioStream = null;
+
+	private ArchivePlayer(RecordingStore.Segment segment) throws IOException {
+		mSegment = segment;
+		mSeekTable = segment.getSeekTable();
+
+		// A segment being recorded is read up to its last key frame, the fragments before it are complete
+		long length = segment.getLength();
+		if (segment.getState() != RecordingStore.STATE_COMPLETE) {
+			int count = mSeekTable.getCount();
+			if (count == 0) throw new IOException("Nothing has been recorded yet in " + segment);
+			length = mSeekTable.getOffset(count-1);
+		} else if (length == 0) {
+			throw new IOException("Nothing was recorded in " + segment);
+		}
+
+		mVideoReader = new FragmentedMp4Reader(segment.getFile(), length);
+		mDuration = mVideoReader.getDuration();
+		mVideo = new H264Packetizer();
+		mVideo.setRecorded(false);
+		mVideo.setStreamParameters(mVideoReader.getPps(), mVideoReader.getSps());
+
+		if (mVideoReader.hasAudio()) {
+			mAudioReader = new FragmentedMp4Reader(segment.getFile(), length);
+			mAudioReader.selectTrack(false);
+			mAudio = new AACLATMPacketizer();
+			mAudio.setRecorded(false);
+			mAudio.setSamplingRate(mAudioReader.getSampleRate());
+		} else {
+			mAudioReader = null;
+			mAudio = null;
+		}
+	}
+
+	/** 
+	 * Returns the name of the segment requested by the URI, or null if it is not the URI of a recording.
+	 * @param uri The URI of a RTSP request, rtsp://host:port/archive/name for instance
+	 */
+	public static String getSegmentName(String uri) {
+		int i = uri.indexOf(PATH);
+		if (i < 0) return null;
+		int start = i + PATH.length(), end = start;
+		while (end < uri.length() && uri.charAt(end) != '/' && uri.charAt(end) != '?') end++;
+		return uri.substring(start, end);
+	}
+
+	/** 
+	 * Opens the segment of the store with that name.
+	 * @return The player, or null if there is no such segment
+	 * @throws IOException If the recording can't be read
+	 */
+	public static ArchivePlayer open(RecordingStore store, String name) throws IOException {
+		for (RecordingStore.Segment segment : store.getSegments()) {
+			if (segment.getFile().getName().equals(name)) return new ArchivePlayer(segment);
+		}
+		return null;
+	}
+
+	/** The name of the file of the segment, see {@link #getSegmentName(String)}. */
+	public String getName() {
+		return mSegment.getFile().getName();
+	}
+
+	public boolean trackExists(int id) {
+		return id == 1 || (id == 0 && mAudio != null);
+	}
+
+	/** Duration of the recording in ms. */
+	public long getDuration() {
+		return mDuration/1000;
+	}
+
+	/** 
+	 * Returns the session description of the recording.
+	 * @param origin The address of the server
+	 * @param destination The address of the client
+	 */
+	public String getSessionDescription(String origin, String destination) {
+		StringBuilder sessionDescription = new StringBuilder();
+		long start = mSegment.getStartTime();
+		sessionDescription.append("v=0\r\n");
+		sessionDescription.append("o=- "+start+" "+start+" IN IP4 "+origin+"\r\n");
+		sessionDescription.append("s="+mSegment.getFile().getName()+"\r\n");
+		sessionDescription.append("i=N/A\r\n");
+		sessionDescription.append("c=IN IP4 "+destination+"\r\n");
+		sessionDescription.append("t=0 0\r\n");
+		sessionDescription.append("a=recvonly\r\n");
+		// The recording may still be growing
+		sessionDescription.append("a=range:npt=0-"+(mSegment.getState() == RecordingStore.STATE_COMPLETE ? Range.formatNpt(getDuration()) : "")+"\r\n");
+		if (mAudio != null) {
+			sessionDescription.append("m=audio 0 RTP/AVP 96\r\n");
+			sessionDescription.append("a=rtpmap:96 mpeg4-generic/"+mAudioReader.getSampleRate()+"\r\n");
+			sessionDescription.append("a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="+Integer.toHexString(mAudioReader.getAudioConfig())+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n");
+			sessionDescription.append("a=control:trackID="+0+"\r\n");
+		}
+		MP4Config config = new MP4Config(mVideoReader.getSps(), mVideoReader.getPps());
+		sessionDescription.append("m=video 0 RTP/AVP 96\r\n");
+		sessionDescription.append("a=rtpmap:96 H264/90000\r\n");
+		sessionDescription.append("a=fmtp:96 packetization-mode=1;profile-level-id="+config.getProfileLevel()+";sprop-parameter-sets="+config.getB64SPS()+","+config.getB64PPS()+";\r\n");
+		sessionDescription.append("a=control:trackID="+1+"\r\n");
+		return sessionDescription.toString();
+	}
+
+	/** Adds a receiver of a track, see {@link com.jjcamera.apps.iosched.streaming.Session#syncSubscribe(int, InetAddress, int, int)}. */
+	public RtpSubscriber subscribe(int id, InetAddress dest, int rtpPort, int rtcpPort) {
+		return getPacketizer(id).getRtpSocket().addSubscriber(dest, rtpPort, rtcpPort);
+	}
+
+	/** Adds a receiver of a track whose packets are interleaved in its RTSP connection. */
+	public RtpSubscriber subscribe(int id, InterleavedWriter writer, byte channelIdentifier) {
+		return getPacketizer(id).getRtpSocket().addSubscriber(writer, channelIdentifier);
+	}
+
+	public void unsubscribe(int id, RtpSubscriber subscriber) {
+		if (subscriber != null) getPacketizer(id).getRtpSocket().removeSubscriber(subscriber);
+	}
+
+	/**
+	 * Starts playback, or resumes it if the range has no start.
+	 * @param range The range requested by the client, or null
+	 * @return The range played, in npt, or null if the range is not in the recording
+	 */
+	public synchronized Range play(Range range) throws IOException {
+		if (range == null || !range.hasStart()) {
+			if (mTimeline != null) {
+				mTimeline.resume();
+				return new Range(Range.TYPE_NPT, mTimeline.getPosition()/1000, toEnd(mTimeline.getEnd()));
+			}
+			range = new Range(Range.TYPE_NPT, 0, range != null ? range.end : -1);
+		}
+
+		// The times of the recording in ms
+		long start = range.start, end = range.end;
+		if (range.type == Range.TYPE_CLOCK) {
+			start = Math.max(0, start - mSegment.getStartTime());
+			end = end >= 0 ? end - mSegment.getStartTime() : -1;
+		}
+		if (start >= getDuration() || (end >= 0 && end <= start)) return null;
+
+		stop();
+
+		// Playback starts at the key frame of the fragment found in the seek table
+		int entry = mSeekTable.find(mSegment.getStartTime() + start);
+		long offset = entry >= 0 ? mSeekTable.getOffset(entry) : -1;
+		mVideoReader.seekTo(offset);
+		if (!mVideoReader.advance()) return null;
+		long first = mVideoReader.getSampleTime();
+		mVideoReader.seekTo(offset);
+
+		Log.d(TAG, "Playing " + mSegment + " from " + first/1000 + " ms");
+		mTimeline = new ArchiveInputStream.Timeline(first, end >= 0 ? end*1000 : -1);
+		mVideoStream = new ArchiveInputStream(mVideoReader, true, mTimeline);
+		mVideo.setInputStream(mVideoStream);
+		mVideo.start();
+		if (mAudio != null) {
+			mAudioReader.seekTo(offset);
+			mAudioStream = new ArchiveInputStream(mAudioReader, false, mTimeline);
+			mAudio.setInputStream(mAudioStream);
+			mAudio.start();
+		}
+		return new Range(Range.TYPE_NPT, first/1000, end);
+	}
+
+	/** Pauses playback, {@link #play(Range)} without a range resumes it. */
+	public synchronized void pause() {
+		if (mTimeline != null) mTimeline.pause();
+	}
+
+	/** Stops playback, the subscribers are kept. */
+	public synchronized void stop() {
+		// The packetizers are blocked on their streams until they are closed
+		if (mVideoStream != null) {
+			mVideoStream.close();
+			mVideo.stop();
+			mVideoStream = null;
+		}
+		if (mAudioStream != null) {
+			mAudioStream.close();
+			mAudio.stop();
+			mAudioStream = null;
+		}
+		mTimeline = null;
+	}
+
+	/** Stops playback and closes the sockets of the tracks. */
+	public synchronized void release() {
+		stop();
+		mVideo.reset();
+		mVideo.getRtpSocket().close();
+		if (mAudio != null) {
+			mAudio.reset();
+			mAudio.getRtpSocket().close();
+		}
+	}
+
+	private AbstractPacketizer getPacketizer(int id) {
+		return id == 0 && mAudio != null ? mAudio : mVideo;
+	}
+
+	private static long toEnd(long endUs) {
+		return endUs == Long.MAX_VALUE ? -1 : endUs/1000;
+	}
+
+}
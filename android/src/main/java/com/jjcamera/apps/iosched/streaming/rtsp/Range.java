@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.rtsp;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The Range header of a RTSP request (RFC 2326 section 12.29), in Normal Play Time or in absolute time.
+ * Times are in ms: from the beginning of the presentation for npt, since the epoch for clock.
+ * The end is -1 when the range is open.
+ */
+public class Range {
+
+	public final static int TYPE_NPT = 0;
+	public final static int TYPE_CLOCK = 1;
+
+	public int type = TYPE_NPT;
+	public long start = 0, end = -1;
+
+	public Range() {
+	}
+
+	public Range(int type, long start, long end) {
+		this.type = type;
+		this.start = start;
+		this.end = end;
+	}
+
+	/** 
+	 * Parses a Range header without regular expressions, the time parameter is ignored.
+	 * @param header The value of the header, may be null
+	 * @return The range, or null if the header is null or can't be parsed
+	 */
+	public static Range parse(String header) {
+		if (header == null) return null;
+		int end = header.indexOf(';');
+		if (end < 0) end = header.length();
+		int eq = header.indexOf('=');
+		if (eq < 0 || eq > end) return null;
+
+		Range range = new Range();
+		String unit = header.substring(0, eq).trim();
+		if (unit.equalsIgnoreCase("npt")) range.type = TYPE_NPT;
+		else if (unit.equalsIgnoreCase("clock")) range.type = TYPE_CLOCK;
+		else return null;
+
+		String value = header.substring(eq+1, end).trim();
+		int dash = value.indexOf('-');
+		if (dash < 0) return null;
+		String first = value.substring(0, dash).trim(), last = value.substring(dash+1).trim();
+
+		// "npt=now-" plays from the current position, like an empty start
+		if (range.type == TYPE_NPT && first.equalsIgnoreCase("now")) {
+			range.start = -1;
+		} else if (first.length() == 0) {
+			if (last.length() == 0 || range.type == TYPE_CLOCK) return null;
+			range.start = -1;
+		} else {
+			range.start = range.type == TYPE_NPT ? parseNpt(first) : parseClock(first);
+			if (range.start < 0) return null;
+		}
+		if (last.length() > 0) {
+			range.end = range.type == TYPE_NPT ? parseNpt(last) : parseClock(last);
+			if (range.end < 0 || range.end < range.start) return null;
+		}
+		return range;
+	}
+
+	/** Returns true if the range has a start, "npt=-10" or "npt=now-" don't. */
+	public boolean hasStart() {
+		return start >= 0;
+	}
+
+	/** Formats the range as the value of a Range header. */
+	@Override
+	public String toString() {
+		if (type == TYPE_CLOCK) {
+			return "clock=" + formatClock(start) + "-" + (end >= 0 ? formatClock(end) : "");
+		}
+		return "npt=" + (start >= 0 ? formatNpt(start) : "now") + "-" + (end >= 0 ? formatNpt(end) : "");
+	}
+
+	/** Formats a time in ms in seconds, "12.345". */
+	public static String formatNpt(long time) {
+		return String.format(Locale.US, "%d.%03d", time/1000, time%1000);
+	}
+
+	/** Formats a time in ms since the epoch as an UTC time, "20261018T101500.250Z". */
+	public static String formatClock(long time) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+		calendar.setTimeInMillis(time);
+		return String.format(Locale.US, "%04d%02d%02dT%02d%02d%02d.%03dZ", 
+				calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH)+1, calendar.get(Calendar.DAY_OF_MONTH),
+				calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND),
+				calendar.get(Calendar.MILLISECOND));
+	}
+
+	/** Parses "12.5" or "1:02:03.5" in ms, returns -1 if the time is not valid. */
+	static long parseNpt(String s) {
+		long time = 0, number = 0;
+		int i = 0, digits = 0;
+		for (;i<s.length() && s.charAt(i) != '.';i++) {
+			char c = s.charAt(i);
+			if (c == ':') {
+				if (digits == 0) return -1;
+				time = (time + number)*60;
+				number = digits = 0;
+			} else if (c >= '0' && c <= '9' && digits < 10) {
+				number = number*10 + (c - '0');
+				digits++;
+			} else {
+				return -1;
+			}
+		}
+		if (digits == 0) return -1;
+		time = (time + number)*1000;
+		return time + parseFraction(s, i);
+	}
+
+	/** Parses "YYYYMMDDThhmmss[.fraction]Z" in ms since the epoch, returns -1 if the time is not valid. */
+	static long parseClock(String s) {
+		if (s.length() < 16 || s.charAt(8) != 'T' || s.charAt(s.length()-1) != 'Z') return -1;
+		int[] fields = new int[6];
+		// Year, month, day, then hours, minutes and seconds after the T
+		int[] starts = { 0, 4, 6, 9, 11, 13 }, ends = { 4, 6, 8, 11, 13, 15 };
+		for (int f=0;f<6;f++) {
+			for (int i=starts[f];i<ends[f];i++) {
+				char c = s.charAt(i);
+				if (c < '0' || c > '9') return -1;
+				fields[f] = fields[f]*10 + (c - '0');
+			}
+		}
+		long fraction = parseFraction(s.substring(0, s.length()-1), 15);
+		if (fraction < 0) return -1;
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+		calendar.clear();
+		calendar.set(fields[0], fields[1]-1, fields[2], fields[3], fields[4], fields[5]);
+		return calendar.getTimeInMillis() + fraction;
+	}
+
+	/** Parses the fraction of a second at the position, ".25" for instance, in ms. */
+	private static long parseFraction(String s, int position) {
+		if (position == s.length()) return 0;
+		if (s.charAt(position) != '.') return -1;
+		long fraction = 0;
+		int scale = 100;
+		for (int i=position+1;i<s.length();i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			fraction += (c - '0')*scale;
+			scale /= 10;
+		}
+		return fraction;
+	}
+
+}
@@ -1,71 +1,165 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
 package com.jjcamera.apps.iosched.streaming.rtsp;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 
+import com.jjcamera.apps.iosched.streaming.rtcp.SenderReport;
+import com.jjcamera.apps.iosched.streaming.rtp.ByteRing;
+
+import android.util.Log;
+
+/**
+ * Separates the RTCP packets that a client interleaves in its RTSP connection (RFC 2326, 10.12) from its requests.
+ * A thread reads the connection, hands the interleaved packets to a {@link Listener} and passes the rest
+ * through a {@link ByteRing}, the requests are read from this stream. The packets are not delayed while 
+ * a request is processed.
+ */
 class RtcpDeinterleaver extends InputStream implements Runnable {
 	
 	public final static String TAG = "RtcpDeinterleaver";
+
+	/** Receives the packets interleaved in the connection. */
+	interface Listener {
+		/** The data is only valid during the call. */
+		void onInterleavedPacket(int channel, byte[] data, int offset, int length);
+	}
+
+	/**
+	 * Removes the interleaved packets from what is read from an RTSP connection.
+	 * A packet starts with a '$' at the beginning of a line, it may be split across several reads.
+	 */
+	static class Filter {
+
+		private final Listener mListener;
+		private final byte[] mHeader = new byte[4];
+		private final byte[] mPacket = new byte[SenderReport.MTU];
+		private int mHeaderLength = 0, mPacketLength = 0, mRemaining = 0;
+		private boolean mLineStart = true;
+
+		public Filter(Listener listener) {
+			mListener = listener;
+		}
+
+		/**
+		 * Removes the interleaved packets from the data, what remains is moved to the beginning of the data.
+		 * @return The length of what remains
+		 */
+		public int filter(byte[] data, int offset, int length) {
+			int end = offset + length, w = offset, i = offset;
+			while (i < end) {
+				if (mHeaderLength > 0 && mHeaderLength < 4) {
+					mHeader[mHeaderLength++] = data[i++];
+					if (mHeaderLength == 4) {
+						mRemaining = ((mHeader[2]&0xFF)<<8) | (mHeader[3]&0xFF);
+						mPacketLength = 0;
+						if (mRemaining == 0) mHeaderLength = 0;
+					}
+				} else if (mHeaderLength == 4) {
+					// Packets too large for the buffer are skipped
+					int n = Math.min(mRemaining, end - i);
+					if (mPacketLength + n <= mPacket.length) {
+						System.arraycopy(data, i, mPacket, mPacketLength, n);
+					}
+					mPacketLength += n;
+					mRemaining -= n;
+					i += n;
+					if (mRemaining == 0) {
+						mHeaderLength = 0;
+						if (mPacketLength <= mPacket.length) {
+							try {
+								mListener.onInterleavedPacket(mHeader[1]&0xFF, mPacket, 0, mPacketLength);
+							} catch (RuntimeException e) {
+								Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Interleaved packet dropped");
+							}
+						}
+					}
+				} else {
+					byte b = data[i++];
+					if (b == '$' && mLineStart) {
+						mHeader[0] = b;
+						mHeaderLength = 1;
+						continue;
+					}
+					data[w++] = b;
+					mLineStart = b == '\n';
+				}
+			}
+			return w - offset;
+		}
+
+	}
 	
-	private IOException mIOException;
-	private InputStream mInputStream;
-	private PipedInputStream mPipedInputStream;
-	private PipedOutputStream mPipedOutputStream;
-	private byte[] mBuffer;
+	// Size of the reads from the connection and of the ring, requests are small
+	private static final int BUFFER_SIZE = 2048;
+
+	private final InputStream mInputStream;
+	private final ByteRing mRing;
+	private final Filter mFilter;
+	private final byte[] mBuffer, mByte = new byte[1];
 	
-	public RtcpDeinterleaver(InputStream inputStream) {
+	public RtcpDeinterleaver(InputStream inputStream, Listener listener) {
 		mInputStream = inputStream;
-		mPipedInputStream = new PipedInputStream(4096);
-		try {
-			mPipedOutputStream = new PipedOutputStream(mPipedInputStream);
-		} catch (IOException e) {}
-		mBuffer = new byte[1024];
-		new Thread(this).start();
+		mFilter = new Filter(listener);
+		mRing = new ByteRing(4*BUFFER_SIZE);
+		mBuffer = new byte[BUFFER_SIZE];
+		new Thread(this, TAG).start();
 	}
 
 	@Override
 	public void run() {
 		try {
 			while (true) {
-				int len = mInputStream.read(mBuffer, 0, 1024);
-				mPipedOutputStream.write(mBuffer, 0, len);
+				int len = mInputStream.read(mBuffer, 0, BUFFER_SIZE);
+				// The client has left, the reader gets the end of the stream
+				if (len < 0) break;
+				len = mFilter.filter(mBuffer, 0, len);
+				if (len > 0) mRing.write(mBuffer, 0, len);
 			}
+			mRing.closeWrite();
 		} catch (IOException e) {
-			try {
-				mPipedInputStream.close();
-			} catch (IOException ignore) {}
-			mIOException = e;
+			mRing.closeWrite(e);
 		}
 	}
 
-	@Override
-	public int read(byte[] buffer) throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
-		}
-		return mPipedInputStream.read(buffer);
-	}		
-	
 	@Override
 	public int read(byte[] buffer, int offset, int length) throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
-		}
-		return mPipedInputStream.read(buffer, offset, length);
+		return mRing.read(buffer, offset, length);
 	}	
 	
 	@Override
 	public int read() throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
-		}
-		return mPipedInputStream.read();
+		return mRing.read(mByte, 0, 1) < 0 ? -1 : mByte[0]&0xFF;
+	}
+
+	@Override
+	public int available() {
+		return mRing.available();
 	}
 
 	@Override
 	public void close() throws IOException {
+		mRing.close();
 		mInputStream.close();
 	}
 
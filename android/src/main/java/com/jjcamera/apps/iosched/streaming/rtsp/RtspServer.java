@@ -20,24 +20,38 @@
 
 package com.jjcamera.apps.iosched.streaming.rtsp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.jjcamera.apps.iosched.streaming.Session;
 import com.jjcamera.apps.iosched.streaming.SessionBuilder;
+import com.jjcamera.apps.iosched.streaming.hw.CapabilityCache;
+import com.jjcamera.apps.iosched.streaming.mp4.RecordingStore;
+import com.jjcamera.apps.iosched.streaming.rtp.InterleavedWriter;
+import com.jjcamera.apps.iosched.streaming.rtp.MediaClock;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSubscriber;
 import com.jjcamera.apps.iosched.util.WiFiUtils;
 
 import android.app.Service;
@@ -56,8 +70,10 @@ import android.util.Log;
  * Implementation of a subset of the RTSP protocol (RFC 2326).
  * 
  * It allows remote control of an android device cameras & microphone.
- * For each connected client, a Session is instantiated.
- * The Session will start or stop streams according to what the client wants.
+ * All the clients share the same Session: its streams are encoded once and
+ * each client subscribes to them with its own SSRC, destination and RTCP reports.
+ * The recordings are played back with the URIs of {@link ArchivePlayer}, PLAY 
+ * then takes a Range header in npt or clock time.
  * 
  */
 public class RtspServer extends Service {
@@ -88,13 +104,24 @@ public class RtspServer extends Service {
 	/** Key used in the SharedPreferences for the port used by the RTSP server. */
 	public final static String KEY_PORT = "rtsp_port";
 
+	/** Each client is served by its own thread. */
+	public final static int MODE_THREADS = 0x00;
+
+	/** All the clients are served by a single thread relying on a {@link Selector}, requests are processed by a small pool of threads. */
+	public final static int MODE_SELECTOR = 0x01;
+
+	/** Number of threads processing the requests in {@link #MODE_SELECTOR}. */
+	public final static int SELECTOR_POOL_SIZE = 2;
+
 	protected SessionBuilder mSessionBuilder;
 	protected SharedPreferences mSharedPreferences;
 	protected boolean mEnabled = true;	
 	protected int mPort = DEFAULT_RTSP_PORT;
+	protected int mMode = MODE_THREADS;
 	protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<Session,Object>(2);
 	
-	private RequestListener mListenerThread;
+	private Listener mListenerThread;
+	private Session mEmptySession;
 	private final IBinder mBinder = new LocalBinder();
 	private boolean mRestart = false;
 	private final LinkedList<CallbackListener> mListeners = new LinkedList<CallbackListener>();
@@ -158,6 +185,22 @@ public class RtspServer extends Service {
 		editor.commit();
 	}
 
+	/**
+	 * Sets how the clients are served, the server is restarted if needed.
+	 * @param mode Can be {@link #MODE_THREADS} or {@link #MODE_SELECTOR}
+	 */
+	public void setServerMode(int mode) {
+		if (mode != mMode) {
+			mMode = mode;
+			mRestart = true;
+			start();
+		}
+	}
+
+	public int getServerMode() {
+		return mMode;
+	}
+
     /**
      * Set Basic authorization to access RTSP Stream
      * @param username username
@@ -177,7 +220,7 @@ public class RtspServer extends Service {
 		if (!mEnabled || mRestart) stop();
 		if (mEnabled && mListenerThread == null) {
 			try {
-				mListenerThread = new RequestListener();
+				mListenerThread = mMode == MODE_SELECTOR ? new SelectorListener() : new RequestListener();
 			} catch (Exception e) {
 				mListenerThread = null;
 			}
@@ -243,6 +286,9 @@ public class RtspServer extends Service {
 		mPort = Integer.parseInt(mSharedPreferences.getString(KEY_PORT, String.valueOf(mPort)));
 		mEnabled = mSharedPreferences.getBoolean(KEY_ENABLED, mEnabled);
 
+		// Sessions will be started with what was learned about the phone last time
+		CapabilityCache.preload(mSharedPreferences);
+
 		// If the configuration is modified, the server will adjust
 		mSharedPreferences.registerOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
 
@@ -323,15 +369,33 @@ public class RtspServer extends Service {
 		return session;
 	}
 	
-	class RequestListener extends Thread implements Runnable {
+	/** Returns a session without any track, used by the clients until they send a DESCRIBE request. */
+	protected synchronized Session getEmptySession() {
+		if (mEmptySession == null) {
+			mEmptySession = new Session();
+		}
+		return mEmptySession;
+	}
+
+	abstract class Listener extends Thread implements Runnable {
+
+		/** Stops accepting clients and waits for the thread to stop. */
+		public abstract void kill();
 
-		private final ServerSocket mServer;
+	}
+
+	class RequestListener extends Listener {
+
+		private final ServerSocketChannel mServer;
 
 		public RequestListener() throws IOException {
+			// A blocking channel rather than a ServerSocket, so that clients can be written with gathering writes
+			mServer = ServerSocketChannel.open();
 			try {
-				mServer = new ServerSocket(mPort);
+				mServer.socket().bind(new InetSocketAddress(mPort));
 				start();
 			} catch (BindException e) {
+				mServer.close();
 				Log.e(TAG,"Port already in use !");
 				postError(e, ERROR_BIND_FAILED);
 				throw e;
@@ -339,11 +403,11 @@ public class RtspServer extends Service {
 		}
 
 		public void run() {
-			Log.i(TAG,"RTSP server(" + WiFiUtils.getWifiIpAddress() + ") is listening on port " + mServer.getLocalPort());
+			Log.i(TAG,"RTSP server(" + WiFiUtils.getWifiIpAddress() + ") is listening on port " + mServer.socket().getLocalPort());
 			while (!Thread.interrupted()) {
 				try {
 					new WorkerThread(mServer.accept()).start();
-				} catch (SocketException e) {
+				} catch (ClosedChannelException e) {
 					break;
 				} catch (IOException e) {
 					Log.e(TAG,e.getMessage());
@@ -364,21 +428,249 @@ public class RtspServer extends Service {
 
 	}
 
+	/** 
+	 * Serves all the clients with a single thread: connections are accepted, read and written
+	 * without blocking, and complete requests are handed to a small pool of threads because
+	 * processing them may block (the camera is opened when a stream starts). 
+	 * The requests of a client are processed one at a time, in order.
+	 */
+	class SelectorListener extends Listener {
+
+		private final Selector mSelector;
+		private final ServerSocketChannel mServer;
+		private final ExecutorService mExecutor;
+		private final ConcurrentLinkedQueue<Client> mPendingWrites = new ConcurrentLinkedQueue<Client>();
+		private final LinkedList<Client> mClients = new LinkedList<Client>();
+
+		public SelectorListener() throws IOException {
+			mSelector = Selector.open();
+			mServer = ServerSocketChannel.open();
+			try {
+				mServer.socket().setReuseAddress(true);
+				mServer.socket().bind(new InetSocketAddress(mPort));
+				mServer.configureBlocking(false);
+				mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				mServer.close();
+				mSelector.close();
+				if (e instanceof BindException) {
+					Log.e(TAG,"Port already in use !");
+					postError(e, ERROR_BIND_FAILED);
+				}
+				throw e;
+			}
+			mExecutor = Executors.newFixedThreadPool(SELECTOR_POOL_SIZE);
+			start();
+		}
+
+		public void run() {
+			Log.i(TAG,"RTSP server(" + WiFiUtils.getWifiIpAddress() + ") is listening on port " + mServer.socket().getLocalPort() + " with a selector");
+			while (!Thread.interrupted()) {
+				try {
+					mSelector.select();
+				} catch (ClosedSelectorException e) {
+					break;
+				} catch (IOException e) {
+					Log.e(TAG,e.getMessage()!=null?e.getMessage():"Select failed");
+					break;
+				}
+				if (!mSelector.isOpen()) break;
+
+				// Responses produced by the pool of threads
+				Client client;
+				while ((client = mPendingWrites.poll()) != null) {
+					client.enableWrite();
+				}
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					client = (Client) key.attachment();
+					try {
+						if (key.isReadable()) client.read();
+						if (key.isValid() && key.isWritable()) client.write();
+					} catch (IOException e) {
+						client.close();
+					}
+				}
+			}
+
+			synchronized (mClients) {
+				for (Client client : new LinkedList<Client>(mClients)) {
+					client.close();
+				}
+			}
+			mExecutor.shutdown();
+			Log.i(TAG,"RTSP server stopped !");
+		}
+
+		public void kill() {
+			try {
+				mServer.close();
+			} catch (IOException e) {}
+			try {
+				mSelector.close();
+			} catch (IOException e) {}
+			try {
+				this.join();
+			} catch (InterruptedException ignore) {}
+		}
+
+		private void accept() {
+			SocketChannel channel = null;
+			try {
+				channel = mServer.accept();
+				if (channel == null) return;
+				channel.configureBlocking(false);
+				Client client = new Client(channel);
+				client.mKey = channel.register(mSelector, SelectionKey.OP_READ, client);
+				synchronized (mClients) {
+					mClients.add(client);
+				}
+				Log.i(TAG, "Connection from "+channel.socket().getInetAddress().getHostAddress());
+			} catch (IOException e) {
+				Log.e(TAG,e.getMessage()!=null?e.getMessage():"Accept failed");
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ignore) {}
+				}
+			}
+		}
+
+		/** A client served by the selector. */
+		class Client implements Runnable {
+
+			private final SocketChannel mChannel;
+			private final Connection mConnection;
+			private final RequestParser mParser = new RequestParser();
+			private final ByteBuffer mReadBuffer = ByteBuffer.allocate(2048);
+			private final RtcpDeinterleaver.Filter mFilter;
+			private final InterleavedWriter mWriter;
+			private final LinkedList<Request> mRequests = new LinkedList<Request>();
+			private SelectionKey mKey;
+			private boolean mProcessing = false, mClosed = false;
+
+			public Client(SocketChannel channel) {
+				mChannel = channel;
+				mWriter = new InterleavedWriter(channel, InterleavedWriter.DEFAULT_CAPACITY);
+				mWriter.setListener(new Runnable() {
+					@Override
+					public void run() {
+						mPendingWrites.add(Client.this);
+						mSelector.wakeup();
+					}
+				});
+				mConnection = new Connection(channel.socket(), mWriter);
+				mFilter = new RtcpDeinterleaver.Filter(mConnection);
+			}
+
+			/** Reads what the client has sent, several requests may be pipelined. */
+			public void read() throws IOException {
+				int n = mChannel.read(mReadBuffer);
+				if (n < 0) throw new SocketException("Client disconnected");
+				// The RTCP packets interleaved by the client are handled right away
+				int length = mFilter.filter(mReadBuffer.array(), 0, mReadBuffer.position());
+				mParser.feed(mReadBuffer.array(), 0, length);
+				mReadBuffer.clear();
+
+				Request request;
+				while ((request = mParser.next()) != null) {
+					synchronized (this) {
+						mRequests.add(request);
+						if (!mProcessing) {
+							mProcessing = true;
+							mExecutor.execute(this);
+						}
+					}
+				}
+			}
+
+			/** Processes the pending requests in a thread of the pool. */
+			@Override
+			public void run() {
+				while (true) {
+					Request request;
+					synchronized (this) {
+						request = mRequests.poll();
+						if (request == null) {
+							mProcessing = false;
+							return;
+						}
+					}
+					mWriter.send(mConnection.handle(request).getBytes());
+				}
+			}
+
+			/** Writes the responses and the interleaved packets, until the socket buffer is full. */
+			public void write() throws IOException {
+				if (mWriter.flush()) {
+					mKey.interestOps(SelectionKey.OP_READ);
+				}
+			}
+
+			public void enableWrite() {
+				if (mKey != null && mKey.isValid()) {
+					mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+
+			public void close() {
+				synchronized (this) {
+					if (mClosed) return;
+					mClosed = true;
+				}
+				synchronized (mClients) {
+					mClients.remove(this);
+				}
+				if (mKey != null) mKey.cancel();
+				mWriter.close();
+				try {
+					mChannel.close();
+				} catch (IOException ignore) {}
+				// Connection.close() may block as well
+				try {
+					mExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							mConnection.close();
+						}
+					});
+				} catch (Exception e) {
+					mConnection.close();
+				}
+				Log.i(TAG, "Client disconnected");
+			}
+
+		}
+
+	}
+
 	// One thread per client
 	class WorkerThread extends Thread implements Runnable {
 
+		private final SocketChannel mChannel;
 		private final Socket mClient;
-		private final OutputStream mOutput;
-		private final BufferedReader mInput;
-
-		// Each client has an associated session
-		private Session mSession;
-
-		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-			mOutput = client.getOutputStream();
-			mClient = client;
-			mSession = new Session();
+		private final InputStream mInput;
+		private final InterleavedWriter mWriter;
+		private final Connection mConnection;
+		private final RequestParser mParser = new RequestParser();
+		private final byte[] mBuffer = new byte[2048];
+
+		public WorkerThread(final SocketChannel channel) throws IOException {
+			mChannel = channel;
+			mClient = channel.socket();
+			// Responses and interleaved packets are written by the thread of the writer
+			mWriter = new InterleavedWriter(channel, InterleavedWriter.DEFAULT_CAPACITY);
+			mConnection = new Connection(mClient, mWriter);
+			// The RTCP packets interleaved by the client are read by another thread
+			mInput = new RtcpDeinterleaver(mClient.getInputStream(), mConnection);
 		}
 
 		public void run() {
@@ -387,75 +679,126 @@ public class RtspServer extends Service {
 
 			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
 
+			mWriter.start();
+
 			while (!Thread.interrupted()) {
 
 				request = null;
 				response = null;
 
-				// Parse the request
+				// Parse the request, requests we don't understand are skipped by the parser
 				try {
-					request = Request.parseRequest(mInput);
-				} catch (SocketException e) {
-					// Client has left
+					request = mParser.next();
+					if (request == null) {
+						int n = mInput.read(mBuffer);
+						// Client has left
+						if (n < 0) break;
+						mParser.feed(mBuffer, 0, n);
+						continue;
+					}
+				} catch (IOException e) {
 					break;
-				} catch (Exception e) {
-					// We don't understand the request :/
-				/*	e.printStackTrace();
-					
-					response = new Response();
-					response.status = Response.STATUS_BAD_REQUEST;*/
-
-					continue;
 				}
 
 				// Do something accordingly like starting the streams, sending a session description
-				if (request != null) {
-					try {
-						response = processRequest(request);
-					}
-					catch (Exception e) {
-						// This alerts the main thread that something has gone wrong in this thread
-						postError(e, ERROR_START_FAILED);
-						Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
-						e.printStackTrace();
-						response = new Response(request);
-					}
-				}
+				response = mConnection.handle(request);
 
 				// We always send a response
 				// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
-				try {
-					response.send(mOutput);
-				} catch (IOException e) {
-					Log.e(TAG,"Response was not sent properly");
-					break;
-				}
+				mWriter.send(response.getBytes());
 
 			}
 
+			mConnection.close();
+
+			// Stops the thread of the deinterleaver as well
+			try {
+				mInput.close();
+			} catch (IOException ignore) {}
+			// A write blocked by a client that doesn't read anymore fails, the writer can then stop
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+			mWriter.close();
+
+			Log.i(TAG, "Client disconnected");
+
+		}
+
+	}
+
+	/** 
+	 * The state of a client: its session and its subscriptions to the tracks of the session.
+	 * It doesn't depend on the way requests are read, see {@link WorkerThread} and {@link SelectorListener}.
+	 */
+	class Connection implements RtcpDeinterleaver.Listener {
+
+		private final Socket mClient;
+
+		// Writes the responses, and the packets of the tracks set up over TCP
+		private final InterleavedWriter mWriter;
+
+		// Each client has an associated session
+		private Session mSession;
+
+		// The subscriptions of the client to the tracks of the session
+		private final RtpSubscriber[] mSubscribers = new RtpSubscriber[2];
+
+		// Plays a recording instead of the session, for the URIs of the archive
+		private ArchivePlayer mArchive = null;
+
+		private boolean mClosed = false;
+
+		public Connection(final Socket client, InterleavedWriter writer) {
+			mClient = client;
+			mWriter = writer;
+			mSession = getEmptySession();
+		}
+
+		/** Processes a request, the response is always returned, with an error status if something went wrong. */
+		public synchronized Response handle(Request request) {
+			Response response;
+			if (mClosed) return new Response(request);
+			try {
+				response = processRequest(request);
+			}
+			catch (Exception e) {
+				// This alerts the main thread that something has gone wrong in this thread
+				postError(e, ERROR_START_FAILED);
+				Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+				e.printStackTrace();
+				response = new Response(request);
+			}
+			return response;
+		}
+
+		/** Called once the client has disconnected. */
+		public synchronized void close() {
+			if (mClosed) return;
+			mClosed = true;
+
+			if (mArchive != null) {
+				unsubscribe();
+				mArchive.release();
+				mArchive = null;
+				return;
+			}
+
 			// Streaming stops when client disconnects
 			boolean streaming = isStreaming();
 			if(mSession.isKeepStreaming()) {
-				if (streaming) {
+				// The streams keep running for the other clients
+				if (unsubscribe() && streaming) {
 					postMessage(MESSAGE_STREAMING_STOPPED);
-					mSession.reset();
 				}			
 			}
-			else if(mSession != null){
+			else if(mSession != mEmptySession){
 				mSession.syncStop();
 				if (streaming && !isStreaming()) {
 					postMessage(MESSAGE_STREAMING_STOPPED);
 				}
 				mSession.release();
 			}
-
-
-			try {
-				mClient.close();
-			} catch (IOException ignore) {}
-
-			Log.i(TAG, "Client disconnected");
-
 		}
 
 		public Response processRequest(Request request) throws IllegalStateException, IOException {
@@ -474,6 +817,24 @@ public class RtspServer extends Service {
 			    /* ********************************************************************************** */
                 if (request.method.equalsIgnoreCase("DESCRIBE")) {
 
+                    String segment = ArchivePlayer.getSegmentName(request.uri);
+                    if (segment != null || mArchive != null) {
+                        unsubscribe();
+                        if (mArchive != null) mArchive.release();
+                        mArchive = segment != null ? ArchivePlayer.open(RecordingStore.getInstance(), segment) : null;
+                    }
+                    if (segment != null) {
+                        if (mArchive == null) {
+                            response.status = Response.STATUS_NOT_FOUND;
+                            return response;
+                        }
+                        response.content = mArchive.getSessionDescription(mClient.getLocalAddress().getHostAddress(), mClient.getInetAddress().getHostAddress());
+                        response.attributes = "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + ArchivePlayer.PATH + mArchive.getName() + "/\r\n" +
+                                "Content-Type: application/sdp\r\n";
+                        response.status = Response.STATUS_OK;
+                        return response;
+                    }
+
                     // Parse the requested URI and configure the session
                     mSession = handleRequest(request.uri, mClient);
                     mSessions.put(mSession, null);
@@ -505,53 +866,94 @@ public class RtspServer extends Service {
                 /* ********************************** Method SETUP ********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("SETUP")) {
-                    Pattern p;
-                    Matcher m;
                     int p2, p1, ssrc, trackId, src[];
                     String destination;
+                    InetAddress address;
 
-                    p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.uri);
+                    trackId = request.getTrackId();
 
-                    if (!m.find()) {
+                    if (trackId < 0) {
                         response.status = Response.STATUS_BAD_REQUEST;
                         return response;
                     }
 
-                    trackId = Integer.parseInt(m.group(1));
 					Log.d(TAG, "getTrackId: " + trackId);
 
-                    if (!mSession.trackExists(trackId)) {
+                    if (trackId >= mSubscribers.length || !trackExists(trackId)) {
                         response.status = Response.STATUS_NOT_FOUND;
                         return response;
                     }			
 
-                    p = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.headers.get("transport"));
+                    Transport transport = Transport.parse(request.headers.get("transport"));
+
+                    if (transport.isTcp()) {
+                        // RTP and RTCP are interleaved in the RTSP connection, it goes through NATs and firewalls
+                        int channel = transport.interleavedRtp >= 0 ? transport.interleavedRtp : 2*trackId;
+                        if (channel > 254) {
+                            response.status = Response.STATUS_BAD_REQUEST;
+                            return response;
+                        }
+
+                        if (mArchive != null) {
+                            unsubscribe(trackId);
+                            mSubscribers[trackId] = mArchive.subscribe(trackId, mWriter, (byte) channel);
+                        } else {
+                            boolean streaming = mSession.isKeepStreaming()? false: isStreaming();
+                            unsubscribe(trackId);
+                            mSubscribers[trackId] = mSession.syncSubscribe(trackId, mWriter, (byte) channel);
+                            if (!streaming && isStreaming()) {
+                                postMessage(MESSAGE_STREAMING_STARTED);
+                            }
+                        }
+
+                        response.attributes = "Transport: RTP/AVP/TCP;unicast" +
+                                ";interleaved=" + channel + "-" + (channel + 1) +
+                                ";ssrc=" + Integer.toHexString(mSubscribers[trackId].getSSRC()) +
+                                ";mode=play\r\n" +
+                                "Session: " + "1185d20035702ca" + "\r\n" +
+                                "Cache-Control: no-cache\r\n";
+                        response.status = Response.STATUS_OK;
+                        return response;
+                    }
 
-                    if (!m.find()) {
+                    if (transport.clientRtpPort >= 0 && transport.clientRtcpPort >= 0) {
+                        p1 = transport.clientRtpPort;
+                        p2 = transport.clientRtcpPort;
+                    } else if (mArchive == null) {
                         int[] ports = mSession.getTrack(trackId).getDestinationPorts();
                         p1 = ports[0];
                         p2 = ports[1];
                     } else {
-                        p1 = Integer.parseInt(m.group(1));
-                        p2 = Integer.parseInt(m.group(2));
+                        // A recording has no default destination
+                        response.status = Response.STATUS_BAD_REQUEST;
+                        return response;
                     }
 
-                    ssrc = mSession.getTrack(trackId).getSSRC();
-                    src = mSession.getTrack(trackId).getLocalPorts();
-                    destination = mSession.getDestination();
-
-                    mSession.getTrack(trackId).setDestinationPorts(p1, p2);
-
-                    boolean streaming = mSession.isKeepStreaming()? false: isStreaming();
-                    mSession.syncStart(trackId);
-                    if (!streaming && isStreaming()) {
-                        postMessage(MESSAGE_STREAMING_STARTED);
+                    // Packets are sent to the client itself, unless the session streams to a multicast group
+                    address = mClient.getInetAddress();
+                    if (mArchive != null) {
+                        unsubscribe(trackId);
+                        mSubscribers[trackId] = mArchive.subscribe(trackId, address, p1, p2);
+                    } else {
+                        InetAddress group = InetAddress.getByName(mSession.getDestination());
+                        if (group.isMulticastAddress()) {
+                            address = group;
+                        }
+
+                        boolean streaming = mSession.isKeepStreaming()? false: isStreaming();
+                        unsubscribe(trackId);
+                        mSubscribers[trackId] = mSession.syncSubscribe(trackId, address, p1, p2);
+                        if (!streaming && isStreaming()) {
+                            postMessage(MESSAGE_STREAMING_STARTED);
+                        }
                     }
+                    destination = address.getHostAddress();
+
+                    ssrc = mSubscribers[trackId].getSSRC();
+                    src = mSubscribers[trackId].getLocalPorts();
 
-                    response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
-                            ";destination=" + mSession.getDestination() +
+                    response.attributes = "Transport: RTP/AVP/UDP;" + (address.isMulticastAddress() ? "multicast" : "unicast") +
+                            ";destination=" + destination +
                             ";client_port=" + p1 + "-" + p2 +
                             ";server_port=" + src[0] + "-" + src[1] +
                             ";ssrc=" + Integer.toHexString(ssrc) +
@@ -569,13 +971,30 @@ public class RtspServer extends Service {
                 /* ********************************** Method PLAY *********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("PLAY")) {
-                    String requestAttributes = "RTP-Info: ";
-                    if (mSession.trackExists(0))
-                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
-                    if (mSession.trackExists(1))
-                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
+                    String base = "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/";
+                    String requestAttributes = "";
+
+                    if (mArchive != null) {
+                        // The range played starts at a key frame, it is sent back to the client
+                        String header = request.headers.get("range");
+                        Range range = Range.parse(header);
+                        if ((header != null && range == null) || (range = mArchive.play(range)) == null) {
+                            response.status = Response.STATUS_INVALID_RANGE;
+                            return response;
+                        }
+                        requestAttributes = "Range: " + range + "\r\n";
+                        base += ArchivePlayer.PATH.substring(1) + mArchive.getName() + "/";
+                    }
+
+                    requestAttributes += "RTP-Info: ";
+                    if (trackExists(0))
+                        requestAttributes += base + "trackID=" + 0 + ";seq=0,";
+                    if (trackExists(1))
+                        requestAttributes += base + "trackID=" + 1 + ";seq=0,";
                     requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
 
+                    setActive(true);
+
                     response.attributes = requestAttributes;
 
                     // If no exception has been thrown, we reply with OK
@@ -587,6 +1006,8 @@ public class RtspServer extends Service {
                 /* ********************************** Method PAUSE ********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("PAUSE")) {
+                    if (mArchive != null) mArchive.pause();
+                    setActive(false);
                     response.status = Response.STATUS_OK;
                 }
 
@@ -594,6 +1015,8 @@ public class RtspServer extends Service {
                 /* ********************************* Method TEARDOWN ******************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+                    unsubscribe();
+                    if (mArchive != null) mArchive.stop();
                     response.status = Response.STATUS_OK;
                 }
 
@@ -609,6 +1032,46 @@ public class RtspServer extends Service {
 
 		}
 
+		/** Stops sending packets to the client, returns false if it had not subscribed to any track. */
+		private boolean unsubscribe() {
+			boolean subscribed = false;
+			for (int id=0;id<mSubscribers.length;id++) {
+				subscribed |= unsubscribe(id);
+			}
+			return subscribed;
+		}
+
+		/** Stops sending the packets of a track to the client, returns false if it had not subscribed to it. */
+		private boolean unsubscribe(int id) {
+			if (mSubscribers[id] == null) return false;
+			if (mArchive != null) mArchive.unsubscribe(id, mSubscribers[id]);
+			else mSession.unsubscribe(id, mSubscribers[id]);
+			mSubscribers[id] = null;
+			return true;
+		}
+
+		private boolean trackExists(int id) {
+			return mArchive != null ? mArchive.trackExists(id) : mSession.trackExists(id);
+		}
+
+		/** Hands the RTCP packets interleaved by the client to the subscription of the track. */
+		@Override
+		public void onInterleavedPacket(int channel, byte[] data, int offset, int length) {
+			long now = MediaClock.now();
+			for (RtpSubscriber subscriber : mSubscribers) {
+				byte[] channels = subscriber != null ? subscriber.getChannels() : null;
+				if (channels != null && (channels[1]&0xFF) == channel) {
+					subscriber.onRtcpPacket(data, offset, length, now);
+				}
+			}
+		}
+
+		private void setActive(boolean active) {
+			for (RtpSubscriber subscriber : mSubscribers) {
+				if (subscriber != null) subscriber.setActive(active);
+			}
+		}
+
         /**
          * Check if the request is authorized
          * @param request
@@ -633,44 +1096,183 @@ public class RtspServer extends Service {
         }
 	}
 
-	static class Request {
 
-		// Parse method & uri
-		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-		// Parse a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+	static class Request {
 
 		public String method;
 		public String uri;
 		public HashMap<String,String> headers = new HashMap<String,String>();
 
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
-			Request request = new Request();
-			String line;
-			Matcher matcher;
+		/** Returns the id of the track found in the uri (trackID=n), -1 if there is none. */
+		public int getTrackId() {
+			int i = indexOfIgnoreCase(uri, "trackid=");
+			if (i < 0) return -1;
+			int id = 0, start = i + 8, end = start;
+			while (end < uri.length() && end - start < 9 && Character.isDigit(uri.charAt(end))) {
+				id = id*10 + (uri.charAt(end++) - '0');
+			}
+			return end > start ? id : -1;
+		}
+
+		private static int indexOfIgnoreCase(String s, String token) {
+			for (int i=0;i<=s.length()-token.length();i++) {
+				if (s.regionMatches(true, i, token, 0, token.length())) return i;
+			}
+			return -1;
+		}
+	}
+
+	/** 
+	 * Parses the requests of a client as its data comes in.
+	 * Several requests may be pipelined in the same read, and a request may be split across reads.
+	 * Interleaved binary data sent by the client (RTCP over the RTSP connection) and request bodies are skipped.
+	 * Lines are tokenized in place in a buffer reused for the whole connection, the strings of 
+	 * common methods and header names are shared instead of being allocated for each request.
+	 */
+	static class RequestParser {
+
+		// A client that sends more than that without completing a line is dropped
+		private static final int MAX_LINE_LENGTH = 8192;
+
+		private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+		private static final String[] METHODS = new String[] {
+			"OPTIONS", "DESCRIBE", "SETUP", "PLAY", "PAUSE", "TEARDOWN", "GET_PARAMETER", "SET_PARAMETER"
+		};
 
-			// Parsing request method & uri
-			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
-			Log.d(TAG,line);
-			matcher = regexMethod.matcher(line);
-			matcher.find();
-			request.method = matcher.group(1);
-			request.uri = matcher.group(2);
+		private static final String[] HEADERS = new String[] {
+			"cseq", "transport", "session", "authorization", "content-length", "content-type",
+			"user-agent", "accept", "range", "require", "scale", "speed"
+		};
 
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null && line.length()>3 ) {
-				matcher = rexegHeader.matcher(line);
-				matcher.find();
-				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+		private byte[] mBuffer = new byte[2048];
+		private int mPosition = 0, mLength = 0;
+		private int mSkip = 0;
+		private Request mRequest = null;
+		private boolean mMalformed = false;
+
+		public void feed(byte[] data, int offset, int length) throws IOException {
+			if (mPosition > 0) {
+				System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLength - mPosition);
+				mLength -= mPosition;
+				mPosition = 0;
+			}
+			if (mLength + length > mBuffer.length) {
+				if (mLength + length > MAX_LINE_LENGTH + 4) {
+					throw new IOException("Line too long");
+				}
+				byte[] buffer = new byte[Math.max(mBuffer.length*2, mLength + length)];
+				System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+				mBuffer = buffer;
 			}
-			if (line==null) throw new SocketException("Client disconnected");
+			System.arraycopy(data, offset, mBuffer, mLength, length);
+			mLength += length;
+		}
 
-			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
-			Log.e(TAG,request.method+" "+request.uri);
+		/** Returns the next complete request or null if more data is needed. */
+		public Request next() {
+			while (true) {
+				if (mSkip > 0) {
+					int n = Math.min(mSkip, mLength - mPosition);
+					mPosition += n;
+					mSkip -= n;
+					if (mSkip > 0) return null;
+				}
+
+				// Interleaved frame: '$', channel, 16 bits length
+				if (mRequest == null && mPosition < mLength && mBuffer[mPosition] == '$') {
+					if (mLength - mPosition < 4) return null;
+					mSkip = 4 + (((mBuffer[mPosition+2]&0xFF)<<8) | (mBuffer[mPosition+3]&0xFF));
+					continue;
+				}
 
-			return request;
+				int eol = indexOf((byte) '\n', mPosition, mLength);
+				if (eol < 0) return null;
+				int start = mPosition, end = eol > start && mBuffer[eol-1] == '\r' ? eol-1 : eol;
+				mPosition = eol+1;
+
+				if (mRequest == null) {
+					// Empty lines between requests are tolerated
+					if (start == end) continue;
+					mRequest = new Request();
+					mMalformed = !parseRequestLine(start, end);
+					if (mMalformed) {
+						Log.e(TAG,"Malformed request: "+new String(mBuffer, start, end-start, ASCII));
+					}
+				} else if (start < end) {
+					parseHeader(start, end);
+				} else {
+					Request request = mRequest;
+					mRequest = null;
+					String length = request.headers.get("content-length");
+					if (length != null) {
+						try {
+							mSkip = Math.max(0, Integer.parseInt(length));
+						} catch (NumberFormatException ignore) {}
+					}
+					// We don't understand the request, it is ignored like in the threaded mode
+					if (mMalformed) continue;
+					// It's not an error, it's just easier to follow what's happening in logcat with the request in red
+					Log.e(TAG,request.method+" "+request.uri);
+					return request;
+				}
+			}
+		}
+
+		/** Method SP Request-URI SP RTSP-Version */
+		private boolean parseRequestLine(int start, int end) {
+			int sp1 = indexOf((byte) ' ', start, end);
+			if (sp1 <= start) return false;
+			for (int i=start;i<sp1;i++) {
+				byte c = mBuffer[i];
+				if (!((c>='A' && c<='Z') || (c>='a' && c<='z') || (c>='0' && c<='9') || c=='_')) return false;
+			}
+			int sp2 = indexOf((byte) ' ', sp1+1, end);
+			if (sp2 <= sp1+1 || end - sp2 - 1 < 4 || !regionMatches(sp2+1, "RTSP")) return false;
+			mRequest.method = token(start, sp1, METHODS);
+			mRequest.uri = new String(mBuffer, sp1+1, sp2-sp1-1, ASCII);
+			return true;
 		}
+
+		/** Name: value, the name is stored in lower case and the value is trimmed */
+		private void parseHeader(int start, int end) {
+			int colon = indexOf((byte) ':', start, end);
+			if (colon <= start) return;
+			int nameEnd = colon, valueStart = colon+1;
+			while (nameEnd > start && mBuffer[nameEnd-1] == ' ') nameEnd--;
+			while (valueStart < end && mBuffer[valueStart] == ' ') valueStart++;
+			while (end > valueStart && mBuffer[end-1] == ' ') end--;
+			String name = token(start, nameEnd, HEADERS);
+			if (name == null) name = new String(mBuffer, start, nameEnd-start, ASCII).toLowerCase(Locale.US);
+			mRequest.headers.put(name, new String(mBuffer, valueStart, end-valueStart, ASCII));
+		}
+
+		/** Returns the string of the table equal to the token, ignoring case. */
+		private String token(int start, int end, String[] table) {
+			for (String s : table) {
+				if (s.length() == end-start && regionMatches(start, s)) return s;
+			}
+			return table == METHODS ? new String(mBuffer, start, end-start, ASCII) : null;
+		}
+
+		private boolean regionMatches(int start, String s) {
+			for (int i=0;i<s.length();i++) {
+				int c = mBuffer[start+i];
+				if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+				int d = s.charAt(i);
+				if (d >= 'A' && d <= 'Z') d += 'a' - 'A';
+				if (c != d) return false;
+			}
+			return true;
+		}
+
+		private int indexOf(byte b, int start, int end) {
+			for (int i=start;i<end;i++) {
+				if (mBuffer[i] == b) return i;
+			}
+			return -1;
+		}
+
 	}
 
 	static class Response {
@@ -680,6 +1282,7 @@ public class RtspServer extends Service {
 		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
         public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
 		public static final String STATUS_NOT_FOUND = "404 Not Found";
+		public static final String STATUS_INVALID_RANGE = "457 Invalid Range";
 		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
 		public String status = STATUS_INTERNAL_SERVER_ERROR;
@@ -698,6 +1301,11 @@ public class RtspServer extends Service {
 		}
 
 		public void send(OutputStream output) throws IOException {
+			output.write(getBytes());
+		}
+
+		/** Returns the response as it is sent to the client. */
+		public byte[] getBytes() {
 			int seqid = -1;
 
 			try {
@@ -716,7 +1324,7 @@ public class RtspServer extends Service {
 
 			Log.d(TAG,response.replace("\r", ""));
 
-			output.write(response.getBytes());
+			return response.getBytes();
 		}
 	}
 
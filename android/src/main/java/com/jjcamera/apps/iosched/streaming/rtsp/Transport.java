@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtsp;
+
+/**
+ * The Transport header of a RTSP request (RFC 2326 section 12.39).
+ * Only the first transport specification is kept when the client proposes several of them.
+ * Numeric fields are set to -1 when the parameter is absent.
+ */
+public class Transport {
+
+	/** The transport protocol, profile and lower transport, RTP/AVP or RTP/AVP/TCP for instance. */
+	public String protocol = "RTP/AVP";
+	public boolean multicast = false;
+	public String destination = null;
+	public int clientRtpPort = -1, clientRtcpPort = -1;
+	public int serverRtpPort = -1, serverRtcpPort = -1;
+	public int interleavedRtp = -1, interleavedRtcp = -1;
+	public int ttl = -1;
+	public boolean hasSsrc = false;
+	public int ssrc = 0;
+	public String mode = null;
+
+	/** Returns true if RTP packets must be sent over the RTSP connection. */
+	public boolean isTcp() {
+		return protocol.regionMatches(true, protocol.length()-4, "/TCP", 0, 4) || interleavedRtp >= 0;
+	}
+
+	/** 
+	 * Parses a Transport header without regular expressions.
+	 * @param header The value of the header, may be null
+	 * @return The transport, with its default values if the header is null or empty
+	 */
+	public static Transport parse(String header) {
+		Transport transport = new Transport();
+		if (header == null) return transport;
+
+		int length = header.indexOf(',');
+		if (length < 0) length = header.length();
+
+		int start = 0;
+		boolean first = true;
+		while (start < length) {
+			int end = header.indexOf(';', start);
+			if (end < 0 || end > length) end = length;
+			int s = skipSpaces(header, start, end), e = trimEnd(header, s, end);
+			if (s < e) {
+				if (first) {
+					transport.protocol = header.substring(s, e);
+				} else {
+					transport.parameter(header, s, e);
+				}
+			}
+			first = false;
+			start = end+1;
+		}
+		return transport;
+	}
+
+	private void parameter(String header, int start, int end) {
+		int eq = header.indexOf('=', start);
+		if (eq < 0 || eq > end) {
+			if (matches(header, start, end, "unicast")) multicast = false;
+			else if (matches(header, start, end, "multicast")) multicast = true;
+			return;
+		}
+		int k = trimEnd(header, start, eq), v = skipSpaces(header, eq+1, end);
+		if (matches(header, start, k, "client_port")) {
+			int[] range = parseRange(header, v, end);
+			clientRtpPort = range[0];
+			clientRtcpPort = range[1];
+		} else if (matches(header, start, k, "server_port")) {
+			int[] range = parseRange(header, v, end);
+			serverRtpPort = range[0];
+			serverRtcpPort = range[1];
+		} else if (matches(header, start, k, "interleaved")) {
+			int[] range = parseRange(header, v, end);
+			interleavedRtp = range[0];
+			interleavedRtcp = range[1];
+		} else if (matches(header, start, k, "ttl")) {
+			ttl = parseInt(header, v, end, 10);
+		} else if (matches(header, start, k, "ssrc")) {
+			int n = parseInt(header, v, end, 16);
+			hasSsrc = v < end;
+			ssrc = n;
+		} else if (matches(header, start, k, "destination")) {
+			destination = header.substring(v, end);
+		} else if (matches(header, start, k, "mode")) {
+			if (v < end && header.charAt(v) == '"') v++;
+			int e = end;
+			if (e > v && header.charAt(e-1) == '"') e--;
+			mode = header.substring(v, e);
+		}
+	}
+
+	/** Parses "a-b" or "a", in which case b is a+1. */
+	private static int[] parseRange(String s, int start, int end) {
+		int dash = s.indexOf('-', start);
+		if (dash < 0 || dash > end) {
+			int a = parseInt(s, start, end, 10);
+			return new int[] { a, a < 0 ? -1 : a+1 };
+		}
+		return new int[] { parseInt(s, start, dash, 10), parseInt(s, dash+1, end, 10) };
+	}
+
+	private static int parseInt(String s, int start, int end, int radix) {
+		long n = 0;
+		int i = start;
+		for (;i<end;i++) {
+			int d = Character.digit(s.charAt(i), radix);
+			if (d < 0) break;
+			n = n*radix + d;
+			if (n > 0xFFFFFFFFL) return -1;
+		}
+		return i == start ? -1 : (int) n;
+	}
+
+	private static boolean matches(String s, int start, int end, String name) {
+		return end - start == name.length() && s.regionMatches(true, start, name, 0, name.length());
+	}
+
+	private static int skipSpaces(String s, int start, int end) {
+		while (start < end && s.charAt(start) == ' ') start++;
+		return start;
+	}
+
+	private static int trimEnd(String s, int start, int end) {
+		while (end > start && s.charAt(end-1) == ' ') end--;
+		return end;
+	}
+
+}
@@ -71,8 +71,8 @@ public class UriParser {
 		if(mCurrentSession != null)		return mCurrentSession;
 		
 		byte audioApi = MediaStream.MODE_MEDIARECORDER_API;
-		byte videoApi = MediaStream.MODE_MEDIARECORDER_API;
-		//byte videoApi = MediaStream.MODE_MEDIACODEC_API;	
+		// The video stream uses the MediaCodec API with a surface when the phone allows it
+		byte videoApi = 0;
 		
 		SessionBuilder builder = SessionBuilder.getInstance().clone();
 
@@ -84,7 +84,7 @@ public class UriParser {
 
 		Session session = builder.build();
 		
-		if (session.getVideoTrack() != null) {
+		if (videoApi>0 && session.getVideoTrack() != null) {
 			session.getVideoTrack().setStreamingMethod(videoApi);
 		}
 		
@@ -178,13 +178,15 @@ public class UriParser {
 					}					
 				}
 				
-				// VIDEOAPI -> can be used to specify what api will be used to encode video (the MediaRecorder API or the MediaCodec API)
+				// VIDEOAPI -> can be used to specify what api will be used to encode video (the MediaRecorder API, or the MediaCodec API fed with buffers or with a surface)
 				else if (paramName.equalsIgnoreCase("videoapi")) {
 					if (paramValue!=null) {
 						if (paramValue.equalsIgnoreCase("mr")) {
 							videoApi = MediaStream.MODE_MEDIARECORDER_API;
 						} else if (paramValue.equalsIgnoreCase("mc")) {
 							videoApi = MediaStream.MODE_MEDIACODEC_API;
+						} else if (paramValue.equalsIgnoreCase("mcs")) {
+							videoApi = MediaStream.MODE_MEDIACODEC_API_2;
 						}
 					}					
 				}
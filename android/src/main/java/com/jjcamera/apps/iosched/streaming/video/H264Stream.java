@@ -112,6 +112,7 @@ public class H264Stream extends VideoStream {
 		super.configure();
 		mMode = mRequestedMode;
 		mQuality = mRequestedQuality.clone();
+		checkStreamingMethod();
 		mConfig = testH264();
 	}
 	
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.video;
+
+import android.util.Log;
+
+/**
+ * Detects motion in the preview frames of the camera, in the NV21 format.
+ * Only the luma plane is read, one sample (the average of a 2x2 block) every few pixels, 
+ * in a buffer allocated once. The samples are compared to a background that slowly
+ * follows the scene, a sample differs when it is farther than the threshold from the background,
+ * once the change of the average luma of the frame (auto exposure, lights) has been removed.
+ * Motion starts when enough samples differ in a few consecutive frames, and stops after a 
+ * while without any. Nothing is allocated per frame, it costs about a pass over a thumbnail.
+ */
+public class MotionDetector {
+
+	public final static String TAG = "MotionDetector";
+
+	/** Default number of samples across the width of the frame. */
+	public final static int DEFAULT_COLUMNS = 80;
+
+	/** Default difference of luma above which a sample differs from the background. */
+	public final static int DEFAULT_THRESHOLD = 25;
+
+	/** Default percentage of the samples that must differ for a frame to be moving. */
+	public final static float DEFAULT_SENSITIVITY = 1.5f;
+
+	/** Default time in ms without motion after which motion stops. */
+	public final static long DEFAULT_HOLD_TIME = 5000;
+
+	/** Number of consecutive moving frames that start motion, a single one is often noise. */
+	private final static int TRIGGER_FRAMES = 3;
+
+	/** The background moves 1/2^BACKGROUND_SHIFT of the way to the frame at every frame. */
+	private final static int BACKGROUND_SHIFT = 5;
+
+	/** Fractional bits of the background. */
+	private final static int FRACTION_BITS = 8;
+
+	public interface Listener {
+		/** Called in the thread of the preview callback. */
+		void onMotionStarted();
+		/** Called in the thread of the preview callback, after the hold time. */
+		void onMotionStopped();
+	}
+
+	private int mColumns = DEFAULT_COLUMNS, mThreshold = DEFAULT_THRESHOLD;
+	private float mSensitivity = DEFAULT_SENSITIVITY;
+	private long mHoldTime = DEFAULT_HOLD_TIME;
+	private Listener mListener = null;
+
+	// Grid of samples, computed when the size of the frames changes
+	private int mWidth = 0, mHeight = 0, mStep, mRows, mCount;
+	private int[] mSamples, mBackground;
+	private boolean mLearned = false;
+
+	private volatile boolean mMotion = false;
+	private volatile int mLevel = 0;
+	private int mMovingFrames = 0;
+	private long mLastMotion = 0;
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Sets how much of the frame must change to detect motion.
+	 * @param threshold The difference of luma above which a sample changed, 0 to 255
+	 * @param sensitivity The percentage of the samples that must change
+	 */
+	public synchronized void setSensitivity(int threshold, float sensitivity) {
+		mThreshold = threshold;
+		mSensitivity = sensitivity;
+	}
+
+	/** Sets the time in ms without motion after which motion stops. */
+	public synchronized void setHoldTime(long holdTime) {
+		mHoldTime = holdTime;
+	}
+
+	/** 
+	 * Sets the number of samples across the width of the frame, the rows follow the aspect ratio.
+	 * More samples detect smaller objects and cost more. 
+	 */
+	public synchronized void setColumns(int columns) {
+		mColumns = Math.max(4, columns);
+		mWidth = mHeight = 0;
+	}
+
+	/** Returns true while motion is detected. */
+	public boolean isMotion() {
+		return mMotion;
+	}
+
+	/** Returns the percentage of the samples that changed in the last frame, for tuning the sensitivity. */
+	public float getLevel() {
+		return mLevel / 100f;
+	}
+
+	/** Forgets the background, the next frame becomes it. */
+	public synchronized void reset() {
+		mLearned = false;
+		mMovingFrames = 0;
+		mMotion = false;
+	}
+
+	/**
+	 * Analyzes a preview frame.
+	 * @param data The frame in the NV21 format, or any format that starts with a luma plane
+	 * @param width The width of the frame
+	 * @param height The height of the frame
+	 * @param time The time of the frame in ms
+	 * @return True while motion is detected
+	 */
+	public synchronized boolean onFrame(byte[] data, int width, int height, long time) {
+		if (data == null || data.length < width*height) return mMotion;
+		if (width != mWidth || height != mHeight) setSize(width, height);
+
+		sample(data);
+		int changed = compare();
+		mLevel = (int) (changed * 10000L / mCount);
+		boolean moving = changed * 100f >= mSensitivity * mCount;
+
+		if (moving) {
+			mMovingFrames++;
+			if (mMovingFrames >= TRIGGER_FRAMES) mLastMotion = time;
+		} else {
+			mMovingFrames = 0;
+		}
+
+		if (!mMotion && mMovingFrames >= TRIGGER_FRAMES) {
+			Log.d(TAG, "Motion started, " + getLevel() + "% of the frame changed");
+			mMotion = true;
+			if (mListener != null) mListener.onMotionStarted();
+		} else if (mMotion && time - mLastMotion >= mHoldTime) {
+			Log.d(TAG, "Motion stopped");
+			mMotion = false;
+			if (mListener != null) mListener.onMotionStopped();
+		}
+		return mMotion;
+	}
+
+	private void setSize(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mStep = Math.max(2, width / mColumns);
+		int columns = width / mStep, rows = height / mStep;
+		mRows = rows;
+		mCount = columns * rows;
+		mSamples = new int[mCount];
+		mBackground = new int[mCount];
+		mLearned = false;
+		mMovingFrames = 0;
+	}
+
+	/** Averages a 2x2 block of the luma plane at every point of the grid. */
+	private void sample(byte[] data) {
+		int step = mStep, width = mWidth, columns = mCount / mRows;
+		int[] samples = mSamples;
+		int k = 0;
+		for (int r = 0; r < mRows; r++) {
+			int i = (r * step + step / 2) * width + step / 2;
+			for (int c = 0; c < columns; c++, i += step) {
+				samples[k++] = ((data[i] & 0xFF) + (data[i+1] & 0xFF) 
+						+ (data[i+width] & 0xFF) + (data[i+width+1] & 0xFF)) >> 2;
+			}
+		}
+	}
+
+	/** 
+	 * Counts the samples that differ from the background and updates it. 
+	 * The first frame becomes the background.
+	 */
+	private int compare() {
+		int[] samples = mSamples, background = mBackground;
+		int count = mCount;
+
+		if (!mLearned) {
+			for (int i = 0; i < count; i++) background[i] = samples[i] << FRACTION_BITS;
+			mLearned = true;
+			return 0;
+		}
+
+		// Change of the average luma, it is not motion
+		long sum = 0;
+		for (int i = 0; i < count; i++) sum += (samples[i] << FRACTION_BITS) - background[i];
+		int offset = (int) (sum / count);
+
+		int threshold = mThreshold << FRACTION_BITS, changed = 0;
+		for (int i = 0; i < count; i++) {
+			int diff = (samples[i] << FRACTION_BITS) - background[i];
+			if (diff - offset > threshold || offset - diff > threshold) changed++;
+			background[i] += diff >> BACKGROUND_SHIFT;
+		}
+		return changed;
+	}
+
+}
@@ -24,31 +24,32 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.Date;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.io.File;
-import java.io.FileOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 
 import com.jjcamera.apps.iosched.streaming.MediaStream;
-import com.jjcamera.apps.iosched.streaming.SessionBuilder;
 import com.jjcamera.apps.iosched.streaming.Stream;
 import com.jjcamera.apps.iosched.streaming.exceptions.CameraInUseException;
 import com.jjcamera.apps.iosched.streaming.exceptions.ConfNotSupportedException;
 import com.jjcamera.apps.iosched.streaming.exceptions.InvalidSurfaceException;
 import com.jjcamera.apps.iosched.streaming.exceptions.StorageUnavailableException;
 import com.jjcamera.apps.iosched.streaming.gl.SurfaceView;
+import com.jjcamera.apps.iosched.streaming.gl.TextOverlay;
+import com.jjcamera.apps.iosched.streaming.hw.CapabilityCache;
 import com.jjcamera.apps.iosched.streaming.hw.EncoderDebugger;
 import com.jjcamera.apps.iosched.streaming.hw.NV21Convertor;
 import com.jjcamera.apps.iosched.streaming.mp4.MP4Muxer;
+import com.jjcamera.apps.iosched.streaming.rtcp.BitrateController;
+import com.jjcamera.apps.iosched.streaming.rtp.BitstreamScanner;
 import com.jjcamera.apps.iosched.streaming.rtp.MediaCodecInputStream;
-import com.jjcamera.apps.iosched.util.SDCardUtils;
-import com.jjcamera.apps.iosched.util.UIUtils;
 
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
@@ -57,9 +58,11 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -72,6 +75,9 @@ public abstract class VideoStream extends MediaStream {
 
 	protected final static String TAG = "VideoStream";
 
+	// Type of the atom of a MP4 file that holds the samples
+	private final static byte[] MDAT = new byte[] { 'm', 'd', 'a', 't' };
+
 	protected VideoQuality mRequestedQuality = VideoQuality.DEFAULT_VIDEO_QUALITY.clone();
 	protected VideoQuality mQuality = mRequestedQuality.clone(); 
 	protected SurfaceHolder.Callback mSurfaceHolderCallback = null;
@@ -97,6 +103,30 @@ public abstract class VideoStream extends MediaStream {
 	protected int mCameraImageFormat;
 	protected int mMaxFps = 0;	
 
+	/** The bitrate of the encoder never goes below the bitrate of the quality divided by this. */
+	public static final int MIN_BITRATE_RATIO = 8;
+
+	/** Number of preview frames used to measure the frame rate of the camera. */
+	private static final int FRAMERATE_FRAMES = 20;
+
+	/** Version of the frame rate entries of the {@link CapabilityCache}. */
+	private static final int FRAMERATE_VERSION = 1;
+
+	/** A cached frame rate is replaced when it is off by more than this percentage. */
+	private static final int FRAMERATE_TOLERANCE = 15;
+
+	/** Version of the entries of the {@link CapabilityCache} about the surface-to-buffer method. */
+	private static final int SURFACE_VERSION = 1;
+
+	protected boolean mAdaptiveBitrate = true;
+	protected BitrateController mBitrateController;
+	protected TextOverlay mOverlay = null;
+
+	// The input surface of the encoder, other encoders may render the preview too
+	private Surface mInputSurface = null;
+	protected MotionDetector mMotionDetector = null;
+	private boolean mMotion = false;
+
 	/** 
 	 * Don't use this class directly.
 	 * Uses CAMERA_FACING_BACK by default.
@@ -113,6 +143,10 @@ public abstract class VideoStream extends MediaStream {
 	public VideoStream(int camera) {
 		super();
 		setCamera(camera);
+		// The camera preview goes through the GPU to the encoder, without being copied and converted
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			mRequestedMode = mMode = MODE_MEDIACODEC_API_2;
+		}
 	}
 
 	/**
@@ -272,6 +306,37 @@ public abstract class VideoStream extends MediaStream {
 		return mRequestedQuality;
 	}
 
+	/**
+	 * Adapts the bitrate of the encoder to the reports of the receivers, enabled by default.
+	 * The bitrate of the quality is the maximum. It only works with the MediaCodec API, starting with KitKat.
+	 */
+	public void setAdaptiveBitrate(boolean enabled) {
+		mAdaptiveBitrate = enabled;
+	}
+
+	/** Returns the controller of the bitrate while the stream is running, or null. */
+	public BitrateController getBitrateController() {
+		return mBitrateController;
+	}
+
+	/**
+	 * Sets a text drawn over the video before it is encoded, with the timestamp for instance. 
+	 * Only used with {@link #MODE_MEDIACODEC_API_2}, changes will take effect next time you start the stream.
+	 * @param overlay The overlay, or null to remove it
+	 */
+	public void setOverlay(TextOverlay overlay) {
+		mOverlay = overlay;
+	}
+
+	/**
+	 * Only records the video while the detector sees motion, with the GOP that preceded it.
+	 * The preview frames are analyzed with the MediaCodec API, changes will take effect next time you start the stream.
+	 * @param detector The detector, or null to record everything
+	 */
+	public void setMotionDetector(MotionDetector detector) {
+		mMotionDetector = detector;
+	}
+
 	/**
 	 * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is called 
 	 * @param prefs The SharedPreferences that will be used to save SPS and PPS parameters
@@ -302,12 +367,17 @@ public abstract class VideoStream extends MediaStream {
 
 	/** Stops the stream. */
 	public synchronized void stop() {
+		if (mBitrateController != null) {
+			mPacketizer.getRtpSocket().setBitrateController(null);
+			mBitrateController = null;
+		}
 		if (mCamera != null) {
 			if (mMode == MODE_MEDIACODEC_API) {
 				mCamera.setPreviewCallbackWithBuffer(null);
 			}
 			if (mMode == MODE_MEDIACODEC_API_2) {
-				((SurfaceView)mSurfaceView).removeMediaCodecSurface();
+				if (mMotionDetector != null) mCamera.setPreviewCallbackWithBuffer(null);
+				removeInputSurface();
 			}
 			super.stop();
 			// We need to restart the preview
@@ -406,63 +476,88 @@ public abstract class VideoStream extends MediaStream {
 		}
 
 		// This will skip the MPEG4 header if this step fails we can't stream anything :(
+		// The scanner searches the mdat atom in its buffer, the packetizer then reads what's left in it
+		BitstreamScanner scanner = new BitstreamScanner(is);
 		try {
-			byte buffer[] = new byte[4];
 			// Skip all atoms preceding mdat atom
-			while (!Thread.interrupted()) {
-				while (is.read() != 'm');
-				is.read(buffer,0,3);
-				if (buffer[0] == 'd' && buffer[1] == 'a' && buffer[2] == 't') break;
-			}
+			scanner.skipPast(MDAT);
 		} catch (IOException e) {
 			Log.e(TAG,"Couldn't skip mp4 header :/");
 			stop();
 			throw e;
 		}
 
-		FileOutputStream fop = createTempRecorder();
+		// The video is recorded along with the stream, the preview frames can't be analyzed
+		MP4Muxer.getInstance().setVideoFormat(mRequestedQuality.resX, mRequestedQuality.resY);
+		MP4Muxer.getInstance().setTriggered(false);
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-		mPacketizer.setOutputStream(fop);
-		mPacketizer.setInputStream(is);
+		mPacketizer.setInputStream(scanner);
 		mPacketizer.start();
 
 		mStreaming = true;
 
 	}
 
-	static public FileOutputStream createTempRecorder(){
-		final String H264FILE = SDCardUtils.getExternalSdCardPathForVideo()+"/recorder" + (new Date()).getTime() + ".h264";
-
-		Log.i(TAG,"Saving temp H264 file at: "+H264FILE);
-
-		FileOutputStream fop = null;
-		try {
-			File file = new File(H264FILE);
-			file.createNewFile();
-			fop = new FileOutputStream(file);
-
-			MP4Muxer.getInstance().setVideoSource(H264FILE);
-		} catch (IOException e) {
-			//throw new StorageUnavailableException(e.getMessage());
-			UIUtils.DisplayToast(SessionBuilder.getInstance().getContext(), e.getMessage());
-		}
-		return fop;
-	}
-
 	/**
 	 * Video encoding is done by a MediaCodec.
 	 */
 	protected void encodeWithMediaCodec() throws RuntimeException, IOException {
 		if (mMode == MODE_MEDIACODEC_API_2) {
 			// Uses the method MediaCodec.createInputSurface to feed the encoder
-			encodeWithMediaCodecMethod2();
-		} else {
-			// Uses dequeueInputBuffer to feed the encoder
-			encodeWithMediaCodecMethod1();
+			if (encodeWithMediaCodecMethod2()) return;
+			mMode = MODE_MEDIACODEC_API;
 		}
+		// Uses dequeueInputBuffer to feed the encoder
+		encodeWithMediaCodecMethod1();
 	}	
 
+	/**
+	 * Falls back on the buffer-to-buffer method of the MediaCodec API when the 
+	 * surface-to-buffer method can't be used. Must be called before the camera is created.
+	 */
+	protected void checkStreamingMethod() {
+		if (mMode != MODE_MEDIACODEC_API_2) return;
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Log.d(TAG,"Android 4.3 is needed to feed the encoder with a surface");
+			mMode = MODE_MEDIACODEC_API;
+		} else if (mSettings != null && CapabilityCache.getInstance(mSettings).get(getSurfaceKey(), SURFACE_VERSION) != null) {
+			Log.d(TAG,"Feeding the encoder with a surface failed before on this phone");
+			mMode = MODE_MEDIACODEC_API;
+		}
+	}
+
+	private String getSurfaceKey() {
+		return CapabilityCache.key("surface", "video/avc", mQuality.resX+"x"+mQuality.resY);
+	}
+
+	/** Remembers that the surface-to-buffer method failed with this resolution. */
+	private void saveSurfaceUnusable() {
+		if (mSettings == null) return;
+		try {
+			CapabilityCache.getInstance(mSettings).put(getSurfaceKey(), SURFACE_VERSION, new JSONObject().put("usable", false));
+		} catch (JSONException e) {
+			Log.e(TAG, e.getMessage());
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private void releaseMediaCodecSurface() {
+		removeInputSurface();
+		if (mMediaCodec != null) {
+			try {
+				mMediaCodec.release();
+			} catch (Exception ignore) {}
+			mMediaCodec = null;
+		}
+	}
+
+	/** Stops rendering the preview in the input surface of this encoder only. */
+	private void removeInputSurface() {
+		if (mSurfaceView != null && mInputSurface != null) mSurfaceView.removeMediaCodecSurface(mInputSurface);
+		mInputSurface = null;
+	}
+
 	/**
 	 * Video encoding is done by a MediaCodec.
 	 */
@@ -502,16 +597,20 @@ public abstract class VideoStream extends MediaStream {
 		mMediaCodec.start();
 
 		Camera.PreviewCallback callback = new Camera.PreviewCallback() {
-			long now = System.nanoTime()/1000, oldnow = now, i=0;
+			long now = System.nanoTime()/1000;
+			FramerateMeter meter = new FramerateMeter();
 			ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
 			@Override
 			public void onPreviewFrame(byte[] data, Camera camera) {
-				oldnow = now;
 				now = System.nanoTime()/1000;
-				if (i++>3) {
-					i = 0;
-					//Log.d(TAG,"Measured: "+1000000L/(now-oldnow)+" fps.");
+				if (meter != null) {
+					int framerate = meter.onFrame(now);
+					if (framerate>0) {
+						meter = null;
+						checkFramerate(framerate);
+					}
 				}
+				detectMotion(data);
 				try {
 					int bufferIndex = mMediaCodec.dequeueInputBuffer(500000);
 					if (bufferIndex>=0) {
@@ -532,8 +631,11 @@ public abstract class VideoStream extends MediaStream {
 		mCamera.setPreviewCallbackWithBuffer(callback);
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
+		MP4Muxer.getInstance().setVideoFormat(mQuality.resX, mQuality.resY);
+		startMotionDetection(false);
 		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
 		mPacketizer.start();
+		startBitrateControl();
 
 		mStreaming = true;
 
@@ -542,9 +644,10 @@ public abstract class VideoStream extends MediaStream {
 	/**
 	 * Video encoding is done by a MediaCodec.
 	 * But here we will use the buffer-to-surface method
+	 * @return False if the encoder can't be fed with a surface, the buffer method must be used instead
 	 */
 	@SuppressLint({ "InlinedApi", "NewApi" })	
-	protected void encodeWithMediaCodecMethod2() throws RuntimeException, IOException {
+	protected boolean encodeWithMediaCodecMethod2() throws RuntimeException, IOException {
 
 		Log.d(TAG,"Video encoded using the MediaCodec API with a surface");
 
@@ -563,17 +666,102 @@ public abstract class VideoStream extends MediaStream {
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
 		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-		Surface surface = mMediaCodec.createInputSurface();
-		((SurfaceView)mSurfaceView).addMediaCodecSurface(surface);
-		mMediaCodec.start();
+
+		// Only a failure of the encoder with a surface is remembered, not a camera or a preview that is not ready
+		try {
+			mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			mInputSurface = mMediaCodec.createInputSurface();
+			mSurfaceView.addMediaCodecSurface(mInputSurface, mRequestedQuality.framerate, mOverlay);
+			mMediaCodec.start();
+		} catch (RuntimeException e) {
+			Log.e(TAG,"The encoder can't be fed with a surface, we fallback on the buffer method.", e);
+			releaseMediaCodecSurface();
+			saveSurfaceUnusable();
+			return false;
+		}
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
+		MP4Muxer.getInstance().setVideoFormat(mQuality.resX, mQuality.resY);
+		startMotionDetection(true);
 		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
 		mPacketizer.start();
+		startBitrateControl();
 
 		mStreaming = true;
+		return true;
+
+	}
+
+	/**
+	 * Makes the recording follow the {@link MotionDetector}, if there is one.
+	 * @param callback True if the preview frames must be requested, the encoder doesn't need them
+	 */
+	private void startMotionDetection(boolean callback) {
+		mMotion = false;
+		MP4Muxer.getInstance().setTriggered(mMotionDetector != null);
+		if (mMotionDetector == null) return;
+		mMotionDetector.reset();
+		if (!callback) return;
+
+		// Replaces the callback that measures the frame rate again
+		mCamera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+			FramerateMeter meter = new FramerateMeter();
+			@Override
+			public void onPreviewFrame(byte[] data, Camera camera) {
+				if (meter != null) {
+					int framerate = meter.onFrame(System.nanoTime()/1000);
+					if (framerate>0) {
+						meter = null;
+						checkFramerate(framerate);
+					}
+				}
+				detectMotion(data);
+				camera.addCallbackBuffer(data);
+			}
+		});
+		int size = mQuality.resX*mQuality.resY*ImageFormat.getBitsPerPixel(mCameraImageFormat)/8;
+		for (int i=0;i<3;i++) mCamera.addCallbackBuffer(new byte[size]);
+	}
 
+	/** Called in the thread of the camera with every preview frame. */
+	private void detectMotion(byte[] data) {
+		MotionDetector detector = mMotionDetector;
+		if (detector == null || data == null) return;
+		boolean motion = detector.onFrame(data, mQuality.resX, mQuality.resY, SystemClock.elapsedRealtime());
+		if (motion != mMotion) {
+			mMotion = motion;
+			MP4Muxer.getInstance().setTriggerActive(motion);
+		}
+	}
+
+	/**
+	 * The bitrate of the encoder follows the controller, which is given the receiver reports of the RTP socket.
+	 */
+	private void startBitrateControl() {
+		if (!mAdaptiveBitrate || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+		mBitrateController = new BitrateController(mQuality.bitrate/MIN_BITRATE_RATIO, mQuality.bitrate);
+		mBitrateController.setListener(new BitrateController.Listener() {
+			@Override
+			public void onBitrateChanged(int bitrate) {
+				setEncoderBitrate(bitrate);
+			}
+		});
+		mPacketizer.getRtpSocket().setBitrateController(mBitrateController);
+	}
+
+	/** Changes the bitrate of the running encoder, called from the thread that received the report. */
+	@SuppressLint("NewApi")
+	private void setEncoderBitrate(int bitrate) {
+		MediaCodec codec = mMediaCodec;
+		if (codec == null) return;
+		Bundle params = new Bundle();
+		params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+		try {
+			codec.setParameters(params);
+			Log.d(TAG, "Encoder bitrate: " + bitrate + " bit/s");
+		} catch (IllegalStateException e) {
+			// The encoder has just been released
+		}
 	}
 
 	/**
@@ -691,6 +879,13 @@ public abstract class VideoStream extends MediaStream {
 
 				try {
 					if (mMode == MODE_MEDIACODEC_API_2) {
+						if (mPreviewStarted) {
+							// The camera was opened outside and previews in the SurfaceView,
+							// the GL thread needs the surface and the camera a texture
+							mCamera.stopPreview();
+							mCamera.setPreviewDisplay(null);
+							mPreviewStarted = false;
+						}
 						mSurfaceView.startGLThread();
 						mCamera.setPreviewTexture(mSurfaceView.getSurfaceTexture());
 					} else {
@@ -794,42 +989,99 @@ public abstract class VideoStream extends MediaStream {
 	}
 
 
+	/**
+	 * Averages the interval between preview frames, the first few ones are skipped.
+	 */
+	private static class FramerateMeter {
+		private int mFrames = 0;
+		private long mOldNow, mSum = 0;
+
+		/** Returns the measured frame rate once enough frames were seen, 0 before. */
+		public int onFrame(long now) {
+			mFrames++;
+			if (mFrames>4) mSum += now - mOldNow;
+			mOldNow = now;
+			if (mFrames<=FRAMERATE_FRAMES) return 0;
+			return (int) (1000000/(mSum/(mFrames-4))+1);
+		}
+	}
+
+	private String getFramerateKey() {
+		return CapabilityCache.key("fps", mCameraId, mCameraImageFormat, 
+				mRequestedQuality.resX+"x"+mRequestedQuality.resY, mRequestedQuality.framerate);
+	}
+
+	/**
+	 * Called when the frame rate has been measured again while streaming,
+	 * the cached value is replaced if it was off.
+	 */
+	private void checkFramerate(int framerate) {
+		if (mSettings == null) return;
+		CapabilityCache cache = CapabilityCache.getInstance(mSettings);
+		JSONObject cached = cache.get(getFramerateKey(), FRAMERATE_VERSION);
+		if (cached != null && Math.abs(cached.optInt("fps")-framerate)*100 <= cached.optInt("fps")*FRAMERATE_TOLERANCE) return;
+		Log.d(TAG,"Framerate measured while streaming: "+framerate+", cached: "+(cached != null ? cached.optInt("fps") : "none"));
+		saveFramerate(cache, framerate);
+	}
+
+	private void saveFramerate(CapabilityCache cache, int framerate) {
+		try {
+			cache.put(getFramerateKey(), FRAMERATE_VERSION, new JSONObject().put("fps", framerate));
+		} catch (JSONException e) {
+			Log.e(TAG, e.getMessage());
+		}
+	}
+
 	/**
 	 * Computes the average frame rate at which the preview callback is called.
 	 * We will then use this average frame rate with the MediaCodec.  
-	 * Blocks the thread in which this function is called.
+	 * Blocks the thread in which this function is called, unless the frame rate 
+	 * is found in the {@link CapabilityCache}: it is then measured again in the 
+	 * background and the cache is updated if needed.
 	 */
 	private void measureFramerate() {
+		final CapabilityCache cache = mSettings != null ? CapabilityCache.getInstance(mSettings) : null;
+		JSONObject cached = cache != null ? cache.get(getFramerateKey(), FRAMERATE_VERSION) : null;
+
+		if (cached != null) {
+			mQuality.framerate = cached.optInt("fps", mQuality.framerate);
+			Log.d(TAG,"Cached framerate: "+mQuality.framerate);
+
+			// Replaced by the callback of the encoder with the MediaCodec API with a buffer
+			mCamera.setPreviewCallback(new Camera.PreviewCallback() {
+				FramerateMeter meter = new FramerateMeter();
+				@Override
+				public void onPreviewFrame(byte[] data, Camera camera) {
+					int framerate = meter.onFrame(System.nanoTime()/1000);
+					if (framerate>0) {
+						camera.setPreviewCallback(null);
+						checkFramerate(framerate);
+					}
+				}
+			});
+			return;
+		}
+
 		final Semaphore lock = new Semaphore(0);
 
 		final Camera.PreviewCallback callback = new Camera.PreviewCallback() {
-			int i = 0, t = 0;
-			long now, oldnow, count = 0;
+			FramerateMeter meter = new FramerateMeter();
 			@Override
 			public void onPreviewFrame(byte[] data, Camera camera) {
-				i++;
-				now = System.nanoTime()/1000;
-				if (i>3) {
-					t += now - oldnow;
-					count++;
-				}
-				if (i>20) {
-					mQuality.framerate = (int) (1000000/(t/count)+1);
+				int framerate = meter.onFrame(System.nanoTime()/1000);
+				if (framerate>0) {
+					mQuality.framerate = framerate;
 					lock.release();
 				}
-				oldnow = now;
 			}
 		};
 
 		mCamera.setPreviewCallback(callback);
 
 		try {
-			lock.tryAcquire(2,TimeUnit.SECONDS);
-			Log.d(TAG,"Actual framerate: "+mQuality.framerate);
-			if (mSettings != null) {
-				Editor editor = mSettings.edit();
-				editor.putInt(PREF_PREFIX+"fps"+mRequestedQuality.framerate+","+mCameraImageFormat+","+mRequestedQuality.resX+mRequestedQuality.resY, mQuality.framerate);
-				editor.commit();
+			if (lock.tryAcquire(2,TimeUnit.SECONDS)) {
+				Log.d(TAG,"Actual framerate: "+mQuality.framerate);
+				if (cache != null) saveFramerate(cache, mQuality.framerate);
 			}
 		} catch (InterruptedException e) {}
 
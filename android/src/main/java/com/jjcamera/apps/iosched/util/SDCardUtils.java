@@ -33,7 +33,21 @@ some possible External Storage paths: (Sorry couldn't find original source ):
 
 public class SDCardUtils {
 
+	// The storage is resolved once, it is probed again only if it disappears
+	private static volatile String sPath = null;
+
 	public static String getExternalSdCardPath() {
+		String cached = sPath;
+		if (cached != null) {
+			File file = new File(cached);
+			if (file.isDirectory() && file.canWrite())
+				return cached;
+		}
+		sPath = resolveExternalSdCardPath();
+		return sPath;
+	}
+
+	private static String resolveExternalSdCardPath() {
 	        String path = null;
 	        
 	        File sdCardFile = null;
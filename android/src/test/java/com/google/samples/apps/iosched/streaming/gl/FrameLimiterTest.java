@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.gl;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class FrameLimiterTest {
+
+    private static final long MS = 1000000L;
+
+    private static int count(FrameLimiter limiter, double interval, int frames, long jitter) {
+        int accepted = 0;
+        for (int i = 0; i < frames; i++) {
+            long ts = 1000 * MS + (long) (i * interval * MS) + (i % 2 == 0 ? jitter : -jitter);
+            if (limiter.accept(ts)) accepted++;
+        }
+        return accepted;
+    }
+
+    @Test
+    public void everyFrameWhenNotLimited() {
+        FrameLimiter limiter = new FrameLimiter();
+        assertThat(count(limiter, 1000 / 30.0, 90, 0), is(90));
+    }
+
+    @Test
+    public void dropsFramesEvenly() {
+        FrameLimiter limiter = new FrameLimiter();
+        limiter.setMaxFramerate(20);
+        // 3 s of a 30 fps camera
+        assertThat(count(limiter, 1000 / 30.0, 90, 0), is(60));
+
+        limiter.reset();
+        limiter.setMaxFramerate(15);
+        assertThat(count(limiter, 1000 / 30.0, 90, 0), is(45));
+    }
+
+    @Test
+    public void toleratesJitter() {
+        FrameLimiter limiter = new FrameLimiter();
+        limiter.setMaxFramerate(30);
+        assertThat(count(limiter, 1000 / 30.0, 90, 3 * MS), is(90));
+    }
+
+    @Test
+    public void startsOverAfterGap() {
+        FrameLimiter limiter = new FrameLimiter();
+        limiter.setMaxFramerate(10);
+        assertThat(limiter.accept(0), is(true));
+        assertThat(limiter.accept(50 * MS), is(false));
+        // The camera stalled for a second, the next frames are not all let through to catch up
+        assertThat(limiter.accept(1000 * MS), is(true));
+        assertThat(limiter.accept(1033 * MS), is(false));
+        assertThat(limiter.accept(1066 * MS), is(false));
+        assertThat(limiter.accept(1100 * MS), is(true));
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.gl;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class FrameStatsTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void countsAndAverages() {
+        FrameStats stats = new FrameStats();
+        for (int i = 0; i < 100; i++) {
+            stats.onFrame(1000 * MS + i * 40 * MS, 2 * MS, 10 * MS, i % 2 == 0);
+        }
+        stats.onFrame(1000 * MS + 100 * 40 * MS, 6 * MS, 10 * MS, true);
+
+        assertThat(stats.getFrameCount(), is(101L));
+        assertThat(stats.getEncodedFrameCount(), is(51L));
+        assertThat(stats.getSkippedFrameCount(), is(50L));
+        assertThat(Math.round(stats.getFramerate()), is(25));
+        assertThat(stats.getAverageRenderTime(), is(2200L));
+        assertThat(stats.getMaxRenderTime(), is(6000L));
+        assertThat(stats.getAverageLatency(), is(10000L));
+    }
+
+    @Test
+    public void ignoresLatencyOfAnotherClock() {
+        FrameStats stats = new FrameStats();
+        stats.onFrame(1000 * MS, MS, 5 * MS, true);
+        stats.onFrame(1040 * MS, MS, -3 * MS, true);
+        stats.onFrame(1080 * MS, MS, 5000 * MS, true);
+        assertThat(stats.getAverageLatency(), is(5000L));
+
+        stats.reset();
+        assertThat(stats.getFrameCount(), is(0L));
+        assertThat(stats.getFramerate(), is(0f));
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.hw;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import android.content.SharedPreferences;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks how the entries of a {@link CapabilityCache} survive a reload, stored in memory
+ * instead of the shared preferences of the application.
+ */
+@SmallTest
+public class CapabilityCacheTest {
+
+    private static final String PREF_KEY = "libstreaming-capabilities";
+    private static final String KEY = CapabilityCache.key("encoder", "video/avc", 640, 480);
+
+    @Test
+    public void get_SameVersion_ReturnsEntryAfterReload() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        CapabilityCache.getInstance(prefs).put(KEY, 2, new JSONObject().put("color", 21));
+
+        CapabilityCache cache = CapabilityCache.getInstance(prefs.copy());
+        assertThat(cache.get(KEY, 2).getInt("color"), is(21));
+    }
+
+    @Test
+    public void get_OtherVersion_ReturnsNull() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        CapabilityCache.getInstance(prefs).put(KEY, 2, new JSONObject().put("color", 21));
+
+        CapabilityCache cache = CapabilityCache.getInstance(prefs.copy());
+        assertThat(cache.get(KEY, 3), is(nullValue()));
+        assertThat(cache.get(KEY, 1), is(nullValue()));
+    }
+
+    @Test
+    public void load_OtherFingerprint_DropsEntries() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        CapabilityCache.getInstance(prefs).put(KEY, 2, new JSONObject().put("color", 21));
+
+        // The database was saved before a system update
+        JSONObject root = new JSONObject(prefs.getString(PREF_KEY, null));
+        root.put("device", root.optString("device") + "-old");
+        MemoryPreferences updated = prefs.copy();
+        updated.edit().putString(PREF_KEY, root.toString()).apply();
+
+        assertThat(CapabilityCache.getInstance(updated).get(KEY, 2), is(nullValue()));
+    }
+
+    @Test
+    public void load_CorruptedDatabase_StartsEmpty() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        prefs.edit().putString(PREF_KEY, "{\"version\":1,\"entries\":{").apply();
+
+        CapabilityCache cache = CapabilityCache.getInstance(prefs);
+        assertThat(cache.get(KEY, 2), is(nullValue()));
+        cache.put(KEY, 2, new JSONObject().put("color", 21));
+        assertThat(CapabilityCache.getInstance(prefs.copy()).get(KEY, 2), notNullValue());
+    }
+
+    @Test
+    public void validate_Rejected_RemovesEntry() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        CapabilityCache cache = CapabilityCache.getInstance(prefs);
+        cache.put(KEY, 2, new JSONObject().put("color", 21));
+
+        cache.validate(KEY, new CapabilityCache.Validator() {
+            @Override
+            public boolean isValid(JSONObject entry) {
+                return false;
+            }
+        });
+        await(cache);
+
+        assertThat(cache.get(KEY, 2), is(nullValue()));
+        assertThat(CapabilityCache.getInstance(prefs.copy()).get(KEY, 2), is(nullValue()));
+    }
+
+    @Test
+    public void validate_ReplacedWhileValidating_KeepsNewEntry() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        final CapabilityCache cache = CapabilityCache.getInstance(prefs);
+        cache.put(KEY, 2, new JSONObject().put("color", 21));
+
+        // The probe runs again and saves a new result before the old one is rejected
+        cache.validate(KEY, new CapabilityCache.Validator() {
+            @Override
+            public boolean isValid(JSONObject entry) {
+                try {
+                    cache.put(KEY, 2, new JSONObject().put("color", 19));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return false;
+            }
+        });
+        await(cache);
+
+        assertThat(cache.get(KEY, 2).getInt("color"), is(19));
+    }
+
+    /** Waits until the validations already submitted to the background thread are done. */
+    private static void await(CapabilityCache cache) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        String barrier = "barrier/" + System.nanoTime();
+        cache.put(barrier, 1, new JSONObject());
+        cache.validate(barrier, new CapabilityCache.Validator() {
+            @Override
+            public boolean isValid(JSONObject entry) {
+                done.countDown();
+                return true;
+            }
+        });
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        cache.remove(barrier);
+    }
+
+    /** Shared preferences kept in memory, the changes are applied at once. */
+    private static class MemoryPreferences implements SharedPreferences, SharedPreferences.Editor {
+
+        private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+        /** Another instance with the same values, read by a new {@link CapabilityCache}. */
+        MemoryPreferences copy() {
+            MemoryPreferences copy = new MemoryPreferences();
+            copy.mValues.putAll(mValues);
+            return copy;
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<String, Object>(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return this;
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {}
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {}
+
+        @Override
+        public Editor putString(String key, String value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            mValues.put(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mValues.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mValues.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public void apply() {}
+
+    }
+
+}
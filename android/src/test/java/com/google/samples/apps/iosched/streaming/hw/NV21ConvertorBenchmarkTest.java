@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.hw;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compares the conversion {@link NV21Convertor} used to do (U and V swapped one byte at a time through
+ * a temporary, then the frame copied in the input buffer of the encoder) with the current one, for
+ * 480p, 720p and 1080p frames in the semi planar and planar layouts.
+ * The results are printed, the test only checks that both conversions agree.
+ */
+@LargeTest
+public class NV21ConvertorBenchmarkTest {
+
+    private static final int WARMUP = 50;
+
+    private static final int ITERATIONS = 200;
+
+    private static final int[][] SIZES = { {640, 480}, {1280, 720}, {1920, 1080} };
+
+    @Test
+    public void compareByteAndWordConversions() {
+        for (int[] size : SIZES) {
+            run(size[0], size[1], false);
+            run(size[0], size[1], true);
+        }
+    }
+
+    private static void run(int width, int height, boolean planar) {
+        NV21Convertor convertor = new NV21Convertor();
+        convertor.setSize(width, height);
+        convertor.setPlanar(planar);
+
+        // The camera recycles a few buffers
+        byte[][] frames = new byte[4][3 * width * height / 2];
+        for (int f = 0; f < frames.length; f++) {
+            for (int i = 0; i < frames[f].length; i++) {
+                frames[f][i] = (byte) (i * 31 + f);
+            }
+        }
+        ByteBuffer input = ByteBuffer.allocateDirect(convertor.getOutputSize());
+        byte[] temp = new byte[convertor.getOutputSize()];
+
+        byte[] expected = frames[0].clone();
+        legacy(expected, temp, width * height, planar);
+        input.clear();
+        convertor.convert(frames[0], input);
+        byte[] result = new byte[expected.length];
+        input.flip();
+        input.get(result);
+        assertThat(result, is(expected));
+
+        for (int i = 0; i < WARMUP; i++) {
+            input.clear();
+            legacy(frames[i % frames.length], temp, width * height, planar);
+            input.put(frames[i % frames.length]);
+            input.clear();
+            convertor.convert(frames[i % frames.length], input);
+        }
+
+        long legacy = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] frame = frames[i % frames.length];
+            input.clear();
+            legacy(frame, temp, width * height, planar);
+            input.put(frame);
+        }
+        legacy = System.nanoTime() - legacy;
+
+        long current = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            input.clear();
+            convertor.convert(frames[i % frames.length], input);
+        }
+        current = System.nanoTime() - current;
+
+        System.out.println(String.format(Locale.US, "NV21 to %s %dx%d, bytes: %d us/frame, words: %d us/frame",
+                planar ? "planar" : "semi planar", width, height, legacy / (ITERATIONS * 1000), current / (ITERATIONS * 1000)));
+    }
+
+    /** The conversion of the convertor when the stride is the width, in place in the frame. */
+    private static void legacy(byte[] data, byte[] temp, int size, boolean planar) {
+        if (!planar) {
+            for (int i = size; i < size + size / 2; i += 2) {
+                temp[0] = data[i + 1];
+                data[i + 1] = data[i];
+                data[i] = temp[0];
+            }
+        } else {
+            for (int i = 0; i < size / 4; i += 1) {
+                temp[i] = data[size + 2 * i + 1];
+                temp[size / 4 + i] = data[size + 2 * i];
+            }
+            System.arraycopy(temp, 0, data, size, size / 2);
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.hw;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks {@link NV21Convertor} against a byte by byte reference conversion.
+ */
+@SmallTest
+public class NV21ConvertorTest {
+
+    @Test
+    public void convert_SemiPlanar_SwapsUAndV() {
+        check(176, 144, 176, 144, 0, false, false);
+    }
+
+    @Test
+    public void convert_SemiPlanarReversed_KeepsVU() {
+        check(176, 144, 176, 144, 0, false, true);
+    }
+
+    @Test
+    public void convert_Planar_SplitsUAndV() {
+        check(176, 144, 176, 144, 0, true, false);
+    }
+
+    @Test
+    public void convert_PlanarReversed_PutsVFirst() {
+        check(176, 144, 176, 144, 0, true, true);
+    }
+
+    @Test
+    public void convert_PaddedStride_SkipsPadding() {
+        check(176, 144, 192, 144, 0, false, false);
+        check(176, 144, 192, 144, 0, true, false);
+    }
+
+    @Test
+    public void convert_SliceHeight_SkipsRows() {
+        check(176, 144, 176, 160, 0, false, false);
+        check(176, 144, 256, 160, 0, true, true);
+    }
+
+    @Test
+    public void convert_YPadding_MovesChroma() {
+        check(176, 144, 176, 144, 1024, false, false);
+        check(176, 144, 176, 144, 1024, true, false);
+    }
+
+    @Test
+    public void convert_OddSize_UsesBytePath() {
+        // 6x6 pixels can't be read eight bytes at a time
+        check(6, 6, 6, 6, 0, false, false);
+        check(6, 6, 8, 6, 0, true, false);
+    }
+
+    @Test
+    public void convert_CameraBufferIsNotModified() {
+        NV21Convertor convertor = create(176, 144, 176, 144, 0, false, false);
+        byte[] frame = frame(176, 144, 1);
+        byte[] copy = frame.clone();
+
+        convertor.convert(frame);
+
+        assertThat(frame, is(copy));
+    }
+
+    @Test
+    public void convert_SeveralCameraBuffers_ConvertsEachOne() {
+        NV21Convertor convertor = create(176, 144, 176, 144, 0, true, false);
+        // More buffers than the convertor keeps views of
+        for (int i = 0; i < 20; i++) {
+            byte[] frame = frame(176, 144, i);
+            assertThat(convertor.convert(frame), is(reference(frame, 176, 144, 176, 144, 0, true, false)));
+        }
+    }
+
+    @Test
+    public void convert_ToByteBuffer_MovesPosition() {
+        NV21Convertor convertor = create(176, 144, 192, 160, 16, false, false);
+        byte[] frame = frame(176, 144, 3);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(convertor.getOutputSize() + 100);
+        buffer.position(10);
+
+        convertor.convert(frame, buffer);
+
+        assertThat(buffer.position(), is(10 + convertor.getOutputSize()));
+        byte[] result = new byte[convertor.getOutputSize()];
+        buffer.position(10);
+        buffer.get(result);
+        assertThat(mask(result, 176, 144, 192, 160, 16, false),
+                is(mask(reference(frame, 176, 144, 192, 160, 16, false, false), 176, 144, 192, 160, 16, false)));
+    }
+
+    private static void check(int width, int height, int stride, int sliceHeight, int padding, boolean planar, boolean reversed) {
+        NV21Convertor convertor = create(width, height, stride, sliceHeight, padding, planar, reversed);
+        byte[] frame = frame(width, height, 7);
+        byte[] expected = reference(frame, width, height, stride, sliceHeight, padding, planar, reversed);
+
+        byte[] result = convertor.convert(frame);
+        assertThat(result.length, is(expected.length));
+        assertThat(mask(result, width, height, stride, sliceHeight, padding, planar),
+                is(mask(expected, width, height, stride, sliceHeight, padding, planar)));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(convertor.getOutputSize());
+        convertor.convert(frame, buffer);
+        result = new byte[expected.length];
+        buffer.flip();
+        buffer.get(result);
+        assertThat(mask(result, width, height, stride, sliceHeight, padding, planar),
+                is(mask(expected, width, height, stride, sliceHeight, padding, planar)));
+    }
+
+    private static NV21Convertor create(int width, int height, int stride, int sliceHeight, int padding, boolean planar, boolean reversed) {
+        NV21Convertor convertor = new NV21Convertor();
+        convertor.setSize(width, height);
+        convertor.setStride(stride);
+        convertor.setSliceHeigth(sliceHeight);
+        convertor.setYPadding(padding);
+        convertor.setPlanar(planar);
+        convertor.setColorPanesReversed(reversed);
+        return convertor;
+    }
+
+    private static byte[] frame(int width, int height, int seed) {
+        byte[] frame = new byte[3 * width * height / 2];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i * 31 + seed);
+        }
+        return frame;
+    }
+
+    /** Converts the frame one byte at a time, the padding is left to 0. */
+    static byte[] reference(byte[] frame, int width, int height, int stride, int sliceHeight, int padding, boolean planar, boolean reversed) {
+        int size = width * height;
+        byte[] out = new byte[3 * stride * sliceHeight / 2 + padding];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(frame, row * width, out, row * stride, width);
+        }
+        int chroma = stride * sliceHeight + padding;
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                byte v = frame[size + row * width + 2 * col];
+                byte u = frame[size + row * width + 2 * col + 1];
+                byte first = reversed ? v : u, second = reversed ? u : v;
+                if (planar) {
+                    out[chroma + row * (stride / 2) + col] = first;
+                    out[chroma + (stride / 2) * (sliceHeight / 2) + row * (stride / 2) + col] = second;
+                } else {
+                    out[chroma + row * stride + 2 * col] = first;
+                    out[chroma + row * stride + 2 * col + 1] = second;
+                }
+            }
+        }
+        return out;
+    }
+
+    /** Clears the bytes the encoder ignores, the convertor leaves them untouched. */
+    static byte[] mask(byte[] data, int width, int height, int stride, int sliceHeight, int padding, boolean planar) {
+        byte[] out = new byte[data.length];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(data, row * stride, out, row * stride, width);
+        }
+        int chroma = stride * sliceHeight + padding;
+        for (int row = 0; row < height / 2; row++) {
+            if (planar) {
+                int u = chroma + row * (stride / 2);
+                int v = u + (stride / 2) * (sliceHeight / 2);
+                System.arraycopy(data, u, out, u, width / 2);
+                System.arraycopy(data, v, out, v, width / 2);
+            } else {
+                System.arraycopy(data, chroma + row * stride, out, chroma + row * stride, width);
+            }
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class FragmentedMp4ReaderTest {
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xC0, 0x1F, 0x01 };
+    private static final byte[] PPS = { 0x68, (byte) 0xCE, 0x38, (byte) 0x80 };
+    private static final int FRAMES = 90;
+    private static final long FRAME_US = 40000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("recording", ".mp4");
+        RecordingWriter output = new RecordingWriter(mFile);
+        output.start();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(output, 640, 480, 0, SPS, PPS, 8000, 1, 0x1588);
+        FragmentedMp4Writer.Track video = writer.getVideoTrack(), audio = writer.getAudioTrack();
+        long audioTime = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            long time = i * FRAME_US;
+            // Two NAL units per frame, a key frame every 30 frames
+            writer.startSample(video, time);
+            writer.writeInt(video, 3);
+            writer.write(video, new byte[] { 0x06, 1, (byte) i }, 0, 3);
+            writer.writeInt(video, 4);
+            writer.write(video, new byte[] { (byte) (i % 30 == 0 ? 0x65 : 0x41), 2, 3, (byte) i }, 0, 4);
+            if (i % 30 == 0) writer.setSync(video);
+            for (; audioTime <= time; audioTime += 128000) {
+                writer.startSample(audio, audioTime);
+                writer.write(audio, new byte[] { 0x21, (byte) (audioTime / 128000) }, 0, 2);
+            }
+        }
+        writer.close();
+        output.join();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void initSegmentIsParsed() throws IOException {
+        FragmentedMp4Reader reader = new FragmentedMp4Reader(mFile, 0);
+        assertThat(reader.getWidth(), is(640));
+        assertThat(reader.getHeight(), is(480));
+        assertThat(reader.getSps(), is(SPS));
+        assertThat(reader.getPps(), is(PPS));
+        assertThat(reader.hasAudio(), is(true));
+        assertThat(reader.getSampleRate(), is(8000));
+        assertThat(reader.getAudioConfig(), is(0x1588));
+    }
+
+    @Test
+    public void samplesAreReadInOrder() throws IOException {
+        FragmentedMp4Reader reader = new FragmentedMp4Reader(mFile, 0);
+        int count = 0;
+        while (reader.advance()) {
+            assertThat(reader.getSampleTime(), is(count * FRAME_US));
+            assertThat(reader.isSyncSample(), is(count % 30 == 0));
+            ByteBuffer data = reader.getSampleData();
+            assertThat(data.remaining(), is(15));
+            assertThat(data.getInt(data.position()), is(3));
+            assertThat(data.get(data.limit() - 1), is((byte) count));
+            count++;
+        }
+        assertThat(count, is(FRAMES));
+
+        reader.selectTrack(false);
+        count = 0;
+        while (reader.advance()) {
+            assertThat(reader.getSampleTime(), is(count * 128000L));
+            ByteBuffer data = reader.getSampleData();
+            assertThat(data.get(data.position() + 1), is((byte) count));
+            count++;
+        }
+        assertThat(count, is(28));
+    }
+
+    @Test
+    public void readingStartsAtAFragment() throws IOException {
+        // The seek table gets the offset of each fragment starting with a key frame
+        FragmentedMp4Reader reader = new FragmentedMp4Reader(mFile, 0);
+        long offset = findFragment(30);
+        reader.seekTo(offset);
+        assertThat(reader.advance(), is(true));
+        assertThat(reader.isSyncSample(), is(true));
+        ByteBuffer data = reader.getSampleData();
+        assertThat(data.get(data.limit() - 1), is((byte) 30));
+    }
+
+    @Test
+    public void readingStopsAtTheEndOfTheRecording() throws IOException {
+        // A truncated fragment and what is left of an older recording are not read
+        long length = mFile.length();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        byte[] copy = new byte[(int) (length - findFragment(30))];
+        file.seek(findFragment(30));
+        file.readFully(copy);
+        file.seek(length);
+        file.write(copy);
+        file.close();
+
+        FragmentedMp4Reader reader = new FragmentedMp4Reader(mFile, 0);
+        int count = 0;
+        while (reader.advance()) count++;
+        assertThat(count, is(FRAMES));
+        assertThat(reader.getDuration() / FRAME_US, is((long) FRAMES));
+
+        reader = new FragmentedMp4Reader(mFile, findFragment(60) + 100);
+        count = 0;
+        while (reader.advance()) count++;
+        assertThat(count, is(60));
+    }
+
+    /** Returns the offset of the moof of the fragment starting with that frame. */
+    private long findFragment(int frame) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            long position = 0;
+            int fragment = 0;
+            while (position < file.length()) {
+                file.seek(position);
+                int size = file.readInt(), type = file.readInt();
+                if (type == 0x6D6F6F66 && fragment++ == frame / 30) return position;
+                position += size;
+            }
+            return -1;
+        } finally {
+            file.close();
+        }
+    }
+
+}
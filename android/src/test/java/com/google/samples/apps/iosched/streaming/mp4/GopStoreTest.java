@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class GopStoreTest {
+
+    @Test
+    public void add_NotStarted_KeepsNothing() {
+        GopStore store = new GopStore("test", 64, 4, 16);
+        assertThat(store.add(new byte[8], 0, 8), is(-1));
+        assertThat(store.isValid(), is(false));
+    }
+
+    @Test
+    public void add_Started_KeepsPartsInOrder() {
+        GopStore store = new GopStore("test", 64, 4, 16);
+        assertThat(store.start(), is(true));
+        assertThat(store.add(new byte[] { 1, 2, 3 }, 1, 2), is(0));
+        assertThat(store.add(ByteBuffer.wrap(new byte[] { 4, 5, 6 })), is(1));
+
+        assertThat(store.isValid(), is(true));
+        assertThat(store.getCount(), is(2));
+        assertThat(store.getLength(), is(5));
+        assertThat(store.getOffset(1), is(2));
+        assertThat(store.getLength(1), is(3));
+        assertThat(store.getData()[0], is((byte) 2));
+        assertThat(store.getData()[4], is((byte) 6));
+
+        // A new GOP replaces the previous one
+        store.start();
+        assertThat(store.getCount(), is(0));
+    }
+
+    @Test
+    public void add_TooManyBytes_ForgetsGopUntilNextStart() {
+        GopStore store = new GopStore("test", 16, 4, 16);
+        store.start();
+        assertThat(store.add(new byte[10], 0, 10), is(0));
+        ByteBuffer data = ByteBuffer.allocate(10);
+        assertThat(store.add(data), is(-1));
+
+        assertThat(data.hasRemaining(), is(false));
+        assertThat(store.isValid(), is(false));
+        assertThat(store.add(new byte[1], 0, 1), is(-1));
+        assertThat(store.getOverflowCount(), is(1L));
+        store.start();
+        assertThat(store.add(new byte[10], 0, 10), is(0));
+    }
+
+    @Test
+    public void add_TooManyParts_ForgetsGop() {
+        GopStore store = new GopStore("test", 64, 4, 16);
+        assertThat(store.getMaxParts(), is(4));
+        store.start();
+        for (int i = 0; i < 4; i++) assertThat(store.add(new byte[1], 0, 1), is(i));
+        assertThat(store.add(new byte[1], 0, 1), is(-1));
+        assertThat(store.getOverflowCount(), is(1L));
+    }
+
+    @Test
+    public void start_Disabled_ReturnsFalse() {
+        GopStore store = new GopStore("test", 64, 4, 16);
+        store.setSize(0);
+        assertThat(store.start(), is(false));
+        assertThat(store.add(new byte[1], 0, 1), is(-1));
+    }
+
+}
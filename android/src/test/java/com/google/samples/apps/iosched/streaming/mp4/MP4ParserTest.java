@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class MP4ParserTest {
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xC0, 0x1F, 0x01 };
+    private static final byte[] PPS = { 0x68, (byte) 0xCE, 0x38, (byte) 0x80 };
+
+    @Test
+    public void boxesAreFoundByPath() throws IOException {
+        MP4Parser parser = new MP4Parser(ByteBuffer.wrap(movie(false)));
+        MP4Parser.Box stbl = parser.find("/moov/trak/mdia/minf/stbl");
+        assertThat(MP4Parser.typeName(stbl.getType()), is("stbl"));
+        assertThat(parser.find("/moov/trak/mdia/minf/stbl/stsd/avc1/avcC") != null, is(true));
+        assertThat(parser.find("/moov/trak/mdia/udta"), is(nullValue()));
+        assertThat(parser.getRoot().getChildren().size(), is(3));
+    }
+
+    @Test
+    public void largeSizesAreRead() throws IOException {
+        // The mdat has a 64 bits size
+        byte[] movie = movie(false);
+        MP4Parser parser = new MP4Parser(ByteBuffer.wrap(movie));
+        MP4Parser.Box mdat = parser.find("mdat");
+        assertThat(mdat.getSize(), is(16L + 64));
+        assertThat(mdat.getContentPosition(), is(mdat.getPosition() + 16));
+        assertThat(mdat.getPosition() + mdat.getSize(), is((long) movie.length));
+    }
+
+    @Test
+    public void sampleTablesAreReadAsArrays() throws IOException {
+        MP4Parser parser = new MP4Parser(ByteBuffer.wrap(movie(false)));
+        MP4Parser.Box stbl = parser.find("moov/trak/mdia/minf/stbl");
+        assertThat(parser.getSampleSizes(stbl), is(new int[] { 10, 20, 30, 4 }));
+        assertThat(parser.getChunkOffsets(stbl), is(new long[] { 100, 0xFFFFFFF0L }));
+        assertThat(parser.getSyncSamples(stbl), is(new int[] { 1, 3 }));
+
+        parser = new MP4Parser(ByteBuffer.wrap(movie(true)));
+        stbl = parser.find("moov/trak/mdia/minf/stbl");
+        assertThat(parser.getChunkOffsets(stbl), is(new long[] { 100, 0x100000000L }));
+        assertThat(parser.getSyncSamples(stbl), is(nullValue()));
+    }
+
+    @Test
+    public void constantSampleSizeHasNoTable() throws IOException {
+        byte[] stbl = box("stbl", box("stsz", ints(0, 512, 3)));
+        MP4Parser parser = new MP4Parser(ByteBuffer.wrap(box("moov", box("trak", box("mdia", box("minf", stbl))))));
+        assertThat(parser.getSampleSizes(parser.find("moov/trak/mdia/minf/stbl")), is(new int[] { 512, 512, 512 }));
+    }
+
+    @Test
+    public void parametersAreReadFromTheFile() throws IOException {
+        File file = File.createTempFile("movie", ".mp4");
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(movie(false));
+            output.close();
+            MP4Parser parser = MP4Parser.parse(file.getPath());
+            StsdBox stsd = parser.getStsdBox();
+            assertThat(stsd.getSPS(), is(SPS));
+            assertThat(stsd.getPPS(), is(PPS));
+            assertThat(stsd.getProfileLevel(), is("42c01f"));
+            parser.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** A movie with one H.264 track, its chunk offsets in a co64 box or a stco box. */
+    private static byte[] movie(boolean co64) throws IOException {
+        ByteArrayOutputStream avc1 = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(avc1);
+        out.write(new byte[24]);
+        out.writeShort(640);
+        out.writeShort(480);
+        out.write(new byte[50]);
+        out.write(box("avcC", avcConfiguration()));
+
+        byte[] stsd = box("stsd", ints(0, 1), box("avc1", avc1.toByteArray()));
+        byte[] stsz = box("stsz", ints(0, 0, 4, 10, 20, 30, 4));
+        byte[] offsets;
+        byte[] stss = new byte[0];
+        if (co64) {
+            offsets = box("co64", ints(0, 2, 0, 100, 1, 0));
+        } else {
+            offsets = box("stco", ints(0, 2, 100, 0xFFFFFFF0));
+            stss = box("stss", ints(0, 2, 1, 3));
+        }
+        byte[] stbl = box("stbl", stsd, stsz, offsets, stss);
+        byte[] moov = box("moov", box("trak", box("mdia", box("hdlr", ints(0, 0, 0x76696465)), box("minf", stbl))));
+
+        ByteArrayOutputStream movie = new ByteArrayOutputStream();
+        out = new DataOutputStream(movie);
+        out.write(box("ftyp", ints(0x69736F6D, 0)));
+        out.write(moov);
+        out.writeInt(1);
+        out.writeBytes("mdat");
+        out.writeLong(16 + 64);
+        out.write(new byte[64]);
+        return movie.toByteArray();
+    }
+
+    private static byte[] avcConfiguration() throws IOException {
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(config);
+        out.write(new byte[] { 1, SPS[1], SPS[2], SPS[3], (byte) 0xFF, (byte) 0xE1 });
+        out.writeShort(SPS.length);
+        out.write(SPS);
+        out.writeByte(1);
+        out.writeShort(PPS.length);
+        out.write(PPS);
+        return config.toByteArray();
+    }
+
+    private static byte[] box(String type, byte[]... contents) throws IOException {
+        ByteArrayOutputStream box = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(box);
+        int size = 8;
+        for (byte[] content : contents) size += content.length;
+        out.writeInt(size);
+        out.writeBytes(type);
+        for (byte[] content : contents) out.write(content);
+        return box.toByteArray();
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) buffer.putInt(value);
+        return buffer.array();
+    }
+
+}
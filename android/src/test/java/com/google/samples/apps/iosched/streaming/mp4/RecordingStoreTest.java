@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class RecordingStoreTest {
+
+    private static final long SEGMENT_SIZE = 64 * 1024;
+    private static final long MINUTE = 60000;
+
+    private File mDir;
+    private RecordingStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("recordings", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mStore = new RecordingStore(mDir, SEGMENT_SIZE);
+        mStore.setQuota(3 * SEGMENT_SIZE, 0);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.release();
+        for (File file : mDir.listFiles()) file.delete();
+        mDir.delete();
+    }
+
+    /** Records a segment the way a {@link RecordingWriter} does. */
+    private RecordingStore.Segment record(long start, int length) throws IOException {
+        RecordingStore.Segment segment = mStore.newSegment(start);
+        FileChannel channel = segment.open();
+        channel.write(ByteBuffer.wrap(new byte[length]));
+        segment.setEndTime(start + MINUTE);
+        segment.close(channel, length);
+        channel.close();
+        return segment;
+    }
+
+    /** Counts the segment files, used or free. */
+    private int countFiles() {
+        int count = 0;
+        for (String name : mDir.list()) {
+            if (!name.equals(RecordingStore.INDEX_NAME) && !name.startsWith(".seek-")) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void segmentsArePreallocated() throws IOException {
+        RecordingStore.Segment segment = record(1000 * MINUTE, 1000);
+        assertThat(segment.getFile().length(), is(SEGMENT_SIZE));
+        assertThat(segment.getLength(), is(1000L));
+        assertThat(segment.getState(), is(RecordingStore.STATE_COMPLETE));
+
+        // The rest of the file is a free box
+        RandomAccessFile file = new RandomAccessFile(segment.getFile(), "r");
+        file.seek(1000);
+        assertThat((long) file.readInt(), is(SEGMENT_SIZE - 1000));
+        assertThat(file.readInt(), is(0x66726565));
+        file.close();
+    }
+
+    @Test
+    public void oldestSegmentIsReused() throws IOException {
+        RecordingStore.Segment first = record(1000 * MINUTE, 1000);
+        String firstName = first.getFile().getName();
+        for (int i = 1; i < 5; i++) record((1000 + i) * MINUTE, 1000);
+
+        assertThat(countFiles(), is(3));
+        List<RecordingStore.Segment> segments = mStore.getSegments();
+        assertThat(segments.size(), is(3));
+        assertThat(segments.get(0).getStartTime(), is(1002 * MINUTE));
+        assertThat(segments.get(2).getStartTime(), is(1004 * MINUTE));
+        assertThat(new File(mDir, firstName).exists(), is(false));
+        assertThat(first.getState(), is(RecordingStore.STATE_FREE));
+    }
+
+    @Test
+    public void indexIsReloaded() throws IOException {
+        for (int i = 0; i < 4; i++) record((1000 + i) * MINUTE, 1000 + i);
+        RecordingStore.Segment recording = mStore.newSegment(1010 * MINUTE);
+        FileChannel channel = recording.open();
+        channel.write(ByteBuffer.wrap(new byte[500]));
+        channel.close();
+        mStore.release();
+
+        // The last recording was interrupted
+        mStore = new RecordingStore(mDir, SEGMENT_SIZE);
+        mStore.setQuota(3 * SEGMENT_SIZE, 0);
+        List<RecordingStore.Segment> segments = mStore.getSegments();
+        assertThat(segments.size(), is(3));
+        assertThat(segments.get(0).getStartTime(), is(1002 * MINUTE));
+        assertThat(segments.get(0).getLength(), is(1002L));
+        assertThat(segments.get(0).getEndTime(), is(1003 * MINUTE));
+        assertThat(segments.get(2).getState(), is(RecordingStore.STATE_COMPLETE));
+        assertThat(segments.get(2).getFile().getName(), is(recording.getFile().getName()));
+
+        assertThat(mStore.getSegment(1002 * MINUTE + 1), notNullValue());
+        assertThat(mStore.getSegment(1000 * MINUTE), nullValue());
+    }
+
+    @Test
+    public void interruptedRecordingEndsAtItsLastFragment() throws Exception {
+        // Three fragments of a recording, with what is left of an older one after the second
+        byte[] recording = fragmentedRecording();
+        long[] fragments = findFragments(recording);
+        RecordingStore.Segment segment = mStore.newSegment(1000 * MINUTE);
+        FileChannel channel = segment.open();
+        int end = (int) fragments[2];
+        channel.write(ByteBuffer.wrap(recording, 0, end));
+        channel.write(ByteBuffer.wrap(recording, (int) fragments[0], end - (int) fragments[0]));
+        segment.addSyncPoint(0, fragments[0]);
+        segment.addSyncPoint(1000000, fragments[1]);
+        channel.close();
+        mStore.release();
+
+        mStore = new RecordingStore(mDir, SEGMENT_SIZE);
+        RecordingStore.Segment recovered = mStore.getSegments().get(0);
+        assertThat(recovered.getState(), is(RecordingStore.STATE_COMPLETE));
+        assertThat(recovered.getLength(), is((long) end));
+
+        FragmentedMp4Reader reader = new FragmentedMp4Reader(recovered.getFile(), recovered.getLength());
+        int count = 0;
+        while (reader.advance()) count++;
+        assertThat(count, is(60));
+    }
+
+    /** Returns a recording of 90 frames, a fragment starts every 30 frames. */
+    private static byte[] fragmentedRecording() throws Exception {
+        File file = File.createTempFile("recording", ".mp4");
+        try {
+            RecordingWriter output = new RecordingWriter(file);
+            output.start();
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(output, 640, 480, 0,
+                    new byte[] { 0x67, 0x42, (byte) 0xC0, 0x1F }, new byte[] { 0x68, (byte) 0xCE, 0x38, (byte) 0x80 }, 0, 0, 0);
+            FragmentedMp4Writer.Track video = writer.getVideoTrack();
+            for (int i = 0; i < 90; i++) {
+                writer.startSample(video, i * 40000L);
+                writer.writeInt(video, 2);
+                writer.write(video, new byte[] { (byte) (i % 30 == 0 ? 0x65 : 0x41), (byte) i }, 0, 2);
+                if (i % 30 == 0) writer.setSync(video);
+            }
+            writer.close();
+            output.join();
+            byte[] data = new byte[(int) file.length()];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            raf.readFully(data);
+            raf.close();
+            return data;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Returns the offsets of the moof boxes of a recording. */
+    private static long[] findFragments(byte[] recording) {
+        ByteBuffer data = ByteBuffer.wrap(recording);
+        long[] fragments = new long[3];
+        int count = 0;
+        for (int position = 0; position < recording.length && count < fragments.length; position += data.getInt(position)) {
+            if (data.getInt(position + 4) == 0x6D6F6F66) fragments[count++] = position;
+        }
+        return fragments;
+    }
+
+    @Test
+    public void expiredSegmentsAreFreed() throws IOException {
+        long now = System.currentTimeMillis();
+        mStore.setQuota(10 * SEGMENT_SIZE, 0);
+        record(now - 120 * MINUTE, 1000);
+        record(now - 90 * MINUTE, 1000);
+        record(now - 10 * MINUTE, 1000);
+        mStore.setQuota(10 * SEGMENT_SIZE, 30 * MINUTE);
+
+        // The files of the expired segments are kept for the next ones
+        record(now, 1000);
+        assertThat(mStore.getSegments().size(), is(2));
+        assertThat(countFiles(), is(3));
+    }
+
+    @Test
+    public void keyFramesAreIndexed() throws Exception {
+        long start = 1000 * MINUTE;
+        RecordingStore.Segment segment = mStore.newSegment(start);
+        RecordingWriter writer = new RecordingWriter(segment);
+        writer.start();
+        byte[] fragment = new byte[1000];
+        for (int i = 0; i < 5; i++) {
+            writer.addSyncPoint(i * 1000000L);
+            writer.write(fragment, 0, fragment.length);
+        }
+        segment.setEndTime(start + 5000);
+        writer.close();
+        writer.join();
+
+        SeekTable table = segment.getSeekTable();
+        assertThat(table.getCount(), is(5));
+        assertThat(table.getTime(0), is(start));
+        assertThat(table.getOffset(3), is(3000L));
+        assertThat(table.getOffset(table.find(start + 2500)), is(2000L));
+
+        // Found again by time, the table of the slot is replaced when the segment is evicted
+        assertThat(mStore.getSegments(start + 1000, start + 2000).size(), is(1));
+        assertThat(mStore.getSegments(start + 6000, start + 9000).size(), is(0));
+        for (int i = 1; i < 4; i++) record(start + i * MINUTE, 1000);
+        assertThat(segment.getSeekTable().getCount(), is(0));
+    }
+
+    @Test
+    public void namesAreUnique() throws IOException {
+        RecordingStore.Segment a = record(1000 * MINUTE, 1000);
+        RecordingStore.Segment b = record(1000 * MINUTE + 10, 1000);
+        assertThat(a.getFile().equals(b.getFile()), is(false));
+        assertThat(countFiles(), is(2));
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.mp4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class SeekTableTest {
+
+    @Test
+    public void findsLastKeyFrameBefore() {
+        SeekTable table = new SeekTable();
+        assertThat(table.find(1000), is(-1));
+        for (int i = 0; i < 100; i++) table.add(1000 + i * 1000, 500 + i * 100000);
+
+        assertThat(table.getCount(), is(100));
+        assertThat(table.find(0), is(0));
+        assertThat(table.find(1000), is(0));
+        assertThat(table.find(1999), is(0));
+        assertThat(table.find(2000), is(1));
+        assertThat(table.find(50500), is(49));
+        assertThat(table.find(1000000), is(99));
+        assertThat(table.getOffset(table.find(2500)), is(100500L));
+    }
+
+    @Test
+    public void ignoresTruncatedEntry() throws IOException {
+        File file = File.createTempFile("seek", "");
+        ByteBuffer data = ByteBuffer.allocate(3 * SeekTable.ENTRY_SIZE);
+        SeekTable.put(data, 1000, 100);
+        SeekTable.put(data, 2000, 200);
+        SeekTable.put(data, 3000, 300);
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(data.array(), 0, data.capacity() - 3);
+        output.close();
+
+        SeekTable table = SeekTable.read(file);
+        assertThat(table.getCount(), is(2));
+        assertThat(table.getTime(1), is(2000L));
+        assertThat(table.getOffset(1), is(200L));
+        file.delete();
+
+        assertThat(SeekTable.read(file).getCount(), is(0));
+    }
+
+}
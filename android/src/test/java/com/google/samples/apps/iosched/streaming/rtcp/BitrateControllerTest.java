@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtcp;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class BitrateControllerTest {
+
+    private static final int SSRC = 0x12345678;
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void parse_CompoundSenderAndReceiverReports_FindsBlockOfSsrc() {
+        // SR of the receiver about another stream, followed by a RR with two blocks
+        byte[] packet = new byte[28 + 8 + 2*24];
+        int o = 0;
+        o = header(packet, o, 0, 200, 6);
+        o += 20;
+        o = header(packet, o, 2, 201, 1 + 2*6);
+        o = block(packet, o, 0x0BADF00D, 0, 0, 0, 0, 0);
+        block(packet, o, SSRC, 64, -3, 0x00011234, 120, 0x89ABCDEF);
+
+        ReceiverReport report = new ReceiverReport();
+
+        assertThat(report.parse(packet, 0, packet.length, SSRC), is(true));
+        assertThat(report.getFractionLost(), is(0.25f));
+        assertThat(report.getCumulativeLost(), is(-3));
+        assertThat(report.getHighestSequence(), is(0x00011234L));
+        assertThat(report.getJitter(), is(120L));
+        assertThat(report.getLastSenderReport(), is(0x89ABCDEFL));
+        assertThat(report.getDelay(), is(0x89ABCDEFL + 1));
+    }
+
+    @Test
+    public void parse_NoBlockForSsrc_ReturnsFalse() {
+        byte[] packet = new byte[8 + 24];
+        block(packet, header(packet, 0, 1, 201, 7), SSRC + 1, 10, 0, 0, 0, 0);
+
+        assertThat(new ReceiverReport().parse(packet, 0, packet.length, SSRC), is(false));
+    }
+
+    @Test
+    public void parse_TruncatedPacket_ReturnsFalse() {
+        byte[] packet = new byte[8 + 24];
+        block(packet, header(packet, 0, 1, 201, 7), SSRC, 10, 0, 0, 0, 0);
+
+        assertThat(new ReceiverReport().parse(packet, 0, packet.length - 4, SSRC), is(false));
+    }
+
+    @Test
+    public void update_HighLoss_DecreasesBitrate() {
+        BitrateController controller = new BitrateController(100000, 1000000);
+
+        controller.update(SSRC, 0.2f, -1, 10*SECOND);
+
+        assertThat(controller.getBitrate(), is(900000));
+    }
+
+    @Test
+    public void update_HighLossTwiceInASecond_DecreasesOnce() {
+        BitrateController controller = new BitrateController(100000, 1000000);
+
+        controller.update(SSRC, 0.2f, -1, 10*SECOND);
+        controller.update(SSRC + 1, 0.2f, -1, 10*SECOND + SECOND/2);
+
+        assertThat(controller.getBitrate(), is(900000));
+    }
+
+    @Test
+    public void update_LowLoss_IncreasesAfterHold() {
+        BitrateController controller = new BitrateController(100000, 1000000);
+        controller.update(SSRC, 0.5f, -1, 10*SECOND);
+
+        controller.update(SSRC, 0f, -1, 11*SECOND);
+        assertThat(controller.getBitrate(), is(750000));
+
+        controller.update(SSRC, 0f, -1, 10*SECOND + BitrateController.HOLD);
+        assertThat(controller.getBitrate(), is(810000));
+    }
+
+    @Test
+    public void update_GrowingRoundTripTime_DoesNotIncrease() {
+        BitrateController controller = new BitrateController(100000, 1000000);
+        controller.update(SSRC, 0.5f, 40000000L, 10*SECOND);
+
+        controller.update(SSRC, 0f, 200000000L, 20*SECOND);
+
+        assertThat(controller.getBitrate(), is(750000));
+    }
+
+    @Test
+    public void update_StaleReceiverIgnored() {
+        BitrateController controller = new BitrateController(100000, 1000000);
+        controller.update(SSRC, 0.5f, -1, 10*SECOND);
+        controller.update(SSRC + 1, 0.05f, -1, 10*SECOND + SECOND/2);
+
+        // The first receiver has not sent any report for too long
+        controller.update(SSRC + 1, 0f, -1, 10*SECOND + SECOND/2 + BitrateController.REPORT_TIMEOUT);
+
+        assertThat(controller.getBitrate(), is(810000));
+    }
+
+    @Test
+    public void update_StaysWithinBounds() {
+        BitrateController controller = new BitrateController(400000, 1000000);
+        for (int i=0; i<10; i++) {
+            controller.update(SSRC, 1f, -1, i*2*SECOND);
+        }
+        assertThat(controller.getBitrate(), is(400000));
+
+        for (int i=0; i<100; i++) {
+            controller.update(SSRC, 0f, -1, 100*SECOND + i*2*SECOND);
+        }
+        assertThat(controller.getBitrate(), is(1000000));
+    }
+
+    @Test
+    public void update_NotifiesListenerOfChanges() {
+        final int[] changes = new int[2];
+        BitrateController controller = new BitrateController(100000, 1000000);
+        controller.setListener(new BitrateController.Listener() {
+            @Override
+            public void onBitrateChanged(int bitrate) {
+                changes[0]++;
+                changes[1] = bitrate;
+            }
+        });
+
+        controller.update(SSRC, 0.05f, -1, 10*SECOND);
+        controller.update(SSRC, 0.2f, -1, 11*SECOND);
+
+        assertThat(changes[0], is(1));
+        assertThat(changes[1], is(900000));
+    }
+
+    private static int header(byte[] packet, int offset, int count, int type, int length) {
+        packet[offset] = (byte) (0x80 | count);
+        packet[offset+1] = (byte) type;
+        packet[offset+2] = (byte) (length >> 8);
+        packet[offset+3] = (byte) length;
+        setInt(packet, offset+4, 0xCAFE);
+        return offset + 8;
+    }
+
+    private static int block(byte[] packet, int offset, int ssrc, int fraction, int lost, int sequence, int jitter, int lsr) {
+        setInt(packet, offset, ssrc);
+        setInt(packet, offset+4, lost & 0xFFFFFF);
+        packet[offset+4] = (byte) fraction;
+        setInt(packet, offset+8, sequence);
+        setInt(packet, offset+12, jitter);
+        setInt(packet, offset+16, lsr);
+        setInt(packet, offset+20, lsr + 1);
+        return offset + 24;
+    }
+
+    private static void setInt(byte[] packet, int offset, int n) {
+        packet[offset] = (byte) (n >> 24);
+        packet[offset+1] = (byte) (n >> 16);
+        packet[offset+2] = (byte) (n >> 8);
+        packet[offset+3] = (byte) n;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jjcamera.apps.iosched.streaming.mp4.FragmentedMp4Reader;
+import com.jjcamera.apps.iosched.streaming.mp4.FragmentedMp4Writer;
+import com.jjcamera.apps.iosched.streaming.mp4.RecordingWriter;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@SmallTest
+public class ArchiveInputStreamTest {
+
+    private static final long FRAME_US = 40000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("recording", ".mp4");
+        RecordingWriter output = new RecordingWriter(mFile);
+        output.start();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(output, 320, 240, 0,
+                new byte[] { 0x67, 0x42, 0, 0x1F }, new byte[] { 0x68, 0 }, 0, 0, 0);
+        FragmentedMp4Writer.Track video = writer.getVideoTrack();
+        for (int i = 0; i < 10; i++) {
+            writer.startSample(video, i * FRAME_US);
+            writer.writeInt(video, 2);
+            writer.write(video, new byte[] { 0x06, (byte) i }, 0, 2);
+            writer.writeInt(video, 3);
+            writer.write(video, new byte[] { 0x41, 1, (byte) i }, 0, 3);
+        }
+        writer.close();
+        output.join();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void samplesAreSplitIntoNalUnitsAndPaced() throws IOException {
+        FragmentedMp4Reader reader = new FragmentedMp4Reader(mFile, 0);
+        long start = System.nanoTime();
+        ArchiveInputStream.Timeline timeline = new ArchiveInputStream.Timeline(0, 3 * FRAME_US);
+        ArchiveInputStream stream = new ArchiveInputStream(reader, true, timeline);
+
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer nal = stream.readBuffer();
+            assertThat(nal.remaining(), is(2));
+            assertThat(nal.get(nal.position() + 1), is((byte) i));
+            stream.release();
+            nal = stream.readBuffer();
+            assertThat(nal.remaining(), is(3));
+            assertThat(stream.getLastBufferInfo().presentationTimeUs, is(timeline.toTimestamp(i * FRAME_US) / 1000));
+            stream.release();
+        }
+        assertThat(System.nanoTime() - start >= 2 * FRAME_US * 1000 - 20000000L, is(true));
+
+        // The end of the range closes the stream
+        try {
+            stream.readBuffer();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void closeWakesUpAPausedStream() throws Exception {
+        ArchiveInputStream.Timeline timeline = new ArchiveInputStream.Timeline(FRAME_US, -1);
+        timeline.pause();
+        final ArchiveInputStream stream = new ArchiveInputStream(new FragmentedMp4Reader(mFile, 0), true, timeline);
+        final boolean[] closed = new boolean[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stream.readBuffer();
+                } catch (IOException e) {
+                    closed[0] = true;
+                }
+            }
+        });
+        reader.start();
+        reader.join(200);
+        assertThat(reader.isAlive(), is(true));
+
+        stream.close();
+        reader.join(1000);
+        assertThat(closed[0], is(true));
+        assertThat(timeline.getPosition() - FRAME_US < 100000, is(true));
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Reads streams through a small {@link BitstreamScanner} from a pipe that returns a few bytes per read,
+ * so that the sync words and the markers end up split between two refills of the buffer.
+ */
+@SmallTest
+public class BitstreamScannerTest {
+
+    @Test
+    public void skipToAdtsSync_GarbageBeforeSync_SkipsIt() throws IOException {
+        // A 0xFF not followed by 4 bits set is not a sync word
+        byte[] data = { 0x12, (byte) 0xFF, 0x00, (byte) 0xFF, (byte) 0xE0, 0x34, (byte) 0xFF, (byte) 0xF1, 0x50 };
+        BitstreamScanner scanner = new BitstreamScanner(new ChunkedInputStream(data, 64), 16);
+        assertThat(scanner.skipToAdtsSync(), is(6L));
+        assertThat(scanner.read(), is(0xFF));
+        assertThat(scanner.read(), is(0xF1));
+    }
+
+    @Test
+    public void skipToAdtsSync_SyncSplitAcrossRefills_FindsIt() throws IOException {
+        byte[] data = { 1, 2, 3, 4, (byte) 0xFF, (byte) 0xF9, 0x50 };
+        BitstreamScanner scanner = new BitstreamScanner(new ChunkedInputStream(data, 5), 5);
+        assertThat(scanner.skipToAdtsSync(), is(4L));
+        assertThat(scanner.read(), is(0xFF));
+        assertThat(scanner.read(), is(0xF9));
+        assertThat(scanner.read(), is(0x50));
+    }
+
+    @Test
+    public void skipPast_MarkerSplitAcrossRefills_StopsAfterIt() throws IOException {
+        // The beginning of the marker shows up once before the marker itself
+        byte[] data = "ftypisomxxmdmdatPAYLOAD".getBytes("US-ASCII");
+        BitstreamScanner scanner = new BitstreamScanner(new ChunkedInputStream(data, 3), 8);
+        assertThat(scanner.skipPast("mdat".getBytes("US-ASCII")), is(16L));
+        assertThat(readAll(scanner), is("PAYLOAD"));
+    }
+
+    @Test
+    public void unread_AfterRefill_ReturnsBytesFirst() throws IOException {
+        byte[] data = "0123456789abcdefghij".getBytes("US-ASCII");
+        BitstreamScanner scanner = new BitstreamScanner(new ChunkedInputStream(data, 4), 8);
+        byte[] header = new byte[6];
+        assertThat(scanner.read(header, 0, 4), is(4));
+        assertThat(scanner.read(header, 4, 2), is(2));
+
+        // The buffer is refilled before the bytes are put back
+        assertThat(scanner.request(4), is(true));
+        scanner.unread(header, 0, 6);
+        assertThat(readAll(scanner), is("0123456789abcdefghij"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unread_TooManyBytesAfterRefill_Throws() throws IOException {
+        BitstreamScanner scanner = new BitstreamScanner(new ChunkedInputStream(new byte[64], 8), 8);
+        byte[] data = new byte[BitstreamScanner.MAX_UNREAD + 1];
+        assertThat(scanner.read(data, 0, 8), is(8));
+        assertThat(scanner.request(1), is(true));
+        scanner.unread(data, 0, data.length);
+    }
+
+    @Test
+    public void read_LargeRead_BypassesBufferInOrder() throws IOException {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        BitstreamScanner scanner = new BitstreamScanner(new ChunkedInputStream(data, 10), 8);
+
+        // The first bytes are buffered, the large reads return them before reading the pipe directly
+        assertThat(scanner.read(), is(0));
+        byte[] result = new byte[data.length];
+        int length = 1, len;
+        while ((len = scanner.read(result, length, Math.min(32, result.length - length))) > 0) length += len;
+        assertThat(length, is(data.length));
+        assertThat(result, is(data));
+        assertThat(scanner.buffered(), is(0));
+    }
+
+    private static String readAll(BitstreamScanner scanner) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int len;
+        while ((len = scanner.read(buffer, 0, buffer.length)) > 0) output.write(buffer, 0, len);
+        return output.toString("US-ASCII");
+    }
+
+    /** A pipe returning at most a few bytes per read. */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final int mChunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            mChunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int offset, int length) {
+            return super.read(b, offset, Math.min(length, mChunk));
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compares the throughput of the piped streams {@link com.jjcamera.apps.iosched.streaming.rtsp.RtcpDeinterleaver}
+ * used to hand the connection to the reader (4 KB pipe, 1 KB reads) with a {@link ByteRing} of the same size,
+ * for small and large writes. The results are printed, the test only checks that every byte went through.
+ */
+@LargeTest
+public class ByteRingBenchmarkTest {
+
+    private static final int CAPACITY = 4096;
+
+    private static final int BYTES = 32 << 20;
+
+    private static final int WARMUP = 4 << 20;
+
+    private static final int[] WRITE_SIZES = { 64, 1024, 4096 };
+
+    @Test
+    public void comparePipeAndRing() throws Exception {
+        for (int size : WRITE_SIZES) {
+            PipedInputStream pis = new PipedInputStream(CAPACITY);
+            PipedOutputStream pos = new PipedOutputStream(pis);
+            transfer(pis, pos, size, WARMUP);
+            pis = new PipedInputStream(CAPACITY);
+            pos = new PipedOutputStream(pis);
+            long pipe = transfer(pis, pos, size, BYTES);
+
+            ByteRing ring = new ByteRing(CAPACITY);
+            transfer(ring.getInputStream(), ring.getOutputStream(), size, WARMUP);
+            ring.reset();
+            long ringTime = transfer(ring.getInputStream(), ring.getOutputStream(), size, BYTES);
+
+            System.out.println(String.format(Locale.US, "%d MB in writes of %d bytes, pipe: %d MB/s, ring: %d MB/s",
+                    BYTES >> 20, size, (BYTES >> 20) * 1000000L / pipe, (BYTES >> 20) * 1000000L / ringTime));
+        }
+    }
+
+    /** Returns the time in us it took to transfer length bytes from a writer thread to this thread. */
+    private static long transfer(InputStream in, final OutputStream out, final int size, final int length) throws Exception {
+        final byte[] data = new byte[size];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < length; i += size) {
+                        out.write(data, 0, Math.min(size, length - i));
+                    }
+                    out.close();
+                } catch (IOException ignore) {}
+            }
+        });
+
+        byte[] buffer = new byte[1024];
+        long total = 0;
+        int len;
+        long start = System.nanoTime();
+        writer.start();
+        while ((len = in.read(buffer, 0, buffer.length)) >= 0) {
+            total += len;
+        }
+        long time = (System.nanoTime() - start) / 1000;
+        writer.join();
+
+        assertThat(total, is((long) length));
+        return Math.max(1, time);
+    }
+
+}
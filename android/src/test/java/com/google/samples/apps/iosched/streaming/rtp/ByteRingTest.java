@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@SmallTest
+public class ByteRingTest {
+
+    @Test
+    public void capacity_RoundedUpToPowerOfTwo() {
+        assertThat(new ByteRing(1000).capacity(), is(1024));
+        assertThat(new ByteRing(4096).capacity(), is(4096));
+    }
+
+    @Test
+    public void read_AcrossTheEnd_ReturnsBytesInOrder() throws IOException {
+        ByteRing ring = new ByteRing(8);
+        byte[] out = new byte[8];
+
+        ring.write(new byte[] {1, 2, 3, 4, 5, 6}, 0, 6);
+        assertThat(ring.read(out, 0, 4), is(4));
+        ring.write(new byte[] {7, 8, 9, 10, 11, 12}, 0, 6);
+
+        assertThat(ring.available(), is(8));
+        assertThat(ring.read(out, 0, 8), is(8));
+        assertThat(out, is(new byte[] {5, 6, 7, 8, 9, 10, 11, 12}));
+    }
+
+    @Test
+    public void read_AfterCloseWrite_ReturnsRemainingBytesThenEndOfStream() throws IOException {
+        ByteRing ring = new ByteRing(8);
+        byte[] out = new byte[8];
+
+        ring.write(new byte[] {1, 2, 3}, 0, 3);
+        ring.closeWrite();
+
+        assertThat(ring.read(out, 0, 8), is(3));
+        assertThat(ring.read(out, 0, 8), is(-1));
+        assertThat(ring.getInputStream().read(), is(-1));
+    }
+
+    @Test
+    public void read_AfterCloseWriteWithError_ThrowsIt() throws IOException {
+        ByteRing ring = new ByteRing(8);
+        IOException error = new IOException("Connection reset");
+        ring.write(new byte[] {1}, 0, 1);
+        ring.closeWrite(error);
+
+        assertThat(ring.read(new byte[8], 0, 8), is(1));
+        try {
+            ring.read(new byte[8], 0, 8);
+            fail();
+        } catch (IOException e) {
+            assertThat(e, is(error));
+        }
+    }
+
+    @Test
+    public void read_Blocked_ReturnsWhenWritten() throws Exception {
+        final ByteRing ring = new ByteRing(8);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    ring.write(new byte[] {42}, 0, 1);
+                } catch (Exception ignore) {}
+            }
+        });
+        writer.start();
+
+        assertThat(ring.getInputStream().read(), is(42));
+        writer.join();
+    }
+
+    @Test
+    public void read_Interrupted_ThrowsInterruptedIOException() throws Exception {
+        ByteRing ring = new ByteRing(8);
+        final Thread reader = Thread.currentThread();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignore) {}
+                reader.interrupt();
+            }
+        }).start();
+
+        try {
+            ring.read(new byte[8], 0, 8);
+            fail();
+        } catch (InterruptedIOException e) {
+            assertThat(Thread.interrupted(), is(true));
+        }
+    }
+
+    @Test
+    public void write_Full_UnblockedByClose() throws Exception {
+        final ByteRing ring = new ByteRing(8);
+        final IOException[] error = new IOException[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ring.write(new byte[20], 0, 20);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        writer.start();
+        Thread.sleep(50);
+
+        ring.close();
+        writer.join(1000);
+
+        assertThat(writer.isAlive(), is(false));
+        assertThat(error[0] != null, is(true));
+    }
+
+    @Test
+    public void transfer_TwoThreads_AllBytesInOrder() throws Exception {
+        final ByteRing ring = new ByteRing(64);
+        final byte[] data = new byte[1 << 20];
+        new Random(7).nextBytes(data);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(3);
+                try {
+                    for (int i = 0; i < data.length; ) {
+                        int n = Math.min(data.length - i, 1 + random.nextInt(200));
+                        ring.write(data, i, n);
+                        i += n;
+                    }
+                    ring.closeWrite();
+                } catch (IOException ignore) {}
+            }
+        });
+        writer.start();
+
+        byte[] received = new byte[data.length];
+        Random random = new Random(5);
+        int total = 0;
+        while (total < received.length) {
+            total += ring.read(received, total, Math.min(received.length - total, 1 + random.nextInt(100)));
+        }
+        writer.join();
+
+        assertThat(ring.read(new byte[1], 0, 1), is(-1));
+        assertThat(Arrays.equals(received, data), is(true));
+    }
+
+    @Test
+    public void reset_RingCanBeUsedAgain() throws IOException {
+        ByteRing ring = new ByteRing(8);
+        ring.write(new byte[] {1, 2}, 0, 2);
+        ring.closeWrite();
+        ring.reset();
+
+        ring.write(new byte[] {3}, 0, 1);
+        byte[] out = new byte[8];
+
+        assertThat(ring.read(out, 0, 8), is(1));
+        assertThat(out[0], is((byte) 3));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Sends the packets of two subscribers through one {@link ChannelTransport}, the way the send
+ * thread of a {@link RtpSocket} does, and receives the RTCP packets of both.
+ */
+@SmallTest
+public class ChannelTransportTest {
+
+    private ChannelTransport mTransport;
+    private DatagramSocket[] mReceivers;
+
+    @Before
+    public void setUp() throws Exception {
+        mTransport = new ChannelTransport();
+        mReceivers = new DatagramSocket[] { new DatagramSocket(), new DatagramSocket() };
+        for (DatagramSocket receiver : mReceivers) receiver.setSoTimeout(2000);
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.close();
+        for (DatagramSocket receiver : mReceivers) receiver.close();
+    }
+
+    @Test
+    public void send_AlternatingDestinations_ReachesEach() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        RtpSocket.PacketBufferClass pbc = new RtpSocket.PacketBufferClass();
+        for (int i = 0; i < 10; i++) {
+            pbc.mBuffers[0] = (byte) i;
+            pbc.mPackets.setLength(12);
+            pbc.mPackets.setAddress(localhost);
+            pbc.mPackets.setPort(mReceivers[i % 2].getLocalPort());
+            mTransport.send(pbc);
+        }
+
+        byte[] buffer = new byte[64];
+        for (int i = 0; i < 10; i++) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            mReceivers[i % 2].receive(packet);
+            assertThat(packet.getLength(), is(12));
+            assertThat((int) buffer[0], is(i));
+        }
+    }
+
+    @Test
+    public void receive_AfterSending_AcceptsEveryReceiver() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        byte[] report = new byte[8];
+        mTransport.send(report, report.length, localhost, mReceivers[0].getLocalPort());
+        mTransport.send(report, report.length, localhost, mReceivers[1].getLocalPort());
+
+        for (int i = 0; i < 2; i++) {
+            byte[] rr = { (byte) 0x81, (byte) 201, 0, (byte) i };
+            mReceivers[i].send(new DatagramPacket(rr, rr.length, localhost, mTransport.getLocalPort()));
+        }
+        byte[] buffer = new byte[64];
+        int received = 0;
+        for (int i = 0; i < 2; i++) {
+            assertThat(mTransport.receive(buffer), is(4));
+            received |= 1 << buffer[3];
+        }
+        assertThat(received, is(3));
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Plays the role of the send thread of a {@link RtpSocket}: the packets of a GOP are sent to a first
+ * subscriber and cached, then a second subscriber joins in the middle of the GOP.
+ */
+@SmallTest
+public class GopCacheTest {
+
+    private static final long FRAME = 33000000L;
+
+    private InetAddress mLocal;
+    private DatagramSocket mFirst, mLate;
+    private RtpSocket mSocket;
+    private DatagramTransport mTransport;
+    private final List<RtpSubscriber> mSubscribers = new ArrayList<RtpSubscriber>();
+
+    @Before
+    public void setUp() throws Exception {
+        mLocal = InetAddress.getByName("127.0.0.1");
+        mFirst = new DatagramSocket(0, mLocal);
+        mLate = new DatagramSocket(0, mLocal);
+        mFirst.setSoTimeout(200);
+        mLate.setSoTimeout(200);
+        mSocket = new RtpSocket();
+        mSocket.setClockFrequency(90000);
+        mTransport = RtpSocket.createTransport(DatagramTransport.MODE_SOCKET);
+        join(mFirst);
+    }
+
+    @After
+    public void tearDown() {
+        mSocket.close();
+        mTransport.close();
+        mFirst.close();
+        mLate.close();
+    }
+
+    @Test
+    public void lateSubscriber_GetsCachedGopThenLiveStream() throws Exception {
+        // Parameter sets and an IDR in two fragments, then two P frames
+        sendFrame(0, true, 3);
+        sendFrame(FRAME, false, 1);
+        sendFrame(2*FRAME, false, 1);
+
+        GopCache cache = mSocket.getGopCache();
+        assertThat(cache.getUnitCount(), is(3));
+        assertThat(cache.getPacketCount(), is(5));
+
+        RtpSubscriber late = join(mLate);
+        sendFrame(3*FRAME, false, 1);
+
+        List<byte[]> packets = receive(mLate);
+        assertThat(packets.size(), is(6));
+        assertThat(cache.getReplayCount(), is(1L));
+        assertThat(late.getPacketCount(), is(6L));
+
+        // Sequence numbers follow each other, the cached access units end 1 ms before the live one
+        long live = mSocket.toRtp(3*FRAME) & 0xFFFFFFFFL;
+        long[] expected = { live - 270, live - 270, live - 270, live - 180, live - 90, live };
+        for (int i = 0; i < packets.size(); i++) {
+            assertThat(sequence(packets.get(i)), is(i + 1));
+            assertThat(timestamp(packets.get(i)), is(expected[i] & 0xFFFFFFFFL));
+        }
+
+        assertThat(receive(mFirst).size(), is(6));
+    }
+
+    @Test
+    public void lateSubscriber_GopTooLarge_WaitsForNextKeyFrame() throws Exception {
+        mSocket.setGopCacheSize(2000);
+        sendFrame(0, true, 3);
+        sendFrame(FRAME, false, 1);
+
+        assertThat(mSocket.getGopCache().isValid(), is(false));
+        assertThat(mSocket.getGopCache().getOverflowCount(), is(1L));
+
+        join(mLate);
+        sendFrame(2*FRAME, false, 1);
+        assertThat(receive(mLate).size(), is(0));
+
+        sendFrame(3*FRAME, true, 3);
+        assertThat(receive(mLate).size(), is(3));
+    }
+
+    @Test
+    public void syncPoint_ResetsCache() throws Exception {
+        sendFrame(0, true, 3);
+        sendFrame(FRAME, false, 1);
+        sendFrame(2*FRAME, true, 2);
+
+        assertThat(mSocket.getGopCache().getUnitCount(), is(1));
+        assertThat(mSocket.getGopCache().getPacketCount(), is(2));
+    }
+
+    @Test
+    public void invalidate_LateSubscriberWaitsForNextKeyFrame() throws Exception {
+        sendFrame(0, true, 3);
+        mSocket.getGopCache().invalidate();
+        sendFrame(FRAME, false, 1);
+
+        join(mLate);
+        sendFrame(2*FRAME, false, 1);
+
+        assertThat(receive(mLate).size(), is(0));
+    }
+
+    /** Sends the packets of a frame like the send thread, a key frame starts with a sync point. */
+    private void sendFrame(long timestamp, boolean key, int packets) throws Exception {
+        for (int i = 0; i < packets; i++) {
+            PacketBufferClass pbc = new PacketBufferClass();
+            pbc.mBuffers[0] = (byte) 0x80;
+            pbc.mBuffers[1] = (byte) (96 | (i == packets - 1 ? 0x80 : 0));
+            pbc.mKeyFrame = key;
+            pbc.mSyncPoint = key && i == 0;
+            pbc.mPackets.setLength(900);
+            mSocket.updateTimestamp(pbc, timestamp);
+            long rtpts = mSocket.toRtp(timestamp);
+            for (RtpSubscriber subscriber : mSubscribers) {
+                subscriber.send(mTransport, pbc, rtpts);
+            }
+            mSocket.getGopCache().add(pbc);
+        }
+    }
+
+    private RtpSubscriber join(DatagramSocket receiver) {
+        RtpSubscriber subscriber = mSocket.addSubscriber(mLocal, receiver.getLocalPort(), receiver.getLocalPort() + 1);
+        mSubscribers.add(subscriber);
+        return subscriber;
+    }
+
+    private static List<byte[]> receive(DatagramSocket socket) throws Exception {
+        List<byte[]> packets = new ArrayList<byte[]>();
+        try {
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+                socket.receive(packet);
+                byte[] data = new byte[packet.getLength()];
+                System.arraycopy(packet.getData(), 0, data, 0, data.length);
+                packets.add(data);
+            }
+        } catch (SocketTimeoutException done) {}
+        return packets;
+    }
+
+    private static int sequence(byte[] packet) {
+        return ((packet[2]&0xFF)<<8) | (packet[3]&0xFF);
+    }
+
+    private static long timestamp(byte[] packet) {
+        return ((packet[4]&0xFFL)<<24) | ((packet[5]&0xFF)<<16) | ((packet[6]&0xFF)<<8) | (packet[7]&0xFF);
+    }
+
+}
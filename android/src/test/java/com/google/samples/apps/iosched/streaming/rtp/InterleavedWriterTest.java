@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Writes packets and RTSP messages through an {@link InterleavedWriter} to a channel that only takes
+ * a few bytes per write, then parses what was written back into '$' frames and messages.
+ */
+@SmallTest
+public class InterleavedWriterTest {
+
+    private static final String MESSAGE = "RTSP/1.0 200 OK\r\nCSeq: 4\r\n\r\n";
+
+    @Test
+    public void flush_FewBytesPerWrite_KeepsFraming() throws Exception {
+        TrickleChannel channel = new TrickleChannel(5);
+        InterleavedWriter writer = new InterleavedWriter(channel, 16);
+        for (int i = 0; i < 10; i++) {
+            assertThat(writer.offer((byte) (i % 2), payload(i, 10 + 7 * i), 0, 10 + 7 * i), is(true));
+        }
+
+        // The socket buffer fills up after two writes each time
+        int flushes = 0;
+        do {
+            channel.mWritesLeft = 2;
+            flushes++;
+        } while (!writer.flush());
+
+        List<Object> written = parse(channel.mOutput.toByteArray());
+        assertThat(written.size(), is(10));
+        for (int i = 0; i < 10; i++) {
+            byte[] frame = (byte[]) written.get(i);
+            assertThat((int) frame[0], is(i % 2));
+            assertThat(frame.length - 1, is(10 + 7 * i));
+            assertThat(frame[frame.length - 1], is((byte) i));
+        }
+        assertThat(flushes > 10, is(true));
+        assertThat(writer.getSentPackets(), is(10L));
+        assertThat(writer.getDepth(), is(0));
+    }
+
+    @Test
+    public void send_QueuedBeforePackets_IsWrittenFirst() throws Exception {
+        TrickleChannel channel = new TrickleChannel(3);
+        InterleavedWriter writer = new InterleavedWriter(channel, 16);
+        writer.offer((byte) 0, payload(0, 20), 0, 20);
+        writer.send(MESSAGE.getBytes("US-ASCII"));
+        writer.offer((byte) 1, payload(1, 20), 0, 20);
+        assertThat(writer.flush(), is(true));
+
+        List<Object> written = parse(channel.mOutput.toByteArray());
+        assertThat(written.size(), is(3));
+        assertThat((String) written.get(0), is(MESSAGE));
+        assertThat(((byte[]) written.get(1))[0], is((byte) 0));
+        assertThat(((byte[]) written.get(2))[0], is((byte) 1));
+    }
+
+    @Test
+    public void send_PacketPartiallyWritten_WaitsForItsEnd() throws Exception {
+        TrickleChannel channel = new TrickleChannel(7);
+        InterleavedWriter writer = new InterleavedWriter(channel, 16);
+        writer.offer((byte) 0, payload(0, 20), 0, 20);
+        writer.offer((byte) 1, payload(1, 20), 0, 20);
+
+        // 7 of the 24 bytes of the first packet are written, then the message comes
+        channel.mWritesLeft = 1;
+        assertThat(writer.flush(), is(false));
+        writer.send(MESSAGE.getBytes("US-ASCII"));
+        channel.mWritesLeft = Integer.MAX_VALUE;
+        assertThat(writer.flush(), is(true));
+
+        List<Object> written = parse(channel.mOutput.toByteArray());
+        assertThat(written.size(), is(3));
+        assertThat(((byte[]) written.get(0))[0], is((byte) 0));
+        assertThat(((byte[]) written.get(0)).length, is(21));
+        assertThat(written.indexOf(MESSAGE) > 0, is(true));
+    }
+
+    @Test
+    public void close_WithThread_StopsItAndLeavesChannelOpen() throws Exception {
+        Pipe pipe = Pipe.open();
+        InterleavedWriter writer = new InterleavedWriter(pipe.sink(), 16);
+        writer.start();
+        writer.offer((byte) 0, payload(0, 20), 0, 20);
+
+        ByteBuffer received = ByteBuffer.allocate(24);
+        while (received.hasRemaining()) pipe.source().read(received);
+        writer.close();
+
+        assertThat(pipe.sink().isOpen(), is(true));
+        assertThat(writer.offer((byte) 0, payload(1, 20), 0, 20), is(false));
+        assertThat(writer.getSentPackets(), is(1L));
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    private static byte[] payload(int index, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) payload[i] = (byte) (i == length - 1 ? index : '$');
+        return payload;
+    }
+
+    /** Splits the stream into frames (the channel identifier and the payload) and messages. */
+    private static List<Object> parse(byte[] data) throws Exception {
+        List<Object> written = new ArrayList<Object>();
+        int p = 0;
+        while (p < data.length) {
+            if (data[p] == '$') {
+                int length = (data[p + 2] & 0xFF) << 8 | data[p + 3] & 0xFF;
+                byte[] frame = new byte[length + 1];
+                frame[0] = data[p + 1];
+                System.arraycopy(data, p + 4, frame, 1, length);
+                written.add(frame);
+                p += 4 + length;
+            } else {
+                String rest = new String(data, p, data.length - p, "US-ASCII");
+                int end = rest.indexOf("\r\n\r\n") + 4;
+                assertThat(end > 4, is(true));
+                written.add(rest.substring(0, end));
+                p += end;
+            }
+        }
+        return written;
+    }
+
+    /** A channel whose socket buffer only takes a few bytes per write, and fills up after a number of writes. */
+    private static class TrickleChannel implements GatheringByteChannel {
+
+        final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+        final int mBytesPerWrite;
+        int mWritesLeft = Integer.MAX_VALUE;
+
+        TrickleChannel(int bytesPerWrite) {
+            mBytesPerWrite = bytesPerWrite;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            if (mWritesLeft == 0) return 0;
+            mWritesLeft--;
+            int written = 0;
+            for (int i = offset; i < offset + length && written < mBytesPerWrite; i++) {
+                while (srcs[i].hasRemaining() && written < mBytesPerWrite) {
+                    mOutput.write(srcs[i].get());
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Plays the role of a packetizer and of the send thread around a {@link PacketFifo}: frames
+ * are offered packet by packet, all with the same timestamp, and are only ever dropped whole.
+ */
+@SmallTest
+public class PacketFifoTest {
+
+    private static final long FRAME = 33000000L;
+
+    private PacketBufferPool mPool;
+    private PacketFifo mFifo;
+
+    @Before
+    public void setUp() {
+        mPool = new PacketBufferPool(64);
+        mPool.setPolicy(PacketBufferPool.POLICY_DROP, 0);
+        mFifo = new PacketFifo(16, mPool);
+        mFifo.setHighWatermark(4);
+        mFifo.setLatencyTarget(0);
+    }
+
+    @Test
+    public void offer_AboveHighWatermark_DropsNextNonKeyFrame() throws InterruptedException {
+        assertThat(offerFrame(0, true, 3), is(3));
+        // Below the watermark when it starts, the frame is queued whole
+        assertThat(offerFrame(FRAME, false, 3), is(3));
+        assertThat(offerFrame(2 * FRAME, false, 2), is(0));
+        assertThat(offerFrame(3 * FRAME, true, 2), is(2));
+
+        assertThat(mFifo.getDepth(), is(8));
+        assertThat(mFifo.getDroppedFrames(), is(1L));
+        assertThat(mFifo.getDroppedPackets(), is(2L));
+        assertThat(mPool.getInUse(), is(8));
+    }
+
+    @Test
+    public void offer_FullInTheMiddleOfAFrame_CancelsIt() throws InterruptedException {
+        mFifo = new PacketFifo(4, mPool);
+        mFifo.setHighWatermark(4);
+        mFifo.setLatencyTarget(0);
+        assertThat(offerFrame(0, true, 2), is(2));
+        // The first two packets were queued, they are removed when the third does not fit
+        offerFrame(FRAME, false, 3);
+
+        assertThat(mFifo.getDepth(), is(2));
+        assertThat(mFifo.getDroppedFrames(), is(1L));
+        assertThat(mFifo.getDroppedPackets(), is(3L));
+        assertThat(mPool.getInUse(), is(2));
+    }
+
+    @Test
+    public void offer_FullInTheMiddleOfAMultiSliceFrame_CancelsEverySlice() throws InterruptedException {
+        mFifo = new PacketFifo(4, mPool);
+        mFifo.setHighWatermark(4);
+        mFifo.setLatencyTarget(0);
+        assertThat(offerFrame(0, true, 2), is(2));
+        // Each slice ends with the marker bit, the frame only ends with the next timestamp
+        offerSlices(FRAME, false, 3);
+        assertThat(mFifo.getDepth(), is(2));
+        assertThat(offerFrame(2 * FRAME, true, 1), is(1));
+
+        assertThat(mFifo.getDepth(), is(3));
+        assertThat(mFifo.getDroppedFrames(), is(1L));
+        assertThat(mFifo.getDroppedPackets(), is(3L));
+        assertThat(mPool.getInUse(), is(3));
+    }
+
+    @Test
+    public void offer_PoolExhaustedDuringKeyFrame_WaitsForNextKeyFrame() throws InterruptedException {
+        mPool = new PacketBufferPool(4);
+        mPool.setPolicy(PacketBufferPool.POLICY_DROP, 0);
+        mFifo = new PacketFifo(16, mPool);
+        mFifo.setHighWatermark(16);
+        mFifo.setLatencyTarget(0);
+
+        // The fifth packet of the key frame can't be allocated, the whole frame is canceled
+        offerFrame(0, true, 6);
+        assertThat(mFifo.getDepth(), is(0));
+        assertThat(mPool.getInUse(), is(0));
+        assertThat(offerFrame(FRAME, false, 1), is(0));
+        assertThat(offerFrame(2 * FRAME, true, 2), is(2));
+        assertThat(offerFrame(3 * FRAME, false, 1), is(1));
+
+        assertThat(mFifo.getDepth(), is(3));
+        assertThat(mFifo.getDroppedFrames(), is(2L));
+    }
+
+    @Test
+    public void offer_LatencyExceeded_FlushesToNextKeyFrame() throws InterruptedException {
+        mFifo.setHighWatermark(16);
+        mFifo.setLatencyTarget(100);
+        offerFrame(0, true, 2);
+        offerFrame(FRAME, false, 1);
+        offerFrame(2 * FRAME, false, 1);
+
+        // The send thread is in the middle of the first frame, it is allowed to finish
+        assertThat(mFifo.poll(0, TimeUnit.MILLISECONDS).mTimestamps, is(0L));
+
+        assertThat(offerFrame(6 * FRAME, false, 1), is(0));
+        assertThat(offerFrame(7 * FRAME, false, 1), is(0));
+        assertThat(offerFrame(8 * FRAME, true, 1), is(1));
+
+        assertThat(mFifo.getFlushCount(), is(1L));
+        assertThat(mFifo.getDroppedFrames(), is(4L));
+        assertThat(mFifo.getDepth(), is(2));
+        assertThat(mFifo.poll(0, TimeUnit.MILLISECONDS).mTimestamps, is(0L));
+        assertThat(mFifo.poll(0, TimeUnit.MILLISECONDS).mTimestamps, is(8 * FRAME));
+    }
+
+    /** Offers the packets of a frame taken from the pool, returns how many were accepted. */
+    private int offerFrame(long timestamp, boolean key, int packets) throws InterruptedException {
+        int queued = 0;
+        for (int i = 0; i < packets; i++) {
+            PacketBufferClass pbc = mPool.acquire();
+            if (i == packets - 1) pbc.mBuffers[1] |= 0x80;
+            pbc.mKeyFrame = key;
+            pbc.mTimestamps = timestamp;
+            if (mFifo.offer(pbc)) queued++;
+        }
+        return queued;
+    }
+
+    /** Offers a frame made of single packet slices, each one with the marker bit. */
+    private int offerSlices(long timestamp, boolean key, int slices) throws InterruptedException {
+        int queued = 0;
+        for (int i = 0; i < slices; i++) {
+            queued += offerFrame(timestamp, key, 1);
+        }
+        return queued;
+    }
+
+}
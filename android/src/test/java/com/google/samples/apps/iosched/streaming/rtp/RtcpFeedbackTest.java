@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtp;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jjcamera.apps.iosched.streaming.rtcp.BitrateController;
+import com.jjcamera.apps.iosched.streaming.rtcp.ReceiverReport;
+import com.jjcamera.apps.iosched.streaming.rtcp.SenderReport;
+import com.jjcamera.apps.iosched.streaming.rtp.RtpSocket.PacketBufferClass;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams through a local UDP relay that drops packets, the receiver reports of the client
+ * must reach the subscriber over RTCP and lower the bitrate.
+ */
+@LargeTest
+public class RtcpFeedbackTest {
+
+    private static final int SSRC = 0x600DCAFE;
+    private static final int PACKETS = 400;
+    private static final float LOSS = 0.25f;
+    private static final int MAX_BITRATE = 1000000;
+
+    private InetAddress mLocal;
+    private DatagramSocket mRelay, mRtp, mRtcp;
+    private Thread mRelayThread;
+    private RtpSocket mSocket;
+    private RtpSubscriber mSubscriber;
+    private DatagramTransport mTransport;
+    private BitrateController mController;
+
+    @Before
+    public void setUp() throws Exception {
+        mLocal = InetAddress.getByName("127.0.0.1");
+        mRelay = new DatagramSocket(0, mLocal);
+        mRtp = new DatagramSocket(0, mLocal);
+        mRtcp = new DatagramSocket(0, mLocal);
+        mRtp.setSoTimeout(300);
+        mRtcp.setSoTimeout(300);
+
+        // Forwards the RTP packets to the client, drops a quarter of them
+        mRelayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(42);
+                DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+                try {
+                    while (true) {
+                        packet.setLength(2048);
+                        mRelay.receive(packet);
+                        if (random.nextFloat() < LOSS) continue;
+                        packet.setAddress(mLocal);
+                        packet.setPort(mRtp.getLocalPort());
+                        mRelay.send(packet);
+                    }
+                } catch (Exception closed) {}
+            }
+        });
+        mRelayThread.start();
+
+        mSocket = new RtpSocket();
+        mController = new BitrateController(MAX_BITRATE/8, MAX_BITRATE);
+        mSocket.setBitrateController(mController);
+        SenderReport report = new SenderReport();
+        report.setInterval(1);
+        mSubscriber = new RtpSubscriber(mSocket, report, SSRC);
+        mSubscriber.setDestination(mLocal, mRelay.getLocalPort(), mRtcp.getLocalPort());
+        mTransport = RtpSocket.createTransport(DatagramTransport.MODE_SOCKET);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRelay.close();
+        mRelayThread.join();
+        mRtp.close();
+        mRtcp.close();
+        mTransport.close();
+        mSubscriber.close();
+        mSocket.close();
+    }
+
+    @Test
+    public void lossyRelay_ReceiverReport_DecreasesBitrate() throws Exception {
+        PacketBufferClass pbc = new PacketBufferClass();
+        pbc.mBuffers[0] = (byte) 0x80;
+        pbc.mBuffers[1] = (byte) 0xE0;
+        pbc.mKeyFrame = true;
+        pbc.mPackets.setLength(200);
+        for (int i=0; i<PACKETS; i++) {
+            pbc.mTimestamps = MediaClock.now();
+            mSubscriber.send(mTransport, pbc, i*3000);
+            if (i % 20 == 0) Thread.sleep(2);
+        }
+
+        // The client counts the packets that went through the relay
+        int received = 0, highest = 0;
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        try {
+            while (true) {
+                packet.setLength(2048);
+                mRtp.receive(packet);
+                received++;
+                highest = Math.max(highest, ((packet.getData()[2]&0xFF)<<8) | (packet.getData()[3]&0xFF));
+            }
+        } catch (SocketTimeoutException done) {}
+
+        // And keeps the middle 32 bits of the NTP timestamp of the last SR
+        long lsr = 0, arrival = 0;
+        try {
+            while (true) {
+                packet.setLength(2048);
+                mRtcp.receive(packet);
+                lsr = getInt(packet.getData(), 10);
+                arrival = System.nanoTime();
+            }
+        } catch (SocketTimeoutException done) {}
+        assertTrue(lsr != 0);
+
+        int lost = highest - received;
+        int fraction = lost*256/highest;
+        byte[] rr = new byte[32];
+        rr[0] = (byte) 0x81;
+        rr[1] = (byte) 201;
+        rr[3] = 7;
+        setInt(rr, 4, 0x0C11E47);
+        setInt(rr, 8, SSRC);
+        setInt(rr, 12, lost);
+        rr[12] = (byte) fraction;
+        setInt(rr, 16, highest);
+        setInt(rr, 20, 0);
+        setInt(rr, 24, (int) lsr);
+        setInt(rr, 28, (int) ((System.nanoTime() - arrival)*65536/1000000000L));
+        mRtcp.send(new DatagramPacket(rr, rr.length, mLocal, mSubscriber.getLocalPorts()[1]));
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mSubscriber.getReceiverReport() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        ReceiverReport report = mSubscriber.getReceiverReport();
+        assertThat(report, is(notNullValue()));
+        assertThat(report.getCumulativeLost(), is(lost));
+        assertThat(report.getHighestSequence(), is((long) highest));
+        assertTrue(report.getFractionLost() > BitrateController.LOSS_HIGH);
+        assertTrue(report.getRoundTripTime() >= 0 && report.getRoundTripTime() < 1000000000L);
+        assertThat(mController.getBitrate(), is((int) (MAX_BITRATE * (1 - report.getFractionLost()/2))));
+    }
+
+    private static long getInt(byte[] data, int offset) {
+        return ((data[offset]&0xFFL)<<24) | ((data[offset+1]&0xFF)<<16) | ((data[offset+2]&0xFF)<<8) | (data[offset+3]&0xFF);
+    }
+
+    private static void setInt(byte[] data, int offset, int n) {
+        data[offset] = (byte) (n >> 24);
+        data[offset+1] = (byte) (n >> 16);
+        data[offset+2] = (byte) (n >> 8);
+        data[offset+3] = (byte) n;
+    }
+
+}
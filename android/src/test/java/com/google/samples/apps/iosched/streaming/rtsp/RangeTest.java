@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.rtsp;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class RangeTest {
+
+    @Test
+    public void parse_Npt_ReturnsMilliseconds() {
+        Range range = Range.parse("npt=12.5-");
+
+        assertThat(range.type, is(Range.TYPE_NPT));
+        assertThat(range.start, is(12500L));
+        assertThat(range.end, is(-1L));
+        assertThat(range.hasStart(), is(true));
+    }
+
+    @Test
+    public void parse_NptHours_ReturnsStartAndEnd() {
+        Range range = Range.parse("NPT = 0:01:02.25-0:02:00;time=19970123T143720Z");
+
+        assertThat(range.start, is(62250L));
+        assertThat(range.end, is(120000L));
+    }
+
+    @Test
+    public void parse_Now_HasNoStart() {
+        assertThat(Range.parse("npt=now-").hasStart(), is(false));
+        assertThat(Range.parse("npt=-30").end, is(30000L));
+    }
+
+    @Test
+    public void parse_Clock_ReturnsUtcTime() {
+        Range range = Range.parse("clock=20261018T101500.25Z-20261018T101600Z");
+
+        assertThat(range.type, is(Range.TYPE_CLOCK));
+        assertThat(range.start, is(1792318500250L));
+        assertThat(range.end, is(1792318560000L));
+        assertThat(range.toString(), is("clock=20261018T101500.250Z-20261018T101600.000Z"));
+    }
+
+    @Test
+    public void parse_Invalid_ReturnsNull() {
+        assertThat(Range.parse(null), nullValue());
+        assertThat(Range.parse("smpte=10:07:00-"), nullValue());
+        assertThat(Range.parse("npt=abc-"), nullValue());
+        assertThat(Range.parse("npt=20-10"), nullValue());
+        assertThat(Range.parse("clock=2026-"), nullValue());
+    }
+
+    @Test
+    public void toString_Npt_FormatsSeconds() {
+        assertThat(new Range(Range.TYPE_NPT, 29500, -1).toString(), is("npt=29.500-"));
+        assertThat(new Range(Range.TYPE_NPT, 0, 61005).toString(), is("npt=0.000-61.005"));
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtsp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compares the control plane cost of the regular expressions used before {@link RtspServer.RequestParser}
+ * and {@link Transport} with the hand-written tokenizer, for the requests a client sends when it reconnects.
+ * The results are printed, the test only checks that both paths agree.
+ */
+@LargeTest
+public class RequestParserBenchmarkTest {
+
+    private static final int WARMUP = 2000;
+
+    private static final int ITERATIONS = 20000;
+
+    private static final String RECONNECT =
+            "OPTIONS rtsp://192.168.1.2:28286/ RTSP/1.0\r\nCSeq: 2\r\nUser-Agent: LibVLC/2.2.1 (LIVE555 Streaming Media v2014.07.25)\r\n\r\n" +
+            "DESCRIBE rtsp://192.168.1.2:28286/ RTSP/1.0\r\nCSeq: 3\r\nUser-Agent: LibVLC/2.2.1 (LIVE555 Streaming Media v2014.07.25)\r\nAccept: application/sdp\r\n\r\n" +
+            "SETUP rtsp://192.168.1.2:28286/trackID=0 RTSP/1.0\r\nCSeq: 4\r\nUser-Agent: LibVLC/2.2.1 (LIVE555 Streaming Media v2014.07.25)\r\nTransport: RTP/AVP;unicast;client_port=61234-61235\r\n\r\n" +
+            "SETUP rtsp://192.168.1.2:28286/trackID=1 RTSP/1.0\r\nCSeq: 5\r\nUser-Agent: LibVLC/2.2.1 (LIVE555 Streaming Media v2014.07.25)\r\nTransport: RTP/AVP;unicast;client_port=61236-61237\r\nSession: 1185d20035702ca\r\n\r\n" +
+            "PLAY rtsp://192.168.1.2:28286/ RTSP/1.0\r\nCSeq: 6\r\nUser-Agent: LibVLC/2.2.1 (LIVE555 Streaming Media v2014.07.25)\r\nSession: 1185d20035702ca\r\nRange: npt=0.000-\r\n\r\n";
+
+    private static final int REQUESTS = 5;
+
+    @Test
+    public void compareRegexAndTokenizer() throws IOException {
+        byte[] data = RECONNECT.getBytes("ISO-8859-1");
+
+        assertThat(runTokenizer(data), is(runRegex(RECONNECT)));
+
+        for (int i = 0; i < WARMUP; i++) {
+            runRegex(RECONNECT);
+            runTokenizer(data);
+        }
+
+        long regex = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            runRegex(RECONNECT);
+        }
+        regex = System.nanoTime() - regex;
+
+        long tokenizer = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            runTokenizer(data);
+        }
+        tokenizer = System.nanoTime() - tokenizer;
+
+        System.out.println(String.format(Locale.US, "RTSP parsing, regex: %d ns/request, tokenizer: %d ns/request",
+                regex / (ITERATIONS * REQUESTS), tokenizer / (ITERATIONS * REQUESTS)));
+    }
+
+    /** Parses the requests like RtspServer did with regular expressions, returns the sum of the ports and tracks. */
+    private static int runRegex(String data) throws IOException {
+        BufferedReader input = new BufferedReader(new StringReader(data));
+        Pattern method = Pattern.compile("(\\w+) (\\S+) RTSP", Pattern.CASE_INSENSITIVE);
+        Pattern header = Pattern.compile("(\\S+):(.+)", Pattern.CASE_INSENSITIVE);
+        int sum = 0;
+        for (int r = 0; r < REQUESTS; r++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            Matcher matcher = method.matcher(input.readLine());
+            matcher.find();
+            String name = matcher.group(1);
+            String uri = matcher.group(2);
+            String line;
+            while ((line = input.readLine()) != null && line.length() > 3) {
+                matcher = header.matcher(line);
+                matcher.find();
+                headers.put(matcher.group(1).toLowerCase(Locale.US), matcher.group(2));
+            }
+            if (name.equalsIgnoreCase("SETUP")) {
+                Matcher m = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE).matcher(uri);
+                m.find();
+                sum += Integer.parseInt(m.group(1));
+                m = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE).matcher(headers.get("transport"));
+                m.find();
+                sum += Integer.parseInt(m.group(1)) + Integer.parseInt(m.group(2));
+            }
+        }
+        return sum;
+    }
+
+    private static int runTokenizer(byte[] data) throws IOException {
+        RtspServer.RequestParser parser = new RtspServer.RequestParser();
+        parser.feed(data, 0, data.length);
+        int sum = 0;
+        RtspServer.Request request;
+        while ((request = parser.next()) != null) {
+            if (request.method.equalsIgnoreCase("SETUP")) {
+                Transport transport = Transport.parse(request.headers.get("transport"));
+                sum += request.getTrackId() + transport.clientRtpPort + transport.clientRtcpPort;
+            }
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtsp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class RequestParserTest {
+
+    private static final String OPTIONS =
+            "OPTIONS rtsp://192.168.1.2:28286/ RTSP/1.0\r\n" +
+            "CSeq: 1\r\n" +
+            "User-Agent: LibVLC/2.2.1\r\n\r\n";
+
+    private static final String SETUP =
+            "SETUP rtsp://192.168.1.2:28286/trackID=1 RTSP/1.0\r\n" +
+            "CSeq: 3\r\n" +
+            "Transport: RTP/AVP;unicast;client_port=5000-5001\r\n\r\n";
+
+    @Test
+    public void next_PipelinedRequests_ReturnsThemInOrder() throws IOException {
+        List<RtspServer.Request> requests = parse(OPTIONS + SETUP, 4096);
+
+        assertThat(requests.size(), is(2));
+        assertThat(requests.get(0).method, is("OPTIONS"));
+        assertThat(requests.get(0).headers.get("cseq"), is("1"));
+        assertThat(requests.get(0).headers.get("user-agent"), is("LibVLC/2.2.1"));
+        assertThat(requests.get(1).method, is("SETUP"));
+        assertThat(requests.get(1).headers.get("transport"), is("RTP/AVP;unicast;client_port=5000-5001"));
+    }
+
+    @Test
+    public void next_RequestSplitAcrossReads_ReturnsItOnceComplete() throws IOException {
+        List<RtspServer.Request> requests = parse(SETUP, 3);
+
+        assertThat(requests.size(), is(1));
+        assertThat(requests.get(0).uri, is("rtsp://192.168.1.2:28286/trackID=1"));
+        assertThat(requests.get(0).getTrackId(), is(1));
+    }
+
+    @Test
+    public void next_InterleavedDataAndBody_AreSkipped() throws IOException {
+        String data = "$\u0001\u0000\u0004RTCP" +
+                "SET_PARAMETER rtsp://192.168.1.2:28286/ RTSP/1.0\r\nCSeq: 4\r\nContent-Length: 6\r\n\r\nfoo: 1" +
+                OPTIONS;
+        List<RtspServer.Request> requests = parse(data, 5);
+
+        assertThat(requests.size(), is(2));
+        assertThat(requests.get(0).method, is("SET_PARAMETER"));
+        assertThat(requests.get(1).method, is("OPTIONS"));
+    }
+
+    @Test
+    public void next_MalformedRequest_IsIgnored() throws IOException {
+        List<RtspServer.Request> requests = parse("HELLO\r\nCSeq: 2\r\n\r\n" + OPTIONS, 4096);
+
+        assertThat(requests.size(), is(1));
+        assertThat(requests.get(0).headers.get("cseq"), is("1"));
+    }
+
+    @Test
+    public void getTrackId_NoTrack_ReturnsMinusOne() throws IOException {
+        RtspServer.Request request = parse(OPTIONS, 4096).get(0);
+
+        assertThat(request.getTrackId(), is(-1));
+        assertThat(request.headers.get("transport"), nullValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void feed_EndlessLine_Throws() throws IOException {
+        RtspServer.RequestParser parser = new RtspServer.RequestParser();
+        byte[] data = new byte[1024];
+        for (int i = 0; i < 16; i++) {
+            parser.feed(data, 0, data.length);
+            parser.next();
+        }
+    }
+
+    static List<RtspServer.Request> parse(String data, int chunk) throws IOException {
+        RtspServer.RequestParser parser = new RtspServer.RequestParser();
+        List<RtspServer.Request> requests = new ArrayList<RtspServer.Request>();
+        byte[] bytes = data.getBytes("ISO-8859-1");
+        for (int i = 0; i < bytes.length; i += chunk) {
+            parser.feed(bytes, i, Math.min(chunk, bytes.length - i));
+            RtspServer.Request request;
+            while ((request = parser.next()) != null) {
+                requests.add(request);
+            }
+        }
+        return requests;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class RtcpDeinterleaverTest {
+
+    private static final String REQUEST = "GET_PARAMETER rtsp://host/ RTSP/1.0\r\nCSeq: 4\r\nX-Price: $5\r\n\r\n";
+
+    private final List<String> mPackets = new ArrayList<String>();
+
+    private final RtcpDeinterleaver.Listener mListener = new RtcpDeinterleaver.Listener() {
+        @Override
+        public void onInterleavedPacket(int channel, byte[] data, int offset, int length) {
+            mPackets.add(channel + ":" + new String(data, offset, length));
+        }
+    };
+
+    @Test
+    public void filter_PacketsBetweenRequests_AreRemoved() throws Exception {
+        byte[] data = stream();
+        RtcpDeinterleaver.Filter filter = new RtcpDeinterleaver.Filter(mListener);
+
+        int length = filter.filter(data, 0, data.length);
+
+        assertThat(new String(data, 0, length), is(REQUEST + REQUEST));
+        assertThat(mPackets.size(), is(2));
+        assertThat(mPackets.get(0), is("1:report"));
+        assertThat(mPackets.get(1), is("3:another report"));
+    }
+
+    @Test
+    public void filter_SplitAtEveryByte_SameResult() throws Exception {
+        byte[] data = stream();
+        RtcpDeinterleaver.Filter filter = new RtcpDeinterleaver.Filter(mListener);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+        for (int i=0; i<data.length; i++) {
+            byte[] b = new byte[] { data[i] };
+            text.write(b, 0, filter.filter(b, 0, 1));
+        }
+
+        assertThat(text.toString(), is(REQUEST + REQUEST));
+        assertThat(mPackets.size(), is(2));
+        assertThat(mPackets.get(1), is("3:another report"));
+    }
+
+    @Test
+    public void read_ReturnsRequestsThenEndOfStream() throws Exception {
+        RtcpDeinterleaver deinterleaver = new RtcpDeinterleaver(new ByteArrayInputStream(stream()), mListener);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16];
+        int len;
+
+        while ((len = deinterleaver.read(buffer)) >= 0) {
+            text.write(buffer, 0, len);
+        }
+
+        assertThat(text.toString(), is(REQUEST + REQUEST));
+        assertThat(mPackets.size(), is(2));
+    }
+
+    private static byte[] stream() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        frame(os, 1, "report");
+        os.write(REQUEST.getBytes());
+        frame(os, 3, "another report");
+        os.write(REQUEST.getBytes());
+        return os.toByteArray();
+    }
+
+    private static void frame(ByteArrayOutputStream os, int channel, String payload) throws Exception {
+        byte[] data = payload.getBytes();
+        os.write(new byte[] { '$', (byte) channel, (byte) (data.length >> 8), (byte) data.length });
+        os.write(data);
+    }
+
+}
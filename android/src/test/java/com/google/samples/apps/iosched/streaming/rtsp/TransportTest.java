@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.jjcamera.apps.iosched.streaming.rtsp;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class TransportTest {
+
+    @Test
+    public void parse_Unicast_ReturnsClientPorts() {
+        Transport transport = Transport.parse("RTP/AVP;unicast;client_port=5000-5001");
+
+        assertThat(transport.protocol, is("RTP/AVP"));
+        assertThat(transport.multicast, is(false));
+        assertThat(transport.clientRtpPort, is(5000));
+        assertThat(transport.clientRtcpPort, is(5001));
+        assertThat(transport.isTcp(), is(false));
+    }
+
+    @Test
+    public void parse_Multicast_ReturnsDestinationAndTtl() {
+        Transport transport = Transport.parse("RTP/AVP/UDP; multicast; destination=228.5.6.7; ttl=16; port=5000-5001");
+
+        assertThat(transport.multicast, is(true));
+        assertThat(transport.destination, is("228.5.6.7"));
+        assertThat(transport.ttl, is(16));
+        assertThat(transport.clientRtpPort, is(-1));
+    }
+
+    @Test
+    public void parse_Interleaved_IsTcp() {
+        Transport transport = Transport.parse("RTP/AVP/TCP;unicast;interleaved=2-3;mode=\"PLAY\"");
+
+        assertThat(transport.isTcp(), is(true));
+        assertThat(transport.interleavedRtp, is(2));
+        assertThat(transport.interleavedRtcp, is(3));
+        assertThat(transport.mode, is("PLAY"));
+    }
+
+    @Test
+    public void parse_SinglePort_UsesNextPortForRtcp() {
+        Transport transport = Transport.parse("RTP/AVP;unicast;CLIENT_PORT=6970;interleaved=4");
+
+        assertThat(transport.clientRtpPort, is(6970));
+        assertThat(transport.clientRtcpPort, is(6971));
+        assertThat(transport.interleavedRtcp, is(5));
+    }
+
+    @Test
+    public void parse_Ssrc_IsHexadecimal() {
+        Transport transport = Transport.parse("RTP/AVP;unicast;client_port=5000-5001;ssrc=FFFFFFFE");
+
+        assertThat(transport.hasSsrc, is(true));
+        assertThat(transport.ssrc, is(0xFFFFFFFE));
+    }
+
+    @Test
+    public void parse_SeveralSpecifications_KeepsTheFirstOne() {
+        Transport transport = Transport.parse("RTP/AVP/TCP;interleaved=0-1,RTP/AVP;unicast;client_port=5000-5001");
+
+        assertThat(transport.isTcp(), is(true));
+        assertThat(transport.clientRtpPort, is(-1));
+    }
+
+    @Test
+    public void parse_Null_ReturnsDefaults() {
+        Transport transport = Transport.parse(null);
+
+        assertThat(transport.protocol, is("RTP/AVP"));
+        assertThat(transport.destination, nullValue());
+        assertThat(transport.hasSsrc, is(false));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.video;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Measures the time {@link MotionDetector} takes per preview frame at 480p, 720p and 1080p.
+ * At 30 fps a frame lasts 33 ms, the detector must stay far below that on a phone, under
+ * {@link #BUDGET_US} or 3% of the frame interval. The results are printed against that budget.
+ * The best of a few rounds is kept, and the test fails above {@link #HOST_MARGIN} times the budget:
+ * a loaded machine does not make it fail, a detector that scans every pixel again does.
+ */
+@LargeTest
+public class MotionDetectorBenchmarkTest {
+
+    private static final int WARMUP = 100;
+
+    private static final int ITERATIONS = 300;
+
+    private static final int ROUNDS = 3;
+
+    private static final long BUDGET_US = 1000;
+
+    private static final int HOST_MARGIN = 10;
+
+    private static final int[][] SIZES = { {640, 480}, {1280, 720}, {1920, 1080} };
+
+    @Test
+    public void staysUnderBudget() {
+        for (int[] size : SIZES) {
+            run(size[0], size[1]);
+        }
+    }
+
+    private static void run(int width, int height) {
+        MotionDetector detector = new MotionDetector();
+
+        // The camera recycles a few buffers, a bar moves across them
+        byte[][] frames = new byte[4][3 * width * height / 2];
+        for (int f = 0; f < frames.length; f++) {
+            for (int i = 0; i < width * height; i++) {
+                int x = i % width;
+                boolean bar = x >= f * width / 4 && x < (f + 1) * width / 4;
+                frames[f][i] = (byte) (bar ? 230 : 60 + (i * 31) % 16);
+            }
+        }
+
+        for (int i = 0; i < WARMUP; i++) {
+            detector.onFrame(frames[i % frames.length], width, height, i * 33);
+        }
+
+        long perFrame = Long.MAX_VALUE;
+        for (int r = 0, n = WARMUP; r < ROUNDS; r++) {
+            long time = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++, n++) {
+                detector.onFrame(frames[n % frames.length], width, height, n * 33);
+            }
+            perFrame = Math.min(perFrame, (System.nanoTime() - time) / (ITERATIONS * 1000));
+        }
+
+        System.out.println(String.format(Locale.US, "Motion detection %dx%d: %d us/frame, budget: %d us",
+                width, height, perFrame, BUDGET_US));
+        assertThat(detector.isMotion(), is(true));
+        assertThat(perFrame < HOST_MARGIN * BUDGET_US, is(true));
+    }
+
+}
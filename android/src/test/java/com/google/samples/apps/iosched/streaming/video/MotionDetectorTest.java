@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.jjcamera.apps.iosched.streaming.video;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@SmallTest
+public class MotionDetectorTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    private MotionDetector mDetector;
+    private byte[] mFrame;
+    private Random mRandom;
+    private int mStarted, mStopped;
+
+    @Before
+    public void setUp() {
+        mDetector = new MotionDetector();
+        mDetector.setListener(new MotionDetector.Listener() {
+            @Override
+            public void onMotionStarted() {
+                mStarted++;
+            }
+            @Override
+            public void onMotionStopped() {
+                mStopped++;
+            }
+        });
+        mFrame = new byte[WIDTH * HEIGHT * 3 / 2];
+        mRandom = new Random(42);
+    }
+
+    /** A gradient with some sensor noise, and a square at (x, y). */
+    private byte[] frame(int brightness, int x, int y) {
+        for (int j = 0; j < HEIGHT; j++) {
+            for (int i = 0; i < WIDTH; i++) {
+                int luma = 40 + i / 8 + j / 8 + brightness + mRandom.nextInt(9) - 4;
+                if (x >= 0 && i >= x && i < x + 80 && j >= y && j < y + 80) luma = 250;
+                mFrame[j * WIDTH + i] = (byte) Math.max(0, Math.min(255, luma));
+            }
+        }
+        return mFrame;
+    }
+
+    private boolean feed(int brightness, int x, int y, long time) {
+        return mDetector.onFrame(frame(brightness, x, y), WIDTH, HEIGHT, time);
+    }
+
+    @Test
+    public void staticSceneHasNoMotion() {
+        for (int i = 0; i < 30; i++) {
+            assertThat(feed(0, -1, 0, i * 33), is(false));
+        }
+        assertThat(mStarted, is(0));
+    }
+
+    @Test
+    public void movingObjectStartsAndStopsMotion() {
+        long time = 0;
+        for (int i = 0; i < 10; i++, time += 33) feed(0, -1, 0, time);
+
+        // Needs a few frames in a row
+        assertThat(feed(0, 0, 100, time += 33), is(false));
+        assertThat(feed(0, 40, 100, time += 33), is(false));
+        assertThat(feed(0, 80, 100, time += 33), is(true));
+        assertThat(mStarted, is(1));
+        for (int i = 0; i < 5; i++) feed(0, 120 + 40 * i, 100, time += 33);
+        long last = time;
+
+        // Still moving during the hold time
+        while (time < last + MotionDetector.DEFAULT_HOLD_TIME - 100) {
+            assertThat(feed(0, -1, 0, time += 33), is(true));
+        }
+        while (time < last + MotionDetector.DEFAULT_HOLD_TIME + 100) feed(0, -1, 0, time += 33);
+        assertThat(mDetector.isMotion(), is(false));
+        assertThat(mStarted, is(1));
+        assertThat(mStopped, is(1));
+    }
+
+    @Test
+    public void exposureChangeIsNotMotion() {
+        long time = 0;
+        for (int i = 0; i < 10; i++, time += 33) feed(0, -1, 0, time);
+        for (int i = 0; i < 10; i++, time += 33) {
+            assertThat(feed(50, -1, 0, time), is(false));
+        }
+    }
+
+    @Test
+    public void objectLeftInTheSceneBecomesBackground() {
+        long time = 0;
+        for (int i = 0; i < 10; i++, time += 33) feed(0, -1, 0, time);
+        // Learned in a few seconds, then motion stops after the hold time
+        for (int i = 0; i < 400; i++, time += 33) feed(0, 300, 200, time);
+        assertThat(mStarted, is(1));
+        assertThat(mDetector.isMotion(), is(false));
+        assertThat(mDetector.getLevel() < 0.1f, is(true));
+    }
+
+}